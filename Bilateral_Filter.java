@@ -1,11 +1,13 @@
+import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
 import ij.gui.GenericDialog;
+import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 import ij.plugin.filter.PlugInFilter;
 
-import math3d.Point3d;
-
-import vib.InterpolatedImage;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
 
@@ -19,79 +21,415 @@ import vib.InterpolatedImage;
  in addition to the spatial domain (i.e. pixels are smoothed when they are
  close together _both_ spatially and by intensity.
 
+ Instead of evaluating the kernel for every pixel, the filter is
+ approximated with the bilateral grid described in
+
+  S. Paris and F. Durand, "A Fast Approximation of the Bilateral Filter
+  using a Signal Processing Approach", ECCV 2006, and
+  J. Chen, S. Paris and F. Durand, "Real-time Edge-Aware Image Processing
+  with the Bilateral Grid", SIGGRAPH 2007:
+
+ the image is downsampled into a grid of (x, y, z, intensity) cells whose
+ size is the spatial and the range sigma, respectively, the grid is
+ blurred with a small Gaussian in all four dimensions, and the result is
+ read back by interpolating the grid at (x, y, z, value) of each voxel.
+ That way, the cost per voxel does not depend on the radius.
+
 */
 public class Bilateral_Filter implements PlugInFilter {
 	ImagePlus image;
 
 	public void run(ImageProcessor ip) {
+		Calibration cal = image.getCalibration();
+		double[] minMax = getMinMax(image.getStack());
+		double defaultRange = image.getType() == ImagePlus.GRAY8 ?
+			50 : Math.max(1, Math.round((minMax[1] - minMax[0]) / 4));
+
+		/*
+		 * The parameters are still the radii (in pixels and pixel
+		 * values) of the original implementation, so that existing
+		 * macros keep their meaning; they are recorded only if they
+		 * were checked, so "3D" defaults to off in macros, as the
+		 * original implementation filtered the slices separately.
+		 */
 		GenericDialog gd = new GenericDialog("Bilateral Parameters");
 		gd.addNumericField("spatial radius", 3, 0);
-		gd.addNumericField("range radius", 50, 0);
+		gd.addNumericField("range radius", defaultRange, 0);
+		gd.addCheckbox("3D", image.getStackSize() > 1
+				&& Macro.getOptions() == null);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
 
-		final InterpolatedImage orig = new InterpolatedImage(image);
-		InterpolatedImage res = orig.cloneDimensionsOnly();
 		double spatialRadius = gd.getNextNumber();
 		double rangeRadius = gd.getNextNumber();
-		final float[] spatial = makeKernel(spatialRadius);
-		final float[] range = makeKernel(rangeRadius);
-		res.image.setTitle(orig.image.getTitle()
+		boolean do3D = gd.getNextBoolean();
+		if (!(spatialRadius >= 0) || !(rangeRadius >= 0)) {
+			IJ.error("The radii must not be negative");
+			return;
+		}
+
+		ImagePlus res = filter(image,
+			radiusToSigma(spatialRadius) * cal.pixelWidth,
+			radiusToSigma(rangeRadius), do3D);
+		if (res == null)
+			return;
+		res.setTitle(image.getTitle()
 				+ "-" + spatialRadius + "-" + rangeRadius);
+		res.show();
+	}
 
-		InterpolatedImage.Iterator iter = res.iterator(true);
-		InterpolatedImage o = orig;
-		float[] s = spatial;
-		int sc = spatial.length / 2;
-		float[] r = range;
-		int rc = range.length / 2;
-
-		while (iter.next() != null) {
-			int v0 = o.getNoInterpol(iter.i, iter.j, iter.k);
-			float v = 0, total = 0;
-			for (int n = 0; n < s.length; n++)
-				for (int m = 0; m < s.length; m++) {
-					int v1 = o.getNoInterpol(
-							iter.i + m - sc,
-							iter.j + n - sc,
-							iter.k);
-					if (Math.abs(v1 - v0) > rc)
-						continue;
-					float w = s[m] * s[n]
-						* r[v1 - v0 + rc];
-					v += v1 * w;
-					total += w;
+	/**
+	 * The sigma of the Gaussian kernel which the original
+	 * implementation used for a given radius.
+	 */
+	public static double radiusToSigma(double radius) {
+		return 0.4 * (radius + 1);
+	}
+
+	public int setup(String arg, ImagePlus imp) {
+		image = imp;
+		return DOES_8G | DOES_16 | DOES_32 | NO_CHANGES;
+	}
+
+	/**
+	 * Filter the image; the spatial sigma is in calibrated units, the
+	 * range sigma in pixel values.  If do3D is false, every slice is
+	 * filtered on its own.
+	 */
+	public static ImagePlus filter(ImagePlus image, double spatialSigma,
+			double rangeSigma, boolean do3D) {
+		Calibration cal = image.getCalibration();
+		ImageStack stack = image.getStack();
+		int w = stack.getWidth(), h = stack.getHeight();
+		int d = stack.getSize();
+		double[] minMax = getMinMax(stack);
+
+		double sx = Math.max(1, spatialSigma / cal.pixelWidth);
+		double sy = Math.max(1, spatialSigma / cal.pixelHeight);
+		double sz = Math.max(1, spatialSigma / cal.pixelDepth);
+
+		ImageStack result = new ImageStack(w, h);
+		final Object[] source = new Object[d];
+		final Object[] target = new Object[d];
+		for (int z = 0; z < d; z++) {
+			ImageProcessor ip = stack.getProcessor(z + 1);
+			source[z] = ip.getPixels();
+			ImageProcessor res = ip.createProcessor(w, h);
+			target[z] = res.getPixels();
+			result.addSlice(stack.getSliceLabel(z + 1), res);
+		}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		try {
+			if (do3D && d > 1) {
+				Grid grid = new Grid(w, h, d, sx, sy, sz,
+					minMax[0], minMax[1], rangeSigma);
+				grid.filter(source, target, threads);
+			} else
+				filterSlices(source, target, w, h, sx, sy,
+					minMax, rangeSigma, threads);
+		} catch (OutOfMemoryError e) {
+			IJ.error("Not enough memory for the bilateral grid; "
+				+ "try larger sigmas");
+			return null;
+		}
+
+		ImagePlus res = new ImagePlus(image.getTitle(), result);
+		res.setCalibration(cal);
+		res.getProcessor().setMinAndMax(
+			image.getProcessor().getMin(),
+			image.getProcessor().getMax());
+		return res;
+	}
+
+	/* one grid per slice, the slices are distributed over the threads */
+	private static void filterSlices(final Object[] source,
+			final Object[] target, final int w, final int h,
+			final double sx, final double sy,
+			final double[] minMax, final double rangeSigma,
+			int threadCount) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int z = ai.getAndIncrement();
+							z < source.length;
+							z = ai.getAndIncrement()) {
+						Grid grid = new Grid(w, h, 1,
+							sx, sy, 1,
+							minMax[0], minMax[1],
+							rangeSigma);
+						grid.filter(
+							new Object[] { source[z] },
+							new Object[] { target[z] },
+							1);
+						IJ.showProgress(z + 1,
+							source.length);
+					}
 				}
-			res.set(iter.i, iter.j, iter.k, (int)(v / total));
+			};
+			threads[t].start();
 		}
+		join(threads);
+	}
 
-		res.image.show();
+	static double[] getMinMax(ImageStack stack) {
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for (int z = 1; z <= stack.getSize(); z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			ip.resetMinAndMax();
+			min = Math.min(min, ip.getMin());
+			max = Math.max(max, ip.getMax());
+		}
+		return new double[] { min, max };
 	}
 
-	public int setup(String arg, ImagePlus imp) {
-		image = imp;
-		return DOES_8G;
+	static void join(Thread[] threads) {
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
 	}
 
-	public static float[] makeKernel(double radius) {
-		radius += 1;
-		int size = (int)radius*2-1;
-		float[] kernel = new float[size];
-		float total = 0;
-		for (int i=0; i<size; i++) {
-			double x = (i + 1 - radius) / (radius * 2) / 0.2;
-			float v = (float)Math.exp(-0.5 * x * x);
-			kernel[i] = v;
-			total += v;
-		}
-		if (total <= 0.0)
-			for (int i = 0; i < size; i++)
-				kernel[i] = 1.0f / size;
-		else if (total != 1.0)
-			for (int i = 0; i < size; i++)
-				kernel[i] /= total;
-		return kernel;
+	/**
+	 * The bilateral grid.  The range dimension is stored innermost,
+	 * followed by x, y and z.  Every cell holds the sum of the values
+	 * and the number of the voxels splatted into it.
+	 */
+	static class Grid {
+		// the 5-tap binomial kernel has a sigma of 1 cell
+		final static int PAD = 2;
+		final static float[] KERNEL = {
+			1 / 16f, 4 / 16f, 6 / 16f, 4 / 16f, 1 / 16f
+		};
+
+		int w, h, d;
+		double sx, sy, sz, sr, min;
+		int nx, ny, nz, nr;
+		float[] values, weights;
+
+		Grid(int w, int h, int d, double sx, double sy, double sz,
+				double min, double max, double rangeSigma) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.sx = sx;
+			this.sy = sy;
+			this.sz = sz;
+			this.sr = rangeSigma;
+			this.min = min;
+			nx = (int)((w - 1) / sx) + 1 + 2 * PAD;
+			ny = (int)((h - 1) / sy) + 1 + 2 * PAD;
+			nz = d == 1 ? 1 : (int)((d - 1) / sz) + 1 + 2 * PAD;
+			nr = (int)((max - min) / sr) + 1 + 2 * PAD;
+			long size = (long)nx * ny * nz * nr;
+			if (size > Integer.MAX_VALUE)
+				throw new OutOfMemoryError("Grid too large");
+			values = new float[(int)size];
+			weights = new float[(int)size];
+		}
+
+		int gridZ(int z) {
+			return d == 1 ? 0 : (int)(z / sz + 0.5) + PAD;
+		}
+
+		void filter(Object[] source, Object[] target, int threads) {
+			splat(source, threads);
+			blur(1, nr, threads);
+			blur(nr, nx, threads);
+			blur(nr * nx, ny, threads);
+			if (nz > 1)
+				blur(nr * nx * ny, nz, threads);
+			slice(source, target, threads);
+		}
+
+		/*
+		 * Every voxel goes into its nearest cell.  To avoid
+		 * conflicts, each thread fills whole z planes of the grid.
+		 */
+		void splat(final Object[] source, int threadCount) {
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = new Thread[threadCount];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int g = ai.getAndIncrement();
+								g < nz;
+								g = ai.getAndIncrement())
+							for (int z = 0; z < d; z++)
+								if (gridZ(z) == g)
+									splat(source[z],
+										g);
+					}
+				};
+				threads[t].start();
+			}
+			join(threads);
+		}
+
+		void splat(Object pixels, int gz) {
+			int[] gx = new int[w];
+			for (int x = 0; x < w; x++)
+				gx[x] = nr * ((int)(x / sx + 0.5) + PAD);
+			for (int y = 0; y < h; y++) {
+				int offset = nr * nx * ((int)(y / sy + 0.5) + PAD
+						+ ny * gz);
+				for (int x = 0; x < w; x++) {
+					float v = getValue(pixels, x + w * y);
+					int i = offset + gx[x]
+						+ (int)((v - min) / sr + 0.5) + PAD;
+					values[i] += v;
+					weights[i]++;
+				}
+			}
+		}
+
+		static float getValue(Object pixels, int i) {
+			if (pixels instanceof byte[])
+				return ((byte[])pixels)[i] & 0xff;
+			if (pixels instanceof short[])
+				return ((short[])pixels)[i] & 0xffff;
+			return ((float[])pixels)[i];
+		}
+
+		/*
+		 * Convolve all lines along one dimension; the lines are
+		 * handed out to the threads in blocks.
+		 */
+		void blur(final int stride, final int n, int threadCount) {
+			final int lines = values.length / n;
+			final int block = 1024;
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = new Thread[threadCount];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						float[] v = new float[n + 2 * PAD];
+						float[] g = new float[n + 2 * PAD];
+						for (int b = ai.getAndAdd(block);
+								b < lines;
+								b = ai.getAndAdd(block)) {
+							int e = Math.min(lines,
+								b + block);
+							for (int l = b; l < e; l++) {
+								int start = (l / stride)
+									* stride * n
+									+ (l % stride);
+								blurLine(values, start,
+									stride, n, v);
+								blurLine(weights, start,
+									stride, n, g);
+							}
+						}
+					}
+				};
+				threads[t].start();
+			}
+			join(threads);
+		}
+
+		static void blurLine(float[] data, int start, int stride,
+				int n, float[] line) {
+			for (int i = 0; i < n; i++)
+				line[i + PAD] = data[start + i * stride];
+			for (int i = 0; i < n; i++) {
+				float sum = 0;
+				for (int k = 0; k < KERNEL.length; k++)
+					sum += KERNEL[k] * line[i + k];
+				data[start + i * stride] = sum;
+			}
+		}
+
+		void slice(final Object[] source, final Object[] target,
+				int threadCount) {
+			final AtomicInteger ai = new AtomicInteger(0);
+			final AtomicInteger done = new AtomicInteger(0);
+			Thread[] threads = new Thread[threadCount];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int z = ai.getAndIncrement();
+								z < d;
+								z = ai.getAndIncrement()) {
+							slice(source[z], target[z],
+								z);
+							if (d > 1)
+								IJ.showProgress(
+								done.incrementAndGet(),
+								d);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			join(threads);
+		}
+
+		void slice(Object source, Object target, int z) {
+			int[] ix = new int[w];
+			float[] fx = new float[w];
+			for (int x = 0; x < w; x++) {
+				double g = x / sx + PAD;
+				ix[x] = (int)g;
+				fx[x] = (float)(g - ix[x]);
+			}
+			int iz = 0, zCount = 1;
+			float fz = 0;
+			if (nz > 1) {
+				double g = z / sz + PAD;
+				iz = (int)g;
+				fz = (float)(g - iz);
+				zCount = 2;
+			}
+			int sY = nr * nx, sZ = sY * ny;
+			for (int y = 0; y < h; y++) {
+				double gy = y / sy + PAD;
+				int iy = (int)gy;
+				float fy = (float)(gy - iy);
+				for (int x = 0; x < w; x++) {
+					int i = x + w * y;
+					float v = getValue(source, i);
+					double gr = (v - min) / sr + PAD;
+					int ir = (int)gr;
+					float fr = (float)(gr - ir);
+					int base = ir + nr * ix[x] + sY * iy
+						+ sZ * iz;
+					float value = 0, weight = 0;
+					for (int c = 0; c < 8 * zCount; c++) {
+						float f = ((c & 1) == 0 ?
+								1 - fr : fr)
+							* ((c & 2) == 0 ?
+								1 - fx[x] : fx[x])
+							* ((c & 4) == 0 ?
+								1 - fy : fy)
+							* ((c & 8) == 0 ?
+								1 - fz : fz);
+						int j = base + (c & 1)
+							+ ((c >> 1) & 1) * nr
+							+ ((c >> 2) & 1) * sY
+							+ ((c >> 3) & 1) * sZ;
+						value += f * values[j];
+						weight += f * weights[j];
+					}
+					setValue(target, i, weight > 0 ?
+						value / weight : v);
+				}
+			}
+		}
+
+		static void setValue(Object pixels, int i, float v) {
+			if (pixels instanceof byte[])
+				((byte[])pixels)[i] = (byte)Math.max(0,
+					Math.min(255, (int)(v + 0.5f)));
+			else if (pixels instanceof short[])
+				((short[])pixels)[i] = (short)Math.max(0,
+					Math.min(65535, (int)(v + 0.5f)));
+			else
+				((float[])pixels)[i] = v;
+		}
 	}
 }
-
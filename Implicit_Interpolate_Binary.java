@@ -7,9 +7,13 @@ import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 
-import math3d.FastMatrixN;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import math3d.CholeskyDecomposition;
 import math3d.Point3d;
 
 /*
@@ -39,7 +43,7 @@ public class Implicit_Interpolate_Binary implements PlugInFilter {
 		}
 
 		GenericDialog gd = new GenericDialog("Interpolate");
-		gd.addNumericField("step", 30, 0);
+		gd.addNumericField("step", 5, 0);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
@@ -64,64 +68,298 @@ public class Implicit_Interpolate_Binary implements PlugInFilter {
 	}
 
 	public void getImplicitFunction(int step) {
-		/* build matrix */
-		ArrayList ones = new ArrayList();
-		ArrayList zeroes = new ArrayList();
+		/* collect the centers; equal points would make the system singular */
+		ArrayList<Point3d> points = new ArrayList<Point3d>();
+		ArrayList<Double> values = new ArrayList<Double>();
+		HashSet<Long> seen = new HashSet<Long>();
 		int n = 0;
 		for (int z = 0; z < samples.length; z++) {
 			if (samples[z] == null)
 				continue;
-			Iterator iter = samples[z].ones.iterator();
-			while (iter.hasNext())
-				if (((n++) % step) == 0)
-					ones.add(iter.next());
-				else
-					iter.next();
-			iter = samples[z].zeroes.iterator();
-			while (iter.hasNext())
-				if (((n++) % step) == 0)
-					zeroes.add(iter.next());
-				else
-					iter.next();
+			for (int v = 1; v >= 0; v--) {
+				Iterator iter = (v == 1 ? samples[z].ones :
+					samples[z].zeroes).iterator();
+				while (iter.hasNext()) {
+					Point3d p = (Point3d)iter.next();
+					if (((n++) % step) != 0 ||
+							!seen.add(key(p)))
+						continue;
+					points.add(p);
+					values.add(Double.valueOf(v));
+				}
+			}
 		}
 
-		int onesSize = ones.size();
-		int zeroesSize = zeroes.size();
-		int rank = onesSize + zeroesSize + 4;
-		double[][] matrix = new double[rank][rank];
-		for (int i = 0; i < rank - 4; i++) {
-			Point3d p1 = (Point3d)(i < onesSize ?
-					ones.get(i) : zeroes.get(i - onesSize));
-			for (int j = i + 1; j < rank - 4; j++) {
-				Point3d p2 = (Point3d)(j < onesSize ?
-						ones.get(j) :
-						zeroes.get(j - onesSize));
-				matrix[i][j] = matrix[j][i] = phi(p1, p2);
+		int count = points.size();
+		double[] f = new double[count];
+		for (int i = 0; i < count; i++)
+			f[i] = values.get(i).doubleValue();
+		Point3d[] centers = points.toArray(new Point3d[count]);
+		implicitFunction = new ImplicitFunction(centers,
+				solve(centers, f));
+	}
+
+	private static long key(Point3d p) {
+		// the samples lie on a 0.1 pixel grid
+		long x = Math.round(p.x * 10) + (1 << 20);
+		long y = Math.round(p.y * 10) + (1 << 20);
+		long z = Math.round(p.z * 10) + (1 << 20);
+		return (z << 42) | (y << 21) | x;
+	}
+
+	/*
+	 * Solve the interpolation problem
+	 *
+	 *	[ A  P ] [ w ]   [ f ]
+	 *	[ P' 0 ] [ c ] = [ 0 ]
+	 *
+	 * where A contains phi() of all pairs of centers, and the rows of P
+	 * are (1, x, y, z).  With the QR decomposition of P, the columns of
+	 * Q after the fourth span the null space of P', and restricted to
+	 * it, A is positive definite (phi is conditionally positive
+	 * definite), so that a Cholesky decomposition can be used.  Only
+	 * the lower triangle of A is stored.
+	 *
+	 * Returns the weights w, followed by the 4 coefficients c.
+	 */
+	double[] solve(Point3d[] centers, double[] f) {
+		final int n = centers.length;
+		if (n < 5)
+			throw new RuntimeException("Too few samples");
+		IJ.showStatus("building " + n + " x " + n + " matrix");
+		final double[][] a = new double[n][];
+		final Point3d[] c = centers;
+		new RowLoop() {
+			void row(int i) {
+				a[i] = new double[i + 1];
+				for (int j = 0; j < i; j++)
+					a[i][j] = phi(c[i], c[j]);
 			}
+		}.run(n);
+
+		// Householder reflections H_k = I - beta_k v_k v_k' for P
+		double[][] p = new double[4][n];
+		for (int i = 0; i < n; i++) {
+			p[0][i] = 1;
+			p[1][i] = centers[i].x;
+			p[2][i] = centers[i].y;
+			p[3][i] = centers[i].z;
 		}
-		for (int i = 0; i < onesSize + zeroesSize; i++) {
-			Point3d p = (Point3d)(i < onesSize ?
-					ones.get(i) : zeroes.get(i - onesSize));
-			matrix[i][rank - 4] = matrix[rank - 4][i] = 1;
-			matrix[i][rank - 3] = matrix[rank - 3][i] = p.x;
-			matrix[i][rank - 2] = matrix[rank - 2][i] = p.y;
-			matrix[i][rank - 1] = matrix[rank - 1][i] = p.z;
+		double[][] v = new double[4][];
+		double[] beta = new double[4];
+		double[] r = new double[10];
+		for (int k = 0; k < 4; k++) {
+			double norm = 0;
+			for (int i = k; i < n; i++)
+				norm += p[k][i] * p[k][i];
+			norm = Math.sqrt(norm);
+			if (norm < 1e-9)
+				throw new RuntimeException("The samples must not "
+						+ "all lie in one plane");
+			double alpha = p[k][k] > 0 ? -norm : norm;
+			v[k] = new double[n];
+			for (int i = k; i < n; i++)
+				v[k][i] = p[k][i];
+			v[k][k] -= alpha;
+			beta[k] = 1 / (norm * norm - alpha * p[k][k]);
+			for (int l = k; l < 4; l++) {
+				double s = 0;
+				for (int i = k; i < n; i++)
+					s += v[k][i] * p[l][i];
+				s *= beta[k];
+				for (int i = k; i < n; i++)
+					p[l][i] -= s * v[k][i];
+			}
+			for (int l = 0; l <= k; l++)
+				r[k * (k + 1) / 2 + l] = p[k][l];
+		}
+
+		// A := Q' A Q, f := Q' f
+		IJ.showStatus("projecting matrix");
+		for (int k = 0; k < 4; k++) {
+			reflect(a, v[k], beta[k]);
+			double s = 0;
+			for (int i = k; i < n; i++)
+				s += v[k][i] * f[i];
+			s *= beta[k];
+			for (int i = k; i < n; i++)
+				f[i] -= s * v[k][i];
 		}
-		// TODO: use LU decomposition (faster)
-		IJ.showStatus("inverting " + rank + " x " + rank + " matrix");
-		FastMatrixN.invert(matrix, true);
-		implicitFunction = new ImplicitFunction(matrix, ones, zeroes);
+
+		/*
+		 * Solve the lower right part for y; its rows are moved to
+		 * the packed triangle one by one, so that the matrix is not
+		 * held twice.  Only the first 4 columns are kept from a.
+		 */
+		IJ.showStatus("Cholesky decomposition");
+		int m = n - 4;
+		if ((long)m * (m + 1) / 2 > Integer.MAX_VALUE)
+			throw new RuntimeException("Too many samples: " + n);
+		double[] lower = new double[m * (m + 1) / 2];
+		double[][] border = new double[n][];
+		for (int i = 4, k = 0; i < n; k += i - 3, i++) {
+			border[i] = new double[4];
+			System.arraycopy(a[i], 0, border[i], 0, 4);
+			System.arraycopy(a[i], 4, lower, k, i - 3);
+			a[i] = null;
+		}
+		double[] rest = new double[m];
+		System.arraycopy(f, 4, rest, 0, m);
+		rest = CholeskyDecomposition.fromLowerTriangle(lower, m)
+			.solve(rest);
+		lower = null;
+		double[] y = new double[n];
+		System.arraycopy(rest, 0, y, 4, m);
+
+		// the polynomial: R c = (Q' f)_(0..3) - (Q' A Q)_(0..3) y
+		double[] result = new double[n + 4];
+		double[] rhs = new double[4];
+		for (int k = 0; k < 4; k++) {
+			rhs[k] = f[k];
+			for (int j = 4; j < n; j++)
+				rhs[k] -= border[j][k] * y[j];
+		}
+		for (int k = 3; k >= 0; k--) {
+			double s = rhs[k];
+			for (int l = k + 1; l < 4; l++)
+				s -= r[l * (l + 1) / 2 + k] * result[n + l];
+			result[n + k] = s / r[k * (k + 1) / 2 + k];
+		}
+
+		// w = Q y
+		for (int k = 3; k >= 0; k--) {
+			double s = 0;
+			for (int i = k; i < n; i++)
+				s += v[k][i] * y[i];
+			s *= beta[k];
+			for (int i = k; i < n; i++)
+				y[i] -= s * v[k][i];
+		}
+		System.arraycopy(y, 0, result, 0, n);
+		return result;
 	}
 
-	public void evaluate(ByteProcessor ip, int z) {
-		int  w = ip.getWidth();
-		int h = ip.getHeight();
-		byte[] p = (byte[])ip.getPixels();
-		for (int j = 0; j < h; j++)
-			for (int i = 0; i < w; i++) {
-				double v0 = implicitFunction.evaluate(i, j, z);
-				p[i + j * w] = (byte)(v0 > 0 ? 255 : 0);
-			}		
+	/*
+	 * A := H A H for symmetric A (lower triangle) and H = I - beta v v'
+	 */
+	static void reflect(double[][] a, double[] v, double beta) {
+		int n = a.length;
+		double[] q = new double[n];
+		for (int i = 0; i < n; i++) {
+			double[] row = a[i];
+			double s = 0;
+			for (int j = 0; j < i; j++) {
+				s += row[j] * v[j];
+				q[j] += row[j] * v[i];
+			}
+			q[i] += s + row[i] * v[i];
+		}
+		double k = 0;
+		for (int i = 0; i < n; i++) {
+			q[i] *= beta;
+			k += q[i] * v[i];
+		}
+		k *= beta / 2;
+		for (int i = 0; i < n; i++)
+			q[i] -= k * v[i];
+		for (int i = 0; i < n; i++) {
+			double[] row = a[i];
+			for (int j = 0; j <= i; j++)
+				row[j] -= v[i] * q[j] + q[i] * v[j];
+		}
+	}
+
+	/* runs row() for all rows, in parallel */
+	abstract static class RowLoop {
+		abstract void row(int i);
+
+		void run(final int n) {
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = new Thread[Runtime.getRuntime()
+				.availableProcessors()];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int i = ai.getAndIncrement();
+								i < n;
+								i = ai.getAndIncrement())
+							row(i);
+					}
+				};
+				threads[t].start();
+			}
+			for (int t = 0; t < threads.length; t++)
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					IJ.handleException(e);
+				}
+		}
+	}
+
+	/*
+	 * The weights of the implicit function are large and cancel each
+	 * other, so it cannot be approximated cheaply; instead, it is
+	 * evaluated exactly on a coarse lattice, and only blocks where the
+	 * sign might change are evaluated pixel by pixel: those with
+	 * corners of different signs, or with a corner whose absolute
+	 * value is smaller than the difference between the corners.
+	 */
+	final static int BLOCK = 4;
+
+	public void evaluate(ByteProcessor ip, final int z) {
+		final int w = ip.getWidth(), h = ip.getHeight();
+		final byte[] p = (byte[])ip.getPixels();
+		if (w < 2 || h < 2) {
+			for (int i = 0; i < w * h; i++)
+				p[i] = (byte)(implicitFunction.evaluate(i % w,
+					i / w, z) > 0 ? 255 : 0);
+			return;
+		}
+		final int lw = (w - 1 + BLOCK - 1) / BLOCK + 1;
+		final int lh = (h - 1 + BLOCK - 1) / BLOCK + 1;
+		final double[] lattice = new double[lw * lh];
+		new RowLoop() {
+			void row(int j) {
+				int y = Math.min(j * BLOCK, h - 1);
+				for (int i = 0; i < lw; i++)
+					lattice[i + j * lw] = implicitFunction
+						.evaluate(Math.min(i * BLOCK,
+							w - 1), y, z);
+			}
+		}.run(lh);
+		new RowLoop() {
+			void row(int j) {
+				for (int i = 0; i + 1 < lw; i++)
+					evaluateBlock(p, w, h, z, lattice, lw,
+						i, j);
+			}
+		}.run(lh - 1);
+	}
+
+	private void evaluateBlock(byte[] p, int w, int h, int z,
+			double[] lattice, int lw, int i, int j) {
+		double v00 = lattice[i + j * lw];
+		double v10 = lattice[i + 1 + j * lw];
+		double v01 = lattice[i + (j + 1) * lw];
+		double v11 = lattice[i + 1 + (j + 1) * lw];
+		double min = Math.min(Math.min(v00, v10), Math.min(v01, v11));
+		double max = Math.max(Math.max(v00, v10), Math.max(v01, v11));
+		int x0 = i * BLOCK, x1 = Math.min(x0 + BLOCK, w - 1);
+		int y0 = j * BLOCK, y1 = Math.min(y0 + BLOCK, h - 1);
+		// the last row and column of blocks include their end
+		if (x1 < w - 1)
+			x1--;
+		if (y1 < h - 1)
+			y1--;
+		boolean uniform = (min > 0 || max <= 0) &&
+			Math.min(Math.abs(min), Math.abs(max)) > max - min;
+		byte value = (byte)(min > 0 ? 255 : 0);
+		for (int y = y0; y <= y1; y++)
+			for (int x = x0; x <= x1; x++)
+				p[x + y * w] = uniform ? value :
+					(byte)(implicitFunction.evaluate(x,
+						y, z) > 0 ? 255 : 0);
 	}
 
 	public static class ImplicitSamples {
@@ -216,7 +454,7 @@ public class Implicit_Interpolate_Binary implements PlugInFilter {
 	}
 	
 	final public static double phi(double squared){
-		return squared > 0 ? squared * Math.log(Math.sqrt(squared)) : 0;
+		return squared > 0 ? 0.5 * squared * Math.log(squared) : 0;
 	}
 	
 	final public double phiLUT(double squared){
@@ -256,24 +494,25 @@ public class Implicit_Interpolate_Binary implements PlugInFilter {
 		Point3d[] points;
 		double[] weights;
 		double p0, pX, pY, pZ;
+		// the centers as flat arrays, for speed
+		double[] cx, cy, cz;
 
-		ImplicitFunction(double[][] matrix,
-				ArrayList ones, ArrayList zeroes) {
-			points = new Point3d[matrix.length - 4];
-			weights = new double[points.length];
-			int onesSize = ones.size();
-			for (int i = 0; i < points.length; i++) {
-				points[i] = (Point3d)(i < onesSize ?
-						ones.get(i) :
-						zeroes.get(i - onesSize));
-				for (int j = 0; j < onesSize; j++)
-					weights[i] += matrix[i][j];
-			}
-			for (int j = 0; j < onesSize; j++) {
-				p0 += matrix[matrix.length - 4][j];
-				pX += matrix[matrix.length - 3][j];
-				pY += matrix[matrix.length - 2][j];
-				pZ += matrix[matrix.length - 1][j];
+		ImplicitFunction(Point3d[] points, double[] solution) {
+			this.points = points;
+			int n = points.length;
+			weights = new double[n];
+			System.arraycopy(solution, 0, weights, 0, n);
+			p0 = solution[n];
+			pX = solution[n + 1];
+			pY = solution[n + 2];
+			pZ = solution[n + 3];
+			cx = new double[n];
+			cy = new double[n];
+			cz = new double[n];
+			for (int i = 0; i < n; i++) {
+				cx[i] = points[i].x;
+				cy[i] = points[i].y;
+				cz[i] = points[i].z;
 			}
 		}
 
@@ -283,8 +522,12 @@ public class Implicit_Interpolate_Binary implements PlugInFilter {
 
 		public double evaluate(double x, double y, double z) {
 			double result = p0 + pX * x + pY * y + pZ * z;
-			for (int i = 0; i < points.length; i++) {
-				result += phi(x, y, z, points[i]) * weights[i];
+			for (int i = 0; i < cx.length; i++) {
+				double dx = x - cx[i];
+				double dy = y - cy[i];
+				double dz = z - cz[i];
+				result += phi(dx * dx + dy * dy + dz * dz)
+					* weights[i];
 			}
 			return result;
 		}
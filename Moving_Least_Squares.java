@@ -1,5 +1,6 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.PointRoi;
@@ -11,6 +12,7 @@ import ij.process.ImageProcessor;
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This plugin implements the algorithms from the paper
@@ -65,6 +67,8 @@ public class Moving_Least_Squares implements PlugIn {
 		gd.addNumericField("gridSize", 0.0, 3);
 		gd.addCheckbox("forward", true);
 		gd.addCheckbox("merged result", true);
+		gd.addNumericField("maximal error (pixels)", 0.1, 3);
+		gd.addCheckbox("whole stack", false);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
@@ -76,7 +80,8 @@ public class Moving_Least_Squares implements PlugIn {
 		float gridSize = (float)gd.getNextNumber();
 		boolean useForward = gd.getNextBoolean();
 		boolean merge = gd.getNextBoolean();
-
+		float maxError = (float)gd.getNextNumber();
+		boolean wholeStack = gd.getNextBoolean();
 
 		PointRoi points1 = (PointRoi)source.getRoi();
 		PointRoi points2 = (PointRoi)target.getRoi();
@@ -86,12 +91,58 @@ public class Moving_Least_Squares implements PlugIn {
 			return;
 		}
 
+		if (wholeStack && useForward) {
+			IJ.error("Only the backward warp can handle whole "
+				+ "stacks;\nplease uncheck \"forward\".");
+			return;
+		}
+
 		// ready
-		ImageProcessor ip = process(source, points1, target, points2, method, gridSize, useForward, merge);
+		if (wholeStack) {
+			ImagePlus result = processStack(source, points1,
+					target, points2, method, maxError);
+			if (null != result)
+				result.show();
+			return;
+		}
+		ImageProcessor ip = process(source, points1, target, points2, method, gridSize, useForward, merge, maxError);
 		if (null != ip) new ImagePlus("warped" + (useForward ? " forward" : ""), ip).show();
 	}
 
 	static public ImageProcessor process(ImagePlus source, PointRoi points1, ImagePlus target, PointRoi points2, Method method, float gridSize, boolean useForward, boolean merge) {
+		return process(source, points1, target, points2, method, gridSize, useForward, merge, 0);
+	}
+
+	/**
+	 * Warp all slices (and channels) of the source stack with the
+	 * same deformation, into a stack of the size of the target image.
+	 * See Method.warpStack() for the meaning of maxError.
+	 */
+	static public ImagePlus processStack(ImagePlus source, PointRoi points1, ImagePlus target, PointRoi points2, Method method, float maxError) {
+		if (points1.getNCoordinates() != points2.getNCoordinates()) {
+			IJ.log("Unequal number of points!");
+			return null;
+		}
+		method.setCoordinates(points2, points1);
+		ImageStack stack = method.warpStack(source.getStack(),
+				target.getWidth(), target.getHeight(), maxError);
+		ImagePlus result = new ImagePlus("warped " + source.getTitle(),
+				stack);
+		result.setDimensions(source.getNChannels(),
+				source.getNSlices(), source.getNFrames());
+		result.setCalibration(target.getCalibration());
+		return result;
+	}
+
+	/**
+	 * With maxError > 0, the backward warp interpolates the deformation
+	 * from a coarse lattice (see Method.warpStack()).
+	 *
+	 * The result of the backward warp has the type of the source; its
+	 * values are rounded, and the pixels mapping outside of the source
+	 * are 0 (see RowSampler).
+	 */
+	static public ImageProcessor process(ImagePlus source, PointRoi points1, ImagePlus target, PointRoi points2, Method method, float gridSize, boolean useForward, boolean merge, float maxError) {
 		if (points1.getNCoordinates() != points2.getNCoordinates()) {
 			IJ.log("Unequal number of points!");
 			return null;
@@ -118,7 +169,12 @@ public class Moving_Least_Squares implements PlugIn {
 		} else {
 			method.setCoordinates(points2, points1);
 			int w = ip.getWidth(), h = ip.getHeight();
-			method.warpImage(inter, w, h, ip.getPixels());
+			ImageStack single = new ImageStack(source.getWidth(),
+					source.getHeight());
+			single.addSlice("", source.getProcessor());
+			// every pixel is overwritten anyway
+			ip = method.warpStack(single, w, h, maxError)
+					.getProcessor(1);
 			if (gridSize > 0)
 				method.drawGrid(w, h, gridSize, ip.getPixels());
 		}
@@ -137,7 +193,7 @@ public class Moving_Least_Squares implements PlugIn {
 		}
 	}
 
-	static abstract class Method {
+	static abstract class Method implements Cloneable {
 		// an alpha of 1 corresponds to Euclidean distance
 		public float alpha = 1.0f;
 
@@ -295,6 +351,101 @@ public class Moving_Least_Squares implements PlugIn {
 			}
 		}
 
+		/**
+		 * Returns a copy sharing the landmarks, but with its own
+		 * intermediate results, so it can be used in another thread.
+		 */
+		public Method copy() {
+			try {
+				return (Method)clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Warp every slice of the source stack into a new stack of
+		 * size w x h (backward mapping: the coordinates must have
+		 * been set from target to source).
+		 *
+		 * Instead of calculating the deformation for every pixel, it
+		 * is calculated exactly on a lattice, and interpolated
+		 * bicubically in between, except in the lattice cells where
+		 * the interpolation was found to deviate by more than
+		 * maxError pixels (see Lattice).  If maxError <= 0, every
+		 * pixel is calculated exactly.
+		 *
+		 * The rows are processed in parallel, and the coordinates of
+		 * each row are calculated only once for all the slices.
+		 */
+		public ImageStack warpStack(final ImageStack source,
+				final int w, final int h, float maxError) {
+			final Lattice lattice = maxError > 0 ?
+				Lattice.create(this, w, h, maxError) : null;
+			final Object[] src = source.getImageArray();
+			final int d = source.getSize();
+			final int sw = source.getWidth();
+			final int sh = source.getHeight();
+			final ImageStack result = new ImageStack(w, h);
+			final Object[] dst = new Object[d];
+			for (int z = 0; z < d; z++) {
+				ImageProcessor ip = source.getProcessor(z + 1)
+					.createProcessor(w, h);
+				dst[z] = ip.getPixels();
+				result.addSlice(source.getSliceLabel(z + 1), ip);
+			}
+
+			final AtomicInteger ai = new AtomicInteger(0);
+			final AtomicInteger done = new AtomicInteger(0);
+			Thread[] threads = new Thread[
+				Runtime.getRuntime().availableProcessors()];
+			for (int t = 0; t < threads.length; t++) {
+				final Method method = copy();
+				threads[t] = new Thread() {
+					public void run() {
+						float[] x = new float[w];
+						float[] y = new float[w];
+						RowSampler sampler = new RowSampler(
+							sw, sh, w);
+						for (int j = ai.getAndIncrement();
+								j < h;
+								j = ai.getAndIncrement()) {
+							if (lattice != null)
+								lattice.interpolateRow(
+									method,
+									j, x, y);
+							else
+								method.calculateRow(
+									j, x, y);
+							sampler.prepare(x, y);
+							for (int z = 0; z < d; z++)
+								sampler.sample(src[z],
+									dst[z], j);
+							IJ.showProgress(
+								done.incrementAndGet(),
+								h);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (int t = 0; t < threads.length; t++)
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					IJ.handleException(e);
+				}
+			return result;
+		}
+
+		void calculateRow(int j, float[] x, float[] y) {
+			for (int i = 0; i < x.length; i++) {
+				calculate(i, j);
+				x[i] = resultX;
+				y[i] = resultY;
+			}
+		}
+
 		public void drawGrid(int w, int h, float step, Object pixels) {
 			if (pixels instanceof byte[])
 				drawGrid(w, h, step, (byte[])pixels);
@@ -565,6 +716,336 @@ public class Moving_Least_Squares implements PlugIn {
 		}
 	}
 
+	/**
+	 * The deformation, evaluated exactly at the points
+	 * ((i - 1) * SPACING, (j - 1) * SPACING), to be interpolated with
+	 * Catmull-Rom splines in between.
+	 *
+	 * Close to the landmarks, the deformation can change too quickly
+	 * for that; therefore the interpolation is compared to the exact
+	 * deformation in the centre and on the upper and left edge of every
+	 * lattice cell, and cells deviating by more than maxError pixels
+	 * are calculated exactly.
+	 */
+	static class Lattice {
+		final static int SPACING = 16;
+
+		int columns, rows, cellsX, cellsY;
+		float[] x, y;
+		boolean[] exact;
+		// the cubic weights for all offsets 0 .. SPACING - 1
+		float[][] weights;
+		// the largest error of the interpolated cells
+		float error;
+
+		Lattice(int w, int h) {
+			cellsX = (w - 1) / SPACING + 1;
+			cellsY = (h - 1) / SPACING + 1;
+			columns = cellsX + 3;
+			rows = cellsY + 3;
+			x = new float[columns * rows];
+			y = new float[columns * rows];
+			exact = new boolean[cellsX * cellsY];
+			weights = new float[SPACING][4];
+			for (int i = 0; i < SPACING; i++)
+				catmullRom((float)i / SPACING, weights[i]);
+		}
+
+		static void catmullRom(float t, float[] w) {
+			float t2 = t * t, t3 = t2 * t;
+			w[0] = 0.5f * (-t3 + 2 * t2 - t);
+			w[1] = 0.5f * (3 * t3 - 5 * t2 + 2);
+			w[2] = 0.5f * (-3 * t3 + 4 * t2 + t);
+			w[3] = 0.5f * (t3 - t2);
+		}
+
+		static Lattice create(Method method, int w, int h,
+				float maxError) {
+			Lattice lattice = new Lattice(w, h);
+			lattice.calculate(method);
+			lattice.markExactCells(method, maxError);
+			return lattice;
+		}
+
+		void calculate(Method method) {
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = new Thread[
+				Runtime.getRuntime().availableProcessors()];
+			for (int t = 0; t < threads.length; t++) {
+				final Method m = method.copy();
+				threads[t] = new Thread() {
+					public void run() {
+						for (int j = ai.getAndIncrement();
+								j < rows;
+								j = ai.getAndIncrement())
+							calculateRow(m, j);
+					}
+				};
+				threads[t].start();
+			}
+			join(threads);
+		}
+
+		void calculateRow(Method m, int j) {
+			for (int i = 0; i < columns; i++) {
+				m.calculate((i - 1) * SPACING, (j - 1) * SPACING);
+				x[i + columns * j] = m.resultX;
+				y[i + columns * j] = m.resultY;
+			}
+		}
+
+		void markExactCells(Method method, final float maxError) {
+			final float[] errors = new float[cellsY];
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = new Thread[
+				Runtime.getRuntime().availableProcessors()];
+			for (int t = 0; t < threads.length; t++) {
+				final Method m = method.copy();
+				threads[t] = new Thread() {
+					public void run() {
+						for (int j = ai.getAndIncrement();
+								j < cellsY;
+								j = ai.getAndIncrement())
+							errors[j] = markExactCells(
+								m, j, maxError);
+					}
+				};
+				threads[t].start();
+			}
+			join(threads);
+			error = 0;
+			for (int j = 0; j < cellsY; j++)
+				if (error < errors[j])
+					error = errors[j];
+		}
+
+		private final static float[][] SAMPLES = {
+			{ 0.5f, 0.5f }, { 0.5f, 0 }, { 0, 0.5f }
+		};
+
+		// returns the largest error of the cells which stay interpolated
+		float markExactCells(Method m, int j, float maxError) {
+			float[] wx = new float[4];
+			float[] wy = new float[4];
+			float[] xy = new float[2];
+			float result = 0;
+			for (int i = 0; i < cellsX; i++) {
+				float cellError = 0;
+				for (int k = 0; k < SAMPLES.length; k++) {
+					float px = (i + SAMPLES[k][0]) * SPACING;
+					float py = (j + SAMPLES[k][1]) * SPACING;
+					m.calculate(px, py);
+					interpolate(px, py, wx, wy, xy);
+					float dx = xy[0] - m.resultX;
+					float dy = xy[1] - m.resultY;
+					float e = (float)Math.sqrt(dx * dx + dy * dy);
+					if (cellError < e)
+						cellError = e;
+				}
+				if (!(cellError <= maxError))
+					exact[i + cellsX * j] = true;
+				else if (result < cellError)
+					result = cellError;
+			}
+			return result;
+		}
+
+		// for arbitrary points, used to measure the error
+		void interpolate(float px, float py,
+				float[] w, float[] wy, float[] xy) {
+			int i = (int)(px / SPACING), j = (int)(py / SPACING);
+			catmullRom(px / SPACING - i, w);
+			catmullRom(py / SPACING - j, wy);
+			xy[0] = xy[1] = 0;
+			for (int l = 0; l < 4; l++)
+				for (int k = 0; k < 4; k++) {
+					int index = i + k + columns * (j + l);
+					xy[0] += w[k] * wy[l] * x[index];
+					xy[1] += w[k] * wy[l] * y[index];
+				}
+		}
+
+		/*
+		 * The method is used for the cells which need to be
+		 * calculated exactly.
+		 */
+		void interpolateRow(Method method, int j,
+				float[] resultX, float[] resultY) {
+			int l0 = j / SPACING;
+			float[] wy = weights[j - l0 * SPACING];
+			// first interpolate between the lattice rows
+			float[] rowX = new float[columns];
+			float[] rowY = new float[columns];
+			for (int l = 0; l < 4; l++) {
+				int offset = columns * (l0 + l);
+				for (int k = 0; k < columns; k++) {
+					rowX[k] += wy[l] * x[offset + k];
+					rowY[k] += wy[l] * y[offset + k];
+				}
+			}
+			// then along the row
+			for (int i = 0; i < resultX.length; i++) {
+				int k0 = i / SPACING;
+				if (exact[k0 + cellsX * l0]) {
+					method.calculate(i, j);
+					resultX[i] = method.resultX;
+					resultY[i] = method.resultY;
+					continue;
+				}
+				float[] wx = weights[i - k0 * SPACING];
+				resultX[i] = wx[0] * rowX[k0]
+					+ wx[1] * rowX[k0 + 1]
+					+ wx[2] * rowX[k0 + 2]
+					+ wx[3] * rowX[k0 + 3];
+				resultY[i] = wx[0] * rowY[k0]
+					+ wx[1] * rowY[k0 + 1]
+					+ wx[2] * rowY[k0 + 2]
+					+ wx[3] * rowY[k0 + 3];
+			}
+		}
+
+		static void join(Thread[] threads) {
+			for (int t = 0; t < threads.length; t++)
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					IJ.handleException(e);
+				}
+		}
+	}
+
+	/**
+	 * Bilinear interpolation of one row of source coordinates, for
+	 * all pixel types.  The neighbours and weights are determined
+	 * once per row in prepare(), and then applied to every slice.
+	 * Pixels mapping outside of the source are set to 0.
+	 */
+	static class RowSampler {
+		int sw, sh, w;
+		int[] index, dx, dy;
+		float[] fx, fy;
+
+		RowSampler(int sw, int sh, int w) {
+			this.sw = sw;
+			this.sh = sh;
+			this.w = w;
+			index = new int[w];
+			dx = new int[w];
+			dy = new int[w];
+			fx = new float[w];
+			fy = new float[w];
+		}
+
+		void prepare(float[] x, float[] y) {
+			for (int i = 0; i < w; i++) {
+				if (!(x[i] >= 0 && y[i] >= 0 &&
+						x[i] <= sw - 1 && y[i] <= sh - 1)) {
+					index[i] = -1;
+					continue;
+				}
+				int ix = (int)x[i], iy = (int)y[i];
+				fx[i] = x[i] - ix;
+				fy[i] = y[i] - iy;
+				index[i] = ix + sw * iy;
+				dx[i] = ix < sw - 1 ? 1 : 0;
+				dy[i] = iy < sh - 1 ? sw : 0;
+			}
+		}
+
+		void sample(Object source, Object target, int j) {
+			if (source instanceof byte[])
+				sample((byte[])source, (byte[])target, j * w);
+			else if (source instanceof short[])
+				sample((short[])source, (short[])target, j * w);
+			else if (source instanceof float[])
+				sample((float[])source, (float[])target, j * w);
+			else if (source instanceof int[])
+				sample((int[])source, (int[])target, j * w);
+			else
+				throw new IllegalArgumentException(
+					"Unknown pixel type");
+		}
+
+		void sample(byte[] source, byte[] target, int offset) {
+			for (int i = 0; i < w; i++) {
+				int k = index[i];
+				if (k < 0) {
+					target[offset + i] = 0;
+					continue;
+				}
+				float v0 = (source[k] & 0xff) + fx[i] *
+					((source[k + dx[i]] & 0xff)
+					 - (source[k] & 0xff));
+				k += dy[i];
+				float v1 = (source[k] & 0xff) + fx[i] *
+					((source[k + dx[i]] & 0xff)
+					 - (source[k] & 0xff));
+				target[offset + i] =
+					(byte)(v0 + fy[i] * (v1 - v0) + 0.5f);
+			}
+		}
+
+		void sample(short[] source, short[] target, int offset) {
+			for (int i = 0; i < w; i++) {
+				int k = index[i];
+				if (k < 0) {
+					target[offset + i] = 0;
+					continue;
+				}
+				float v0 = (source[k] & 0xffff) + fx[i] *
+					((source[k + dx[i]] & 0xffff)
+					 - (source[k] & 0xffff));
+				k += dy[i];
+				float v1 = (source[k] & 0xffff) + fx[i] *
+					((source[k + dx[i]] & 0xffff)
+					 - (source[k] & 0xffff));
+				target[offset + i] =
+					(short)(v0 + fy[i] * (v1 - v0) + 0.5f);
+			}
+		}
+
+		void sample(float[] source, float[] target, int offset) {
+			for (int i = 0; i < w; i++) {
+				int k = index[i];
+				if (k < 0) {
+					target[offset + i] = 0;
+					continue;
+				}
+				float v0 = source[k] + fx[i] *
+					(source[k + dx[i]] - source[k]);
+				k += dy[i];
+				float v1 = source[k] + fx[i] *
+					(source[k + dx[i]] - source[k]);
+				target[offset + i] = v0 + fy[i] * (v1 - v0);
+			}
+		}
+
+		void sample(int[] source, int[] target, int offset) {
+			for (int i = 0; i < w; i++) {
+				int k = index[i];
+				if (k < 0) {
+					target[offset + i] = 0;
+					continue;
+				}
+				int k1 = k + dx[i], k2 = k + dy[i];
+				int k3 = k2 + dx[i];
+				int value = 0;
+				for (int shift = 0; shift < 24; shift += 8) {
+					float v0 = (source[k] >> shift) & 0xff;
+					float v1 = (source[k1] >> shift) & 0xff;
+					float v2 = (source[k2] >> shift) & 0xff;
+					float v3 = (source[k3] >> shift) & 0xff;
+					v0 += fx[i] * (v1 - v0);
+					v2 += fx[i] * (v3 - v2);
+					int v = (int)(v0 + fy[i] * (v2 - v0)
+						+ 0.5f);
+					value |= v << shift;
+				}
+				target[offset + i] = value;
+			}
+		}
+	}
+
 	static abstract class Interpolator {
 		ImageProcessor ip;
 		int w, h;
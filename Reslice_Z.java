@@ -4,12 +4,32 @@ import ij.measure.Calibration;
 import ij.ImageStack;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.ColorProcessor;
-import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Resample a stack in z, e.g. to get isotropic voxels.
+ *
+ * Every output slice is a weighted sum of a few input slices; the
+ * weights only depend on z, so they are calculated once per output
+ * slice, and the slices are then blended as whole pixel arrays.  The
+ * output slices are calculated in parallel.
+ *
+ * When the new slices are farther apart than the old ones, the kernel
+ * is stretched accordingly, so that every input slice contributes.
+ */
 public class Reslice_Z implements PlugInFilter {
 
+	public final static int LINEAR = 0;
+	public final static int CUBIC = 1;
+	public final static int SINC = 2;
+	public final static String[] interpolations = {
+		"Linear", "Cubic", "Windowed sinc"
+	};
+	/* the number of lobes of the windowed (Lanczos) sinc */
+	final static int LOBES = 3;
+
 	private ImagePlus image;
 	private Calibration cal;
 	private int w, h;
@@ -20,120 +40,241 @@ public class Reslice_Z implements PlugInFilter {
 		cal = image.getCalibration();
 		GenericDialog gd = new GenericDialog("Reslice_Z");
 		gd.addNumericField("New pixel depth", cal.pixelDepth, 3);
+		gd.addChoice("Interpolation", interpolations,
+				interpolations[LINEAR]);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
 
 		double pixelDepth = gd.getNextNumber();
-		int type = image.getType();
-		if(type == ImagePlus.GRAY8)
-			resliceByte(pixelDepth).show();
-		else if(type == ImagePlus.COLOR_RGB)
-			resliceColor(pixelDepth).show();
-		else
-			IJ.error("Wrong image type");
+		int interpolation = gd.getNextChoiceIndex();
+		if(!(pixelDepth > 0)) {
+			IJ.error("Invalid pixel depth: " + pixelDepth);
+			return;
+		}
+		reslice(pixelDepth, interpolation).show();
 	}
 
 	public ImagePlus resliceColor(double pixelDepth) {
+		return reslice(pixelDepth, LINEAR);
+	}
 
-		ImageStack stack = image.getStack();
-		int numSlices = (int)(image.getStackSize() * cal.pixelDepth / 
-					pixelDepth);
-		
-		// Create a new Stack
-		ImageStack newStack = new ImageStack(w, h);
-		for(int z = 0; z < numSlices; z++) {
-			ColorProcessor bp = new ColorProcessor(w, h);
-			int[] pixels = (int[])bp.getPixels();
-			// getSliceBefore
-			double currentPosition = z * pixelDepth;
-			int ind_p = (int)Math.floor(
-					currentPosition / cal.pixelDepth);
-			int ind_n = ind_p + 1;
-			if(ind_n >= image.getStackSize())
-				break;
-			double d_p = currentPosition - ind_p*cal.pixelDepth;
-			double d_n = ind_n*cal.pixelDepth - currentPosition;
-
-			int[] before = (int[])stack.
-					getProcessor(ind_p+1).getPixels();
-			int[] after = (int[])stack.
-					getProcessor(ind_n+1).getPixels();
-			
-			for(int i = 0; i < pixels.length; i++) {
-				byte red  = interpolate(
-					(byte)((before[i]&0xff0000)>>16), 
-					d_p,
-					(byte)((after[i]&0xff0000)>>16), 
-					d_n);
-				byte green = interpolate(
-					(byte)((before[i]&0xff00)>>8), 
-					d_p,
-					(byte)((after[i]&0xff00)>>8), 
-					d_n);
-				byte blue = interpolate(
-					(byte)(before[i] & 0xff), 
-					d_p,
-					(byte)(after[i] & 0xff), 
-					d_n);
-				pixels[i] = ((((red&0xff) << 8) + (green&0xff)) << 8) + (blue&0xff);
-			}
-			
-			newStack.addSlice("", bp);
+	public ImagePlus resliceByte(double pixelDepth) {
+		return reslice(pixelDepth, LINEAR);
+	}
+
+	public ImagePlus reslice(double pixelDepth, int interpolation) {
+		w = image.getWidth();
+		h = image.getHeight();
+		cal = image.getCalibration();
+		final ImageStack stack = image.getStack();
+		final int d = stack.getSize();
+
+		// all slices which are not beyond the last original one
+		double step = pixelDepth / cal.pixelDepth;
+		int numSlices = (int)(d * cal.pixelDepth / pixelDepth);
+		numSlices = Math.max(1, Math.min(numSlices,
+				(int)Math.floor((d - 1) / step) + 1));
+
+		final int[][] indices = new int[numSlices][];
+		final float[][] weights = new float[numSlices][];
+		for(int z = 0; z < numSlices; z++)
+			getWeights(z * step, step, d, interpolation,
+					z, indices, weights);
+
+		final int type = image.getType();
+		final Object[] slices = new Object[numSlices];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final int total = numSlices;
+		int threadCount = stack.isVirtual() ? 1 : Math.min(numSlices,
+				Runtime.getRuntime().availableProcessors());
+		Thread[] threads = new Thread[threadCount];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					float[][] sums = new float[
+						type == ImagePlus.COLOR_RGB ?
+						3 : 1][w * h];
+					for(int z = ai.getAndIncrement();
+							z < total;
+							z = ai.getAndIncrement()) {
+						slices[z] = blend(stack, type,
+							indices[z], weights[z],
+							sums);
+						IJ.showProgress(done.
+							incrementAndGet(),
+							total);
+					}
+				}
+			};
+			threads[t].start();
 		}
+		for(int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch(InterruptedException e) {
+				IJ.handleException(e);
+			}
+		IJ.showProgress(1.0);
+
+		ImageStack newStack = new ImageStack(w, h);
+		for(int z = 0; z < numSlices; z++)
+			newStack.addSlice("", slices[z]);
+		newStack.setColorModel(stack.getColorModel());
 		ImagePlus result = new ImagePlus("Resliced", newStack);
 		cal = cal.copy();
 		cal.pixelDepth = pixelDepth;
 		result.setCalibration(cal);
 		return result;
 	}
-	public ImagePlus resliceByte(double pixelDepth) {
 
-		ImageStack stack = image.getStack();
-		int numSlices = (int)(image.getStackSize() * cal.pixelDepth / 
-					pixelDepth);
-		
-		// Create a new Stack
-		ImageStack newStack = new ImageStack(w, h);
-		for(int z = 0; z < numSlices; z++) {
-			ByteProcessor bp = new ByteProcessor(w, h);
-			byte[] pixels = (byte[])bp.getPixels();
-			// getSliceBefore
-			double currentPosition = z * pixelDepth;
-			int ind_p = (int)Math.floor(
-					currentPosition / cal.pixelDepth);
-			int ind_n = ind_p + 1;
-			if(ind_n >= image.getStackSize())
+	/*
+	 * The input slices (0-based) and their weights for the output
+	 * slice at position (in input slices); the slices beyond either
+	 * end are replaced by the first or last slice.
+	 */
+	static void getWeights(double position, double step, int d,
+			int interpolation, int z,
+			int[][] indices, float[][] weights) {
+		double scale = Math.max(1, step);
+		double support = scale * (interpolation == LINEAR ? 1 :
+				interpolation == CUBIC ? 2 : LOBES);
+		int first = (int)Math.floor(position - support) + 1;
+		int last = (int)Math.ceil(position + support) - 1;
+		double[] kernel = new double[last - first + 1];
+		double sum = 0;
+		for(int i = first; i <= last; i++) {
+			double value = kernel(interpolation,
+					(i - position) / scale);
+			kernel[i - first] = value;
+			sum += value;
+		}
+
+		// merge the taps which got clamped to the same slice
+		int from = Math.max(0, first), to = Math.min(d - 1, last);
+		double[] merged = new double[to - from + 1];
+		for(int i = first; i <= last; i++) {
+			int index = Math.max(from, Math.min(to, i));
+			merged[index - from] += kernel[i - first];
+		}
+		int count = 0;
+		for(int i = 0; i < merged.length; i++)
+			if(merged[i] != 0)
+				count++;
+		indices[z] = new int[count];
+		weights[z] = new float[count];
+		count = 0;
+		for(int i = 0; i < merged.length; i++)
+			if(merged[i] != 0) {
+				indices[z][count] = from + i;
+				weights[z][count++] = (float)(merged[i] / sum);
+			}
+	}
+
+	static double kernel(int interpolation, double t) {
+		t = Math.abs(t);
+		switch(interpolation) {
+		case CUBIC:
+			// Catmull-Rom
+			if(t < 1)
+				return 1.5 * t * t * t - 2.5 * t * t + 1;
+			if(t < 2)
+				return -0.5 * t * t * t + 2.5 * t * t
+					- 4 * t + 2;
+			return 0;
+		case SINC:
+			if(t == 0)
+				return 1;
+			if(t >= LOBES)
+				return 0;
+			double x = Math.PI * t;
+			return LOBES * Math.sin(x) * Math.sin(x / LOBES)
+				/ (x * x);
+		default:
+			return t < 1 ? 1 - t : 0;
+		}
+	}
+
+	/*
+	 * The weighted sum of the given slices, rounded and clamped to the
+	 * range of the type; sums is a per-thread buffer (one per channel).
+	 */
+	static Object blend(ImageStack stack, int type, int[] indices,
+			float[] weights, float[][] sums) {
+		for(int c = 0; c < sums.length; c++)
+			java.util.Arrays.fill(sums[c], 0);
+		float[] s = sums[0];
+		int n = s.length;
+		for(int j = 0; j < indices.length; j++) {
+			Object pixels = stack.getPixels(indices[j] + 1);
+			float weight = weights[j];
+			switch(type) {
+			case ImagePlus.GRAY16: {
+				short[] p = (short[])pixels;
+				for(int i = 0; i < n; i++)
+					s[i] += weight * (p[i] & 0xffff);
+				break;
+			}
+			case ImagePlus.GRAY32: {
+				float[] p = (float[])pixels;
+				for(int i = 0; i < n; i++)
+					s[i] += weight * p[i];
 				break;
-			double d_p = currentPosition - ind_p*cal.pixelDepth;
-			double d_n = ind_n*cal.pixelDepth - currentPosition;
-
-			byte[] before = (byte[])stack.
-					getProcessor(ind_p+1).getPixels();
-			byte[] after = (byte[])stack.
-					getProcessor(ind_n+1).getPixels();
-			
-			for(int i = 0; i < pixels.length; i++) {
-				pixels[i] = interpolate(before[i], d_p,
-						after[i], d_n);
 			}
-			
-			newStack.addSlice("", bp);
+			case ImagePlus.COLOR_RGB: {
+				int[] p = (int[])pixels;
+				float[] g = sums[1], b = sums[2];
+				for(int i = 0; i < n; i++) {
+					int v = p[i];
+					s[i] += weight * ((v & 0xff0000) >> 16);
+					g[i] += weight * ((v & 0xff00) >> 8);
+					b[i] += weight * (v & 0xff);
+				}
+				break;
+			}
+			default: {
+				byte[] p = (byte[])pixels;
+				for(int i = 0; i < n; i++)
+					s[i] += weight * (p[i] & 0xff);
+			}
+			}
+		}
+
+		switch(type) {
+		case ImagePlus.GRAY16: {
+			short[] result = new short[n];
+			for(int i = 0; i < n; i++)
+				result[i] = (short)clamp(s[i], 65535);
+			return result;
+		}
+		case ImagePlus.GRAY32:
+			return s.clone();
+		case ImagePlus.COLOR_RGB: {
+			int[] result = new int[n];
+			float[] g = sums[1], b = sums[2];
+			for(int i = 0; i < n; i++)
+				result[i] = (clamp(s[i], 255) << 16)
+					| (clamp(g[i], 255) << 8)
+					| clamp(b[i], 255);
+			return result;
+		}
+		default: {
+			byte[] result = new byte[n];
+			for(int i = 0; i < n; i++)
+				result[i] = (byte)clamp(s[i], 255);
+			return result;
+		}
 		}
-		ImagePlus result = new ImagePlus("Resliced", newStack);
-		cal = cal.copy();
-		cal.pixelDepth = pixelDepth;
-		result.setCalibration(cal);
-		return result;
 	}
 
-	public byte interpolate(byte b, double db, byte n, double dn) {
-		return (byte) ((((int)(b & 0xff))*dn + ((int)(n & 0xff))*db) / 
-				(dn + db));
+	static int clamp(float value, int max) {
+		int result = (int)(value + 0.5f);
+		return result < 0 ? 0 : result > max ? max : result;
 	}
 
 	public int setup(String arg, ImagePlus img) {
 		this.image = img;
-		return DOES_8G | DOES_RGB;
+		return DOES_8G | DOES_16 | DOES_32 | DOES_RGB;
 	}
 }
@@ -0,0 +1,293 @@
+package customnode;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A buffered input for mesh files, which reads ISO-8859-1 text tokens
+ * and binary numbers from a channel.  Numbers in text are parsed
+ * directly from the buffer, without creating Strings.
+ *
+ * Binary numbers are read in little endian byte order unless
+ * specified otherwise.
+ */
+class ChannelInput {
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+	private boolean eof;
+
+	ChannelInput(ReadableByteChannel channel) {
+		this.channel = channel;
+		buffer = ByteBuffer.allocateDirect(1 << 16);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+	}
+
+	static ChannelInput open(File file) throws IOException {
+		return new ChannelInput(
+			new FileInputStream(file).getChannel());
+	}
+
+	void order(ByteOrder order) {
+		buffer.order(order);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	/* Make sure that n bytes are available, unless the end is reached */
+	private boolean fill(int n) throws IOException {
+		if(buffer.remaining() >= n)
+			return true;
+		buffer.compact();
+		while(!eof && buffer.position() < n)
+			if(channel.read(buffer) < 0)
+				eof = true;
+		buffer.flip();
+		return buffer.remaining() >= n;
+	}
+
+	private void ensure(int n) throws IOException {
+		if(!fill(n))
+			throw new EOFException();
+	}
+
+	/** Returns the next byte, or -1 at the end of the input. */
+	int read() throws IOException {
+		if(!fill(1))
+			return -1;
+		return buffer.get() & 0xff;
+	}
+
+	/** Returns the next byte without consuming it, or -1. */
+	int peek() throws IOException {
+		if(!fill(1))
+			return -1;
+		return buffer.get(buffer.position()) & 0xff;
+	}
+
+	static boolean isSpace(int c) {
+		return c == ' ' || c == '\t';
+	}
+
+	static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+	/** Skips spaces and tabs, but not line breaks. */
+	void skipSpaces() throws IOException {
+		while(isSpace(peek()))
+			buffer.get();
+	}
+
+	/** Skips spaces, tabs and line breaks. */
+	void skipWhitespace() throws IOException {
+		while(isWhitespace(peek()))
+			buffer.get();
+	}
+
+	/**
+	 * Returns true if only spaces, a comment or nothing at all remain
+	 * in the current line.
+	 */
+	boolean atEndOfLine() throws IOException {
+		skipSpaces();
+		int c = peek();
+		return c == '\n' || c == '\r' || c == '#' || c == -1;
+	}
+
+	/** Skips everything up to and including the next line break. */
+	void skipLine() throws IOException {
+		for(;;) {
+			int c = read();
+			if(c == '\n' || c == -1)
+				return;
+		}
+	}
+
+	/** Skips the rest of the current token. */
+	void skipToken() throws IOException {
+		for(int c = peek(); c != -1 && !isWhitespace(c); c = peek())
+			buffer.get();
+	}
+
+	/**
+	 * Returns the rest of the current line, without the line break,
+	 * or null at the end of the input.
+	 */
+	String readLine() throws IOException {
+		if(peek() < 0)
+			return null;
+		StringBuffer sb = new StringBuffer();
+		for(;;) {
+			int c = read();
+			if(c == '\n' || c == -1)
+				break;
+			if(c != '\r')
+				sb.append((char)c);
+		}
+		return sb.toString();
+	}
+
+	/** Returns the next whitespace-delimited token, or null. */
+	String nextToken() throws IOException {
+		skipWhitespace();
+		if(peek() < 0)
+			return null;
+		StringBuffer sb = new StringBuffer();
+		for(int c = peek(); c != -1 && !isWhitespace(c); c = peek())
+			sb.append((char)buffer.get());
+		return sb.toString();
+	}
+
+	/**
+	 * Parses an integer at the current position (after skipping
+	 * whitespace); the rest of the token is left unread, so that
+	 * e.g. the texture index of the OBJ face entry "5/1" remains.
+	 */
+	int nextInt() throws IOException {
+		skipWhitespace();
+		int c = peek();
+		boolean negative = c == '-';
+		if(c == '-' || c == '+') {
+			buffer.get();
+			c = peek();
+		}
+		if(c < '0' || c > '9')
+			throw new NumberFormatException(
+				"Expected an integer, got '" + (char)c + "'");
+		int value = 0;
+		while(c >= '0' && c <= '9') {
+			value = 10 * value + (c - '0');
+			buffer.get();
+			c = peek();
+		}
+		return negative ? -value : value;
+	}
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++)
+			POW10[i] = 10 * POW10[i - 1];
+	}
+
+	/**
+	 * Parses a decimal floating point number at the current position
+	 * (after skipping whitespace).  Mantissas of up to 18 digits with
+	 * moderate exponents are handled directly; everything else is
+	 * passed on to Double.parseDouble().
+	 */
+	double nextDouble() throws IOException {
+		skipWhitespace();
+		int c = peek();
+		boolean negative = c == '-';
+		if(c == '-' || c == '+') {
+			buffer.get();
+			c = peek();
+		}
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean seenDigit = false;
+		while(c >= '0' && c <= '9') {
+			seenDigit = true;
+			if(digits < 18) {
+				mantissa = 10 * mantissa + (c - '0');
+				if(mantissa != 0)
+					digits++;
+			} else
+				exponent++;
+			buffer.get();
+			c = peek();
+		}
+		if(c == '.') {
+			buffer.get();
+			c = peek();
+			while(c >= '0' && c <= '9') {
+				seenDigit = true;
+				if(digits < 18) {
+					mantissa = 10 * mantissa + (c - '0');
+					if(mantissa != 0)
+						digits++;
+					exponent--;
+				}
+				buffer.get();
+				c = peek();
+			}
+		}
+		if(!seenDigit) {
+			// nan, inf, infinity
+			String token = nextToken();
+			if(token == null)
+				throw new EOFException();
+			if(token.equalsIgnoreCase("nan"))
+				return Double.NaN;
+			if(token.toLowerCase().startsWith("inf"))
+				return negative ? Double.NEGATIVE_INFINITY
+					: Double.POSITIVE_INFINITY;
+			throw new NumberFormatException("Not a number: "
+				+ token);
+		}
+		if(c == 'e' || c == 'E') {
+			buffer.get();
+			exponent += nextInt();
+		}
+
+		double value;
+		if(exponent == 0)
+			value = mantissa;
+		else if(exponent < 0 && exponent >= -22)
+			value = mantissa / POW10[-exponent];
+		else if(exponent > 0 && exponent <= 22)
+			value = mantissa * POW10[exponent];
+		else
+			value = Double.parseDouble(mantissa + "e" + exponent);
+		return negative ? -value : value;
+	}
+
+	float nextFloat() throws IOException {
+		return (float)nextDouble();
+	}
+
+	int getByte() throws IOException {
+		ensure(1);
+		return buffer.get() & 0xff;
+	}
+
+	short getShort() throws IOException {
+		ensure(2);
+		return buffer.getShort();
+	}
+
+	int getInt() throws IOException {
+		ensure(4);
+		return buffer.getInt();
+	}
+
+	float getFloat() throws IOException {
+		ensure(4);
+		return buffer.getFloat();
+	}
+
+	double getDouble() throws IOException {
+		ensure(8);
+		return buffer.getDouble();
+	}
+
+	void skip(int n) throws IOException {
+		while(n > 0) {
+			ensure(1);
+			int m = Math.min(n, buffer.remaining());
+			buffer.position(buffer.position() + m);
+			n -= m;
+		}
+	}
+}
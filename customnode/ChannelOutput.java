@@ -0,0 +1,194 @@
+package customnode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered output for mesh files, writing ISO-8859-1 text and
+ * binary numbers to a channel without creating intermediate Strings.
+ *
+ * Binary numbers are written in little endian byte order unless
+ * specified otherwise.
+ */
+class ChannelOutput {
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final byte[] digits = new byte[24];
+
+	ChannelOutput(WritableByteChannel channel) {
+		this.channel = channel;
+		buffer = ByteBuffer.allocateDirect(1 << 16);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static ChannelOutput open(File file) throws IOException {
+		return new ChannelOutput(
+			new FileOutputStream(file).getChannel());
+	}
+
+	/**
+	 * Returns an output which passes the bytes as characters to
+	 * the given writer (which is not closed by close()).
+	 */
+	static ChannelOutput open(final Writer writer) {
+		return new ChannelOutput(new WritableByteChannel() {
+			char[] chars = new char[0];
+
+			public int write(ByteBuffer src) throws IOException {
+				int n = src.remaining();
+				if(chars.length < n)
+					chars = new char[n];
+				for(int i = 0; i < n; i++)
+					chars[i] = (char)(src.get() & 0xff);
+				writer.write(chars, 0, n);
+				return n;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() throws IOException {
+				writer.flush();
+			}
+		});
+	}
+
+	void order(ByteOrder order) {
+		buffer.order(order);
+	}
+
+	void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	private void ensure(int n) throws IOException {
+		if(buffer.remaining() < n)
+			flush();
+	}
+
+	ChannelOutput write(char c) throws IOException {
+		ensure(1);
+		buffer.put((byte)c);
+		return this;
+	}
+
+	ChannelOutput write(String s) throws IOException {
+		int n = s.length();
+		for(int i = 0; i < n; i++) {
+			if(!buffer.hasRemaining())
+				flush();
+			buffer.put((byte)s.charAt(i));
+		}
+		return this;
+	}
+
+	ChannelOutput print(long value) throws IOException {
+		ensure(digits.length);
+		if(value < 0) {
+			if(value == Long.MIN_VALUE)
+				return write(Long.toString(value));
+			buffer.put((byte)'-');
+			value = -value;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte)('0' + value % 10);
+			value /= 10;
+		} while(value != 0);
+		while(n > 0)
+			buffer.put(digits[--n]);
+		return this;
+	}
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11
+	};
+
+	/**
+	 * Writes the value with 9 significant digits, which is enough to
+	 * read back the identical float; trailing zeros are dropped.
+	 * Values outside of [1e-3, 1e7) are formatted by Float.toString().
+	 */
+	ChannelOutput print(float value) throws IOException {
+		if(value == 0)
+			return write('0');
+		float abs = Math.abs(value);
+		if(!(abs >= 1e-3f && abs < 1e7f))
+			return write(Float.toString(value));
+
+		// number of digits before the decimal point, or minus the
+		// number of zeros directly after it
+		int intDigits = 1;
+		if(abs >= 10) {
+			while(intDigits < 7 && abs >= POW10[intDigits])
+				intDigits++;
+		} else if(abs < 1) {
+			intDigits = 0;
+			while(intDigits > -2 && abs < 1 / POW10[1 - intDigits])
+				intDigits--;
+		}
+		int decimals = 9 - intDigits;
+		long scaled = Math.round(abs * POW10[decimals]);
+		long power = (long)POW10[decimals];
+		long integral = scaled / power;
+		long fraction = scaled % power;
+
+		if(value < 0)
+			write('-');
+		print(integral);
+		if(fraction == 0)
+			return this;
+		while(fraction % 10 == 0) {
+			fraction /= 10;
+			decimals--;
+		}
+		ensure(decimals + 1);
+		buffer.put((byte)'.');
+		for(int i = decimals - 1; i >= 0; i--) {
+			digits[i] = (byte)('0' + fraction % 10);
+			fraction /= 10;
+		}
+		buffer.put(digits, 0, decimals);
+		return this;
+	}
+
+	ChannelOutput putByte(int value) throws IOException {
+		ensure(1);
+		buffer.put((byte)value);
+		return this;
+	}
+
+	ChannelOutput putShort(int value) throws IOException {
+		ensure(2);
+		buffer.putShort((short)value);
+		return this;
+	}
+
+	ChannelOutput putInt(int value) throws IOException {
+		ensure(4);
+		buffer.putInt(value);
+		return this;
+	}
+
+	ChannelOutput putFloat(float value) throws IOException {
+		ensure(4);
+		buffer.putFloat(value);
+		return this;
+	}
+}
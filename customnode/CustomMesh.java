@@ -69,7 +69,7 @@ public abstract class CustomMesh extends Shape3D {
 		changed = true;
 	}
 
-	public List getMesh() {
+	public List<Point3f> getMesh() {
 		return mesh;
 	}
 
@@ -202,6 +202,25 @@ public abstract class CustomMesh extends Shape3D {
 		}
 	}
 
+	/**
+	 * Replaces the coordinates of all vertices at once; coords holds
+	 * x, y, z for each point of the mesh, in the same order.
+	 */
+	public void setCoordinates(float[] coords) {
+		if(coords.length != 3 * mesh.size())
+			throw new IllegalArgumentException(
+				"Need 3 coordinates per vertex");
+		changed = true;
+		for(int i = 0; i < mesh.size(); i++)
+			mesh.get(i).set(coords[3 * i],
+				coords[3 * i + 1], coords[3 * i + 2]);
+		GeometryArray ga = (GeometryArray)getGeometry();
+		if(ga == null)
+			return;
+		ga.setCoordinates(0, coords);
+		recalculateNormals(ga);
+	}
+
 	public void recalculateNormals(GeometryArray ga) {
 		if(ga == null)
 			return;
@@ -9,6 +9,10 @@ public class MeshLoader {
 			return loadWavefront(file);
 		if(file.endsWith(".dxf"))
 			return loadDXF(file);
+		if(file.toLowerCase().endsWith(".stl"))
+			return loadSTL(file);
+		if(file.toLowerCase().endsWith(".ply"))
+			return loadPLY(file);
 		return null;
 	}
 
@@ -21,6 +25,24 @@ public class MeshLoader {
 		return null;
 	}
 
+	public static Map<String, CustomMesh> loadSTL(String file) {
+		try {
+			return STLLoader.load(file);
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	public static Map<String, CustomMesh> loadPLY(String file) {
+		try {
+			return PLYLoader.load(file);
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	public static Map<String, CustomMesh> loadDXF(String file) {
 		throw new RuntimeException("Operation not yet implemented");
 	}
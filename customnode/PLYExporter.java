@@ -0,0 +1,93 @@
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+/**
+ * Writes triangle and quad meshes to a binary (little endian) PLY file.
+ *
+ * Equal points of a mesh are written only once; the color of each
+ * mesh is stored as vertex color, which is how the meshes can be told
+ * apart after loading them again.  Point and line meshes are skipped.
+ */
+public class PLYExporter {
+
+	public static void save(Map<String, CustomMesh> meshes,
+			String plyFile) throws IOException {
+		List<CustomMesh> list = new ArrayList<CustomMesh>();
+		List<VertexMap> vertices = new ArrayList<VertexMap>();
+		List<int[]> faces = new ArrayList<int[]>();
+		int vertexCount = 0, faceCount = 0;
+		for(CustomMesh cmesh : meshes.values()) {
+			int corners;
+			if(cmesh.getClass() == CustomTriangleMesh.class)
+				corners = 3;
+			else if(cmesh.getClass() == CustomQuadMesh.class)
+				corners = 4;
+			else
+				continue;
+			List<Point3f> points = cmesh.getMesh();
+			int n = points.size() - points.size() % corners;
+			VertexMap map = new VertexMap(n / 2);
+			int[] index = new int[n];
+			for(int i = 0; i < n; i++)
+				index[i] = vertexCount + map.add(points.get(i));
+			list.add(cmesh);
+			vertices.add(map);
+			faces.add(index);
+			vertexCount += map.size();
+			faceCount += n / corners;
+		}
+
+		ChannelOutput out = ChannelOutput.open(new File(plyFile));
+		try {
+			out.write("ply\n");
+			out.write("format binary_little_endian 1.0\n");
+			out.write("comment written by ImageJ 3D Viewer\n");
+			out.write("element vertex ").print(vertexCount)
+				.write('\n');
+			out.write("property float x\n");
+			out.write("property float y\n");
+			out.write("property float z\n");
+			out.write("property uchar red\n");
+			out.write("property uchar green\n");
+			out.write("property uchar blue\n");
+			out.write("element face ").print(faceCount).write('\n');
+			out.write("property list uchar int vertex_indices\n");
+			out.write("end_header\n");
+
+			for(int m = 0; m < list.size(); m++) {
+				Color3f c = list.get(m).getColor();
+				int r = (int)(255 * c.x);
+				int g = (int)(255 * c.y);
+				int b = (int)(255 * c.z);
+				VertexMap map = vertices.get(m);
+				for(int i = 0; i < map.size(); i++) {
+					out.putFloat(map.getX(i));
+					out.putFloat(map.getY(i));
+					out.putFloat(map.getZ(i));
+					out.putByte(r).putByte(g).putByte(b);
+				}
+			}
+			for(int m = 0; m < list.size(); m++) {
+				int corners = list.get(m).getClass() ==
+					CustomQuadMesh.class ? 4 : 3;
+				int[] index = faces.get(m);
+				for(int i = 0; i < index.length; i += corners) {
+					out.putByte(corners);
+					for(int j = 0; j < corners; j++)
+						out.putInt(index[i + j]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
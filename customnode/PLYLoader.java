@@ -0,0 +1,309 @@
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.ByteOrder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+/**
+ * Reads PLY files (binary little or big endian, or ASCII).
+ *
+ * Faces are grouped into one mesh per vertex color (as written by
+ * <code>PLYExporter</code>); a group is loaded as a
+ * <code>CustomQuadMesh</code> if all its faces are quads, and as a
+ * <code>CustomTriangleMesh</code> otherwise (polygons are split into
+ * triangle fans).
+ */
+public class PLYLoader {
+
+	private static final int ASCII = 0, LITTLE = 1, BIG = 2;
+
+	private static class Property {
+		String name;
+		String type;
+		// only set for lists
+		String countType;
+	}
+
+	private static class Element {
+		String name;
+		int count;
+		List<Property> properties = new ArrayList<Property>();
+	}
+
+	public static HashMap<String, CustomMesh> load(String plyFile)
+						throws IOException {
+		PLYLoader loader = new PLYLoader();
+		ChannelInput in = ChannelInput.open(new File(plyFile));
+		try {
+			loader.in = in;
+			loader.readHeader();
+			loader.readBody();
+		} finally {
+			in.close();
+		}
+		return loader.createMeshes(plyFile);
+	}
+
+	private ChannelInput in;
+	private int format = -1;
+	private List<Element> elements = new ArrayList<Element>();
+
+	private Point3f[] vertices;
+	private int[] colors;
+	// vertex indices of the faces, each preceded by its size
+	private int[] faces = new int[1024];
+	private int faceLength;
+
+	private PLYLoader() {}
+
+	private void readHeader() throws IOException {
+		String line = in.readLine();
+		if(line == null || !line.trim().equals("ply"))
+			throw new IOException("Not a PLY file");
+		Element element = null;
+		while((line = in.readLine()) != null) {
+			String[] sp = line.trim().split("\\s+");
+			if(sp[0].equals("end_header"))
+				break;
+			if(sp[0].equals("format")) {
+				if(sp[1].equals("ascii"))
+					format = ASCII;
+				else if(sp[1].equals("binary_little_endian"))
+					format = LITTLE;
+				else if(sp[1].equals("binary_big_endian"))
+					format = BIG;
+			} else if(sp[0].equals("element")) {
+				element = new Element();
+				element.name = sp[1];
+				element.count = Integer.parseInt(sp[2]);
+				elements.add(element);
+			} else if(sp[0].equals("property")) {
+				if(element == null)
+					throw new IOException(
+						"Property without element");
+				Property p = new Property();
+				if(sp[1].equals("list")) {
+					p.countType = sp[2];
+					p.type = sp[3];
+					p.name = sp[4];
+				} else {
+					p.type = sp[1];
+					p.name = sp[2];
+				}
+				element.properties.add(p);
+			}
+		}
+		if(format < 0)
+			throw new IOException("Unsupported PLY format");
+		in.order(format == BIG ? ByteOrder.BIG_ENDIAN
+				: ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void readBody() throws IOException {
+		for(Element e : elements) {
+			if(e.name.equals("vertex"))
+				readVertices(e);
+			else if(e.name.equals("face"))
+				readFaces(e);
+			else
+				for(int i = 0; i < e.count; i++)
+					skip(e);
+		}
+		if(vertices == null)
+			throw new IOException("No vertices in PLY file");
+	}
+
+	private void readVertices(Element e) throws IOException {
+		vertices = new Point3f[e.count];
+		int n = e.properties.size();
+		boolean hasColor = false;
+		double[] values = new double[n];
+		int[] map = new int[6];
+		Arrays.fill(map, -1);
+		String[] names = { "x", "y", "z", "red", "green", "blue" };
+		for(int j = 0; j < n; j++)
+			for(int k = 0; k < names.length; k++)
+				if(e.properties.get(j).name.equals(names[k]))
+					map[k] = j;
+		if(map[0] < 0 || map[1] < 0 || map[2] < 0)
+			throw new IOException("Vertices need x, y and z");
+		if(map[3] >= 0 && map[4] >= 0 && map[5] >= 0) {
+			hasColor = true;
+			colors = new int[e.count];
+		}
+
+		for(int i = 0; i < e.count; i++) {
+			for(int j = 0; j < n; j++) {
+				Property p = e.properties.get(j);
+				if(p.countType != null) {
+					int count = (int)readScalar(p.countType);
+					for(int k = 0; k < count; k++)
+						readScalar(p.type);
+				} else
+					values[j] = readScalar(p.type);
+			}
+			vertices[i] = new Point3f((float)values[map[0]],
+				(float)values[map[1]], (float)values[map[2]]);
+			if(hasColor)
+				colors[i] = ((int)values[map[3]] << 16)
+					| ((int)values[map[4]] << 8)
+					| (int)values[map[5]];
+		}
+	}
+
+	private void readFaces(Element e) throws IOException {
+		for(int i = 0; i < e.count; i++) {
+			for(Property p : e.properties) {
+				if(p.countType == null) {
+					readScalar(p.type);
+					continue;
+				}
+				int count = (int)readScalar(p.countType);
+				boolean indices = p.name.equals("vertex_indices")
+					|| p.name.equals("vertex_index");
+				if(indices) {
+					ensureFaceCapacity(count + 1);
+					faces[faceLength++] = count;
+				}
+				for(int k = 0; k < count; k++) {
+					int v = (int)readScalar(p.type);
+					if(indices)
+						faces[faceLength++] = v;
+				}
+			}
+		}
+	}
+
+	private void ensureFaceCapacity(int n) {
+		if(faceLength + n <= faces.length)
+			return;
+		int[] tmp = new int[Math.max(2 * faces.length, faceLength + n)];
+		System.arraycopy(faces, 0, tmp, 0, faceLength);
+		faces = tmp;
+	}
+
+	private void skip(Element e) throws IOException {
+		for(Property p : e.properties) {
+			if(p.countType == null) {
+				readScalar(p.type);
+				continue;
+			}
+			int count = (int)readScalar(p.countType);
+			for(int k = 0; k < count; k++)
+				readScalar(p.type);
+		}
+	}
+
+	private double readScalar(String type) throws IOException {
+		if(format == ASCII)
+			return in.nextDouble();
+		if(type.equals("char") || type.equals("int8"))
+			return (byte)in.getByte();
+		if(type.equals("uchar") || type.equals("uint8"))
+			return in.getByte();
+		if(type.equals("short") || type.equals("int16"))
+			return in.getShort();
+		if(type.equals("ushort") || type.equals("uint16"))
+			return in.getShort() & 0xffff;
+		if(type.equals("int") || type.equals("int32"))
+			return in.getInt();
+		if(type.equals("uint") || type.equals("uint32"))
+			return in.getInt() & 0xffffffffL;
+		if(type.equals("float") || type.equals("float32"))
+			return in.getFloat();
+		if(type.equals("double") || type.equals("float64"))
+			return in.getDouble();
+		throw new IOException("Unknown PLY type: " + type);
+	}
+
+	private HashMap<String, CustomMesh> createMeshes(String plyFile) {
+		String name = new File(plyFile).getName();
+		if(name.toLowerCase().endsWith(".ply"))
+			name = name.substring(0, name.length() - 4);
+
+		// group the faces by the color of their first vertex
+		LinkedHashMap<Integer, List<Point3f>> groups =
+			new LinkedHashMap<Integer, List<Point3f>>();
+		LinkedHashMap<Integer, Boolean> allQuads =
+			new LinkedHashMap<Integer, Boolean>();
+		for(int i = 0; i < faceLength; i += faces[i] + 1) {
+			int count = faces[i];
+			if(count < 3)
+				continue;
+			Integer color = colors == null ? -1 :
+				colors[faces[i + 1]];
+			List<Point3f> list = groups.get(color);
+			if(list == null) {
+				list = new ArrayList<Point3f>();
+				groups.put(color, list);
+				allQuads.put(color, Boolean.TRUE);
+			}
+			if(count != 4)
+				allQuads.put(color, Boolean.FALSE);
+			for(int k = 0; k < count; k++)
+				list.add(vertices[faces[i + 1 + k]]);
+			// remember the size, to triangulate later if needed
+			list.add(null);
+		}
+
+		HashMap<String, CustomMesh> meshes =
+			new HashMap<String, CustomMesh>();
+		int index = 0;
+		for(Integer color : groups.keySet()) {
+			List<Point3f> polygons = groups.get(color);
+			boolean quads = allQuads.get(color).booleanValue();
+			List<Point3f> points = quads ? stripSeparators(polygons)
+				: triangulate(polygons);
+			CustomMesh cm = quads ? new CustomQuadMesh(points)
+				: new CustomTriangleMesh(points);
+			if(color.intValue() >= 0) {
+				int c = color.intValue();
+				cm.setColor(new Color3f(((c >> 16) & 0xff) / 255f,
+					((c >> 8) & 0xff) / 255f,
+					(c & 0xff) / 255f));
+			}
+			String meshName = index == 0 ? name : name + "_" + index;
+			index++;
+			cm.loadedFromFile = plyFile;
+			cm.loadedFromName = meshName;
+			cm.changed = false;
+			meshes.put(meshName, cm);
+		}
+		return meshes;
+	}
+
+	private static List<Point3f> stripSeparators(List<Point3f> polygons) {
+		List<Point3f> result = new ArrayList<Point3f>(polygons.size());
+		for(Point3f p : polygons)
+			if(p != null)
+				result.add(p);
+		return result;
+	}
+
+	private static List<Point3f> triangulate(List<Point3f> polygons) {
+		List<Point3f> result = new ArrayList<Point3f>(polygons.size());
+		int start = 0;
+		for(int i = 0; i < polygons.size(); i++) {
+			if(polygons.get(i) != null)
+				continue;
+			Point3f first = polygons.get(start);
+			for(int k = start + 1; k + 1 < i; k++) {
+				result.add(first);
+				result.add(polygons.get(k));
+				result.add(polygons.get(k + 1));
+			}
+			start = i + 1;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,100 @@
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+/**
+ * Writes triangle and quad meshes to a binary STL file.
+ *
+ * STL knows neither shared vertices nor groups, so all meshes are
+ * written as one solid (quads are split into two triangles; point and
+ * line meshes are skipped).  The color of the first mesh is stored in
+ * the header, in the "COLOR=" convention of Materialise Magics.
+ */
+public class STLExporter {
+
+	public static void save(Map<String, CustomMesh> meshes,
+			String stlFile) throws IOException {
+		int count = 0;
+		Color3f color = null;
+		for(CustomMesh cmesh : meshes.values()) {
+			int n = cmesh.getMesh().size();
+			if(cmesh.getClass() == CustomTriangleMesh.class)
+				count += n / 3;
+			else if(cmesh.getClass() == CustomQuadMesh.class)
+				count += 2 * (n / 4);
+			else
+				continue;
+			if(color == null)
+				color = cmesh.getColor();
+		}
+
+		ChannelOutput out = ChannelOutput.open(new File(stlFile));
+		try {
+			writeHeader(out, color, count);
+			for(CustomMesh cmesh : meshes.values()) {
+				List<Point3f> v = cmesh.getMesh();
+				if(cmesh.getClass() == CustomTriangleMesh.class)
+					for(int i = 0; i + 2 < v.size(); i += 3)
+						writeTriangle(out, v.get(i),
+							v.get(i + 1),
+							v.get(i + 2));
+				else if(cmesh.getClass() == CustomQuadMesh.class)
+					for(int i = 0; i + 3 < v.size(); i += 4) {
+						writeTriangle(out, v.get(i),
+							v.get(i + 1),
+							v.get(i + 2));
+						writeTriangle(out, v.get(i),
+							v.get(i + 2),
+							v.get(i + 3));
+					}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeHeader(ChannelOutput out,
+			Color3f color, int count) throws IOException {
+		String header = "binary STL written by ImageJ 3D Viewer";
+		int i = header.length();
+		out.write(header);
+		if(color != null) {
+			out.write(" COLOR=");
+			out.putByte((int)(255 * color.x));
+			out.putByte((int)(255 * color.y));
+			out.putByte((int)(255 * color.z));
+			out.putByte(255);
+			i += 11;
+		}
+		for(; i < 80; i++)
+			out.putByte(' ');
+		out.putInt(count);
+	}
+
+	private static void writeTriangle(ChannelOutput out,
+			Point3f a, Point3f b, Point3f c) throws IOException {
+		float ux = b.x - a.x, uy = b.y - a.y, uz = b.z - a.z;
+		float vx = c.x - a.x, vy = c.y - a.y, vz = c.z - a.z;
+		float nx = uy * vz - uz * vy;
+		float ny = uz * vx - ux * vz;
+		float nz = ux * vy - uy * vx;
+		float len = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if(len > 0) {
+			nx /= len;
+			ny /= len;
+			nz /= len;
+		}
+		out.putFloat(nx).putFloat(ny).putFloat(nz);
+		out.putFloat(a.x).putFloat(a.y).putFloat(a.z);
+		out.putFloat(b.x).putFloat(b.y).putFloat(b.z);
+		out.putFloat(c.x).putFloat(c.y).putFloat(c.z);
+		out.putShort(0);
+	}
+}
@@ -0,0 +1,100 @@
+package customnode;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+/**
+ * Reads binary (and, as a fallback, ASCII) STL files into a single
+ * <code>CustomTriangleMesh</code>, named after the file.
+ */
+public class STLLoader {
+
+	public static HashMap<String, CustomMesh> load(String stlFile)
+						throws IOException {
+		File f = new File(stlFile);
+		String name = f.getName();
+		if(name.toLowerCase().endsWith(".stl"))
+			name = name.substring(0, name.length() - 4);
+
+		ArrayList<Point3f> triangles;
+		Color3f color = null;
+		ChannelInput in = ChannelInput.open(f);
+		try {
+			byte[] header = new byte[80];
+			for(int i = 0; i < 80; i++)
+				header[i] = (byte)in.getByte();
+			String h = new String(header, "8859_1");
+			int count = in.getInt();
+			// ASCII files start with "solid", but so do some
+			// binary ones; the file size tells them apart
+			if(h.startsWith("solid") &&
+					f.length() != 84 + 50L * count) {
+				in.close();
+				in = ChannelInput.open(f);
+				triangles = readASCII(in);
+			} else {
+				int c = h.indexOf("COLOR=");
+				if(c >= 0 && c + 9 < 80)
+					color = new Color3f(
+						(header[c + 6] & 0xff) / 255f,
+						(header[c + 7] & 0xff) / 255f,
+						(header[c + 8] & 0xff) / 255f);
+				triangles = readBinary(in, count);
+			}
+		} finally {
+			in.close();
+		}
+
+		CustomMesh cm = new CustomTriangleMesh(triangles);
+		if(color != null)
+			cm.setColor(color);
+		cm.loadedFromFile = stlFile;
+		cm.loadedFromName = name;
+		cm.changed = false;
+		HashMap<String, CustomMesh> meshes =
+			new HashMap<String, CustomMesh>();
+		meshes.put(name, cm);
+		return meshes;
+	}
+
+	private static ArrayList<Point3f> readBinary(ChannelInput in,
+			int count) throws IOException {
+		ArrayList<Point3f> triangles = new ArrayList<Point3f>(3 * count);
+		for(int i = 0; i < count; i++) {
+			// ignore the normal
+			in.skip(12);
+			for(int j = 0; j < 3; j++) {
+				float x = in.getFloat();
+				float y = in.getFloat();
+				float z = in.getFloat();
+				triangles.add(new Point3f(x, y, z));
+			}
+			// attribute byte count
+			in.skip(2);
+		}
+		return triangles;
+	}
+
+	private static ArrayList<Point3f> readASCII(ChannelInput in)
+			throws IOException {
+		ArrayList<Point3f> triangles = new ArrayList<Point3f>();
+		for(String token = in.nextToken(); token != null;
+				token = in.nextToken()) {
+			if(!token.equals("vertex"))
+				continue;
+			float x = in.nextFloat();
+			float y = in.nextFloat();
+			float z = in.nextFloat();
+			triangles.add(new Point3f(x, y, z));
+		}
+		if(triangles.size() % 3 != 0)
+			throw new IOException("Incomplete triangle in STL file");
+		return triangles;
+	}
+}
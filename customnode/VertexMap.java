@@ -0,0 +1,120 @@
+package customnode;
+
+import java.util.Arrays;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Assigns consecutive indices to points, giving equal points the
+ * same index.
+ *
+ * This does the same as a <code>HashMap&lt;Point3f, Integer&gt;</code>,
+ * but it stores the coordinates in a float array and the indices in an
+ * open addressing int table, so that no object is created per point.
+ */
+public class VertexMap {
+
+	private float[] coords;
+	private int[] table;
+	private int mask;
+	private int size;
+
+	public VertexMap() {
+		this(1024);
+	}
+
+	public VertexMap(int expectedSize) {
+		int capacity = 16;
+		while(capacity < 2 * expectedSize)
+			capacity <<= 1;
+		table = new int[capacity];
+		Arrays.fill(table, -1);
+		mask = capacity - 1;
+		coords = new float[3 * Math.max(expectedSize, 4)];
+	}
+
+	/** Returns the number of distinct points added so far. */
+	public int size() {
+		return size;
+	}
+
+	public int add(Point3f p) {
+		return add(p.x, p.y, p.z);
+	}
+
+	/**
+	 * Returns the index of the point (x, y, z), adding it if it was
+	 * not yet seen.
+	 */
+	public int add(float x, float y, float z) {
+		// adding 0 turns -0 into +0, so that they are merged
+		x += 0f;
+		y += 0f;
+		z += 0f;
+		int slot = hash(x, y, z) & mask;
+		for(;;) {
+			int v = table[slot];
+			if(v < 0)
+				break;
+			int i = 3 * v;
+			if(coords[i] == x && coords[i + 1] == y
+					&& coords[i + 2] == z)
+				return v;
+			slot = (slot + 1) & mask;
+		}
+
+		int v = size++;
+		if(3 * size > coords.length) {
+			float[] tmp = new float[2 * coords.length];
+			System.arraycopy(coords, 0, tmp, 0, coords.length);
+			coords = tmp;
+		}
+		coords[3 * v] = x;
+		coords[3 * v + 1] = y;
+		coords[3 * v + 2] = z;
+		table[slot] = v;
+		if(2 * size > table.length)
+			rehash();
+		return v;
+	}
+
+	public float getX(int index) {
+		return coords[3 * index];
+	}
+
+	public float getY(int index) {
+		return coords[3 * index + 1];
+	}
+
+	public float getZ(int index) {
+		return coords[3 * index + 2];
+	}
+
+	/** Returns x, y, z of all distinct points, in the order of their indices. */
+	public float[] getCoordinates() {
+		float[] result = new float[3 * size];
+		System.arraycopy(coords, 0, result, 0, result.length);
+		return result;
+	}
+
+	private static int hash(float x, float y, float z) {
+		int hash = Float.floatToIntBits(x);
+		hash = 31 * hash + Float.floatToIntBits(y);
+		hash = 31 * hash + Float.floatToIntBits(z);
+		return hash ^ (hash >>> 16);
+	}
+
+	private void rehash() {
+		table = new int[2 * table.length];
+		Arrays.fill(table, -1);
+		mask = table.length - 1;
+		for(int v = 0; v < size; v++) {
+			int i = 3 * v;
+			int slot = hash(coords[i], coords[i + 1],
+					coords[i + 2]) & mask;
+			while(table[slot] >= 0)
+				slot = (slot + 1) & mask;
+			table[slot] = v;
+		}
+	}
+}
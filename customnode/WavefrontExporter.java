@@ -10,7 +10,6 @@ import java.io.IOException;
 import java.io.BufferedOutputStream;
 
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -31,20 +30,15 @@ public class WavefrontExporter {
 			mtlname = mtlname.substring(0, mtlname.length() - 4);
 		mtlname += ".mtl";
 
-		OutputStreamWriter dos_obj = null,
-				   dos_mtl = null;
+		ChannelOutput out_obj = null,
+			      out_mtl = null;
 		try {
-			dos_obj = new OutputStreamWriter(
-				new BufferedOutputStream(
-				new FileOutputStream(objF)), "8859_1");
-			dos_mtl = new OutputStreamWriter(
-				new BufferedOutputStream(
-				new FileOutputStream(
-				new File(objF.getParent(), mtlname))),
-				"8859_1");
-			save(meshes, mtlname, dos_obj, dos_mtl);
-			dos_obj.flush();
-			dos_obj.flush();
+			out_obj = ChannelOutput.open(objF);
+			out_mtl = ChannelOutput.open(
+				new File(objF.getParent(), mtlname));
+			save(meshes, mtlname, out_obj, out_mtl);
+			out_obj.flush();
+			out_mtl.flush();
 			for(String n : meshes.keySet()) {
 				CustomMesh m = meshes.get(n);
 				m.loadedFromFile = objFile;
@@ -55,8 +49,8 @@ public class WavefrontExporter {
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			try { if (null != dos_obj) dos_obj.close(); } catch (Exception e) {}
-			try { if (null != dos_mtl) dos_mtl.close(); } catch (Exception e) {}
+			try { if (null != out_obj) out_obj.close(); } catch (Exception e) {}
+			try { if (null != out_mtl) out_mtl.close(); } catch (Exception e) {}
 		}
 	}
 
@@ -74,6 +68,18 @@ public class WavefrontExporter {
 			String mtlFileName,
 			Writer objWriter,
 			Writer mtlWriter) throws IOException {
+		ChannelOutput out_obj = ChannelOutput.open(objWriter);
+		ChannelOutput out_mtl = ChannelOutput.open(mtlWriter);
+		save(meshes, mtlFileName, out_obj, out_mtl);
+		out_obj.close();
+		out_mtl.close();
+	}
+
+	static void save(
+			Map<String, CustomMesh> meshes,
+			String mtlFileName,
+			ChannelOutput objWriter,
+			ChannelOutput mtlWriter) throws IOException {
 
 		objWriter.write("# OBJ File\n");
 		objWriter.write("mtllib ");
@@ -86,8 +92,6 @@ public class WavefrontExporter {
 		// object. Starting at '1' because vert indices start at one.
 		int j = 1; 
 
-		final StringBuffer tmp = new StringBuffer(100);
-
 		for(String name : meshes.keySet()) {
 			CustomMesh cmesh = meshes.get(name);
 
@@ -103,36 +107,28 @@ public class WavefrontExporter {
 			// make list of vertices
 			String title = name.replaceAll(" ", "_").
 					replaceAll("#", "--");
-			HashMap<Point3f, Integer> ht_points =
-					new HashMap<Point3f, Integer>();
 			objWriter.write("g ");
 			objWriter.write(title);
 			objWriter.write('\n');
 			final int len = vertices.size();
 			int[] index = new int[len];
+			VertexMap points = new VertexMap(len / 2);
 
 			// index over index array, to make faces later
 			int k = 0;
 			for (Point3f p : vertices) {
-				// check if point already exists
-				if(ht_points.containsKey(p)) {
-					index[k] = ht_points.get(p);
-				} else {
-					// new point
-					index[k] = j;
-					// record
-					ht_points.put(p, j);
-					// append vertex
-					tmp.append('v').append(' ')
-					   .append(p.x).append(' ')
-					   .append(p.y).append(' ')
-					   .append(p.z).append('\n');
-					objWriter.write(tmp.toString());
-					tmp.setLength(0);
-					j++;
+				int size = points.size();
+				index[k] = j + points.add(p);
+				if(points.size() > size) {
+					// new point: append vertex
+					objWriter.write('v').write(' ')
+						.print(p.x).write(' ')
+						.print(p.y).write(' ')
+						.print(p.z).write('\n');
 				}
 				k++;
 			}
+			j += points.size();
 			objWriter.write("usemtl ");
 			objWriter.write(mat.name);
 			objWriter.write('\n');
@@ -175,20 +171,17 @@ public class WavefrontExporter {
 	/**
 	 * Write faces for triangle meshes.
 	 */
-	static void writeTriangleFaces(int[] indices, Writer objWriter, String name)
+	static void writeTriangleFaces(int[] indices, ChannelOutput objWriter, String name)
 						throws IOException {
 		if(indices.length % 3 != 0)
 			throw new IllegalArgumentException(
 				"list of triangles not multiple of 3: " + name);
-		final StringBuffer buf = new StringBuffer(100);
 		objWriter.write("s 1\n");
 		for (int i = 0; i < indices.length; i += 3) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append(' ')
-				.append(indices[i+2]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+			objWriter.write('f').write(' ')
+				.print(indices[i]).write(' ')
+				.print(indices[i+1]).write(' ')
+				.print(indices[i+2]).write('\n');
 		}
 		objWriter.write('\n');
 	}
@@ -196,15 +189,12 @@ public class WavefrontExporter {
 	/**
 	 * Write faces for point meshes.
 	 */
-	static void writePointFaces(int[] indices, Writer objWriter, String name)
+	static void writePointFaces(int[] indices, ChannelOutput objWriter, String name)
 						throws IOException {
-		final StringBuffer buf = new StringBuffer(100);
 		objWriter.write("s 1\n");
 		for (int i = 0; i < indices.length; i++) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+			objWriter.write('f').write(' ')
+				.print(indices[i]).write('\n');
 		}
 		objWriter.write('\n');
 	}
@@ -212,21 +202,18 @@ public class WavefrontExporter {
 	/**
 	 * Write faces for quad meshes.
 	 */
-	static void writeQuadFaces(int[] indices, Writer objWriter, String name)
+	static void writeQuadFaces(int[] indices, ChannelOutput objWriter, String name)
 						throws IOException {
 		if(indices.length % 4 != 0)
 			throw new IllegalArgumentException(
 				"list of quads not multiple of 4: " + name);
-		final StringBuffer buf = new StringBuffer(100);
 		objWriter.write("s 1\n");
 		for (int i = 0; i < indices.length; i += 4) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append(' ')
-				.append(indices[i+2]).append(' ')
-				.append(indices[i+3]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+			objWriter.write('f').write(' ')
+				.print(indices[i]).write(' ')
+				.print(indices[i+1]).write(' ')
+				.print(indices[i+2]).write(' ')
+				.print(indices[i+3]).write('\n');
 		}
 		objWriter.write('\n');
 	}
@@ -236,19 +223,16 @@ public class WavefrontExporter {
 	 * by the indices array are arranged in pairs each specifying 
 	 * one line segment.
 	 */
-	static void writePairwiseLineFaces(int[] indices, Writer objWriter, String name)
+	static void writePairwiseLineFaces(int[] indices, ChannelOutput objWriter, String name)
 						throws IOException {
 		if(indices.length % 2 != 0)
 			throw new IllegalArgumentException(
 				"list of lines not multiple of 2: " + name);
-		final StringBuffer buf = new StringBuffer(100);
 		objWriter.write("s 1\n");
 		for (int i = 0; i < indices.length; i += 2) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+			objWriter.write('f').write(' ')
+				.print(indices[i]).write(' ')
+				.print(indices[i+1]).write('\n');
 		}
 		objWriter.write('\n');
 	}
@@ -257,16 +241,13 @@ public class WavefrontExporter {
 	 * Write faces for continuous line meshes, ie the points addressed
 	 * by the indices array represent a continuous line.
 	 */
-	static void writeContinuousLineFaces(int[] indices, Writer objWriter, String name)
+	static void writeContinuousLineFaces(int[] indices, ChannelOutput objWriter, String name)
 						throws IOException {
-		final StringBuffer buf = new StringBuffer(100);
 		objWriter.write("s 1\n");
 		for (int i = 0; i < indices.length - 1; i++) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+			objWriter.write('f').write(' ')
+				.print(indices[i]).write(' ')
+				.print(indices[i+1]).write('\n');
 		}
 		objWriter.write('\n');
 	}
@@ -316,7 +297,12 @@ public class WavefrontExporter {
 		}
 	}
 
-	/** Utility method to encode text data in 8859_1. */
+	/**
+	 * Utility method to encode text data in 8859_1.
+	 * @deprecated keeps the whole file in memory; use save() instead,
+	 * which streams the meshes to the file.
+	 */
+	@Deprecated
 	static public boolean saveToFile(final File f, final String data)
 							throws IOException {
 		if (null == f) return false;
@@ -35,8 +35,7 @@ public class WavefrontLoader {
 
 	private  WavefrontLoader() {}
 
-	private BufferedReader in;
-	private String line;
+	private ChannelInput in;
 
 	// attributes of the currently read mesh
 	private ArrayList<Point3f> vertices = new ArrayList<Point3f>();
@@ -50,36 +49,55 @@ public class WavefrontLoader {
 		this.objfile = objfile;
 		File f = new File(objfile);
 
-		in = new BufferedReader(new FileReader(objfile));
+		in = ChannelInput.open(f);
+		try {
+			parse(f);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * The file is read token by token rather than line by line,
+	 * so that vertices and faces are parsed without creating
+	 * temporary Strings.
+	 */
+	private void parse(File f) throws IOException {
 		HashMap<String, Color4f> materials = null;
 
 		meshes = new HashMap<String, CustomMesh>();
 
-		while((line = in.readLine()) != null) {
-			if(line.startsWith("mtllib")) {
-				String mtlName = line.split(" ")[1].trim();
-				materials = readMaterials(f, mtlName);
-			} else if(line.startsWith("g ")) {
-				if(name != null) {
-					CustomMesh cm = createCustomMesh();
-					if(cm != null)
-						meshes.put(name, cm);
-					indices = new ArrayList<Point3f>();
-					material = null;
-				}
-				name = line.split(" ")[1].trim();
-			} else if(line.startsWith("usemtl ")) {
-				if(materials != null)
-					material = materials.get(line.split(" ")[1]);
-			} else if(line.startsWith("v ")) {
+		for(int c = in.read(); c != -1; c = in.read()) {
+			if(c == '\n' || c == '\r')
+				continue;
+			boolean separated = ChannelInput.isSpace(in.peek());
+			if(separated && c == 'v') {
 				readVertex();
-			} else if(line.startsWith("f ")) {
-				readFace();
-			} else if(line.startsWith("l ")) {
+			} else if(separated &&
+					(c == 'f' || c == 'l' || c == 'p')) {
 				readFace();
-			} else if(line.startsWith("p ")) {
-				readFace();
-			}
+			} else if(c == 'g' || c == 'm' || c == 'u') {
+				// a lone letter at the end of the file
+				String rest = in.readLine();
+				String line = (char)c + (rest == null ? "" : rest);
+				if(line.startsWith("mtllib")) {
+					String mtlName = line.split(" ")[1].trim();
+					materials = readMaterials(f, mtlName);
+				} else if(line.startsWith("g ")) {
+					if(name != null) {
+						CustomMesh cm = createCustomMesh();
+						if(cm != null)
+							meshes.put(name, cm);
+						indices = new ArrayList<Point3f>();
+						material = null;
+					}
+					name = line.split(" ")[1].trim();
+				} else if(line.startsWith("usemtl ")) {
+					if(materials != null)
+						material = materials.get(line.split(" ")[1]);
+				}
+			} else
+				in.skipLine();
 		}
 		if(name != null && indices.size() > 0) {
 			CustomMesh cm = createCustomMesh();
@@ -113,33 +131,36 @@ public class WavefrontLoader {
 		return cm;
 	}
 
-	private void readFace() {
-		String[] sp = line.split(" ");
-		type = sp.length - 1;
-		for(int i = 1; i < sp.length; i++) {
-			int idx = -1;
+	private void readFace() throws IOException {
+		int count = 0;
+		while(!in.atEndOfLine()) {
+			int idx;
 			try {
-				idx = Integer.parseInt(sp[i]) - 1;
+				idx = in.nextInt();
 			} catch(NumberFormatException e) {
-				int l = sp[i].indexOf('/');
-				if(l != -1) {
-					sp[i] = sp[i].substring(0, l);
-					idx = Integer.parseInt(sp[i]) - 1;
-				}
+				throw new RuntimeException(
+					"Error parsing faces: " + name);
 			}
-			if(idx == -1)
+			// skip texture and normal indices
+			in.skipToken();
+			// negative indices are relative to the current end
+			idx = idx < 0 ? vertices.size() + idx : idx - 1;
+			if(idx < 0 || idx >= vertices.size())
 				throw new RuntimeException(
 					"Error parsing faces: " + name);
 			indices.add(vertices.get(idx));
+			count++;
 		}
+		type = count;
+		in.skipLine();
 	}
 
-	private void readVertex() {
-		String[] sp = line.split(" ");
-		vertices.add(new Point3f(
-			Float.parseFloat(sp[1]),
-			Float.parseFloat(sp[2]),
-			Float.parseFloat(sp[3])));
+	private void readVertex() throws IOException {
+		float x = in.nextFloat();
+		float y = in.nextFloat();
+		float z = in.nextFloat();
+		vertices.add(new Point3f(x, y, z));
+		in.skipLine();
 	}
 
 	private HashMap<String, Color4f> readMaterials(
@@ -161,13 +182,22 @@ public class WavefrontLoader {
 
 	private static HashMap<String, Color4f> readMaterials(String file)
 							throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			return readMaterials(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static HashMap<String, Color4f> readMaterials(
+			BufferedReader in) throws IOException {
 		String name = null;
 		Color4f color = null;
 
 		HashMap<String, Color4f> materials =
 				new HashMap<String, Color4f>();
 
-		BufferedReader in = new BufferedReader(new FileReader(file));
 		String line;
 		while((line = in.readLine()) != null) {
 			// newmtl: if we've read one before
@@ -212,8 +212,10 @@ public class Executer {
 		OpenDialog od = new OpenDialog("Select .obj file", OpenDialog.getDefaultDirectory(), null);
 		String filename = od.getFileName();
 		if (null == filename) return;
-		if (!filename.toLowerCase().endsWith(".obj")) {
-			IJ.showMessage("Must select a wavefront .obj file!");
+		String lower = filename.toLowerCase();
+		if (!lower.endsWith(".obj") && !lower.endsWith(".stl")
+				&& !lower.endsWith(".ply")) {
+			IJ.showMessage("Must select a wavefront .obj, .stl or .ply file!");
 			return;
 		}
 		String path = new StringBuilder(od.getDirectory()).append(filename).toString();
@@ -237,6 +239,14 @@ public class Executer {
 		MeshExporter.saveAsWaveFront(univ.getContents());
 	}
 
+	public void saveAsSTL() {
+		MeshExporter.saveAsSTL(univ.getContents());
+	}
+
+	public void saveAsPLY() {
+		MeshExporter.saveAsPLY(univ.getContents());
+	}
+
 	public void loadSession() {
 		OpenDialog sd = new OpenDialog(
 			"Open session...", "session", ".scene");
@@ -49,6 +49,8 @@ public class Image3DMenubar extends MenuBar implements ActionListener,
 	private MenuItem exportTransformed;
 	private MenuItem exportObj;
 	private MenuItem exportDXF;
+	private MenuItem exportSTL;
+	private MenuItem exportPLY;
 	private MenuItem smoothMesh;
 	private MenuItem scalebar;
 	private MenuItem smoothAllMeshes;
@@ -167,6 +169,14 @@ public class Image3DMenubar extends MenuBar implements ActionListener,
 		exportDXF.addActionListener(this);
 		subMenu.add(exportDXF);
 
+		exportSTL = new MenuItem("STL (binary)");
+		exportSTL.addActionListener(this);
+		subMenu.add(exportSTL);
+
+		exportPLY = new MenuItem("PLY (binary)");
+		exportPLY.addActionListener(this);
+		subMenu.add(exportPLY);
+
 		file.addSeparator();
 
 		close = new MenuItem("Quit");
@@ -547,6 +557,10 @@ public class Image3DMenubar extends MenuBar implements ActionListener,
 			executer.saveAsDXF();
 		else if (src == exportObj)
 			executer.saveAsWaveFront();
+		else if (src == exportSTL)
+			executer.saveAsSTL();
+		else if (src == exportPLY)
+			executer.saveAsPLY();
 		else if (src == smoothMesh)
 			executer.smoothMesh(univ.getSelected());
 		else if (src == smoothAllMeshes)
@@ -0,0 +1,99 @@
+package inference;
+
+import ij.IJ;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* The parts of the evidences which only depend on the data, so that they
+ * can be reused by all runs on the same histogram (whatever M is):
+ *
+ * count[k] = sum_{i=0}^{k-1} data[i], and the evidence sub-parts
+ * LogFuncs.LogFactorial(n_m)-LogFuncs.LogPow(k-kk,n_m).
+ *
+ * The sub-parts are not stored for all K^2 pairs (kk,k), which would not
+ * fit into memory for 16-bit histograms; they are calculated from tables
+ * of log(n!) and log(d) instead. */
+class Evidences {
+	/* the maximal size of the log(n!) table */
+	final static int MAX_FACTORIALS=1<<20;
+	/* below this many terms, the k loop is not worth threads */
+	final static long MIN_PARALLEL_WORK=1<<16;
+
+	int[] data,count;
+	boolean withFactorial;
+	double[] logFactorials,logs;
+
+	Evidences(int[] data_,boolean withFactorial_) {
+		data=data_.clone();
+		withFactorial=withFactorial_;
+		int K=data.length;
+		count=new int[K+1];
+		for(int i=1;i<=K;i++)
+			count[i]=count[i-1]+data[i-1];
+
+		logs=new double[K+1];
+		for(int d=1;d<=K;d++)
+			logs[d]=Math.log(d);
+		if(withFactorial) {
+			logFactorials=new double[(int)Math.min(count[K]+1L,MAX_FACTORIALS)];
+			for(int n=0;n<logFactorials.length;n++)
+				logFactorials[n]=LogFuncs.LogFactorial(n);
+		}
+	}
+
+	/* whether these tables were calculated for the same data */
+	boolean isFor(int[] data_,boolean withFactorial_) {
+		return withFactorial==withFactorial_ && Arrays.equals(data,data_);
+	}
+
+	/* the sub-part for the bins greater than kk and smaller or equal to k */
+	final double sub(int kk,int k) {
+		int n=count[k+1]-count[kk+1];
+		double result=-n*logs[k-kk];
+		if(withFactorial)
+			result+=n<logFactorials.length?logFactorials[n]:LogFuncs.LogFactorial(n);
+		return result;
+	}
+
+	static abstract class Rows {
+		/* terms is a per-thread buffer with at least K elements */
+		abstract void run(int k,double[] terms);
+	}
+
+	/* run rows for all k in [from,to); the row k is assumed to cost
+	 * O(k), so the rows are handed out from the top down, in chunks */
+	static void forRows(final int from,final int to,final Rows rows) {
+		if(to<=from)
+			return;
+		long work=(long)(to-from)*to;
+		int threadCount=work<MIN_PARALLEL_WORK?1:Math.min(to-from,
+			Runtime.getRuntime().availableProcessors());
+		if(threadCount<2) {
+			double[] terms=new double[to];
+			for(int k=to-1;k>=from;k--)
+				rows.run(k,terms);
+			return;
+		}
+		final int chunk=Math.max(1,(to-from)/(16*threadCount));
+		final AtomicInteger ai=new AtomicInteger(0);
+		Thread[] threads=new Thread[threadCount];
+		for(int t=0;t<threads.length;t++) {
+			threads[t]=new Thread() {
+				public void run() {
+					double[] terms=new double[to];
+					for(int i=ai.getAndAdd(chunk);i<to-from;i=ai.getAndAdd(chunk))
+						for(int k=to-1-i;k>=Math.max(from,to-i-chunk);k--)
+							rows.run(k,terms);
+				}
+			};
+			threads[t].start();
+		}
+		for(int t=0;t<threads.length;t++)
+			try {
+				threads[t].join();
+			} catch(InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+}
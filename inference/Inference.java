@@ -1,6 +1,7 @@
 package inference;
 
-/* PRECOMPUTE : parts changed for precomputing evidence-sub-parts. now, initCount() has to be called once before doit() !!! */
+/* PRECOMPUTE : parts changed for precomputing evidence-sub-parts. now, initCount() has to be called once before doit() !!!
+ * The sub-parts are shared by all runs on the same data (see Evidences). */
 
 
 public class Inference {
@@ -10,7 +11,7 @@ public class Inference {
 	public /*data*/int[] count;
 	/*PRECOMPUTE*/
 	// evidence sub-parts, i.e. LogFuncs.LogFactorial(n_m)-LogFuncs.LogPow(k-kk,n_m)
-	public double[] subEvidences;
+	Evidences evidences;
 
 	public InferenceCaller caller;
 
@@ -27,21 +28,13 @@ public class Inference {
 		initCount();
 	}
 
-	/* initialise the variable "count" for the current "data" */
+	/* initialise the variable "count" for the current "data";
+	 * this is cheap if the data did not change since the last call */
 	public void initCount() {
-		int i,j,n;
-	        count=new /*data*/int[K()+1];
-		subEvidences=new double[K()*K()];
-	        for(i=1,count[0]=0;i<=K();i++)
-	                count[i]=count[i-1]+data[i-1];
-
 		/*PRECOMPUTE*/
-		for(i=-1;i<K()-1;i++)
-			for(j=i+1;j<K();j++) {
-				n=getCount(i,j);
-				subEvidences[j+(i+1)*K()]=LogFuncs.LogFactorial(n)-LogFuncs.LogPow(j-i,n);
-			}
-
+		if(evidences==null || !evidences.isFor(data,true))
+			evidences=new Evidences(data,true);
+		count=evidences.count;
 	}
 
 	/* getCount(k1,k2) returns the number of data points in bins
@@ -63,12 +56,14 @@ public class Inference {
 
 	/* CALCULATE section */
 	/* logA and logEvidences contain the logarithms of the temporary
-	 * array a and the array evidences from the paper */
-	double[] logA,logEvidences;
+	 * array a and the array evidences from the paper; nextA receives
+	 * the values of a for the next m */
+	double[] logA,nextA,logEvidences;
 
 	/* initialise the arrays (steps 1-3 in the paper) */
 	private void init(int M) {
 	        logA=new double[K()];
+	        nextA=new double[K()];
 	        logEvidences=new double[M+1];
 		for(int k=0;k<K();k++) {
 			///*data*/int n=getCount(-1,k);
@@ -76,7 +71,7 @@ public class Inference {
 			//	+caller.logExpectationFactor(0,0,k);
 
 			/*PRECOMPUTE*/
-			logA[k]=subEvidences[k]+caller.logExpectationFactor(0,-1,k);
+			logA[k]=evidences.sub(-1,k)+caller.logExpectationFactor(0,-1,k);
 		}
 		logEvidences[0]=substep4b(0);
 	}
@@ -85,9 +80,9 @@ public class Inference {
 	/* calculate the inner most loop (step 4(a)ii in the paper).
 	 * it is reused for step6.
 	 * here, k is k_{\tilde M} and kk is k_{\tilde M-1}.
-	 * furthermore, begin is m-1. */
-	private double substep4aii(int k,int begin) {
-		double a=-1e300/*double_max*/;
+	 * furthermore, begin is m-1.
+	 * terms is a buffer for the summands, which are added at the end. */
+	private double substep4aii(int k,int begin,double[] terms) {
 		for(int kk=begin;kk<k;kk++) {
 			///*data*/int n_m=getCount(kk,k);
 			//a=LogFuncs.LogAddLogLog(a,logA[kk]
@@ -95,10 +90,10 @@ public class Inference {
 			//		+caller.logExpectationFactor(begin+1,kk,k));
 
 			/*PRECOMPUTE*/
-			a=LogFuncs.LogAddLogLog(a,logA[kk]+subEvidences[k+(kk+1)*K()]
-							+caller.logExpectationFactor(begin+1,kk,k));
+			terms[kk]=logA[kk]+evidences.sub(kk,k)
+				+caller.logExpectationFactor(begin+1,kk,k);
 		}
-		return a;
+		return LogFuncs.LogSumExp(terms,begin,k);
 	}
 
 	/* calculate the evidence (step 4(b) in the paper).
@@ -107,19 +102,27 @@ public class Inference {
 		return logA[K()-1]+caller.logPrior(m);
 	}
 
-	/* calculate evidences smaller than M (step 4 in the paper) */
+	/* calculate evidences smaller than M (step 4 in the paper).
+	 * the rows k only depend on the previous m, so they are
+	 * calculated in parallel. */
 	private void step4(int M) {
 		for(int m=1;m<M;m++) {
-			for(int k=K()-1;k>=m;k--) {
-				logA[k]=substep4aii(k,m-1);
-			}
+			final int begin=m-1;
+			Evidences.forRows(m,K(),new Evidences.Rows() {
+				void run(int k,double[] terms) {
+					nextA[k]=substep4aii(k,begin,terms);
+				}
+			});
+			double[] swap=logA;
+			logA=nextA;
+			nextA=swap;
 			logEvidences[m]=substep4b(m);
 		}
 	}
 
 	/* calculate steps 5-7 of paper */
 	void step6(int M) {
-		logA[K()-1]=substep4aii(K()-1,M-1);
+		logA[K()-1]=substep4aii(K()-1,M-1,new double[K()]);
 		logEvidences[M]=substep4b(M);
 	}
 
@@ -39,6 +39,23 @@ public class LogFuncs {
 			return logb+Math.log(1+Math.exp(loga-logb));
 	}
 
+	/* log(sum_{i=from}^{to-1} exp(x[i]))
+	 * = max+log(sum_i exp(x[i]-max))
+	 * i.e. the same as adding up with LogAddLogLog, but with one exp per
+	 * term and a single log. An empty sum is -1e300. */
+	public static double LogSumExp(double[] x,int from,int to) {
+		double max=-1e300;
+		for(int i=from;i<to;i++)
+			if(x[i]>max)
+				max=x[i];
+		if(to<=from || max<=-1e300)
+			return max;
+		double sum=0;
+		for(int i=from;i<to;i++)
+			sum+=Math.exp(x[i]-max);
+		return max+Math.log(sum);
+	}
+
 	public final static double pi=3.1415926535897932384626433832795029;
 	final static double[] p={1.000000000190015, 76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155, 1.208650973866179e-3, -5.395239384953e-6};
 	// use Lanczos' approximation
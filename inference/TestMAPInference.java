@@ -0,0 +1,134 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Compares MAPInference with a naive implementation of the same
+   recursion, which adds up the terms one by one with LogAddLogLog. */
+
+package inference;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestMAPInference {
+
+	/* the straight-forward implementation, sequential and in place */
+	static class Naive {
+		int K, N, Mmax;
+		int[] count, boundaries;
+		int[][] maxpos;
+		double[] logA, logEvidences;
+
+		Naive(int[] data) {
+			K = data.length;
+			count = new int[K + 1];
+			for (int i = 1; i <= K; i++)
+				count[i] = count[i - 1] + data[i - 1];
+			N = count[K];
+		}
+
+		double sub(int kk, int k) {
+			int n = count[k + 1] - count[kk + 1];
+			return LogFuncs.LogFactorial(n)
+				- LogFuncs.LogPow(k - kk, n);
+		}
+
+		double logPrior(int m) {
+			return LogFuncs.LogFactorial(K - 1 - m)
+				+ 2 * LogFuncs.LogFactorial(m)
+				- LogFuncs.LogFactorial(K - 1)
+				- LogFuncs.LogFactorial(N + m);
+		}
+
+		double row(int k, int begin) {
+			double a = -1e300, maxval = -1e300;
+			for (int kk = begin; kk < k; kk++) {
+				double value = logA[kk] + sub(kk, k);
+				a = LogFuncs.LogAddLogLog(a, value);
+				if (value > maxval) {
+					maxval = value;
+					maxpos[begin][k] = kk;
+				}
+			}
+			return a;
+		}
+
+		void doit(int M, boolean stopAtMax) {
+			logA = new double[K];
+			logEvidences = new double[M + 1];
+			maxpos = new int[M][K];
+			boundaries = new int[M];
+			for (int k = 0; k < K; k++)
+				logA[k] = sub(-1, k);
+			logEvidences[0] = logA[K - 1] + logPrior(0);
+			Mmax = M;
+			for (int m = 1; m < M; m++) {
+				for (int k = K - 1; k >= m; k--)
+					logA[k] = row(k, m - 1);
+				logEvidences[m] = logA[K - 1] + logPrior(m);
+				if (stopAtMax && logEvidences[m]
+						< logEvidences[m - 1]) {
+					Mmax = m - 1;
+					break;
+				}
+			}
+			if (Mmax == M) {
+				logA[K - 1] = row(K - 1, M - 1);
+				logEvidences[M] = logA[K - 1] + logPrior(M);
+			}
+			boundaries[Mmax - 1] = maxpos[Mmax - 1][K - 1];
+			for (int i = Mmax - 2; i >= 0; i--)
+				boundaries[i] = maxpos[i][boundaries[i + 1]];
+		}
+	}
+
+	static void compare(int[] data, int M, boolean stopAtMax) {
+		Naive naive = new Naive(data);
+		naive.doit(M, stopAtMax);
+		MAPInference inference = new MAPInference();
+		inference.setData(data);
+		inference.doit(M, stopAtMax);
+
+		assertEquals(naive.Mmax, inference.Mmax);
+		for (int m = 0; m <= naive.Mmax; m++)
+			assertEquals(naive.logEvidences[m],
+				inference.logEvidences[m],
+				1e-10 * Math.abs(naive.logEvidences[m]));
+		assertArrayEquals(naive.boundaries, inference.boundaries);
+	}
+
+	@Test
+	public void testSmallHistograms() {
+		for (int i = 1; i < 10000; i *= 10) {
+			int[] data = { i, i, 3 * i, i, 10 * i, 10 * i,
+				10 * i, 8 * i };
+			for (int M = 1; M < 8; M++) {
+				compare(data, M, true);
+				compare(data, M, false);
+			}
+		}
+		int[] sparse = { 0, 0, 0, 100, 30, 100, 0, 0 };
+		for (int M = 1; M < 8; M++)
+			compare(sparse, M, false);
+	}
+
+	/* large enough for the rows to be calculated in parallel */
+	@Test
+	public void testRandomHistograms() {
+		Random random = new Random(47);
+		int[] sizes = { 17, 256, 600 };
+		int[] Ms = { 1, 2, 5, 12 };
+		for (int s = 0; s < sizes.length; s++) {
+			int[] data = new int[sizes[s]];
+			for (int k = 0; k < data.length; k++) {
+				double x = (k - data.length / 3.0) / 20;
+				data[k] = (int)(1000 * Math.exp(-x * x))
+					+ random.nextInt(50);
+			}
+			for (int i = 0; i < Ms.length; i++)
+				compare(data, Ms[i], false);
+			compare(data, 12, true);
+		}
+	}
+}
@@ -0,0 +1,566 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package isosurface;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Extracts the surfaces of all the materials of a label field (an 8-bit
+ * image where each value is a material) in one pass over the volume.
+ *
+ * The surfaces are "surface nets" (S. Gibson, "Constrained elastic
+ * surface nets", MICCAI 1998, generalised to several labels): every
+ * cube of 2x2x2 voxels whose corners do not all have the same label
+ * gets one vertex, at the mean of the midpoints of those of its edges
+ * which cross a boundary, and every pair of face-adjacent voxels with
+ * different labels gets a quad connecting the vertices of the four
+ * cubes sharing that pair.
+ *
+ * A quad between the labels a and b is added to the meshes of both
+ * materials (with opposite orientations), and the vertices are shared
+ * by all materials, so the surfaces are closed, and adjacent materials
+ * have exactly the same boundary: there are neither gaps nor overlaps.
+ * The background label gets no mesh; outside the image, everything is
+ * background.
+ *
+ * Only the bounding box of the non-background labels is visited; it
+ * is cut into slabs which are processed in parallel.  To assign the
+ * vertex indices without locking, the vertices of each slice of cubes
+ * are counted first.
+ */
+public class LabelSurfaces {
+	/* the number of cube slices handed to a thread at a time */
+	final static int SLAB = 8;
+
+	protected int w, h, d;
+	protected byte[][] slices;
+	protected int background;
+	protected Calibration calibration;
+
+	/* per label: xmin, ymin, zmin, xmax, ymax, zmax, or null if absent */
+	protected int[][] boxes = new int[256][];
+
+	/*
+	 * The cube (i, j, k) has the voxel (x0 + i, y0 + j, z0 + k) as its
+	 * first corner.
+	 */
+	protected int x0, y0, z0, nx, ny, nz;
+
+	/* the index of the first vertex of each slice of cubes */
+	protected int[] firstVertex;
+	protected int vertexCount;
+	/* x, y, z of each vertex, in pixel coordinates */
+	protected float[] vertices;
+
+	/* per slab: all quads, and per label the oriented triangles */
+	protected IntList[] quads;
+	protected IntList[][] triangles;
+
+	public LabelSurfaces(ImagePlus image, int background) {
+		int type = image.getType();
+		if (type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256)
+			throw new IllegalArgumentException("Need an 8-bit "
+				+ "label field");
+		ImageStack stack = image.getStack();
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+		slices = new byte[d][];
+		for (int z = 0; z < d; z++)
+			slices[z] = (byte[])stack.getPixels(z + 1);
+		this.background = background;
+		calibration = image.getCalibration();
+		if (calibration == null)
+			calibration = new Calibration(image);
+	}
+
+	/**
+	 * Extracts the surfaces; afterwards, getLabels() lists the
+	 * materials which have one.
+	 */
+	public void extract() {
+		findBoundingBoxes();
+		int[] box = getBoundingBox();
+		if (box == null) {
+			vertices = new float[0];
+			quads = new IntList[0];
+			triangles = new IntList[0][];
+			return;
+		}
+		x0 = box[0] - 1;
+		y0 = box[1] - 1;
+		z0 = box[2] - 1;
+		nx = box[3] - box[0] + 2;
+		ny = box[4] - box[1] + 2;
+		nz = box[5] - box[2] + 2;
+
+		countVertices();
+		vertices = new float[3 * vertexCount];
+		int slabs = (nz + SLAB - 1) / SLAB;
+		quads = new IntList[slabs];
+		triangles = new IntList[slabs][];
+		emitQuads();
+	}
+
+	protected static abstract class Slices {
+		abstract void run(int from, int to);
+	}
+
+	/*
+	 * Calls work.run() for all chunks of size chunk in 0 ... count - 1,
+	 * in as many threads as there are cores.
+	 */
+	protected void forSlices(final int count, final int chunk,
+			final Slices work) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.min((count + chunk - 1)
+			/ chunk, Runtime.getRuntime().availableProcessors())];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = ai.getAndAdd(chunk); i < count;
+							i = ai.getAndAdd(chunk))
+						work.run(i, Math.min(count,
+								i + chunk));
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+
+	protected void findBoundingBoxes() {
+		forSlices(d, 1, new Slices() {
+			void run(int from, int to) {
+				int[][] local = new int[256][];
+				for (int z = from; z < to; z++)
+					for (int y = 0; y < h; y++)
+						for (int x = 0; x < w; x++) {
+							int l = slices[z][x + w * y]
+								& 0xff;
+							int[] b = local[l];
+							if (b == null) {
+								local[l] = new int[] {
+									x, y, z,
+									x, y, z };
+								continue;
+							}
+							if (x < b[0]) b[0] = x;
+							if (x > b[3]) b[3] = x;
+							if (y < b[1]) b[1] = y;
+							if (y > b[4]) b[4] = y;
+							b[5] = z;
+						}
+				mergeBoxes(local);
+			}
+		});
+	}
+
+	protected synchronized void mergeBoxes(int[][] local) {
+		for (int l = 0; l < 256; l++)
+			boxes[l] = union(boxes[l], local[l]);
+	}
+
+	protected static int[] union(int[] a, int[] b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		return new int[] {
+			Math.min(a[0], b[0]), Math.min(a[1], b[1]),
+			Math.min(a[2], b[2]), Math.max(a[3], b[3]),
+			Math.max(a[4], b[4]), Math.max(a[5], b[5]) };
+	}
+
+	/*
+	 * The bounding box of all non-background labels, or null if there
+	 * are none.
+	 */
+	protected int[] getBoundingBox() {
+		int[] result = null;
+		for (int l = 0; l < 256; l++)
+			if (l != background)
+				result = union(result, boxes[l]);
+		return result;
+	}
+
+	/**
+	 * The bounding box of the given label (xmin, ymin, zmin, xmax,
+	 * ymax, zmax, inclusive), or null if it does not occur.
+	 */
+	public int[] getBoundingBox(int label) {
+		return boxes[label];
+	}
+
+	/**
+	 * The labels which have a surface (i.e. all but the background).
+	 */
+	public int[] getLabels() {
+		int count = 0;
+		for (int l = 0; l < 256; l++)
+			if (l != background && boxes[l] != null)
+				count++;
+		int[] result = new int[count];
+		count = 0;
+		for (int l = 0; l < 256; l++)
+			if (l != background && boxes[l] != null)
+				result[count++] = l;
+		return result;
+	}
+
+	protected final int label(int x, int y, int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= w || y >= h || z >= d)
+			return background;
+		return slices[z][x + w * y] & 0xff;
+	}
+
+	/*
+	 * The labels of the 8 corners of the cube (i, j, k); the corner
+	 * (dx, dy, dz) is stored at index dx + 2 * dy + 4 * dz.  Returns
+	 * whether the labels differ, i.e. whether the cube has a vertex.
+	 */
+	protected final boolean corners(int i, int j, int k, int[] c) {
+		int x = x0 + i, y = y0 + j, z = z0 + k;
+		if (x >= 0 && y >= 0 && z >= 0 &&
+				x + 1 < w && y + 1 < h && z + 1 < d) {
+			byte[] p0 = slices[z], p1 = slices[z + 1];
+			int index = x + w * y;
+			c[0] = p0[index] & 0xff;
+			c[1] = p0[index + 1] & 0xff;
+			c[2] = p0[index + w] & 0xff;
+			c[3] = p0[index + w + 1] & 0xff;
+			c[4] = p1[index] & 0xff;
+			c[5] = p1[index + 1] & 0xff;
+			c[6] = p1[index + w] & 0xff;
+			c[7] = p1[index + w + 1] & 0xff;
+		} else
+			for (int b = 0; b < 8; b++)
+				c[b] = label(x + (b & 1), y + ((b >> 1) & 1),
+						z + (b >> 2));
+		for (int b = 1; b < 8; b++)
+			if (c[b] != c[0])
+				return true;
+		return false;
+	}
+
+	protected void countVertices() {
+		final int[] counts = new int[nz];
+		forSlices(nz, 1, new Slices() {
+			void run(int from, int to) {
+				int[] c = new int[8];
+				for (int k = from; k < to; k++)
+					for (int j = 0; j < ny; j++)
+						for (int i = 0; i < nx; i++)
+							if (corners(i, j, k, c))
+								counts[k]++;
+			}
+		});
+		firstVertex = new int[nz];
+		vertexCount = 0;
+		for (int k = 0; k < nz; k++) {
+			firstVertex[k] = vertexCount;
+			vertexCount += counts[k];
+		}
+	}
+
+	/*
+	 * Fills ids with the vertex index of each cube in the slice k (or
+	 * -1 if it has none); if store is true, the vertices are also
+	 * calculated.
+	 */
+	protected void vertexSlice(int k, int[] ids, boolean store) {
+		int[] c = new int[8];
+		int id = firstVertex[k];
+		for (int j = 0, index = 0; j < ny; j++)
+			for (int i = 0; i < nx; i++, index++) {
+				if (!corners(i, j, k, c)) {
+					ids[index] = -1;
+					continue;
+				}
+				ids[index] = id;
+				if (store)
+					storeVertex(id, i, j, k, c);
+				id++;
+			}
+	}
+
+	protected void storeVertex(int id, int i, int j, int k, int[] c) {
+		float x = 0, y = 0, z = 0;
+		int count = 0;
+		for (int b = 0; b < 8; b++)
+			for (int bit = 1; bit < 8; bit <<= 1) {
+				if ((b & bit) != 0 || c[b] == c[b | bit])
+					continue;
+				x += (b & 1) + (bit == 1 ? 0.5f : 0);
+				y += ((b >> 1) & 1) + (bit == 2 ? 0.5f : 0);
+				z += (b >> 2) + (bit == 4 ? 0.5f : 0);
+				count++;
+			}
+		vertices[3 * id] = x0 + i + x / count;
+		vertices[3 * id + 1] = y0 + j + y / count;
+		vertices[3 * id + 2] = z0 + k + z / count;
+	}
+
+	protected void emitQuads() {
+		final int slabs = quads.length;
+		forSlices(slabs, 1, new Slices() {
+			void run(int from, int to) {
+				int[] previous = new int[nx * ny];
+				int[] current = new int[nx * ny];
+				for (int s = from; s < to; s++) {
+					int k0 = s * SLAB;
+					int k1 = Math.min(nz, k0 + SLAB);
+					quads[s] = new IntList();
+					triangles[s] = new IntList[256];
+					if (k0 > 0)
+						vertexSlice(k0 - 1, previous,
+								false);
+					for (int k = k0; k < k1; k++) {
+						vertexSlice(k, current, true);
+						emitQuads(s, k, previous,
+								current);
+						int[] swap = previous;
+						previous = current;
+						current = swap;
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Emit the quads of all the edges between the voxels in the plane
+	 * z0 + k, and between that plane and the next one.  Each quad is
+	 * ordered counter-clockwise when looking against the axis of the
+	 * edge, i.e. its normal points from the lower to the higher voxel.
+	 */
+	protected void emitQuads(int s, int k, int[] previous, int[] current) {
+		int z = z0 + k;
+		for (int j = 0; j < ny; j++) {
+			int y = y0 + j;
+			for (int i = 0; i < nx; i++) {
+				int x = x0 + i;
+				int a = label(x, y, z);
+				int index = i + nx * j;
+				// towards z + 1
+				if (i > 0 && j > 0) {
+					int b = label(x, y, z + 1);
+					if (a != b)
+						addQuad(s, a, b,
+							current[index - nx - 1],
+							current[index - nx],
+							current[index],
+							current[index - 1]);
+				}
+				if (k == 0)
+					continue;
+				// towards x + 1
+				if (j > 0) {
+					int b = label(x + 1, y, z);
+					if (a != b)
+						addQuad(s, a, b,
+							previous[index - nx],
+							previous[index],
+							current[index],
+							current[index - nx]);
+				}
+				// towards y + 1
+				if (i > 0) {
+					int b = label(x, y + 1, z);
+					if (a != b)
+						addQuad(s, a, b,
+							previous[index - 1],
+							current[index - 1],
+							current[index],
+							previous[index]);
+				}
+			}
+		}
+	}
+
+	protected void addQuad(int s, int a, int b,
+			int v0, int v1, int v2, int v3) {
+		IntList q = quads[s];
+		q.add(v0);
+		q.add(v1);
+		q.add(v2);
+		q.add(v3);
+		if (a != background) {
+			IntList t = getTriangles(s, a);
+			t.add(v0); t.add(v1); t.add(v2);
+			t.add(v0); t.add(v2); t.add(v3);
+		}
+		if (b != background) {
+			IntList t = getTriangles(s, b);
+			t.add(v0); t.add(v2); t.add(v1);
+			t.add(v0); t.add(v3); t.add(v2);
+		}
+	}
+
+	protected IntList getTriangles(int s, int label) {
+		IntList result = triangles[s][label];
+		if (result == null)
+			result = triangles[s][label] = new IntList();
+		return result;
+	}
+
+	/**
+	 * Smoothes all surfaces together (Taubin's method, see
+	 * MeshSmoother), so that they still share their boundaries.
+	 */
+	public void smooth(int iterations) {
+		if (iterations <= 0 || vertexCount == 0)
+			return;
+		int total = 0;
+		for (int s = 0; s < quads.length; s++)
+			total += quads[s].size;
+		int[] faces = new int[total];
+		total = 0;
+		for (int s = 0; s < quads.length; s++) {
+			System.arraycopy(quads[s].data, 0, faces, total,
+					quads[s].size);
+			total += quads[s].size;
+		}
+		MeshSmoother smoother = new MeshSmoother(vertices, faces, 4);
+		smoother.taubin(0.5f, -0.53f, iterations);
+		smoother.apply();
+	}
+
+	/**
+	 * The surface of one material as an indexed mesh, in calibrated
+	 * coordinates.
+	 */
+	public static class Mesh {
+		public int label;
+		/* x, y, z of each vertex */
+		public float[] vertices;
+		/* three vertex indices per triangle */
+		public int[] triangles;
+
+		public List<Point3f> getTriangleList() {
+			List<Point3f> result =
+				new ArrayList<Point3f>(triangles.length);
+			for (int i = 0; i < triangles.length; i++) {
+				int v = 3 * triangles[i];
+				result.add(new Point3f(vertices[v],
+					vertices[v + 1], vertices[v + 2]));
+			}
+			return result;
+		}
+
+		public void saveAsWavefront(String path) throws IOException {
+			PrintStream ps = new PrintStream(
+				new BufferedOutputStream(
+					new FileOutputStream(path)));
+			ps.println("# Surface of the material " + label);
+			for (int i = 0; i < vertices.length; i += 3)
+				ps.println("v " + vertices[i] + " "
+					+ vertices[i + 1] + " "
+					+ vertices[i + 2]);
+			ps.println("s 1");
+			for (int i = 0; i < triangles.length; i += 3)
+				ps.println("f " + (triangles[i] + 1) + " "
+					+ (triangles[i + 1] + 1) + " "
+					+ (triangles[i + 2] + 1));
+			ps.close();
+			if (ps.checkError())
+				throw new IOException("Could not write " + path);
+		}
+	}
+
+	/*
+	 * The local index of each vertex in the mesh which was built last;
+	 * a vertex was seen by the current getMesh() call if its stamp is
+	 * that call's generation.
+	 */
+	private int[] localIndex, stamp;
+	private int generation;
+
+	/**
+	 * The surface of the given label; only its own vertices are
+	 * included.
+	 */
+	public synchronized Mesh getMesh(int label) {
+		if (localIndex == null) {
+			localIndex = new int[vertexCount];
+			stamp = new int[vertexCount];
+		}
+		if (++generation == 0) {
+			Arrays.fill(stamp, 0);
+			generation = 1;
+		}
+		int total = 0;
+		for (int s = 0; s < triangles.length; s++)
+			if (triangles[s][label] != null)
+				total += triangles[s][label].size;
+
+		Mesh result = new Mesh();
+		result.label = label;
+		result.triangles = new int[total];
+		IntList coordinates = new IntList();
+		int count = 0;
+		total = 0;
+		for (int s = 0; s < triangles.length; s++) {
+			IntList t = triangles[s][label];
+			if (t == null)
+				continue;
+			for (int i = 0; i < t.size; i++) {
+				int v = t.data[i];
+				if (stamp[v] != generation) {
+					stamp[v] = generation;
+					localIndex[v] = count++;
+					coordinates.add(v);
+				}
+				result.triangles[total++] = localIndex[v];
+			}
+		}
+
+		float pw = (float)calibration.pixelWidth;
+		float ph = (float)calibration.pixelHeight;
+		float pd = (float)calibration.pixelDepth;
+		float ox = (float)calibration.xOrigin;
+		float oy = (float)calibration.yOrigin;
+		float oz = (float)calibration.zOrigin;
+		result.vertices = new float[3 * count];
+		for (int i = 0; i < count; i++) {
+			int v = 3 * coordinates.data[i];
+			result.vertices[3 * i] = vertices[v] * pw + ox;
+			result.vertices[3 * i + 1] = vertices[v + 1] * ph + oy;
+			result.vertices[3 * i + 2] = vertices[v + 2] * pd + oz;
+		}
+		return result;
+	}
+
+	protected static class IntList {
+		int[] data = new int[256];
+		int size;
+
+		final void add(int value) {
+			if (size == data.length) {
+				int[] grown = new int[2 * size];
+				System.arraycopy(data, 0, grown, 0, size);
+				data = grown;
+			}
+			data[size++] = value;
+		}
+	}
+}
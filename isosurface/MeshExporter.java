@@ -4,6 +4,8 @@ package isosurface;
 import ij3d.Content;
 import ij3d.ContentNode;
 import customnode.WavefrontExporter;
+import customnode.STLExporter;
+import customnode.PLYExporter;
 import customnode.CustomMeshNode;
 import customnode.CustomMesh;
 
@@ -239,6 +241,10 @@ public class MeshExporter {
 	}
 
 	static public void writeAsWaveFront(Collection contents, String mtl_filename, Writer w_obj, Writer w_mtl) throws IOException {
+		WavefrontExporter.save(collectMeshes(contents), mtl_filename, w_obj, w_mtl);
+	}
+
+	static private HashMap<String, CustomMesh> collectMeshes(Collection contents) {
 		HashMap<String, CustomMesh> meshes = new HashMap<String, CustomMesh>();
 
 		for(Iterator it = contents.iterator(); it.hasNext(); ) {
@@ -255,7 +261,58 @@ public class MeshExporter {
 				continue;
 			meshes.put(mob.getName(), cmesh);
 		}
-		WavefrontExporter.save(meshes, mtl_filename, w_obj, w_mtl);
+		return meshes;
+	}
+
+	/** Save all meshes as one binary STL file (quads are split into triangles). */
+	static public void saveAsSTL(Collection contents) {
+		File f = askForFile(contents, "Save as binary STL", ".stl");
+		if (null == f)
+			return;
+		try {
+			STLExporter.save(collectMeshes(filterMeshes(contents)), f.getAbsolutePath());
+		} catch (IOException e) {
+			IJ.log("Some error ocurred while saving to STL:\n" + e);
+			e.printStackTrace();
+		}
+	}
+
+	/** Save all meshes as one binary PLY file, with their colors as vertex colors. */
+	static public void saveAsPLY(Collection contents) {
+		File f = askForFile(contents, "Save as binary PLY", ".ply");
+		if (null == f)
+			return;
+		try {
+			PLYExporter.save(collectMeshes(filterMeshes(contents)), f.getAbsolutePath());
+		} catch (IOException e) {
+			IJ.log("Some error ocurred while saving to PLY:\n" + e);
+			e.printStackTrace();
+		}
+	}
+
+	static private File askForFile(Collection contents, String title, String extension) {
+		if (null == contents || 0 == filterMeshes(contents).size()) {
+			IJ.log("No meshes to export!");
+			return null;
+		}
+		SaveDialog sd = new SaveDialog(title, "untitled", extension);
+		String dir = sd.getDirectory();
+		if (null == dir)
+			return null;
+		String filename = sd.getFileName();
+		if (!filename.toLowerCase().endsWith(extension))
+			filename += extension;
+
+		File file = new File(dir, filename);
+		// check if file exists
+		if (!IJ.isMacOSX() && file.exists()) {
+			YesNoCancelDialog yn = new YesNoCancelDialog(
+				IJ.getInstance(),
+				"Overwrite?",
+				"File  " + filename + " exists!\nOverwrite?");
+			if (!yn.yesPressed()) return null;
+		}
+		return file;
 	}
 
 	/** A Material, but avoiding name colisions. Not thread-safe. */
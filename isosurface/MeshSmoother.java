@@ -0,0 +1,307 @@
+package isosurface;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import javax.vecmath.Point3f;
+
+import customnode.CustomTriangleMesh;
+import customnode.VertexMap;
+
+/**
+ * Smoothes a triangle mesh given as a list of points (every three
+ * points form one triangle).
+ *
+ * The vertex adjacency is built once, in compressed row storage: the
+ * neighbours of the unique vertex v are
+ * neighbours[offsets[v]] .. neighbours[offsets[v + 1] - 1].
+ * Points which are equal are merged into one unique vertex (see
+ * customnode.VertexMap).
+ *
+ * The smoothing itself works on primitive float arrays and runs in
+ * as many threads as there are processors; the result is written back
+ * to the points (and the geometry of a CustomTriangleMesh) only once,
+ * in apply().
+ *
+ * Two methods are provided:
+ *
+ * laplacian(): every vertex is moved the fraction K towards the
+ * centroid of its neighbours.  This shrinks the mesh.
+ *
+ * taubin(): G. Taubin, "A signal processing approach to fair surface
+ * design", SIGGRAPH 1995.  Each iteration consists of a Laplacian step
+ * with the positive factor lambda followed by one with the negative
+ * factor mu (with mu < -lambda), which keeps the volume approximately
+ * constant.
+ */
+public class MeshSmoother {
+
+	/** The original list of points, 3 per triangle */
+	protected List<Point3f> triangles;
+
+	/** Maps each entry of the triangle list to its unique vertex */
+	protected int[] vertexIndex;
+
+	/** x, y, z of each unique vertex */
+	protected float[] coords;
+
+	/** The coordinates of an indexed mesh, as passed in */
+	protected float[] original;
+
+	/** Compressed row storage of the vertex adjacency */
+	protected int[] offsets, neighbours;
+
+	protected int vertexCount;
+
+	private float[] buffer;
+
+	public MeshSmoother(CustomTriangleMesh mesh) {
+		this(mesh.getMesh());
+	}
+
+	public MeshSmoother(List<Point3f> triangles) {
+		if (triangles.size() % 3 != 0)
+			throw new IllegalArgumentException("Need a list of "
+				+ "points whose size is a multiple of 3");
+		this.triangles = triangles;
+		findUniqueVertices();
+		buildAdjacency(vertexIndex, 3);
+	}
+
+	/**
+	 * Smoothes an indexed mesh: coords holds x, y, z of each vertex,
+	 * and each cornersPerFace consecutive entries of faces are the
+	 * vertices of one face (e.g. 4 for quads).  Vertices are only
+	 * connected to their neighbours along the border of a face.
+	 * The coordinates are written back to coords by apply().
+	 */
+	public MeshSmoother(float[] coords, int[] faces, int cornersPerFace) {
+		if (faces.length % cornersPerFace != 0)
+			throw new IllegalArgumentException("Need a list of "
+				+ "indices whose size is a multiple of "
+				+ cornersPerFace);
+		this.coords = this.original = coords;
+		vertexCount = coords.length / 3;
+		buildAdjacency(faces, cornersPerFace);
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Returns the coordinates of the unique vertices as x, y, z
+	 * triples (not a copy).
+	 */
+	public float[] getCoordinates() {
+		return coords;
+	}
+
+	/**
+	 * Returns the unique vertices adjacent to the unique vertex v.
+	 */
+	public int[] getNeighbours(int v) {
+		int[] result = new int[offsets[v + 1] - offsets[v]];
+		System.arraycopy(neighbours, offsets[v],
+				result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Moves every vertex the fraction K (0, 1) towards the centroid
+	 * of its neighbours, iterations times.
+	 */
+	public void laplacian(float K, int iterations) {
+		float[] factors = new float[iterations];
+		Arrays.fill(factors, K);
+		run(factors);
+	}
+
+	/**
+	 * Volume preserving smoothing; lambda should be in (0, 1) and mu
+	 * should be negative, with a slightly larger absolute value than
+	 * lambda (e.g. lambda = 0.5, mu = -0.53).
+	 */
+	public void taubin(float lambda, float mu, int iterations) {
+		float[] factors = new float[2 * iterations];
+		for (int i = 0; i < iterations; i++) {
+			factors[2 * i] = lambda;
+			factors[2 * i + 1] = mu;
+		}
+		run(factors);
+	}
+
+	/**
+	 * Writes the smoothed coordinates back to the list of points (or
+	 * the coordinates of the indexed mesh).
+	 */
+	public void apply() {
+		if (triangles == null) {
+			if (coords != original)
+				System.arraycopy(coords, 0, original, 0,
+						coords.length);
+			return;
+		}
+		for (int i = 0; i < vertexIndex.length; i++) {
+			int v = 3 * vertexIndex[i];
+			triangles.get(i).set(coords[v],
+					coords[v + 1], coords[v + 2]);
+		}
+	}
+
+	/**
+	 * Writes the smoothed coordinates back to the mesh (which must be
+	 * the one whose points were passed to the constructor) and
+	 * updates its geometry in one go.
+	 */
+	public void apply(CustomTriangleMesh mesh) {
+		float[] expanded = new float[3 * vertexIndex.length];
+		for (int i = 0; i < vertexIndex.length; i++)
+			System.arraycopy(coords, 3 * vertexIndex[i],
+					expanded, 3 * i, 3);
+		mesh.setCoordinates(expanded);
+	}
+
+	private void findUniqueVertices() {
+		int n = triangles.size();
+		vertexIndex = new int[n];
+		VertexMap map = new VertexMap(n / 2);
+		for (int i = 0; i < n; i++)
+			vertexIndex[i] = map.add(triangles.get(i));
+		vertexCount = map.size();
+		coords = map.getCoordinates();
+	}
+
+	private void buildAdjacency(int[] vertexIndex, int m) {
+		int n = vertexIndex.length;
+
+		// every face adds two (possibly duplicate) edges per corner
+		int[] count = new int[vertexCount + 1];
+		for (int i = 0; i < n; i++)
+			count[vertexIndex[i]] += 2;
+		int[] start = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++)
+			start[v + 1] = start[v] + count[v];
+
+		int[] edges = new int[start[vertexCount]];
+		int[] fill = new int[vertexCount];
+		System.arraycopy(start, 0, fill, 0, vertexCount);
+		for (int i = 0; i < n; i += m)
+			for (int c = 0; c < m; c++) {
+				int a = vertexIndex[i + c];
+				edges[fill[a]++] = vertexIndex[i + (c + 1) % m];
+				edges[fill[a]++] =
+					vertexIndex[i + (c + m - 1) % m];
+			}
+
+		// sort each row and remove duplicates (and degenerate edges)
+		offsets = new int[vertexCount + 1];
+		int j = 0;
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v] = j;
+			Arrays.sort(edges, start[v], start[v + 1]);
+			int previous = -1;
+			for (int k = start[v]; k < start[v + 1]; k++) {
+				int e = edges[k];
+				if (e == previous || e == v)
+					continue;
+				edges[j++] = e;
+				previous = e;
+			}
+		}
+		offsets[vertexCount] = j;
+
+		neighbours = new int[j];
+		System.arraycopy(edges, 0, neighbours, 0, j);
+	}
+
+	/*
+	 * Runs one Laplacian pass per factor.  Each thread owns a fixed
+	 * range of vertices; after every pass, the threads meet at a
+	 * barrier, and the source and target arrays are swapped.
+	 */
+	private void run(final float[] factors) {
+		if (factors.length == 0 || vertexCount == 0)
+			return;
+		if (buffer == null)
+			buffer = new float[coords.length];
+
+		int nThreads = Math.min(vertexCount / 1024 + 1,
+			Runtime.getRuntime().availableProcessors());
+		final float[][] arrays = { coords, buffer };
+		final CyclicBarrier barrier = new CyclicBarrier(nThreads,
+				new Runnable() {
+			public void run() {
+				float[] tmp = arrays[0];
+				arrays[0] = arrays[1];
+				arrays[1] = tmp;
+			}
+		});
+
+		final Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int from = (int)((long)vertexCount * t / nThreads);
+			final int to = (int)((long)vertexCount * (t + 1)
+					/ nThreads);
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int p = 0; p < factors.length;
+								p++) {
+							smooth(arrays[0], arrays[1],
+								factors[p],
+								from, to);
+							barrier.await();
+						}
+					} catch (InterruptedException e) {
+						barrier.reset();
+					} catch (BrokenBarrierException e) {
+						// another thread was interrupted
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < nThreads; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				for (int u = 0; u < nThreads; u++)
+					threads[u].interrupt();
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+		coords = arrays[0];
+		buffer = arrays[1];
+	}
+
+	private void smooth(float[] source, float[] target, float K,
+			int from, int to) {
+		for (int v = from; v < to; v++) {
+			int i = 3 * v;
+			int start = offsets[v], end = offsets[v + 1];
+			if (start == end) {
+				target[i] = source[i];
+				target[i + 1] = source[i + 1];
+				target[i + 2] = source[i + 2];
+				continue;
+			}
+			float x = 0, y = 0, z = 0;
+			for (int k = start; k < end; k++) {
+				int j = 3 * neighbours[k];
+				x += source[j];
+				y += source[j + 1];
+				z += source[j + 2];
+			}
+			float f = 1f / (end - start);
+			target[i] = source[i] + K * (x * f - source[i]);
+			target[i + 1] = source[i + 1]
+				+ K * (y * f - source[i + 1]);
+			target[i + 2] = source[i + 2]
+				+ K * (z * f - source[i + 2]);
+		}
+	}
+}
@@ -41,10 +41,6 @@ import javax.vecmath.Color3f;
 import java.awt.image.ColorModel;
 import java.awt.image.IndexColorModel;
 
-import java.util.HashMap;
-
-import process3d.Smooth_;
-
 import vib.NaiveResampler;
 
 /*
@@ -130,61 +126,31 @@ public class Show_Colour_Surfaces implements PlugIn {
 			IJ.error("The background colour must have an index from 0 to "+(colours-1)+" inclusive");
 			return;
 		}
-		HashMap<Integer,Boolean> coloursUsedInImage = new HashMap();
-		for( int c = 0; c < colours; ++c ) {
-			coloursUsedInImage.put( c, false );
-		}
-		for( int z = 0; z < depth; ++z ) {
-			byte [] pixels = (byte[])stack.getPixels(z+1);
-			for( int i = 0; i < pixels.length; ++i ) {
-				int v = pixels[i] & 0xFF;
-				coloursUsedInImage.put( v, true );
-			}
-		}
-		for( int i = 0; i < colours; ++i ) {
-			boolean used = coloursUsedInImage.get( i );
-			if( ! used ) {
-				System.out.println("Skipping colour index "+i+", since it's not used in the image");
+		// Extract the surfaces of all colours in one go:
+		LabelSurfaces surfaces = new LabelSurfaces( image, backgroundColorIndex );
+		surfaces.extract();
+		if( smoothingSigma > 0 ) {
+			double minSampleSeparation = Math.min( Math.min( Math.abs( calibration.pixelWidth ), Math.abs( calibration.pixelHeight ) ),
+							       Math.abs( calibration.pixelDepth ) );
+			double radius = smoothingSigma / minSampleSeparation;
+			surfaces.smooth( Math.max( 1, (int)Math.ceil( 2 * radius * radius ) ) );
+		}
+		int [] labels = surfaces.getLabels();
+		for( int l = 0; l < labels.length; ++l ) {
+			int i = labels[l];
+			if( i >= colours ) {
+				System.out.println("Skipping colour index "+i+", since it's not in the colour map");
 				continue;
 			}
-			if( i == backgroundColorIndex )
-				continue;
 			Color3f c = new Color3f( (reds[i] & 0xFF) / 255.0f,
 						 (greens[i] & 0xFF) / 255.0f,
 						 (blues[i] & 0xFF) / 255.0f );
-			byte v = (byte)i;
-			// Make a new ImagePlus with just this colour:
-			ImageStack newStack = new ImageStack( width, height );
-			for( int z = 0; z < depth; ++z ) {
-				byte [] originalPixels = (byte[])stack.getPixels(z+1);
-				byte [] newBytes = new byte[originalPixels.length];
-				for( int j = 0; j < originalPixels.length; ++j ) {
-					if( originalPixels[j] == v )
-						newBytes[j] = (byte)255;
-				}
-				ByteProcessor bp = new ByteProcessor(width,height);
-				bp.setPixels(newBytes);
-				newStack.addSlice("",bp);
-			}
-			ImagePlus colourImage = new ImagePlus("Image for colour index: "+i,newStack);
-			colourImage.setCalibration(calibration);
-			if( smoothingSigma > 0 ) {
-				ImagePlus smoothedColourImage = Smooth_.smooth( colourImage, true, (float)smoothingSigma, true );
-				smoothedColourImage.setTitle( "Smoothed image for colour index: "+i );
-				colourImage.close();
-				colourImage = smoothedColourImage;
-			}
-			boolean [] channels = { true, true, true };
-			Content content = univ.addContent(colourImage,
-							  c,
-							  colourImage.getTitle(),
-							  40, // threshold
-							  channels,
-							  resamplingFactor,
-							  Content.SURFACE);
+			LabelSurfaces.Mesh mesh = surfaces.getMesh( i );
+			Content content = univ.addTriangleMesh( mesh.getTriangleList(),
+								c,
+								"Surface for colour index: "+i );
 			content.setLocked(true);
 			// c.setTransparency(0.5f);
-			colourImage.close();
 		}
 	}
 
@@ -0,0 +1,101 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package isosurface;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestLabelSurfaces {
+
+	/*
+	 * Two boxes touching each other, and a third one inside the first,
+	 * in a 12x10x8 volume.
+	 */
+	LabelSurfaces createSurfaces() {
+		int w = 12, h = 10, d = 8;
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			byte[] pixels = new byte[w * h];
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++) {
+					int label = 0;
+					if (z >= 1 && z < 7 && y >= 1 && y < 8) {
+						if (x >= 1 && x < 6)
+							label = 1;
+						else if (x >= 6 && x < 10)
+							label = 2;
+					}
+					if (z >= 3 && z < 5 && y >= 3 && y < 6
+							&& x >= 2 && x < 4)
+						label = 3;
+					pixels[x + w * y] = (byte)label;
+				}
+			stack.addSlice("", pixels);
+		}
+		LabelSurfaces surfaces =
+			new LabelSurfaces(new ImagePlus("labels", stack), 0);
+		surfaces.extract();
+		return surfaces;
+	}
+
+	@Test
+	public void testRepeatedGetMesh() {
+		LabelSurfaces surfaces = createSurfaces();
+		int[] labels = surfaces.getLabels();
+		assertArrayEquals(new int[] { 1, 2, 3 }, labels);
+
+		LabelSurfaces.Mesh[] first =
+			new LabelSurfaces.Mesh[labels.length];
+		for (int i = 0; i < labels.length; i++)
+			first[i] = surfaces.getMesh(labels[i]);
+		// the same label twice in a row, then all of them again
+		for (int i = 0; i < labels.length; i++)
+			for (int j = 0; j < 2; j++) {
+				LabelSurfaces.Mesh mesh =
+					surfaces.getMesh(labels[i]);
+				assertArrayEquals(first[i].vertices,
+						mesh.vertices, 0);
+				assertArrayEquals(first[i].triangles,
+						mesh.triangles);
+				assertEquals(mesh.triangles.length,
+					mesh.getTriangleList().size());
+			}
+	}
+
+	/*
+	 * Every directed edge must occur exactly once, and its reverse
+	 * must occur, too: the mesh is closed and consistently oriented.
+	 */
+	@Test
+	public void testClosedAndOriented() {
+		LabelSurfaces surfaces = createSurfaces();
+		int[] labels = surfaces.getLabels();
+		for (int i = 0; i < labels.length; i++) {
+			LabelSurfaces.Mesh mesh = surfaces.getMesh(labels[i]);
+			int[] t = mesh.triangles;
+			assertTrue(t.length > 0);
+			assertEquals(0, t.length % 3);
+			long n = mesh.vertices.length / 3;
+			Set<Long> edges = new HashSet<Long>();
+			for (int j = 0; j < t.length; j += 3)
+				for (int k = 0; k < 3; k++) {
+					int a = t[j + k], b = t[j + (k + 1) % 3];
+					assertTrue(a >= 0 && a < n);
+					assertTrue(a != b);
+					assertTrue(edges.add(a * n + b));
+				}
+			for (Long edge : edges) {
+				long a = edge / n, b = edge % n;
+				assertTrue(edges.contains(b * n + a));
+			}
+		}
+	}
+}
@@ -14,12 +14,14 @@ import java.awt.Color;
 import java.io.*;
 
 import math3d.Bookstein;
+import math3d.BooksteinLattice;
 import math3d.Point3d;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import vib.FastMatrix;
 import landmarks.NamedPointWorld;
@@ -232,51 +234,79 @@ public class BooksteinFromLandmarks extends RegistrationAlgorithm {
 		return register( points0, points1 );
 	}
 
-	public ImagePlus register( NamedPointSet points0, NamedPointSet points1 ) {
+	/* The thin-plate spline is evaluated exactly on a lattice with
+	   this spacing (in template pixels) and interpolated in
+	   between; with 0, it is evaluated exactly at every pixel. */
 
-		generateTransformation( points0, points1 );
+	int latticeSpacing = 4;
 
-		ImageStack newStack = new ImageStack( templateWidth, templateHeight );
-
-		ImageStack domainStack = sourceImages[1].getStack();
+	public void setLatticeSpacing( int latticeSpacing ) {
+		this.latticeSpacing = latticeSpacing;
+	}
 
-		byte [][] domainPixels = new byte[domainDepth][];
-		for( int z = 0; z < domainDepth; ++z )
-			domainPixels[z] = ( byte[] ) domainStack.getPixels( z + 1 );
+	public ImagePlus register( NamedPointSet points0, NamedPointSet points1 ) {
 
-		RegistrationAlgorithm.ImagePoint result = new RegistrationAlgorithm.ImagePoint();
+		generateTransformation( points0, points1 );
 
-		IJ.showProgress( 0 );
+		final ImageStack domainStack = sourceImages[1].getStack();
 
+		final Object [] domainPixels = new Object[domainDepth];
+		for( int z = 0; z < domainDepth; ++z )
+			domainPixels[z] = domainStack.getPixels( z + 1 );
+
+		final BooksteinLattice lattice;
+		if( latticeSpacing > 0 ) {
+			IJ.showStatus( "Evaluating the thin-plate spline on a lattice..." );
+			lattice = new BooksteinLattice( templateToDomain,
+				0, 0, 0,
+				(templateWidth - 1) * xSpacingTemplate,
+				(templateHeight - 1) * ySpacingTemplate,
+				(templateDepth - 1) * zSpacingTemplate,
+				latticeSpacing * xSpacingTemplate,
+				latticeSpacing * ySpacingTemplate,
+				latticeSpacing * zSpacingTemplate );
+			IJ.log( "Thin-plate spline lattice: maximum error "+
+				IJ.d2s( lattice.getMaximumError(), 4 )+
+				" (in the domain's units)" );
+		} else
+			lattice = null;
+
+		final Object [] newPixels = new Object[templateDepth];
+		ImageStack newStack = new ImageStack( templateWidth, templateHeight );
+		ImageProcessor domainProcessor = domainStack.getProcessor( 1 );
 		for( int z = 0; z < templateDepth; ++z ) {
+			ImageProcessor ip = domainProcessor.createProcessor(
+				templateWidth, templateHeight );
+			newStack.addSlice( "", ip );
+			newPixels[z] = ip.getPixels();
+		}
 
-			byte [] pixels = new byte[ templateWidth * templateHeight ];
-
-			for( int y = 0; y < templateHeight; ++y )
-				for( int x = 0; x < templateWidth; ++x ) {
-
-					transformTemplateToDomain( x, y, z, result );
-
-					int dx = result.x;
-					int dy = result.y;
-					int dz = result.z;
-
-					if( dx < 0 || dy < 0 || dz < 0 ||
-					    dx >= domainWidth ||
-					    dy >= domainHeight ||
-					    dz >= domainDepth )
-						continue;
+		IJ.showStatus( "Transforming..." );
+		IJ.showProgress( 0 );
 
-					pixels[y*templateWidth+x] =
-						domainPixels[dz][dy*domainWidth+dx];
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger done = new AtomicInteger( 0 );
+		Thread [] threads = new Thread[ Math.min( templateDepth,
+			Runtime.getRuntime().availableProcessors() ) ];
+		for( int t = 0; t < threads.length; ++t ) {
+			threads[t] = new Thread() {
+				public void run() {
+					RowTransformer row = new RowTransformer( lattice );
+					for( int z = ai.getAndIncrement(); z < templateDepth;
+					     z = ai.getAndIncrement() ) {
+						transformSlice( z, row, domainPixels, newPixels[z] );
+						IJ.showProgress( done.incrementAndGet(), templateDepth );
+					}
 				}
-
-			ByteProcessor bp = new ByteProcessor( templateWidth, templateHeight );
-			bp.setPixels( pixels );
-			newStack.addSlice( "", bp );
-
-			IJ.showProgress( (z + 1) / (double)templateDepth );
+			};
+			threads[t].start();
 		}
+		for( int t = 0; t < threads.length; ++t )
+			try {
+				threads[t].join();
+			} catch( InterruptedException e ) {
+				IJ.handleException( e );
+			}
 
 		IJ.showProgress( 1.0 );
 
@@ -287,5 +317,82 @@ public class BooksteinFromLandmarks extends RegistrationAlgorithm {
 
 		return transformed;
 	}
+
+	/* The per-thread buffers for transforming one row of the
+	   template at a time. */
+
+	class RowTransformer {
+		BooksteinLattice lattice;
+		double [] points = new double[ 3 * templateWidth ];
+		double [] column;
+		double [] exact = new double[3];
+		/* the domain slice and index of each pixel, -1 if outside */
+		int [] slice = new int[ templateWidth ];
+		int [] index = new int[ templateWidth ];
+
+		RowTransformer( BooksteinLattice lattice ) {
+			this.lattice = lattice;
+			if( lattice != null )
+				column = new double[ lattice.getColumnSize() ];
+		}
+
+		void transform( int y, int z ) {
+			double wy = y * ySpacingTemplate;
+			double wz = z * zSpacingTemplate;
+			if( lattice != null )
+				lattice.applyToRow( 0, xSpacingTemplate, templateWidth,
+						    wy, wz, points, column );
+			else
+				for( int x = 0; x < templateWidth; ++x ) {
+					templateToDomain.apply( x * xSpacingTemplate, wy, wz,
+								exact );
+					System.arraycopy( exact, 0, points, 3 * x, 3 );
+				}
+
+			for( int x = 0; x < templateWidth; ++x ) {
+				int dx = (int)Math.round( points[3 * x] / xSpacingDomain );
+				int dy = (int)Math.round( points[3 * x + 1] / ySpacingDomain );
+				int dz = (int)Math.round( points[3 * x + 2] / zSpacingDomain );
+				if( dx < 0 || dy < 0 || dz < 0 ||
+				    dx >= domainWidth ||
+				    dy >= domainHeight ||
+				    dz >= domainDepth ) {
+					slice[x] = -1;
+					continue;
+				}
+				slice[x] = dz;
+				index[x] = dy * domainWidth + dx;
+			}
+		}
+	}
+
+	void transformSlice( int z, RowTransformer row, Object [] domainPixels, Object pixels ) {
+		for( int y = 0; y < templateHeight; ++y ) {
+			row.transform( y, z );
+			int offset = y * templateWidth;
+			int [] slice = row.slice, index = row.index;
+			if( pixels instanceof byte[] ) {
+				byte [] p = (byte[])pixels;
+				for( int x = 0; x < templateWidth; ++x )
+					if( slice[x] >= 0 )
+						p[offset + x] = ((byte[])domainPixels[slice[x]])[index[x]];
+			} else if( pixels instanceof short[] ) {
+				short [] p = (short[])pixels;
+				for( int x = 0; x < templateWidth; ++x )
+					if( slice[x] >= 0 )
+						p[offset + x] = ((short[])domainPixels[slice[x]])[index[x]];
+			} else if( pixels instanceof float[] ) {
+				float [] p = (float[])pixels;
+				for( int x = 0; x < templateWidth; ++x )
+					if( slice[x] >= 0 )
+						p[offset + x] = ((float[])domainPixels[slice[x]])[index[x]];
+			} else {
+				int [] p = (int[])pixels;
+				for( int x = 0; x < templateWidth; ++x )
+					if( slice[x] >= 0 )
+						p[offset + x] = ((int[])domainPixels[slice[x]])[index[x]];
+			}
+		}
+	}
 }
 
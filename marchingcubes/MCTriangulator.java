@@ -24,7 +24,8 @@ public class MCTriangulator implements Triangulator {
 					boolean[] channels, int resamplingF) {
 
 		if(resamplingF != 1)
-			image = NaiveResampler.resample(image, resamplingF);
+			image = NaiveResampler.resampleCached(image,
+				resamplingF);
 		// There is no need to zero pad any more. MCCube automatically
 		// scans one pixel more in each direction, assuming a value
 		// of zero outside the image.
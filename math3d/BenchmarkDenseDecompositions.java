@@ -0,0 +1,139 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * Times the blocked LU and Cholesky decompositions against the
+ * Gauss-Jordan inversion, both via FastMatrixN (double) and via
+ * FloatMatrixN (float), for the matrix sizes given on the command line
+ * (default: 100 200 500 1000 2000 5000).
+ *
+ * Gauss-Jordan is only timed up to GAUSS_JORDAN_LIMIT, as it takes
+ * minutes for the larger sizes.
+ */
+
+package math3d;
+
+import java.util.Random;
+
+public class BenchmarkDenseDecompositions {
+	final static int GAUSS_JORDAN_LIMIT = 2000;
+	final static int REPEAT = 3;
+
+	/* prepare() makes a fresh copy of the input, which is not timed */
+	static abstract class Task {
+		abstract void prepare(double[][] matrix, double[] b);
+		abstract void run();
+	}
+
+	static abstract class DoubleTask extends Task {
+		double[][] matrix;
+		double[] b;
+
+		void prepare(double[][] matrix, double[] b) {
+			this.matrix = FastMatrixN.clone(matrix);
+			this.b = b;
+		}
+	}
+
+	static abstract class FloatTask extends Task {
+		float[][] matrix;
+		float[] b;
+
+		void prepare(double[][] matrix, double[] b) {
+			int n = b.length;
+			this.matrix = new float[n][n];
+			this.b = new float[n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++)
+					this.matrix[i][j] = (float)matrix[i][j];
+				this.b[i] = (float)b[i];
+			}
+		}
+	}
+
+	/* the best of REPEAT runs, in milliseconds */
+	static double time(Task task, double[][] matrix, double[] b) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < REPEAT; i++) {
+			task.prepare(matrix, b);
+			long start = System.nanoTime();
+			task.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1e6;
+	}
+
+	public static void main(String[] args) {
+		int[] sizes = { 100, 200, 500, 1000, 2000, 5000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		Task[] tasks = {
+			new DoubleTask() {
+				void run() {
+					FastMatrixN.invertGaussJordan(matrix,
+						false);
+					FastMatrixN.apply(matrix, b);
+				}
+			},
+			new DoubleTask() {
+				void run() {
+					FastMatrixN.solve(matrix, b);
+				}
+			},
+			new DoubleTask() {
+				void run() {
+					FastMatrixN.solve_cholesky(matrix, b);
+				}
+			},
+			new FloatTask() {
+				void run() {
+					FloatMatrixN.invertGaussJordan(matrix,
+						false);
+					FloatMatrixN.apply(matrix, b);
+				}
+			},
+			new FloatTask() {
+				void run() {
+					FloatMatrixN.solve(matrix, b);
+				}
+			},
+			new FloatTask() {
+				void run() {
+					FloatMatrixN.solve_cholesky(matrix, b);
+				}
+			}
+		};
+
+		System.out.println("cores: "
+			+ Runtime.getRuntime().availableProcessors());
+		System.out.println("\tFastMatrixN\t\t\tFloatMatrixN (ms)");
+		System.out.println("n\tGauss-Jordan\tLU\tCholesky"
+			+ "\tGauss-Jordan\tLU\tCholesky");
+		Random random = new Random(1);
+		for (int s = 0; s < sizes.length; s++) {
+			int n = sizes[s];
+			// diagonally dominant and symmetric, i.e. positive definite
+			double[][] matrix = new double[n][n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < i; j++)
+					matrix[i][j] = matrix[j][i] =
+						random.nextDouble();
+				matrix[i][i] = n;
+			}
+			double[] b = new double[n];
+			for (int i = 0; i < n; i++)
+				b[i] = random.nextDouble();
+
+			String line = "" + n;
+			for (int t = 0; t < tasks.length; t++)
+				// tasks 0 and 3 are Gauss-Jordan
+				line += "\t" + (t % 3 == 0 &&
+					n > GAUSS_JORDAN_LIMIT ? "-" :
+					"" + time(tasks[t], matrix, b));
+			System.out.println(line);
+		}
+	}
+}
@@ -9,6 +9,8 @@ package math3d;
 public class Bookstein {
 	protected Point3d[] points;
 	protected Bookstein1d bx, by, bz;
+	/* the landmarks' coordinates, for the allocation-free apply() */
+	protected double[] px, py, pz;
 	
 	public Bookstein(Point3d[] orig, Point3d[] trans) {
 		if (orig.length != trans.length)
@@ -16,6 +18,14 @@ public class Bookstein {
 						   + " points, but trans has " + trans.length
 						   + "???");
 		points = orig;
+		px = new double[orig.length];
+		py = new double[orig.length];
+		pz = new double[orig.length];
+		for (int i = 0; i < orig.length; i++) {
+			px[i] = orig[i].x;
+			py[i] = orig[i].y;
+			pz[i] = orig[i].z;
+		}
 		int N = orig.length + 4;
 		double[][] matrix = new double[N][N];
 		for (int i = 0; i < orig.length; i++) {
@@ -29,7 +39,17 @@ public class Bookstein {
 				matrix[j][i] = matrix[i][j];
 		}
 
-		FastMatrixN.invert(matrix);
+		/*
+		 * Instead of inverting the matrix, solve for the weights and
+		 * the affine part of all three coordinates at once.
+		 */
+		double[][] rhs = new double[N][3];
+		for (int i = 0; i < orig.length; i++) {
+			rhs[i][0] = trans[i].x;
+			rhs[i][1] = trans[i].y;
+			rhs[i][2] = trans[i].z;
+		}
+		double[][] solution = FastMatrixN.solve(matrix, rhs);
 
 		bx = new Bookstein1d();
 		by = new Bookstein1d();
@@ -37,26 +57,14 @@ public class Bookstein {
 		bx.w = new double[orig.length];
 		by.w = new double[orig.length];
 		bz.w = new double[orig.length];
-		for (int i = 0; i < orig.length; i++)
-			for (int j = 0; j < orig.length; j++) {
-				bx.w[i] += trans[j].x * matrix[i][j];
-				by.w[i] += trans[j].y * matrix[i][j];
-				bz.w[i] += trans[j].z * matrix[i][j];
-			}
-		for (int j = 0; j < orig.length; j++) {
-			bx.a1 += trans[j].x * matrix[orig.length][j];
-			bx.ax += trans[j].x * matrix[orig.length + 1][j];
-			bx.ay += trans[j].x * matrix[orig.length + 2][j];
-			bx.az += trans[j].x * matrix[orig.length + 3][j];
-			by.a1 += trans[j].y * matrix[orig.length][j];
-			by.ax += trans[j].y * matrix[orig.length + 1][j];
-			by.ay += trans[j].y * matrix[orig.length + 2][j];
-			by.az += trans[j].y * matrix[orig.length + 3][j];
-			bz.a1 += trans[j].z * matrix[orig.length][j];
-			bz.ax += trans[j].z * matrix[orig.length + 1][j];
-			bz.ay += trans[j].z * matrix[orig.length + 2][j];
-			bz.az += trans[j].z * matrix[orig.length + 3][j];
+		for (int i = 0; i < orig.length; i++) {
+			bx.w[i] = solution[i][0];
+			by.w[i] = solution[i][1];
+			bz.w[i] = solution[i][2];
 		}
+		bx.set(solution, orig.length, 0);
+		by.set(solution, orig.length, 1);
+		bz.set(solution, orig.length, 2);
 	}
 	
 	public double x, y, z;
@@ -72,10 +80,56 @@ public class Bookstein {
 		}
 	}
 	
+	/*
+	 * Like apply(Point3d), but without allocating, and thread-safe.
+	 */
+	public void apply(double x, double y, double z, double[] result) {
+		applyNonAffine(x, y, z, result);
+		result[0] += bx.a1 + bx.ax * x + bx.ay * y + bx.az * z;
+		result[1] += by.a1 + by.ax * x + by.ay * y + by.az * z;
+		result[2] += bz.a1 + bz.ax * x + bz.ay * y + bz.az * z;
+	}
+
+	/*
+	 * Only the sum over the landmarks, i.e. the transformation minus
+	 * its affine part.
+	 */
+	public void applyNonAffine(double x, double y, double z,
+			double[] result) {
+		applyNonAffine(x, y, z, result, 0);
+	}
+
+	public void applyNonAffine(double x, double y, double z,
+			double[] result, int offset) {
+		double rx = 0, ry = 0, rz = 0;
+		double[] wx = bx.w, wy = by.w, wz = bz.w;
+		for (int i = 0; i < px.length; i++) {
+			double dx = x - px[i], dy = y - py[i], dz = z - pz[i];
+			double r2 = dx * dx + dy * dy + dz * dz;
+			if (r2 <= 0)
+				continue;
+			// U(r) = r^2 log(r) = r^2 log(r^2) / 2
+			double u = 0.5 * r2 * Math.log(r2);
+			rx += wx[i] * u;
+			ry += wy[i] * u;
+			rz += wz[i] * u;
+		}
+		result[offset] = rx;
+		result[offset + 1] = ry;
+		result[offset + 2] = rz;
+	}
+
 	public class Bookstein1d {
 		double a1, ax, ay, az;
 		public double[] w;
 		
+		void set(double[][] solution, int offset, int column) {
+			a1 = solution[offset][column];
+			ax = solution[offset + 1][column];
+			ay = solution[offset + 2][column];
+			az = solution[offset + 3][column];
+		}
+
 		public double evalInit(Point3d p) {
 			return a1 + ax * p.x + ay * p.y + az * p.z;
 		}
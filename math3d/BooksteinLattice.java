@@ -0,0 +1,294 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * A fast approximation of a Bookstein (thin-plate spline) transform
+ * over a box: the sum over the landmarks is evaluated exactly on a
+ * coarse lattice only, and interpolated with Catmull-Rom cubics in
+ * between; the affine part is always calculated exactly.
+ *
+ * The maximum error is measured at the centres of all lattice cells,
+ * where the interpolation is farthest from the exact values.
+ *
+ * For whole images, applyToRow() transforms a scanline at a time: the
+ * interpolation in y and z is done once per scanline, so that every
+ * pixel costs only a cubic in x.
+ */
+
+package math3d;
+
+import ij.IJ;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BooksteinLattice {
+	protected Bookstein bookstein;
+
+	/* the lattice node (i, j, k) is at origin + (i, j, k) * spacing */
+	protected double ox, oy, oz, sx, sy, sz;
+	protected int nx, ny, nz;
+	/* the non-affine part at the nodes, x-fastest */
+	protected double[] dispX, dispY, dispZ;
+
+	protected double maximumError;
+
+	/*
+	 * Covers the box (x0, y0, z0) - (x1, y1, z1) with nodes spaced
+	 * (sx, sy, sz) apart, plus one node before and two after, as
+	 * needed by the cubic interpolation.
+	 */
+	public BooksteinLattice(Bookstein bookstein,
+			double x0, double y0, double z0,
+			double x1, double y1, double z1,
+			double sx, double sy, double sz) {
+		this.bookstein = bookstein;
+		this.sx = sx;
+		this.sy = sy;
+		this.sz = sz;
+		ox = x0 - sx;
+		oy = y0 - sy;
+		oz = z0 - sz;
+		nx = (int)Math.floor((x1 - x0) / sx) + 4;
+		ny = (int)Math.floor((y1 - y0) / sy) + 4;
+		nz = (int)Math.floor((z1 - z0) / sz) + 4;
+
+		int n = nx * ny * nz;
+		dispX = new double[n];
+		dispY = new double[n];
+		dispZ = new double[n];
+		evaluateNodes();
+		measureError();
+	}
+
+	public double getMaximumError() {
+		return maximumError;
+	}
+
+	protected static abstract class Planes {
+		abstract void run(int k, double[] result);
+	}
+
+	protected void forPlanes(final int count, final Planes planes) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.min(count,
+				Runtime.getRuntime().availableProcessors())];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					double[] result = new double[3];
+					for (int k = ai.getAndIncrement();
+							k < count;
+							k = ai.getAndIncrement())
+						planes.run(k, result);
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+
+	protected void evaluateNodes() {
+		forPlanes(nz, new Planes() {
+			void run(int k, double[] result) {
+				double z = oz + k * sz;
+				int index = k * ny * nx;
+				for (int j = 0; j < ny; j++) {
+					double y = oy + j * sy;
+					for (int i = 0; i < nx; i++, index++) {
+						bookstein.applyNonAffine(
+							ox + i * sx, y, z,
+							result);
+						dispX[index] = result[0];
+						dispY[index] = result[1];
+						dispZ[index] = result[2];
+					}
+				}
+			}
+		});
+	}
+
+	protected void measureError() {
+		final double[] errors = new double[nz - 3];
+		forPlanes(nz - 3, new Planes() {
+			void run(int k, double[] result) {
+				double[] approximated = new double[3];
+				double z = oz + (k + 1.5) * sz;
+				double max = 0;
+				for (int j = 1; j < ny - 2; j++) {
+					double y = oy + (j + 0.5) * sy;
+					for (int i = 1; i < nx - 2; i++) {
+						double x = ox + (i + 0.5) * sx;
+						bookstein.applyNonAffine(x, y, z,
+							result);
+						interpolate(x, y, z,
+							approximated);
+						double dx = result[0]
+							- approximated[0];
+						double dy = result[1]
+							- approximated[1];
+						double dz = result[2]
+							- approximated[2];
+						max = Math.max(max, dx * dx
+							+ dy * dy + dz * dz);
+					}
+				}
+				errors[k] = Math.sqrt(max);
+			}
+		});
+		maximumError = 0;
+		for (int k = 0; k < errors.length; k++)
+			maximumError = Math.max(maximumError, errors[k]);
+	}
+
+	/* the Catmull-Rom weight for the node n - 1 (0 <= n < 4) */
+	protected static double weight(double f, int n) {
+		double f2 = f * f, f3 = f2 * f;
+		switch (n) {
+		case 0: return 0.5 * (-f3 + 2 * f2 - f);
+		case 1: return 0.5 * (3 * f3 - 5 * f2 + 2);
+		case 2: return 0.5 * (-3 * f3 + 4 * f2 + f);
+		default: return 0.5 * (f3 - f2);
+		}
+	}
+
+	/*
+	 * The index of the lattice cell containing v (in lattice units),
+	 * or -1 if the cubic would need nodes outside the lattice.
+	 */
+	protected static int cell(double t, int n) {
+		int i = (int)Math.floor(t);
+		return i < 1 || i > n - 3 ? -1 : i;
+	}
+
+	/*
+	 * The interpolated non-affine part; outside the lattice, it is
+	 * calculated exactly.
+	 */
+	protected void interpolate(double x, double y, double z,
+			double[] result) {
+		double tx = (x - ox) / sx, ty = (y - oy) / sy;
+		double tz = (z - oz) / sz;
+		int i = cell(tx, nx), j = cell(ty, ny), k = cell(tz, nz);
+		if (i < 0 || j < 0 || k < 0) {
+			bookstein.applyNonAffine(x, y, z, result);
+			return;
+		}
+		double fx = tx - i, fy = ty - j, fz = tz - k;
+		double wx0 = weight(fx, 0), wx1 = weight(fx, 1);
+		double wx2 = weight(fx, 2), wx3 = weight(fx, 3);
+		double rx = 0, ry = 0, rz = 0;
+		for (int c = 0; c < 4; c++)
+			for (int b = 0; b < 4; b++) {
+				double wzy = weight(fz, c) * weight(fy, b);
+				int index = ((k - 1 + c) * ny + j - 1 + b) * nx
+					+ i - 1;
+				rx += wzy * (wx0 * dispX[index]
+					+ wx1 * dispX[index + 1]
+					+ wx2 * dispX[index + 2]
+					+ wx3 * dispX[index + 3]);
+				ry += wzy * (wx0 * dispY[index]
+					+ wx1 * dispY[index + 1]
+					+ wx2 * dispY[index + 2]
+					+ wx3 * dispY[index + 3]);
+				rz += wzy * (wx0 * dispZ[index]
+					+ wx1 * dispZ[index + 1]
+					+ wx2 * dispZ[index + 2]
+					+ wx3 * dispZ[index + 3]);
+			}
+		result[0] = rx;
+		result[1] = ry;
+		result[2] = rz;
+	}
+
+	public void apply(double x, double y, double z, double[] result) {
+		interpolate(x, y, z, result);
+		addAffine(x, y, z, result);
+	}
+
+	protected void addAffine(double x, double y, double z,
+			double[] result) {
+		Bookstein.Bookstein1d bx = bookstein.bx;
+		Bookstein.Bookstein1d by = bookstein.by;
+		Bookstein.Bookstein1d bz = bookstein.bz;
+		result[0] += bx.a1 + bx.ax * x + bx.ay * y + bx.az * z;
+		result[1] += by.a1 + by.ax * x + by.ay * y + by.az * z;
+		result[2] += bz.a1 + bz.ax * x + bz.ay * y + bz.az * z;
+	}
+
+	/*
+	 * Transform the points (x0 + i * dx, y, z) for 0 <= i < count;
+	 * the results are stored in result[3 * i ... 3 * i + 2].
+	 *
+	 * The array column must have at least 3 * nx elements (see
+	 * getColumnSize()); it is passed in so that nothing needs to be
+	 * allocated.
+	 */
+	public void applyToRow(double x0, double dx, int count,
+			double y, double z, double[] result, double[] column) {
+		double ty = (y - oy) / sy, tz = (z - oz) / sz;
+		int j = cell(ty, ny), k = cell(tz, nz);
+
+		// the affine part is linear along the row
+		Bookstein.Bookstein1d bx = bookstein.bx;
+		Bookstein.Bookstein1d by = bookstein.by;
+		Bookstein.Bookstein1d bz = bookstein.bz;
+		double ax = bx.a1 + bx.ay * y + bx.az * z;
+		double ay = by.a1 + by.ay * y + by.az * z;
+		double az = bz.a1 + bz.ay * y + bz.az * z;
+
+		if (j >= 0 && k >= 0) {
+			// interpolate in y and z once for all columns
+			double fy = ty - j, fz = tz - k;
+			Arrays.fill(column, 0, 3 * nx, 0);
+			for (int c = 0; c < 4; c++)
+				for (int b = 0; b < 4; b++) {
+					double weight = weight(fz, c) * weight(fy, b);
+					int index = ((k - 1 + c) * ny + j - 1 + b) * nx;
+					for (int i = 0; i < nx; i++, index++) {
+						column[3 * i] += weight * dispX[index];
+						column[3 * i + 1] += weight * dispY[index];
+						column[3 * i + 2] += weight * dispZ[index];
+					}
+				}
+		}
+
+		for (int n = 0; n < count; n++) {
+			double x = x0 + n * dx;
+			double tx = (x - ox) / sx;
+			int i = cell(tx, nx);
+			int r = 3 * n;
+			if (i < 0 || j < 0 || k < 0)
+				bookstein.applyNonAffine(x, y, z, result, r);
+			else {
+				double fx = tx - i;
+				double w0 = weight(fx, 0), w1 = weight(fx, 1);
+				double w2 = weight(fx, 2), w3 = weight(fx, 3);
+				int c = 3 * (i - 1);
+				result[r] = w0 * column[c]
+					+ w1 * column[c + 3]
+					+ w2 * column[c + 6]
+					+ w3 * column[c + 9];
+				result[r + 1] = w0 * column[c + 1]
+					+ w1 * column[c + 4]
+					+ w2 * column[c + 7]
+					+ w3 * column[c + 10];
+				result[r + 2] = w0 * column[c + 2]
+					+ w1 * column[c + 5]
+					+ w2 * column[c + 8]
+					+ w3 * column[c + 11];
+			}
+			result[r] += ax + bx.ax * x;
+			result[r + 1] += ay + by.ax * x;
+			result[r + 2] += az + bz.ax * x;
+		}
+	}
+
+	public int getColumnSize() {
+		return 3 * nx;
+	}
+}
@@ -0,0 +1,169 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package math3d;
+
+/*
+ * Cholesky decomposition A = L L^T of a symmetric, positive definite
+ * matrix (only the lower triangle of A is read).
+ *
+ * The factorisation is blocked: the diagonal block of BLOCK columns is
+ * factorised, the panel below it is solved against it, and then the
+ * trailing lower triangle is updated.  Since the factor is stored row
+ * by row, the update consists of dot products of contiguous panel
+ * rows; it is split by rows over all cores.
+ *
+ * Only the lower triangle is ever accessed, so it may also be given
+ * packed (see fromLowerTriangle()), needing only half the memory; the
+ * element (i, j) of the factor is at a[start[i] + j] in either case.
+ */
+public class CholeskyDecomposition extends DenseDecomposition {
+	protected int[] start;
+
+	public CholeskyDecomposition(double[][] matrix) {
+		super(matrix);
+		initFullStarts();
+		decompose();
+	}
+
+	public CholeskyDecomposition(float[][] matrix) {
+		super(matrix);
+		initFullStarts();
+		decompose();
+	}
+
+	public CholeskyDecomposition(double[] a, int n) {
+		super(a, n);
+		initFullStarts();
+		decompose();
+	}
+
+	private CholeskyDecomposition(int n, double[] lower) {
+		super(n);
+		if (lower.length != (long)n * (n + 1) / 2)
+			throw new RuntimeException("Need a lower triangle");
+		a = lower;
+		start = new int[n];
+		for (int i = 1; i < n; i++)
+			start[i] = start[i - 1] + i;
+		decompose();
+	}
+
+	/*
+	 * Takes over the lower triangle of the n x n matrix, packed row
+	 * by row (the element (i, j), j <= i, is at i * (i + 1) / 2 + j);
+	 * it will be overwritten by the factor.
+	 */
+	public static CholeskyDecomposition fromLowerTriangle(double[] lower,
+			int n) {
+		return new CholeskyDecomposition(n, lower);
+	}
+
+	private void initFullStarts() {
+		start = new int[n];
+		for (int i = 0; i < n; i++)
+			start[i] = i * n;
+	}
+
+	protected void decompose() {
+		for (int k0 = 0; k0 < n; k0 += BLOCK) {
+			int k1 = Math.min(n, k0 + BLOCK);
+			factorDiagonalBlock(k0, k1);
+			if (k1 < n) {
+				solvePanel(k0, k1);
+				updateTrailing(k0, k1);
+			}
+		}
+	}
+
+	protected void factorDiagonalBlock(int k0, int k1) {
+		for (int j = k0; j < k1; j++) {
+			int rowJ = start[j];
+			double sum = a[rowJ + j];
+			for (int c = k0; c < j; c++)
+				sum -= a[rowJ + c] * a[rowJ + c];
+			if (!(sum > 0))
+				throw new RuntimeException("Matrix must be "
+					+ "positive definite (diagonal element "
+					+ j + " became " + sum + ")");
+			double diagonal = Math.sqrt(sum);
+			a[rowJ + j] = diagonal;
+			for (int i = j + 1; i < k1; i++) {
+				int rowI = start[i];
+				double s = a[rowI + j];
+				for (int c = k0; c < j; c++)
+					s -= a[rowI + c] * a[rowJ + c];
+				a[rowI + j] = s / diagonal;
+			}
+		}
+	}
+
+	/*
+	 * L21 = A21 L11^-T
+	 */
+	protected void solvePanel(final int k0, final int k1) {
+		long work = (long)(n - k1) * (k1 - k0) * (k1 - k0) / 2;
+		forRows(k1, n, work, new Rows() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					int rowI = start[i];
+					for (int j = k0; j < k1; j++) {
+						int rowJ = start[j];
+						double s = a[rowI + j];
+						for (int c = k0; c < j; c++)
+							s -= a[rowI + c]
+								* a[rowJ + c];
+						a[rowI + j] = s / a[rowJ + j];
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * A22 -= L21 L21^T (lower triangle only)
+	 */
+	protected void updateTrailing(final int k0, final int k1) {
+		long work = (long)(n - k1) * (n - k1) * (k1 - k0) / 2;
+		forRows(k1, n, work, new Rows() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					int rowI = start[i];
+					for (int j = k1; j <= i; j++) {
+						int rowJ = start[j];
+						double s = 0;
+						for (int c = k0; c < k1; c++)
+							s += a[rowI + c]
+								* a[rowJ + c];
+						a[rowI + j] -= s;
+					}
+				}
+			}
+		});
+	}
+
+	protected void solveInPlace(double[] x, int m) {
+		// forward substitution: L y = b
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < i; j++)
+				subtractRow(x, i, j, a[start[i] + j], m);
+			divideRow(x, i, a[start[i] + i], m);
+		}
+
+		// backward substitution: L^T x = y, going through L by rows
+		for (int i = n - 1; i >= 0; i--) {
+			divideRow(x, i, a[start[i] + i], m);
+			for (int j = 0; j < i; j++)
+				subtractRow(x, j, i, a[start[i] + j], m);
+		}
+	}
+
+	/*
+	 * The lower triangular factor L.
+	 */
+	public double[][] getL() {
+		double[][] result = new double[n][n];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(a, start[i], result[i], 0, i + 1);
+		return result;
+	}
+}
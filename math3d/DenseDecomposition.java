@@ -0,0 +1,168 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package math3d;
+
+import ij.IJ;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The common part of LUDecomposition and CholeskyDecomposition: the
+ * factors are stored in one flat, row-major array (of size n * n, unless
+ * a subclass packs it), and the trailing updates are distributed over
+ * all cores by rows.
+ */
+public abstract class DenseDecomposition {
+	/* the block size; a panel of this many rows fits into the cache */
+	final static int BLOCK = 64;
+
+	/* below this many multiply-adds, a loop is not worth a thread */
+	final static long MIN_PARALLEL_WORK = 1 << 20;
+
+	protected int n;
+	protected double[] a;
+
+	protected DenseDecomposition(double[][] matrix) {
+		n = matrix.length;
+		if (n == 0 || matrix[0].length != n)
+			throw new RuntimeException("Need a square matrix");
+		a = new double[n * n];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(matrix[i], 0, a, i * n, n);
+	}
+
+	protected DenseDecomposition(float[][] matrix) {
+		n = matrix.length;
+		if (n == 0 || matrix[0].length != n)
+			throw new RuntimeException("Need a square matrix");
+		a = new double[n * n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				a[i * n + j] = matrix[i][j];
+	}
+
+	/*
+	 * Takes over the n x n matrix stored row by row in a (which
+	 * will be overwritten by the factors).
+	 */
+	protected DenseDecomposition(double[] a, int n) {
+		if (a.length != n * n)
+			throw new RuntimeException("Need a square matrix");
+		this.n = n;
+		this.a = a;
+	}
+
+	/*
+	 * For subclasses storing the factors in a different layout; they
+	 * have to set a themselves.
+	 */
+	protected DenseDecomposition(int n) {
+		this.n = n;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/*
+	 * Solve A x = b; b is not modified.
+	 */
+	public double[] solve(double[] b) {
+		if (b.length != n)
+			throw new RuntimeException("rank mismatch");
+		double[] x = b.clone();
+		solveInPlace(x, 1);
+		return x;
+	}
+
+	/*
+	 * Solve A X = B for several right-hand sides at once: B has one
+	 * row per equation, and one column per right-hand side.
+	 */
+	public double[][] solve(double[][] b) {
+		if (b.length != n)
+			throw new RuntimeException("rank mismatch");
+		int m = b[0].length;
+		double[] x = new double[n * m];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(b[i], 0, x, i * m, m);
+		solveInPlace(x, m);
+		double[][] result = new double[n][m];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(x, i * m, result[i], 0, m);
+		return result;
+	}
+
+	public double[][] getInverse() {
+		double[] x = new double[n * n];
+		for (int i = 0; i < n; i++)
+			x[i * n + i] = 1;
+		solveInPlace(x, n);
+		double[][] result = new double[n][n];
+		for (int i = 0; i < n; i++)
+			System.arraycopy(x, i * n, result[i], 0, n);
+		return result;
+	}
+
+	/*
+	 * Solve A X = B in place; x holds B row by row, with m columns.
+	 */
+	protected abstract void solveInPlace(double[] x, int m);
+
+	/* x[row * m ...] -= factor * x[other * m ...] */
+	final static void subtractRow(double[] x, int row, int other,
+			double factor, int m) {
+		if (factor == 0)
+			return;
+		int r = row * m, o = other * m;
+		for (int k = 0; k < m; k++)
+			x[r + k] -= factor * x[o + k];
+	}
+
+	final static void divideRow(double[] x, int row, double divisor,
+			int m) {
+		int r = row * m;
+		for (int k = 0; k < m; k++)
+			x[r + k] /= divisor;
+	}
+
+	protected static abstract class Rows {
+		/* handle the rows from <= i < to */
+		public abstract void run(int from, int to);
+	}
+
+	/*
+	 * Run rows.run() over the rows from ... to - 1, in chunks, on
+	 * as many threads as there are cores, unless the work (roughly
+	 * the number of multiply-adds) is too small to be worth it.
+	 */
+	protected static void forRows(final int from, final int to,
+			long work, final Rows rows) {
+		int count = to - from;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		if (count <= 1 || threadCount < 2 || work < MIN_PARALLEL_WORK) {
+			if (count > 0)
+				rows.run(from, to);
+			return;
+		}
+		final int chunk = Math.max(1, count / (4 * threadCount));
+		final AtomicInteger ai = new AtomicInteger(from);
+		Thread[] threads = new Thread[Math.min(threadCount, count)];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = ai.getAndAdd(chunk); i < to;
+							i = ai.getAndAdd(chunk))
+						rows.run(i, Math.min(to, i + chunk));
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+}
@@ -15,6 +15,30 @@ public class FastMatrixN {
 	public static void invert(double[][] matrix, boolean showStatus) {
 		int M = matrix.length;
 
+		if (M != matrix[0].length)
+			throw new RuntimeException("invert: no square matrix");
+
+		/*
+		 * Large matrices are inverted via the blocked, multi-threaded
+		 * LU decomposition; Gauss-Jordan is faster for small ones.
+		 */
+		if (M >= DenseDecomposition.BLOCK) {
+			if (showStatus)
+				IJ.showStatus("invert matrix (LU decomposition)");
+			double[][] inverse =
+				new LUDecomposition(matrix).getInverse();
+			for (int i = 0; i < M; i++)
+				matrix[i] = inverse[i];
+			return;
+		}
+
+		invertGaussJordan(matrix, showStatus);
+	}
+
+	public static void invertGaussJordan(double[][] matrix,
+			boolean showStatus) {
+		int M = matrix.length;
+
 		if (M != matrix[0].length)
 			throw new RuntimeException("invert: no square matrix");
 
@@ -198,29 +222,11 @@ public class FastMatrixN {
 		return ret;
 	}
 
+	/**
+	 * Solve Ax = b via the LU decomposition (with partial pivoting).
+	 */
 	public static double[] solve_UL(double[][] A, double[] b){
-		double[][] LU = LU_decomposition(A);
-
-		// forward substitution
-		double[] y = new double[b.length];
-		for(int i=0;i<y.length;i++){
-			double sum = 0.0;
-			for(int j=0;j<i;j++){
-				sum += LU[i][j]*y[j];
-			}
-			y[i] = (b[i] - sum);
-		}
-
-		// backward substitution
-		double[] x = new double[b.length];
-		for(int i=x.length-1;i>=0;i--){
-			double sum = 0.0;
-			for(int j=i+1;j<x.length;j++){
-				sum += LU[i][j]*x[j];
-			}
-			x[i] = (y[i] - sum)/LU[i][i];
-		}
-		return x;
+		return solve(A, b);
 	}
 
 	/**
@@ -231,58 +237,24 @@ public class FastMatrixN {
 	 * @see http://planetmath.org/?op=getobj&from=objects&id=1287
 	 */
 	public static double[] solve_cholesky(double[][]A, double[] b){
-
-		// get the cholesky decomposition of A which is in upper triangle form
-		double[][] U;
-		try {
-			U = choleskyDecomposition(A);
-		} catch (RuntimeException e) {
-			throw e;
-		}
-		U = choleskyDecomposition(A);
-		double [][] L = transpose(U);
-		// first solve Ly = b for y
-		double[] y = forward_substitution(L, b);
-		// then solve Ux = y for x
-		double[] x = backward_substitution(U, y);
-
-		return x;
+		return new CholeskyDecomposition(A).solve(b);
 	}
 
 	/**
-	 * Backward substitution algorithm. Solves a linear equation system
-	 * Ux = b for x, where U is a matrix in upper trianglular form
+	 * Solve Ax = b for a general square matrix A, without inverting A.
 	 * @return x
 	 */
-	private static double[] backward_substitution(double[][]U, double[] b){
-		// solve Ux = b for x
-		double[] x = new double[b.length];
-		for(int i=x.length-1;i>=0;i--){
-			double sum = 0.0;
-			for(int j=i+1;j<x.length;j++){
-				sum += U[i][j]*x[j];
-			}
-			x[i] = (b[i] - sum)/U[i][i];
-		}
-		return x;
+	public static double[] solve(double[][] A, double[] b) {
+		return new LUDecomposition(A).solve(b);
 	}
 
 	/**
-	 * Forward substitution algorithm. Solves a linear equation system
-	 * Ly = b for y, where L is a matrix in lower trianglular form
-	 * @return y
+	 * Solve AX = B for several right-hand sides (the columns of B)
+	 * at once.
+	 * @return X
 	 */
-	private static double[] forward_substitution(double[][] L, double[] b){
-		// solve Ly = b for y
-		double[] y = new double[b.length];
-		for(int i=0;i<y.length;i++){
-			double sum = 0.0;
-			for(int j=0;j<i;j++){
-				sum += L[i][j]*y[j];
-			}
-			y[i] = (b[i] - sum)/L[i][i];
-		}
-		return y;
+	public static double[][] solve(double[][] A, double[][] B) {
+		return new LUDecomposition(A).solve(B);
 	}
 
 	/**
@@ -15,6 +15,30 @@ public class FloatMatrixN {
 	public static void invert(float[][] matrix, boolean showStatus) {
 		int M = matrix.length;
 
+		if (M != matrix[0].length)
+			throw new RuntimeException("invert: no square matrix");
+
+		/*
+		 * Large matrices are inverted via the blocked, multi-threaded
+		 * LU decomposition; Gauss-Jordan is faster for small ones.
+		 */
+		if (M >= DenseDecomposition.BLOCK) {
+			if (showStatus)
+				IJ.showStatus("invert matrix (LU decomposition)");
+			double[][] inverse =
+				new LUDecomposition(matrix).getInverse();
+			for (int i = 0; i < M; i++)
+				matrix[i] = toFloat(inverse[i]);
+			return;
+		}
+
+		invertGaussJordan(matrix, showStatus);
+	}
+
+	public static void invertGaussJordan(float[][] matrix,
+			boolean showStatus) {
+		int M = matrix.length;
+
 		if (M != matrix[0].length)
 			throw new RuntimeException("invert: no square matrix");
 
@@ -198,29 +222,11 @@ public class FloatMatrixN {
 		return ret;
 	}
 
+	/**
+	 * Solve Ax = b via the LU decomposition (with partial pivoting).
+	 */
 	public static float[] solve_UL(float[][] A, float[] b){
-		float[][] LU = LU_decomposition(A);
-
-		// forward substitution
-		float[] y = new float[b.length];
-		for(int i=0;i<y.length;i++){
-			float sum = 0.0f;
-			for(int j=0;j<i;j++){
-				sum += LU[i][j]*y[j];
-			}
-			y[i] = (b[i] - sum);
-		}
-
-		// backward substitution
-		float[] x = new float[b.length];
-		for(int i=x.length-1;i>=0;i--){
-			float sum = 0.0f;
-			for(int j=i+1;j<x.length;j++){
-				sum += LU[i][j]*x[j];
-			}
-			x[i] = (y[i] - sum)/LU[i][i];
-		}
-		return x;
+		return solve(A, b);
 	}
 
 	/**
@@ -231,58 +237,46 @@ public class FloatMatrixN {
 	 * @see http://planetmath.org/?op=getobj&from=objects&id=1287
 	 */
 	public static float[] solve_cholesky(float[][]A, float[] b){
-
-		// get the cholesky decomposition of A which is in upper triangle form
-		float[][] U;
-		try {
-			U = choleskyDecomposition(A);
-		} catch (RuntimeException e) {
-			throw e;
-		}
-		U = choleskyDecomposition(A);
-		float [][] L = transpose(U);
-		// first solve Ly = b for y
-		float[] y = forward_substitution(L, b);
-		// then solve Ux = y for x
-		float[] x = backward_substitution(U, y);
-
-		return x;
+		return toFloat(new CholeskyDecomposition(A).solve(toDouble(b)));
 	}
 
 	/**
-	 * Backward substitution algorithm. Solves a linear equation system
-	 * Ux = b for x, where U is a matrix in upper trianglular form
+	 * Solve Ax = b for a general square matrix A, without inverting A.
+	 * The decomposition is done in double precision.
 	 * @return x
 	 */
-	private static float[] backward_substitution(float[][]U, float[] b){
-		// solve Ux = b for x
-		float[] x = new float[b.length];
-		for(int i=x.length-1;i>=0;i--){
-			float sum = 0.0f;
-			for(int j=i+1;j<x.length;j++){
-				sum += U[i][j]*x[j];
-			}
-			x[i] = (b[i] - sum)/U[i][i];
-		}
-		return x;
+	public static float[] solve(float[][] A, float[] b) {
+		return toFloat(new LUDecomposition(A).solve(toDouble(b)));
 	}
 
 	/**
-	 * Forward substitution algorithm. Solves a linear equation system
-	 * Ly = b for y, where L is a matrix in lower trianglular form
-	 * @return y
+	 * Solve AX = B for several right-hand sides (the columns of B)
+	 * at once.
+	 * @return X
 	 */
-	private static float[] forward_substitution(float[][] L, float[] b){
-		// solve Ly = b for y
-		float[] y = new float[b.length];
-		for(int i=0;i<y.length;i++){
-			float sum = 0.0f;
-			for(int j=0;j<i;j++){
-				sum += L[i][j]*y[j];
-			}
-			y[i] = (b[i] - sum)/L[i][i];
-		}
-		return y;
+	public static float[][] solve(float[][] A, float[][] B) {
+		double[][] b = new double[B.length][];
+		for (int i = 0; i < b.length; i++)
+			b[i] = toDouble(B[i]);
+		double[][] x = new LUDecomposition(A).solve(b);
+		float[][] result = new float[x.length][];
+		for (int i = 0; i < x.length; i++)
+			result[i] = toFloat(x[i]);
+		return result;
+	}
+
+	private static double[] toDouble(float[] v) {
+		double[] result = new double[v.length];
+		for (int i = 0; i < v.length; i++)
+			result[i] = v[i];
+		return result;
+	}
+
+	private static float[] toFloat(double[] v) {
+		float[] result = new float[v.length];
+		for (int i = 0; i < v.length; i++)
+			result[i] = (float)v[i];
+		return result;
 	}
 
 	/**
@@ -0,0 +1,184 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package math3d;
+
+/*
+ * LU decomposition with partial pivoting, P A = L U, for general
+ * square matrices (e.g. the thin-plate spline systems in Bookstein).
+ *
+ * The factorisation is blocked (right-looking, as LAPACK's getrf):
+ * a panel of BLOCK columns is factorised, then the corresponding
+ * rows of U are computed and the trailing matrix is updated with
+ * one matrix product, which is split by rows over all cores, and by
+ * columns so that the rows of U it uses stay in the cache.
+ *
+ * A singular matrix does not throw an exception; the results will
+ * contain infinities or NaNs, as with FastMatrixN.invert().
+ */
+public class LUDecomposition extends DenseDecomposition {
+	/* the columns of the trailing update are done in blocks this wide */
+	final static int COLUMN_BLOCK = 512;
+
+	protected int[] pivot;
+
+	public LUDecomposition(double[][] matrix) {
+		super(matrix);
+		decompose();
+	}
+
+	public LUDecomposition(float[][] matrix) {
+		super(matrix);
+		decompose();
+	}
+
+	public LUDecomposition(double[] a, int n) {
+		super(a, n);
+		decompose();
+	}
+
+	protected void decompose() {
+		pivot = new int[n];
+		for (int k0 = 0; k0 < n; k0 += BLOCK) {
+			int k1 = Math.min(n, k0 + BLOCK);
+			factorPanel(k0, k1);
+			if (k1 < n) {
+				computeURows(k0, k1);
+				updateTrailing(k0, k1);
+			}
+		}
+	}
+
+	/*
+	 * Unblocked LU of the columns k0 ... k1 - 1 (all rows below k0),
+	 * swapping whole rows.
+	 */
+	protected void factorPanel(int k0, int k1) {
+		for (int j = k0; j < k1; j++) {
+			int p = j;
+			double max = Math.abs(a[j * n + j]);
+			for (int i = j + 1; i < n; i++) {
+				double v = Math.abs(a[i * n + j]);
+				if (v > max) {
+					max = v;
+					p = i;
+				}
+			}
+			pivot[j] = p;
+			if (p != j)
+				for (int c = 0; c < n; c++) {
+					double d = a[p * n + c];
+					a[p * n + c] = a[j * n + c];
+					a[j * n + c] = d;
+				}
+
+			double diagonal = a[j * n + j];
+			for (int i = j + 1; i < n; i++) {
+				int row = i * n;
+				double l = a[row + j] /= diagonal;
+				if (l == 0)
+					continue;
+				for (int c = j + 1, r = j * n + j + 1; c < k1; c++)
+					a[row + c] -= l * a[r++];
+			}
+		}
+	}
+
+	/*
+	 * U12 = L11^-1 A12: the rows k0 ... k1 - 1 right of the panel.
+	 */
+	protected void computeURows(int k0, int k1) {
+		for (int j = k0; j < k1; j++)
+			for (int i = j + 1; i < k1; i++) {
+				double l = a[i * n + j];
+				if (l == 0)
+					continue;
+				int row = i * n, r = j * n;
+				for (int c = k1; c < n; c++)
+					a[row + c] -= l * a[r + c];
+			}
+	}
+
+	/*
+	 * A22 -= L21 U12
+	 *
+	 * Four rows are updated at a time, so that every element of U12
+	 * loaded from the cache is used four times.
+	 */
+	protected void updateTrailing(final int k0, final int k1) {
+		long work = (long)(n - k1) * (n - k1) * (k1 - k0);
+		forRows(k1, n, work, new Rows() {
+			public void run(int from, int to) {
+				for (int c0 = k1; c0 < n; c0 += COLUMN_BLOCK) {
+					int c1 = Math.min(n, c0 + COLUMN_BLOCK);
+					int i = from;
+					for (; i + 3 < to; i += 4)
+						updateFourRows(i, k0, k1, c0, c1);
+					for (; i < to; i++)
+						updateRow(i, k0, k1, c0, c1);
+				}
+			}
+		});
+	}
+
+	final void updateFourRows(int i, int k0, int k1, int c0, int c1) {
+		int row0 = i * n, row1 = row0 + n;
+		int row2 = row1 + n, row3 = row2 + n;
+		for (int k = k0; k < k1; k++) {
+			double l0 = a[row0 + k], l1 = a[row1 + k];
+			double l2 = a[row2 + k], l3 = a[row3 + k];
+			int r = k * n;
+			for (int c = c0; c < c1; c++) {
+				double u = a[r + c];
+				a[row0 + c] -= l0 * u;
+				a[row1 + c] -= l1 * u;
+				a[row2 + c] -= l2 * u;
+				a[row3 + c] -= l3 * u;
+			}
+		}
+	}
+
+	final void updateRow(int i, int k0, int k1, int c0, int c1) {
+		int row = i * n;
+		for (int k = k0; k < k1; k++) {
+			double l = a[row + k];
+			if (l == 0)
+				continue;
+			int r = k * n;
+			for (int c = c0; c < c1; c++)
+				a[row + c] -= l * a[r + c];
+		}
+	}
+
+	protected void solveInPlace(double[] x, int m) {
+		// apply the permutation
+		for (int i = 0; i < n; i++)
+			if (pivot[i] != i)
+				for (int k = 0; k < m; k++) {
+					double d = x[i * m + k];
+					x[i * m + k] = x[pivot[i] * m + k];
+					x[pivot[i] * m + k] = d;
+				}
+
+		// forward substitution with the unit lower triangle
+		for (int i = 1; i < n; i++)
+			for (int j = 0; j < i; j++)
+				subtractRow(x, i, j, a[i * n + j], m);
+
+		// backward substitution with the upper triangle
+		for (int i = n - 1; i >= 0; i--) {
+			for (int j = i + 1; j < n; j++)
+				subtractRow(x, i, j, a[i * n + j], m);
+			divideRow(x, i, a[i * n + i], m);
+		}
+	}
+
+	public double determinant() {
+		double result = 1;
+		for (int i = 0; i < n; i++) {
+			result *= a[i * n + i];
+			if (pivot[i] != i)
+				result = -result;
+		}
+		return result;
+	}
+}
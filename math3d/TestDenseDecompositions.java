@@ -0,0 +1,168 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests for the blocked LU and Cholesky decompositions. */
+
+package math3d;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+public class TestDenseDecompositions {
+
+	/* sizes below, at and above the block size, with ragged ends */
+	int[] sizes = { 1, 5, 63, 64, 65, 150, 300 };
+
+	static double[][] randomMatrix(int n, Random random) {
+		double[][] m = new double[n][n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				m[i][j] = random.nextDouble() * 2 - 1;
+		return m;
+	}
+
+	static double[][] randomSPD(int n, Random random) {
+		double[][] r = randomMatrix(n, random);
+		double[][] m = FastMatrixN.times(FastMatrixN.transpose(r), r);
+		for (int i = 0; i < n; i++)
+			m[i][i] += n;
+		return m;
+	}
+
+	static double[] randomVector(int n, Random random) {
+		double[] v = new double[n];
+		for (int i = 0; i < n; i++)
+			v[i] = random.nextDouble() * 10 - 5;
+		return v;
+	}
+
+	static void assertResidual(double[][] a, double[] x, double[] b) {
+		double[] ax = FastMatrixN.apply(a, x);
+		for (int i = 0; i < b.length; i++)
+			assertEquals(b[i], ax[i], 1e-8 * (1 + Math.abs(b[i])));
+	}
+
+	@Test
+	public void testLUSolve() {
+		Random random = new Random(17);
+		for (int s = 0; s < sizes.length; s++) {
+			int n = sizes[s];
+			double[][] a = randomMatrix(n, random);
+			double[] b = randomVector(n, random);
+			double[][] copy = FastMatrixN.clone(a);
+			double[] x = FastMatrixN.solve(a, b);
+			assertResidual(copy, x, b);
+		}
+	}
+
+	@Test
+	public void testLUNeedsPivoting() {
+		double[][] a = { { 0, 1 }, { 1, 0 } };
+		double[] x = FastMatrixN.solve(a, new double[] { 2, 3 });
+		assertEquals(3, x[0], 1e-12);
+		assertEquals(2, x[1], 1e-12);
+		assertEquals(-1, new LUDecomposition(a).determinant(), 1e-12);
+	}
+
+	@Test
+	public void testMultipleRightHandSides() {
+		Random random = new Random(23);
+		int n = 130, m = 3;
+		double[][] a = randomMatrix(n, random);
+		double[][] b = new double[n][m];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < m; j++)
+				b[i][j] = random.nextDouble();
+		double[][] x = FastMatrixN.solve(a, b);
+		double[][] ax = FastMatrixN.times(a, x);
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < m; j++)
+				assertEquals(b[i][j], ax[i][j], 1e-8);
+	}
+
+	@Test
+	public void testCholesky() {
+		Random random = new Random(29);
+		for (int s = 0; s < sizes.length; s++) {
+			int n = sizes[s];
+			double[][] a = randomSPD(n, random);
+			double[] b = randomVector(n, random);
+			assertResidual(a, FastMatrixN.solve_cholesky(a, b), b);
+
+			double[][] l = new CholeskyDecomposition(a).getL();
+			double[][] llt = FastMatrixN.times(l,
+					FastMatrixN.transpose(l));
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++)
+					assertEquals(a[i][j], llt[i][j],
+						1e-9 * n);
+		}
+	}
+
+	@Test
+	public void testCholeskyLowerTriangle() {
+		Random random = new Random(31);
+		for (int s = 0; s < sizes.length; s++) {
+			int n = sizes[s];
+			double[][] a = randomSPD(n, random);
+			double[] b = randomVector(n, random);
+			double[] lower = new double[n * (n + 1) / 2];
+			for (int i = 0, k = 0; i < n; i++)
+				for (int j = 0; j <= i; j++)
+					lower[k++] = a[i][j];
+			CholeskyDecomposition packed = CholeskyDecomposition
+				.fromLowerTriangle(lower, n);
+			assertResidual(a, packed.solve(b), b);
+
+			double[][] l = packed.getL();
+			double[][] full = new CholeskyDecomposition(a).getL();
+			for (int i = 0; i < n; i++)
+				assertArrayEquals(full[i], l[i], 1e-12);
+		}
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testCholeskyNotPositiveDefinite() {
+		double[][] a = { { 1, 2 }, { 2, 1 } };
+		new CholeskyDecomposition(a);
+	}
+
+	@Test
+	public void testInvert() {
+		Random random = new Random(31);
+		for (int s = 0; s < sizes.length; s++) {
+			int n = sizes[s];
+			double[][] a = randomMatrix(n, random);
+			double[][] inverse = FastMatrixN.clone(a);
+			FastMatrixN.invert(inverse);
+			double[][] product = FastMatrixN.times(a, inverse);
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++)
+					assertEquals(i == j ? 1 : 0,
+						product[i][j], 1e-8);
+		}
+	}
+
+	@Test
+	public void testFloat() {
+		Random random = new Random(37);
+		int n = 100;
+		double[][] a = randomMatrix(n, random);
+		double[] b = randomVector(n, random);
+		float[][] af = new float[n][n];
+		float[] bf = new float[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++)
+				af[i][j] = (float)a[i][j];
+			bf[i] = (float)b[i];
+		}
+		float[] x = FloatMatrixN.solve(af, bf);
+		for (int i = 0; i < n; i++) {
+			double sum = 0;
+			for (int j = 0; j < n; j++)
+				sum += af[i][j] * (double)x[j];
+			assertEquals(bf[i], sum, 1e-3);
+		}
+	}
+}
@@ -8,12 +8,9 @@ import java.io.DataOutputStream;
 
 import java.util.Arrays;
 import java.util.Properties;
-import vib.NaiveResampler;
 
 public class FilePreparer {
 
-	private static final NaiveResampler.Averager accu = new NaiveResampler.Averager();
-
 	private static final class Volume {
 		private int w, h, d;
 		private double pw, ph, pd;
@@ -110,6 +107,7 @@ public class FilePreparer {
 			int ws = nextPow2(w), hs = nextPow2(h), ds = nextPow2(d);
 			int wn = ws / fx, hn = hs / fy, dn = ds / fz;
 			byte[] bytes = new byte[wn];
+			int count = fx * fy * fz;
 			byte[][] cache = new byte[fz * fy][ws];
 			for(int tmp = 0; tmp < fz*fy; tmp++)
 				Arrays.fill(cache[tmp], (byte)0);
@@ -139,18 +137,15 @@ public class FilePreparer {
 					}
 
 					for(int x = 0; x < ws; x += fx) {
-						accu.reset();
+						int sum = 0;
 						for(int k = 0; k < fz; k++) {
-							int iz = z + k;
 							for(int j = 0; j < fy; j++) {
-								int iy = y + j;
-								for(int i = 0; i < fx; i++) {
-									int ix = x + i;
-									accu.add((int)(0xff & cache[k * fy + j][ix]));
-								}
+								byte[] row = cache[k * fy + j];
+								for(int i = 0; i < fx; i++)
+									sum += 0xff & row[x + i];
 							}
 						}
-						bytes[x / fx] = (byte)accu.get();
+						bytes[x / fx] = (byte)(sum / count);
 					}
 					out.write(bytes, 0, wn);
 				}
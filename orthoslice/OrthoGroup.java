@@ -32,6 +32,8 @@ public class OrthoGroup extends VoltexGroup {
 	public OrthoGroup(ContentInstant c) {
 		super();
 		this.c = c;
+		// VoltexGroup.fillRoi() writes to the volume, so it cannot
+		// share the cached copy (see NaiveResampler.resampleCached())
 		ImagePlus imp = c.getResamplingFactor() == 1 ? c.getImage() 
 			: NaiveResampler.resample(c.getImage(),
 				c.getResamplingFactor());
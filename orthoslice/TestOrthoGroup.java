@@ -0,0 +1,66 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package orthoslice;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.NewImage;
+
+import ij3d.Content;
+import ij3d.ContentCreator;
+
+import vib.NaiveResampler;
+import voltex.VoltexGroup;
+import voltex.VoltexVolume;
+
+import org.junit.Test;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestOrthoGroup {
+
+	static byte[][] getPixels(ImagePlus image) {
+		ImageStack stack = image.getStack();
+		byte[][] result = new byte[stack.getSize()][];
+		for (int z = 0; z < result.length; z++)
+			result[z] = ((byte[])stack.getPixels(z + 1)).clone();
+		return result;
+	}
+
+	/*
+	 * Filling the volume of an orthoslice content (which is what
+	 * VoltexGroup.fillRoi() does) must not change the resampled copies
+	 * shown by a surface plot or a surface of the same image.
+	 */
+	@Test
+	public void testFillLeavesSharedCopiesAlone() {
+		ImagePlus image = NewImage.createByteImage("ramp", 32, 32, 16,
+				NewImage.FILL_RAMP);
+		Content plot = ContentCreator.createContent("plot", image,
+				Content.SURFACE_PLOT2D, 2);
+		ImagePlus plotCopy =
+			NaiveResampler.resampleCached(image, 2, 2, 1);
+		ImagePlus surfaceCopy =
+			NaiveResampler.resampleCached(image, 2);
+		byte[][] plotPixels = getPixels(plotCopy);
+		byte[][] surfacePixels = getPixels(surfaceCopy);
+
+		Content ortho = ContentCreator.createContent("ortho", image,
+				Content.ORTHO, 2);
+		VoltexVolume volume = ((VoltexGroup)ortho.getContent())
+			.getRenderer().getVolume();
+		for (int z = 0; z < volume.zDim; z++)
+			for (int y = 0; y < volume.yDim; y++)
+				for (int x = 0; x < volume.xDim; x++)
+					volume.setNoCheckNoUpdate(x, y, z, 0);
+		volume.updateData();
+
+		assertArrayEquals(plotPixels, getPixels(plotCopy));
+		assertArrayEquals(surfacePixels, getPixels(surfaceCopy));
+		// the original is unchanged, so the copies are still valid
+		assertSame(plotCopy,
+			NaiveResampler.resampleCached(image, 2, 2, 1));
+		assertSame(surfaceCopy,
+			NaiveResampler.resampleCached(image, 2));
+	}
+}
@@ -22,7 +22,9 @@ public class Find_Minima implements PlugInFilter {
 	private ImagePlus image;
 	private ImagePlus result;
 	private int w, h, d;
-	private byte[][] data;
+	/* the slices' pixel arrays (8-bit, 16-bit or 32-bit) */
+	private Object[] data;
+	private int type;
 	private byte[][] minima;
 
 	public Find_Minima() {}
@@ -36,9 +38,10 @@ public class Find_Minima implements PlugInFilter {
 		w = imp.getWidth();
 		h = imp.getHeight();
 		d = imp.getStackSize();
-		data = new byte[d][];
+		type = imp.getType();
+		data = new Object[d];
 		for(int z = 0; z < d; z++)
-			data[z] = (byte[])imp.getStack().getPixels(z+1);
+			data[z] = imp.getStack().getPixels(z+1);
 
 		minima = new byte[d][w * h];
 		ImageStack stack = new ImageStack(w, h);
@@ -54,7 +57,7 @@ public class Find_Minima implements PlugInFilter {
 
 	public int setup(String arg, ImagePlus imp) {
 		this.image = imp;
-		return DOES_8G;
+		return DOES_8G | DOES_16 | DOES_32;
 	}
 
 	public void run(ImageProcessor ip) {
@@ -62,8 +65,16 @@ public class Find_Minima implements PlugInFilter {
 		classify().show();
 	}
 
-	private final int get(Point p) {
-		return (int)(data[p.z][p.y * w + p.x] & 0xff);
+	private final float get(Point p) {
+		int i = p.y * w + p.x;
+		switch(type) {
+		case ImagePlus.GRAY16:
+			return ((short[])data[p.z])[i] & 0xffff;
+		case ImagePlus.GRAY32:
+			return ((float[])data[p.z])[i];
+		default:
+			return ((byte[])data[p.z])[i] & 0xff;
+		}
 	}
 
 	private final int getLabel(Point p) {
@@ -140,7 +151,7 @@ public class Find_Minima implements PlugInFilter {
 		while (!s.isEmpty()){
 // 			Point p = s.pop();
 			Point p = s.removeLast();
-			int v = get(p);
+			float v = get(p);
 			for(int iz = -1; iz <= +1; iz++) {
 				int zIdx = p.z + iz;
 				if(zIdx < 0 || zIdx >= d)
@@ -160,7 +171,7 @@ public class Find_Minima implements PlugInFilter {
 						if(getLabel(nPoint) == IN_QUEUE)
 							continue;
 
-						int vt = get(nPoint);
+						float vt = get(nPoint);
 						if(vt < v) {
 							for(Point c : closed)
 								unlabel(c);
@@ -5,12 +5,6 @@ import ij.ImagePlus;
 
 import ij.gui.Toolbar;
 
-import ij.process.ByteProcessor;
-import ij.process.ShortProcessor;
-import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
-
 import ij.plugin.MacroInstaller;
 import ij.plugin.PlugIn;
 
@@ -36,40 +30,69 @@ public class Flood_Fill implements PlugIn {
         	installer.install(MACRO_CMD);
 	}
 
-	public synchronized static void fill(String x, String y, String z) {
+	public static void fill(String x, String y, String z) {
 		fill(Integer.parseInt(x),
 				Integer.parseInt(y),
 				Integer.parseInt(z));
 	}
 
-	public synchronized static void fill(int sx, int sy, int sz) {
+	public static void fill(int sx, int sy, int sz) {
 		fill(IJ.getImage(), sx, sy, sz,
 			Toolbar.getForegroundColor().getRGB());
 	}
 
-	public synchronized static void fill(ImagePlus imp,
+	/*
+	 * color is interpreted like ImageProcessor.set() does, i.e. the
+	 * lowest bits for 8-bit and 16-bit, the float bits for 32-bit.
+	 */
+	public static void fill(ImagePlus imp,
 					int sx, int sy, int sz, int color) {
+		new Flood_Fill(imp).fill(sx, sy, sz, color);
+	}
+
+	private ImagePlus imp;
+	private double tolerance = tol;
+
+	/* for the plugin */
+	public Flood_Fill() {
+	}
 
+	/*
+	 * A filler for the given image; different instances can be used
+	 * concurrently, as long as they do not fill the same image.
+	 */
+	public Flood_Fill(ImagePlus imp) {
+		this.imp = imp;
+	}
+
+	/*
+	 * Voxels are filled when they differ from the seed by at most
+	 * tolerance (for RGB, the sum of the channels' differences).
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/*
+	 * Fill the 6-connected region around the seed with color, one
+	 * scanline run at a time: a run is extended to the left and the
+	 * right as far as possible, and one seed is pushed for every run
+	 * of fillable voxels in the four neighbouring rows.
+	 *
+	 * Returns the number of filled voxels.
+	 */
+	public int fill(int sx, int sy, int sz, int color) {
 		IJ.showStatus("Flood fill");
-		long start = System.currentTimeMillis();
 		int w = imp.getWidth(), h = imp.getHeight();
 		int d = imp.getStackSize();
 		int wh = w * h;
-		ImageProcessor[] b = new ImageProcessor[d];
+		Object[] slices = new Object[d];
 		for(int z = 0; z < d; z++)
-			b[z] = imp.getStack().getProcessor(z+1);
-
-		Difference diff = null;
-		if(b[0] instanceof ByteProcessor)
-			diff = new DifferenceInt();
-		else if(b[0] instanceof ShortProcessor)
-			diff = new DifferenceInt();
-		else if(b[0] instanceof FloatProcessor)
-			diff = new DifferenceFloat();
-		else if(b[0] instanceof ColorProcessor)
-			diff = new DifferenceRGB();
+			slices[z] = imp.getStack().getPixels(z + 1);
 
-		int colorToFill = b[sz].get(sx, sy);
+		Region region = createRegion(imp.getType(),
+			slices[sz], sy * w + sx, color, tolerance);
+		int count = 0;
 
 		Stack stack = new Stack();
 		stack.push(sz * wh + sy * w + sx);
@@ -80,55 +103,164 @@ public class Flood_Fill implements PlugIn {
 			int py = pi / w;
 			int px = pi % w;
 
-			int by = b[pz].get(px, py);
-			if(diff.getDifference(by, colorToFill) > tol)
+			Object slice = slices[pz];
+			if(!region.isInside(slice, pi))
 				continue;
 
-			b[pz].set(px, py, color);
+			int row = pi - px;
+			int x1 = px, x2 = px;
+			while(x1 > 0 && region.isInside(slice, row + x1 - 1))
+				x1--;
+			while(x2 < w - 1 && region.isInside(slice, row + x2 + 1))
+				x2++;
+			region.fill(slice, row + x1, row + x2 + 1);
+			count += x2 - x1 + 1;
 
 			int pzwh = pz * wh;
-			if(px > 0 && b[pz].get(px-1, py) != color)
-				stack.push(pzwh + pi - 1);
-			if(px < w - 1 && b[pz].get(px+1, py) != color)
-				stack.push(pzwh + pi + 1);
-			if(py > 0 && b[pz].get(px, py-1) != color)
-				stack.push(pzwh + pi - w);
-			if(py < h - 1 && b[pz].get(px, py+1) != color)
-				stack.push(pzwh + pi + w);
-			if(pz > 0 && b[pz-1].get(px, py) != color)
-				stack.push((pz - 1) * wh + pi);
-			if(pz < d - 1 && b[pz+1].get(px, py) != color)
-				stack.push((pz + 1) * wh + pi);
+			if(py > 0)
+				pushRuns(stack, region, slice, pzwh, row - w,
+					x1, x2);
+			if(py < h - 1)
+				pushRuns(stack, region, slice, pzwh, row + w,
+					x1, x2);
+			if(pz > 0)
+				pushRuns(stack, region, slices[pz - 1],
+					pzwh - wh, row, x1, x2);
+			if(pz < d - 1)
+				pushRuns(stack, region, slices[pz + 1],
+					pzwh + wh, row, x1, x2);
 		}
 		imp.updateAndDraw();
-		long end = System.currentTimeMillis();
-		System.out.println("Needed " + ((end - start)/1000) + " seconds");
 		IJ.showStatus("");
+		return count;
 	}
 
-	static interface Difference {
-		float getDifference(int p1, int p2);
+	/* push the first voxel of every fillable run in row + x1 .. x2 */
+	private static void pushRuns(Stack stack, Region region,
+			Object slice, int offset, int row, int x1, int x2) {
+		boolean inRun = false;
+		for(int x = x1; x <= x2; x++) {
+			if(!region.isInside(slice, row + x))
+				inRun = false;
+			else if(!inRun) {
+				stack.push(offset + row + x);
+				inRun = true;
+			}
+		}
+	}
+
+	/*
+	 * The voxels to fill, tested on the native pixel type: those
+	 * similar to the seed, which do not have the fill value yet.
+	 */
+	static abstract class Region {
+		abstract boolean isInside(Object slice, int i);
+		abstract void fill(Object slice, int from, int to);
+	}
+
+	static Region createRegion(int type, Object slice, int seed,
+			int color, double tolerance) {
+		switch(type) {
+		case ImagePlus.GRAY16:
+			return new ShortRegion(((short[])slice)[seed] & 0xffff,
+				color & 0xffff, tolerance);
+		case ImagePlus.GRAY32:
+			return new FloatRegion(((float[])slice)[seed],
+				Float.intBitsToFloat(color), tolerance);
+		case ImagePlus.COLOR_RGB:
+			return new RGBRegion(((int[])slice)[seed],
+				color, tolerance);
+		default:
+			return new ByteRegion(((byte[])slice)[seed] & 0xff,
+				color & 0xff, tolerance);
+		}
+	}
+
+	static final class ByteRegion extends Region {
+		private int min, max;
+		private byte value;
+
+		ByteRegion(int seed, int value, double tolerance) {
+			min = (int)Math.ceil(seed - tolerance);
+			max = (int)Math.floor(seed + tolerance);
+			this.value = (byte)value;
+		}
+
+		final boolean isInside(Object slice, int i) {
+			byte v = ((byte[])slice)[i];
+			int u = v & 0xff;
+			return v != value && u >= min && u <= max;
+		}
+
+		final void fill(Object slice, int from, int to) {
+			java.util.Arrays.fill((byte[])slice, from, to, value);
+		}
 	}
 
-	static final class DifferenceInt implements Difference {
-		public float getDifference(int p1, int p2) {
-			return (float)Math.abs(p2 - p1);
+	static final class ShortRegion extends Region {
+		private int min, max;
+		private short value;
+
+		ShortRegion(int seed, int value, double tolerance) {
+			min = (int)Math.ceil(seed - tolerance);
+			max = (int)Math.floor(seed + tolerance);
+			this.value = (short)value;
+		}
+
+		final boolean isInside(Object slice, int i) {
+			short v = ((short[])slice)[i];
+			int u = v & 0xffff;
+			return v != value && u >= min && u <= max;
+		}
+
+		final void fill(Object slice, int from, int to) {
+			java.util.Arrays.fill((short[])slice, from, to, value);
 		}
 	}
 
-	static final class DifferenceRGB implements Difference {
-		public final float getDifference(int p1, int p2) {
-			return (float)
-				Math.abs((p1&0xff0000)>>16 - (p2&0xff0000)>>16) +
-				Math.abs((p1&0xff00)>>8 - (p2&0xff00)>>8) +
-				Math.abs((p1&0xff) - (p2&0xff));
+	static final class FloatRegion extends Region {
+		private float seed, value;
+		private double tolerance;
+
+		FloatRegion(float seed, float value, double tolerance) {
+			this.seed = seed;
+			this.value = value;
+			this.tolerance = tolerance;
+		}
+
+		final boolean isInside(Object slice, int i) {
+			float v = ((float[])slice)[i];
+			return v != value && Math.abs(v - seed) <= tolerance;
+		}
+
+		final void fill(Object slice, int from, int to) {
+			java.util.Arrays.fill((float[])slice, from, to, value);
 		}
 	}
 
-	static final class DifferenceFloat implements Difference {
-		public float getDifference(int p1, int p2) {
-			return Math.abs(Float.intBitsToFloat(p2) -
-				Float.intBitsToFloat(p1));
+	static final class RGBRegion extends Region {
+		private int r, g, b, value;
+		private double tolerance;
+
+		RGBRegion(int seed, int value, double tolerance) {
+			r = (seed & 0xff0000) >> 16;
+			g = (seed & 0xff00) >> 8;
+			b = seed & 0xff;
+			this.value = value;
+			this.tolerance = tolerance;
+		}
+
+		final boolean isInside(Object slice, int i) {
+			int v = ((int[])slice)[i];
+			if(v == value)
+				return false;
+			return Math.abs(((v & 0xff0000) >> 16) - r)
+				+ Math.abs(((v & 0xff00) >> 8) - g)
+				+ Math.abs((v & 0xff) - b) <= tolerance;
+		}
+
+		final void fill(Object slice, int from, int to) {
+			java.util.Arrays.fill((int[])slice, from, to, value);
 		}
 	}
 
@@ -137,13 +269,13 @@ public class Flood_Fill implements PlugIn {
 		private int size;
 		
 		Stack() {
-			array = new int[1000000];
+			array = new int[1024];
 			size = 0;
 		}
 
 		public void push(int n) {
 			if(size == array.length) {
-				int[] tmp = new int[array.length + 1000000];
+				int[] tmp = new int[2 * array.length];
 				System.arraycopy(array, 0, tmp, 0, array.length);
 				array = tmp;
 			}
@@ -1,28 +1,22 @@
 package process3d;
 
-import vib.Resample_;
 import vib.PointList;
 import vib.BenesNamedPoint;
 
-import java.util.Random;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import java.io.FileReader;
-import java.io.File;
 import java.io.BufferedReader;
 import java.io.PrintWriter;
 import java.io.FileWriter;
 
 import ij.IJ;
-import ij.measure.Calibration;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.ColorProcessor;
-import ij.process.ByteProcessor;
 import ij.plugin.filter.PlugInFilter;
 
 import ij.text.TextWindow;
@@ -30,16 +24,33 @@ import ij.text.TextWindow;
 import ij.gui.GenericDialog;
 import ij.WindowManager;
 
+/*
+ * Watershed from markers, as an image foresting transform: the cost of
+ * a path is the highest intensity on it, and every voxel gets the class
+ * of the seed it is connected to with the lowest cost.
+ *
+ * This is done by flooding: the voxels are visited in order of their
+ * cost (which therefore need not be stored), using a queue with one
+ * bucket per intensity level; a voxel gets its class when it is first
+ * reached, so that the labels double as the "visited" flags.  Apart
+ * from the image, there is only one label per voxel (a short, unless
+ * there are more than 65535 classes) and the current front of the flood.
+ *
+ * The statistics of the classes are calculated in a final pass.
+ */
 public class IFT_ implements PlugInFilter {
-	
+
+	/* the number of buckets for 32-bit images */
+	private static final int FLOAT_LEVELS = 65536;
+
+	public static final String[] connectivities = { "6", "18", "26" };
+
 	private ImagePlus image;
 	private int w, h, wh, d;
-	private PriorityQueue queue;
-	private byte[][] data;
-	private int[][] result;
-	private int[] C;
-	private boolean[] flag;
-
+	private BucketQueue queue;
+	private Levels levels;
+	private Labels labels;
+	private int connectivity = 6;
 
 	public IFT_(ImagePlus image) {
 		this.image = image;
@@ -61,6 +72,7 @@ public class IFT_ implements PlugInFilter {
 		titles[titles.length - 2] = "use local minima";
 		GenericDialog gd = new GenericDialog("Watershed from markers");
 		gd.addChoice("Seeds", titles, titles[0]);
+		gd.addChoice("Connectivity", connectivities, connectivities[0]);
 		gd.addCheckbox("Show class indices", true);
 		gd.addCheckbox("Show mean intensities", true);
 		gd.addCheckbox("Show results table", true);
@@ -69,6 +81,7 @@ public class IFT_ implements PlugInFilter {
 			return;
 
 		int seed = gd.getNextChoiceIndex();
+		setConnectivity(Integer.parseInt(gd.getNextChoice()));
 		if(seed == titles.length - 1)
 			initFromPointList();
 		else if(seed == titles.length - 2)
@@ -87,190 +100,289 @@ public class IFT_ implements PlugInFilter {
 				createSummaryString(), 400, 500);
 	}
 
+	/* 6 (faces), 18 (faces and edges) or 26 (also corners) */
+	public void setConnectivity(int connectivity) {
+		if(connectivity != 6 && connectivity != 18
+				&& connectivity != 26)
+			throw new IllegalArgumentException("Invalid "
+				+ "connectivity: " + connectivity);
+		this.connectivity = connectivity;
+	}
+
+	/* the neighbour offsets (dx, dy, dz) for the given connectivity */
+	static int[][] getOffsets(int connectivity) {
+		int[][] result = new int[connectivity][];
+		int n = 0;
+		for(int dz = -1; dz <= 1; dz++)
+			for(int dy = -1; dy <= 1; dy++)
+				for(int dx = -1; dx <= 1; dx++) {
+					int norm = dx * dx + dy * dy + dz * dz;
+					if(norm == 0 || (connectivity == 6 &&
+							norm > 1) ||
+						(connectivity == 18 &&
+							norm > 2))
+						continue;
+					result[n++] = new int[] { dx, dy, dz };
+				}
+		return result;
+	}
+
 	Cls[] classes;
-	public void initFromImage(ImagePlus seeds) {
-		List<Cls> classlist = new ArrayList<Cls>();
+
+	private void init() {
 		w = image.getWidth();
 		h = image.getHeight();
 		wh = w * h;
 		d = image.getStackSize();
-		data = new byte[d][];
-		for(int z = 0; z < d; z++) {
-			data[z] = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-		}
-		C = new int[w*h*d];
-		flag = new boolean[w*h*d];
-		result = new int[d][w*h];
-		for(int i = 0; i < C.length; i++)
-			C[i] = 255;
-		queue = new PriorityQueue();
-		for(int z = 0; z < seeds.getStackSize(); z++) {
-			byte[] b = (byte[])seeds.getStack().getPixels(z+1);
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					int i = y*w+x;
-					if(b[i] == 0)
-						continue;
-					int index = z*b.length + i;
-					int cost = 0;
-					C[index] = cost;
-					result[z][i] = b[i] & 0xff;
-					queue.add(index, cost);
-					addClass(classlist, x, y, z, b[i]);
+		levels = createLevels(image);
+		labels = new ShortLabels(w, h, d);
+		queue = new BucketQueue(levels.getCount());
+	}
+
+	/*
+	 * Seed the class index with the voxel; returns false if the voxel
+	 * is outside or already seeded.
+	 */
+	private boolean seed(int x, int y, int z, int index) {
+		if(x < 0 || y < 0 || z < 0 || x >= w || y >= h || z >= d)
+			return false;
+		int i = y * w + x;
+		if(labels.get(z, i) != 0)
+			return false;
+		if(index + 1 > labels.getMaximum())
+			labels = new IntLabels(labels, w, h, d);
+		labels.set(z, i, index + 1);
+		queue.add((long)z * wh + i, levels.get(z, i));
+		return true;
+	}
+
+	private static Cls createClass(int x, int y, int z) {
+		Cls cls = new Cls();
+		cls.originx = x;
+		cls.originy = y;
+		cls.originz = z;
+		return cls;
+	}
+
+	/*
+	 * Every distinct non-zero value of the (8-bit or 16-bit) seed image
+	 * is a class; the classes are sorted by value.
+	 */
+	public void initFromImage(ImagePlus seeds) {
+		if((seeds.getType() != ImagePlus.GRAY8 &&
+				seeds.getType() != ImagePlus.GRAY16) ||
+				seeds.getWidth() != image.getWidth() ||
+				seeds.getHeight() != image.getHeight())
+			throw new IllegalArgumentException("The seeds must be "
+				+ "an 8-bit or 16-bit image of the same size");
+		init();
+		int sd = Math.min(d, seeds.getStackSize());
+		int maxValue = seeds.getType() == ImagePlus.GRAY16 ?
+			65535 : 255;
+		int[] classIndex = new int[maxValue + 1];
+		int[] first = new int[maxValue + 1];
+		Arrays.fill(classIndex, -1);
+		for(int z = 0; z < sd; z++) {
+			ImageProcessor ip = seeds.getStack().getProcessor(z+1);
+			for(int i = 0; i < wh; i++) {
+				int v = ip.get(i);
+				if(v != 0 && classIndex[v] < 0) {
+					classIndex[v] = 0;
+					first[v] = z * wh + i;
 				}
 			}
 		}
-		classes = new Cls[classlist.size()];
-		classlist.toArray(classes);
+		int count = 0;
+		for(int v = 1; v <= maxValue; v++)
+			if(classIndex[v] == 0)
+				classIndex[v] = count++;
+		classes = new Cls[count];
+		for(int v = 1; v <= maxValue; v++)
+			if(classIndex[v] >= 0) {
+				int z = first[v] / wh, i = first[v] % wh;
+				classes[classIndex[v]] =
+					createClass(i % w, i / w, z);
+			}
+		for(int z = 0; z < sd; z++) {
+			ImageProcessor ip = seeds.getStack().getProcessor(z+1);
+			for(int i = 0; i < wh; i++) {
+				int v = ip.get(i);
+				if(v != 0)
+					seed(i % w, i / w, z, classIndex[v]);
+			}
+		}
 	}
 
+	/*
+	 * Every regional minimum (see Find_Minima) is a class; the voxels
+	 * of a minimum are 26-connected.
+	 */
 	public void initFromMinima() {
 		IJ.showStatus("Find minima");
-		List<Cls> classlist = new ArrayList<Cls>();
-		w = image.getWidth();
-		h = image.getHeight();
-		wh = w * h;
-		d = image.getStackSize();
-		data = new byte[d][];
-		for(int z = 0; z < d; z++) {
-			data[z] = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-		}
-		C = new int[w*h*d];
-		flag = new boolean[w*h*d];
-		result = new int[d][w*h];
-		for(int i = 0; i < C.length; i++)
-			C[i] = 255;
-
+		init();
 		ImagePlus minima = new Find_Minima(image).classify();
-
-		queue = new PriorityQueue();
-		int counter = 0;
-		for(int z = 0; z < minima.getStackSize(); z++) {
-			byte[] b = (byte[])minima.getStack().getPixels(z+1);
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					int i = y * w + x;
-					if(b[i] == 0)
-						continue;
-					int index = z * b.length + i;
-					int cost = 0;
-					C[index] = cost;
-					result[z][i] = counter++;
-					queue.add(index, cost);
-					addClass(classlist, x, y, z,
-							data[z][y * w + x]);
-					Flood_Fill.fill(minima, x, y, z, (byte)0);
+		byte[][] mask = new byte[d][];
+		for(int z = 0; z < d; z++)
+			mask[z] = (byte[])minima.getStack().getPixels(z+1);
+
+		IJ.showStatus("Label minima");
+		int[][] offsets = getOffsets(26);
+		ArrayList<Cls> classlist = new ArrayList<Cls>();
+		LongStack stack = new LongStack();
+		for(int z = 0; z < d; z++) {
+			for(int i = 0; i < wh; i++) {
+				if(mask[z][i] != (byte)255 ||
+						labels.get(z, i) != 0)
+					continue;
+				int index = classlist.size();
+				classlist.add(createClass(i % w, i / w, z));
+				seed(i % w, i / w, z, index);
+				stack.push((long)z * wh + i);
+				while(!stack.isEmpty()) {
+					long v = stack.pop();
+					int vz = (int)(v / wh), vi = (int)(v % wh);
+					int vx = vi % w, vy = vi / w;
+					for(int n = 0; n < offsets.length; n++) {
+						int x = vx + offsets[n][0];
+						int y = vy + offsets[n][1];
+						int nz = vz + offsets[n][2];
+						if(x < 0 || y < 0 || nz < 0 ||
+							x >= w || y >= h || nz >= d ||
+							mask[nz][y * w + x] !=
+								(byte)255)
+							continue;
+						if(seed(x, y, nz, index))
+							stack.push((long)nz * wh
+								+ y * w + x);
+					}
 				}
 			}
 			IJ.showProgress(z + 1, d);
 		}
-System.out.println(counter + " classes");
-		classes = new Cls[counter];
+		classes = new Cls[classlist.size()];
 		classlist.toArray(classes);
 	}
 
-	protected static void addClass(List<Cls> classlist,
-			int x, int y, int z, byte value) {
-		Cls cls = new Cls();
-		cls.add(x, y, z, value);
-		cls.originx = x;
-		cls.originy = y;
-		cls.originz = z;
-		classlist.add(cls);
-	}
-
 	public void initFromPointList() {
-		List<Cls> classlist = new ArrayList<Cls>();
-		w = image.getWidth();
-		h = image.getHeight();
-		wh = w * h;
-		d = image.getStackSize();
+		init();
 		PointList markers = PointList.load(image);
-		data = new byte[d][];
-		for(int z = 0; z < d; z++) {
-			data[z] = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-		}
-		C = new int[w*h*d];
-		flag = new boolean[w*h*d];
-		result = new int[d][w*h];
-		for(int i = 0; i < C.length; i++)
-			C[i] = 255;
-		queue = new PriorityQueue();
-		int m = 1;
+		ArrayList<Cls> classlist = new ArrayList<Cls>();
 		for(Iterator it = markers.iterator(); it.hasNext();) {
 			BenesNamedPoint p = (BenesNamedPoint)it.next();
-			int z = (int)p.z;
-			int i = (int)p.y * w + (int)p.x;
-			int index = z*w*h + i;
-			int cost = 0;
-			C[index] = cost;
-			m += 10;
-			result[z][i] = m;
-			queue.add(index, cost);
-			addClass(classlist,
-				(int)p.x, (int)p.y, (int)p.z, (byte)m);
+			int x = (int)p.x, y = (int)p.y, z = (int)p.z;
+			if(seed(x, y, z, classlist.size()))
+				classlist.add(createClass(x, y, z));
 		}
 		classes = new Cls[classlist.size()];
 		classlist.toArray(classes);
 	}
 
-	private int[] neighbors = new int[6];
-
 	public void propagate() {
-System.out.println("Propagate");
-		int counter = 0;
-		int whd = wh * d;
+		IJ.showStatus("Propagate");
+		int[][] offsets = getOffsets(connectivity);
+		int n = offsets.length;
+		int[] dx = new int[n], dy = new int[n], dz = new int[n];
+		for(int j = 0; j < n; j++) {
+			dx[j] = offsets[j][0];
+			dy[j] = offsets[j][1];
+			dz[j] = offsets[j][2];
+		}
+		long total = (long)wh * d, counter = 0;
 		while(!queue.isEmpty()) {
-			int v = queue.poll();
-			flag[v] = true;
-			getNeighbours(v);
-			for(int i = 0; i < neighbors.length; i++) {
-				int p = neighbors[i];
-				if(p == -1)
+			long v = queue.poll();
+			int level = queue.getLevel();
+			int z = (int)(v / wh), i = (int)(v % wh);
+			int x = i % w, y = i / w;
+			int label = labels.get(z, i);
+			for(int j = 0; j < n; j++) {
+				int nx = x + dx[j], ny = y + dy[j];
+				int nz = z + dz[j];
+				if(nx < 0 || ny < 0 || nz < 0 || nx >= w ||
+						ny >= h || nz >= d)
 					continue;
-				int pCost = C[p];
- 				int m = C[v] + weight(v, p);
-				if(m < C[p]) {
-					C[p] = m;
-					int pz = p / wh, pi = p % wh;
-					int vz = v / wh, vi = v % wh;
-					result[pz][pi] = result[vz][vi];
-					classes[result[vz][vi]].add(pi % w, pi / w, pz, data[pz][pi]);
-					counter++;
-					queue.removeFromBucket(p, pCost);
-					queue.add(p, C[p]);
-				}
+				int ni = ny * w + nx;
+				if(labels.get(nz, ni) != 0)
+					continue;
+				labels.set(nz, ni, label);
+				queue.add((long)nz * wh + ni,
+					Math.max(level, levels.get(nz, ni)));
 			}
-			if(counter % 1000 == 0)
-				IJ.showProgress(counter, whd);
+			if((++counter & 0xfffff) == 0)
+				IJ.showProgress((double)counter / total);
 		}
 		IJ.showProgress(1);
-		for(int i = 0; i < classes.length; i++)
-			classes[i].finished();
+		computeStatistics();
+		IJ.showStatus("");
 	}
 
+	/* calculate the statistics of all classes in one pass */
+	private void computeStatistics() {
+		int n = classes.length;
+		double[] min = new double[n], max = new double[n];
+		double[] sum = new double[n];
+		long[] vol = new long[n], sx = new long[n], sy = new long[n];
+		long[] sz = new long[n];
+		Arrays.fill(min, Double.MAX_VALUE);
+		Arrays.fill(max, -Double.MAX_VALUE);
+		for(int z = 0; z < d; z++) {
+			ImageProcessor ip = image.getStack().getProcessor(z+1);
+			for(int y = 0, i = 0; y < h; y++)
+				for(int x = 0; x < w; x++, i++) {
+					int c = labels.get(z, i) - 1;
+					if(c < 0)
+						continue;
+					double value = ip.getf(i);
+					if(value < min[c])
+						min[c] = value;
+					if(value > max[c])
+						max[c] = value;
+					sum[c] += value;
+					vol[c]++;
+					sx[c] += x;
+					sy[c] += y;
+					sz[c] += z;
+				}
+		}
+		for(int c = 0; c < n; c++) {
+			Cls cls = classes[c];
+			cls.vol = (int)vol[c];
+			if(vol[c] == 0)
+				continue;
+			cls.min = (int)min[c];
+			cls.max = (int)max[c];
+			cls.mean = (int)(sum[c] / vol[c]);
+			cls.cogx = (int)(sx[c] / vol[c]);
+			cls.cogy = (int)(sy[c] / vol[c]);
+			cls.cogz = (int)(sz[c] / vol[c]);
+		}
+	}
+
+	/* the class index of every voxel, as RGB value */
 	public ImagePlus createResult() {
 		ImageStack stack = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
-			stack.addSlice("", 
-				new ColorProcessor(w, h, result[z]));
+			int[] pixels = new int[wh];
+			for(int i = 0; i < wh; i++)
+				pixels[i] = Math.max(0, labels.get(z, i) - 1);
+			stack.addSlice("",
+				new ColorProcessor(w, h, pixels));
 		}
 		ImagePlus ret = new ImagePlus("Result", stack);
 		ret.setCalibration(image.getCalibration());
 		return ret;
 	}
 
+	/* the mean intensity of the class of every voxel */
 	public ImagePlus createMeans() {
 		ImageStack stack = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
-			byte[] means = new byte[wh];
-			for(int i = 0; i < wh; i++)
-				means[i] = (byte)classes[result[z][i]].mean;
-			stack.addSlice("", 
-				new ByteProcessor(w, h, means, null));
+			ImageProcessor ip = image.getStack()
+				.getProcessor(z+1).createProcessor(w, h);
+			for(int i = 0; i < wh; i++) {
+				int c = labels.get(z, i) - 1;
+				ip.setf(i, c < 0 ? 0 : classes[c].mean);
+			}
+			stack.addSlice("", ip);
 		}
 		ImagePlus ret = new ImagePlus("Result", stack);
 		ret.setCalibration(image.getCalibration());
@@ -278,50 +390,24 @@ System.out.println("Propagate");
 	}
 
 	public String createSummaryString() {
-		String ret = "";
+		StringBuffer ret = new StringBuffer();
 		for(int i = 0; i < classes.length; i++) {
 			Cls c = classes[i];
-			ret += c.min + "\t" + c.max + "\t" + c.mean + "\t" + c.vol + "\t" + c.cogx + "\t" + c.cogy + "\t" + c.cogz + c.originx + "\t" + c.originy + "\t" + c.originz + "\n";
+			ret.append(c.min + "\t" + c.max + "\t" + c.mean + "\t"
+				+ c.vol + "\t" + c.cogx + "\t" + c.cogy + "\t"
+				+ c.cogz + "\t" + c.originx + "\t"
+				+ c.originy + "\t" + c.originz + "\n");
 		}
-		return ret;
+		return ret.toString();
 	}
 
 	public Cls[] getClasses() {
 		return classes;
 	}
 
- 	public int weight(int n1, int n2) {
-		int z1 = n1 / wh; int i1 = n1 % wh;
-		int z2 = n2 / wh; int i2 = n2 % wh;
-
-		return (int)Math.abs((int)(data[z1][i1] & 0xff) - 
-			(int)(data[z2][i2] & 0xff));
-	}
-
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
-		return DOES_8G;
-	}
-
-	public void getNeighbours(int index) {
-		int z = index / (wh);
-		int s = index % (wh);
-		int x = s % w, y = s / w;
-		for(int i = 0; i < neighbors.length; i++)
-			neighbors[i] = -1;
-
-		if(x > 1 && !flag[z * wh + s-1])
-			neighbors[0] = (z * wh + s-1);
-		if(x < w-1 && !flag[z * wh + s+1])
-			neighbors[1] = (z * wh + s+1);
-		if(y > 1 && !flag[z * wh + (y-1)*w+x])
-			neighbors[2] = (z * wh + (y-1)*w+x);
-		if(y < h-1 && !flag[z * wh + (y+1)*w+x])
-			neighbors[3] = (z * wh + (y+1)*w+x);
-		if(z > 1 && !flag[(z-1) * wh + s])
-			neighbors[4] = (z-1) * wh + s;
-		if(z < d-1 && !flag[(z+1) * wh + s])
-			neighbors[5] = (z+1) * wh + s;
+		return DOES_8G | DOES_16 | DOES_32;
 	}
 
 	public ImagePlus checkLabelfield(ImagePlus labels) {
@@ -360,24 +446,6 @@ System.out.println("Propagate");
 		public int originy = 0;
 		public int originz = 0;
 
-		private final void add(int x, int y, int z, byte pixel) {
-			int value = (int)(pixel & 0xff);
-			if(value < min) min = value;
-			if(value > max) max = value;
-			mean += value;
-			vol++;
-			cogx += x;
-			cogy += y;
-			cogz += z;
-		}
-
-		private final void finished() {
-			mean /= vol;
-			cogx /= vol;
-			cogy /= vol;
-			cogz /= vol;
-		}
-
 		static Cls initFromString(String line) {
 			Cls cls = new Cls();
 			String[] tokens = line.split("\\s");
@@ -420,110 +488,231 @@ System.out.println("Propagate");
 		return classes;
 	}
 
+	/* the intensities, as bucket indices */
+	static abstract class Levels {
+		abstract int get(int z, int i);
+		abstract int getCount();
+	}
+
+	static Levels createLevels(ImagePlus image) {
+		int d = image.getStackSize();
+		Object[] slices = new Object[d];
+		for(int z = 0; z < d; z++)
+			slices[z] = image.getStack().getPixels(z+1);
+		switch(image.getType()) {
+		case ImagePlus.GRAY16: {
+			short[][] data = new short[d][];
+			for(int z = 0; z < d; z++)
+				data[z] = (short[])slices[z];
+			return new ShortLevels(data);
+		}
+		case ImagePlus.GRAY32: {
+			float[][] data = new float[d][];
+			for(int z = 0; z < d; z++)
+				data[z] = (float[])slices[z];
+			return new FloatLevels(data);
+		}
+		default: {
+			byte[][] data = new byte[d][];
+			for(int z = 0; z < d; z++)
+				data[z] = (byte[])slices[z];
+			return new ByteLevels(data);
+		}
+		}
+	}
 
-	private static final class PriorityQueue {
-		private IntArray[] arr = new IntArray[256];
-		private int size = 0;
+	static final class ByteLevels extends Levels {
+		private byte[][] data;
 
-		public PriorityQueue() {}
+		ByteLevels(byte[][] data) {
+			this.data = data;
+		}
 
-		public final void add(int value, int cost) {
-			if(arr[cost] == null)
-				arr[cost] = new IntArray(10000);
-			arr[cost].add(value);
-			size++;
+		final int get(int z, int i) {
+			return data[z][i] & 0xff;
 		}
 
-		public final boolean isEmpty() {
-			return size == 0;
+		final int getCount() {
+			return 256;
+		}
+	}
+
+	static final class ShortLevels extends Levels {
+		private short[][] data;
+
+		ShortLevels(short[][] data) {
+			this.data = data;
 		}
 
-		public final int poll() {
-			for(int i = 0; i < arr.length; i++) {
-				if(arr[i] != null && !arr[i].isEmpty()) {
-					int ret = arr[i].removeLast();
-					size--;
-					return ret;
+		final int get(int z, int i) {
+			return data[z][i] & 0xffff;
+		}
+
+		final int getCount() {
+			return 65536;
+		}
+	}
+
+	/* the range of the values is divided into FLOAT_LEVELS buckets */
+	static final class FloatLevels extends Levels {
+		private float[][] data;
+		private float min, factor;
+
+		FloatLevels(float[][] data) {
+			this.data = data;
+			float max = -Float.MAX_VALUE;
+			min = Float.MAX_VALUE;
+			for(int z = 0; z < data.length; z++)
+				for(int i = 0; i < data[z].length; i++) {
+					float v = data[z][i];
+					if(v < min)
+						min = v;
+					if(v > max)
+						max = v;
 				}
-			}
-			return -1;
+			factor = max > min ? (FLOAT_LEVELS - 1) / (max - min) : 0;
 		}
 
-		public final void removeFromBucket(int value, int bucket) {
-			if(arr[bucket] != null)
-				if(arr[bucket].removeValue(value))
-					size--;
+		final int get(int z, int i) {
+			int result = (int)((data[z][i] - min) * factor);
+			// NaNs end up in the first bucket
+			return result < 0 ? 0 : result >= FLOAT_LEVELS ?
+				FLOAT_LEVELS - 1 : result;
+		}
+
+		final int getCount() {
+			return FLOAT_LEVELS;
 		}
 	}
 
-	private static final class IntArray {
-		private int[] array;
-		private int size = 0;
-		private int initCap;
+	/* the labels (class index + 1, or 0), one array per slice */
+	static abstract class Labels {
+		abstract int get(int z, int i);
+		abstract void set(int z, int i, int label);
+		abstract int getMaximum();
+	}
 
-		public IntArray(int cap) {
-			initCap = cap;
-			array = new int[cap];
+	static final class ShortLabels extends Labels {
+		private short[][] labels;
+
+		ShortLabels(int w, int h, int d) {
+			labels = new short[d][w * h];
 		}
 
-		public final int size() {
-			return size;
+		final int get(int z, int i) {
+			return labels[z][i] & 0xffff;
 		}
 
-		public final boolean isEmpty() {
-			return size == 0;
+		final void set(int z, int i, int label) {
+			labels[z][i] = (short)label;
 		}
 
-		public final int get(int i) {
-			if(i >= 0 && i < size)
-				return array[i];
-			return -1;
+		final int getMaximum() {
+			return 65535;
 		}
+	}
 
-		public final void add(int n) {
-			if(size == array.length) {
-				int additional = initCap / 5;
-				additional = additional == 0 ? 1 : additional;
-				int[] tmp = array;
-				array = new int[array.length + additional];
-				System.arraycopy(tmp, 0, array, 0, tmp.length);
+	static final class IntLabels extends Labels {
+		private int[][] labels;
+
+		/* a copy of the given labels, one slice at a time */
+		IntLabels(Labels other, int w, int h, int d) {
+			labels = new int[d][];
+			for(int z = 0; z < d; z++) {
+				labels[z] = new int[w * h];
+				for(int i = 0; i < w * h; i++)
+					labels[z][i] = other.get(z, i);
 			}
-			array[size] = n;
+		}
+
+		final int get(int z, int i) {
+			return labels[z][i];
+		}
+
+		final void set(int z, int i, int label) {
+			labels[z][i] = label;
+		}
+
+		final int getMaximum() {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/*
+	 * A queue with one FIFO bucket per level.  The flooding never adds
+	 * voxels below the current level, so the current bucket only moves
+	 * up, and exhausted buckets are released.
+	 */
+	private static final class BucketQueue {
+		private long[][] buckets;
+		private int[] heads, tails;
+		private int current;
+		private long size;
+
+		BucketQueue(int levels) {
+			buckets = new long[levels][];
+			heads = new int[levels];
+			tails = new int[levels];
+		}
+
+		final void add(long value, int level) {
+			if(level < current)
+				level = current;
+			long[] bucket = buckets[level];
+			if(bucket == null)
+				bucket = buckets[level] = new long[16];
+			else if(tails[level] == bucket.length) {
+				int count = tails[level] - heads[level];
+				long[] tmp = count * 2 > bucket.length ?
+					new long[2 * bucket.length] : bucket;
+				System.arraycopy(bucket, heads[level],
+					tmp, 0, count);
+				bucket = buckets[level] = tmp;
+				heads[level] = 0;
+				tails[level] = count;
+			}
+			bucket[tails[level]++] = value;
 			size++;
 		}
 
-		public final void removeIndex(int i) {
-			if(i < 0 || i >= size)
-				return;
-			size--;
-			for(int k = i; k < size; k++) 
-				array[k] = array[k+1];
+		final boolean isEmpty() {
+			return size == 0;
 		}
 
-		public final int removeLast() {
+		final long poll() {
+			while(heads[current] == tails[current]) {
+				buckets[current] = null;
+				current++;
+			}
 			size--;
-			return array[size];
+			return buckets[current][heads[current]++];
 		}
 
-		public final boolean removeValue(int v) {
-			int k = 0;
-			for(; k < size && array[k] != v; k++)
-				;
-			if(k == size)
-				return false;
-			size--;
-			for(; k < size; k++) 
-				array[k] = array[k+1];
-			return true;
+		/* the level of the last polled value */
+		final int getLevel() {
+			return current;
+		}
+	}
+
+	private static final class LongStack {
+		private long[] array = new long[1024];
+		private int size;
+
+		final void push(long value) {
+			if(size == array.length) {
+				long[] tmp = new long[2 * array.length];
+				System.arraycopy(array, 0, tmp, 0, size);
+				array = tmp;
+			}
+			array[size++] = value;
 		}
 
-		public final void set(int index, int value) {
-			if(index >= 0 && index < size)
-				array[index] = value;
+		final long pop() {
+			return array[--size];
 		}
 
-		public final void removeAll() {
-			size = 0;
+		final boolean isEmpty() {
+			return size == 0;
 		}
 	}
 }
@@ -0,0 +1,301 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+    This file is part of the ImageJ plugins "Simple Neurite Tracer"
+    and "Three Pane Crop".
+
+    The ImageJ plugins "Three Pane Crop" and "Simple Neurite Tracer"
+    are free software; you can redistribute them and/or modify them
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    The ImageJ plugins "Simple Neurite Tracer" and "Three Pane Crop"
+    are distributed in the hope that they will be useful, but WITHOUT
+    ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+    License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package stacks;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.image.ColorModel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The XZ or ZY planes of a stack, as a virtual stack: a plane is only
+ * extracted from the original slices when it is displayed, and the
+ * most recently used planes are kept in a small cache.
+ *
+ * The pixels of a ZY plane are a column of every row of every slice,
+ * so reading one plane touches a cache line per pixel; therefore a
+ * tile of neighbouring ZY planes is extracted at the same time, for
+ * the price of one.  XZ planes are just rows of the slices, and are
+ * copied one at a time.
+ *
+ * Changes to the original stack are only visible after invalidate().
+ */
+public class OrthogonalStack extends VirtualStack {
+	/* the maximal number of planes in the cache, and per ZY tile */
+	final static int CACHE_SIZE = 32;
+	final static int TILE = 16;
+
+	protected ImageStack original;
+	protected int plane, type;
+	protected int width, height, depth;
+	protected ColorModel cm;
+
+	protected int cacheSize, tile;
+	protected LinkedHashMap<Integer, Object> cache;
+
+	/*
+	 * plane must be ThreePanes.XZ_PLANE (one plane per y) or
+	 * ThreePanes.ZY_PLANE (one plane per x).
+	 */
+	public OrthogonalStack(ImagePlus image, int plane) {
+		super(planeWidth(image, plane), planeHeight(image, plane),
+			image.getType() == ImagePlus.COLOR_256 ?
+			image.getStack().getColorModel() : null, null);
+		original = image.getStack();
+		this.plane = plane;
+		type = image.getType();
+		width = image.getWidth();
+		height = image.getHeight();
+		depth = image.getStackSize();
+		if (type == ImagePlus.COLOR_256)
+			cm = original.getColorModel();
+
+		long planeBytes = (long)getWidth() * getHeight()
+			* (image.getBitDepth() / 8);
+		long budget = Runtime.getRuntime().maxMemory() / 16;
+		cacheSize = (int)Math.max(1, Math.min(CACHE_SIZE,
+				budget / Math.max(1, planeBytes)));
+		tile = plane == ThreePanes.ZY_PLANE ?
+			Math.min(TILE, cacheSize) : 1;
+		cache = new LinkedHashMap<Integer, Object>(cacheSize, 0.75f,
+				true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, Object> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	static int planeWidth(ImagePlus image, int plane) {
+		return plane == ThreePanes.ZY_PLANE ?
+			image.getStackSize() : image.getWidth();
+	}
+
+	static int planeHeight(ImagePlus image, int plane) {
+		return plane == ThreePanes.ZY_PLANE ?
+			image.getHeight() : image.getStackSize();
+	}
+
+	public int getSize() {
+		return plane == ThreePanes.ZY_PLANE ? width : height;
+	}
+
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	public int getBitDepth() {
+		switch (type) {
+		case ImagePlus.GRAY16:
+			return 16;
+		case ImagePlus.GRAY32:
+		case ImagePlus.COLOR_RGB:
+			return 32;
+		default:
+			return 8;
+		}
+	}
+
+	/* Forgets the cached planes, e.g. after the stack was changed. */
+	public synchronized void invalidate() {
+		cache.clear();
+	}
+
+	/*
+	 * The pixels of the plane n (1-based, as in ImageStack); the
+	 * array is shared with the cache and should not be modified.
+	 */
+	public synchronized Object getPixels(int n) {
+		Object result = cache.get(n);
+		if (result != null)
+			return result;
+		int first = ((n - 1) / tile) * tile;
+		int last = Math.min(getSize(), first + tile);
+		Object[] planes = new Object[last - first];
+		extract(first, last, planes);
+		for (int i = 0; i < planes.length; i++)
+			if (first + i + 1 != n)
+				cache.put(first + i + 1, planes[i]);
+		// put the requested plane last, so it is evicted last
+		cache.put(n, planes[n - 1 - first]);
+		return planes[n - 1 - first];
+	}
+
+	public void setPixels(Object pixels, int n) {
+		// the planes are read-only views
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		Object pixels = getPixels(n);
+		int w = getWidth(), h = getHeight();
+		ImageProcessor result;
+		switch (type) {
+		case ImagePlus.GRAY16:
+			result = new ShortProcessor(w, h,
+				((short[])pixels).clone(), cm);
+			break;
+		case ImagePlus.GRAY32:
+			result = new FloatProcessor(w, h,
+				((float[])pixels).clone(), cm);
+			break;
+		case ImagePlus.COLOR_RGB:
+			result = new ColorProcessor(w, h,
+				((int[])pixels).clone());
+			break;
+		default:
+			result = new ByteProcessor(w, h,
+				((byte[])pixels).clone(), cm);
+		}
+		return result;
+	}
+
+	protected Object createPlane() {
+		int size = getWidth() * getHeight();
+		switch (type) {
+		case ImagePlus.GRAY16:
+			return new short[size];
+		case ImagePlus.GRAY32:
+			return new float[size];
+		case ImagePlus.COLOR_RGB:
+			return new int[size];
+		default:
+			return new byte[size];
+		}
+	}
+
+	/*
+	 * Extract the planes first ... last - 1 (0-based) into planes.
+	 */
+	protected void extract(int first, int last, Object[] planes) {
+		for (int i = 0; i < planes.length; i++)
+			planes[i] = createPlane();
+		for (int z = 0; z < depth; z++) {
+			Object slice = original.getPixels(z + 1);
+			if (plane == ThreePanes.XZ_PLANE) {
+				// the plane y contains the row y of each slice
+				for (int y = first; y < last; y++)
+					System.arraycopy(slice, y * width,
+						planes[y - first], z * width,
+						width);
+				continue;
+			}
+			// the plane x contains the column x of each slice,
+			// transposed, as column z
+			for (int y = 0; y < height; y++) {
+				int from = y * width, to = y * depth + z;
+				switch (type) {
+				case ImagePlus.GRAY16: {
+					short[] s = (short[])slice;
+					for (int x = first; x < last; x++)
+						((short[])planes[x - first])[to]
+							= s[from + x];
+					break;
+				}
+				case ImagePlus.GRAY32: {
+					float[] s = (float[])slice;
+					for (int x = first; x < last; x++)
+						((float[])planes[x - first])[to]
+							= s[from + x];
+					break;
+				}
+				case ImagePlus.COLOR_RGB: {
+					int[] s = (int[])slice;
+					for (int x = first; x < last; x++)
+						((int[])planes[x - first])[to]
+							= s[from + x];
+					break;
+				}
+				default: {
+					byte[] s = (byte[])slice;
+					for (int x = first; x < last; x++)
+						((byte[])planes[x - first])[to]
+							= s[from + x];
+				}
+				}
+			}
+		}
+	}
+
+	/*
+	 * All the planes, as an ordinary stack, for when a complete
+	 * transposed copy is needed; the tiles are extracted in parallel.
+	 */
+	public static ImageStack transpose(ImagePlus image, int plane) {
+		final OrthogonalStack view = new OrthogonalStack(image, plane);
+		view.tile = plane == ThreePanes.ZY_PLANE ? TILE : 4;
+		final int size = view.getSize();
+		final Object[] planes = new Object[size];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final int tile = view.tile;
+		int tiles = (size + tile - 1) / tile;
+		Thread[] threads = new Thread[Math.min(tiles,
+			Runtime.getRuntime().availableProcessors())];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int first = ai.getAndAdd(tile);
+							first < size;
+							first = ai.getAndAdd(tile)) {
+						int last = Math.min(size,
+							first + tile);
+						Object[] result =
+							new Object[last - first];
+						view.extract(first, last, result);
+						System.arraycopy(result, 0, planes,
+							first, result.length);
+						IJ.showProgress(done.addAndGet(
+							result.length), size);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+		IJ.showProgress(1.0);
+
+		ImageStack result = new ImageStack(view.getWidth(),
+				view.getHeight());
+		for (int i = 0; i < size; i++)
+			result.addSlice(null, planes[i]);
+		if (view.cm != null)
+			result.setColorModel(view.cm);
+		return result;
+	}
+}
@@ -3,7 +3,6 @@
 package stacks;
 
 import ij.*;
-import ij.process.ByteProcessor;
 import ij.gui.*;
 
 import java.awt.*;
@@ -56,94 +55,14 @@ public class ThreePaneContainer extends StackWindow
 
 		GridBagConstraints c = new GridBagConstraints();
 		
-		int width = xy.getWidth();
-		int height = xy.getHeight();
-		int depth = xy.getStackSize();
-		int zy_width = depth;
-		int zy_height = height;
-		ImageStack zy_stack = new ImageStack( zy_width, zy_height );
-		
-		int xz_width = width;
-		int xz_height = depth;
-		ImageStack xz_stack = new ImageStack( xz_width, xz_height );
-		
-		/* Just load in the complete stack for simplicity's
-		 * sake... */
-		
-		byte [][] slices_data = new byte[depth][];
-		
-		ImageStack xy_stack=xy.getStack();
-		for( int z = 0; z < depth; ++z ) {
-			slices_data[z] = (byte []) xy_stack.getPixels( z + 1 );
-		}
-		
-		IJ.showStatus("Generating XZ planes...");
-		IJ.showProgress(0);
-		
-		// Create the ZY slices:
-		
-		for( int x_in_original = 0; x_in_original < width; ++x_in_original ) {
-			
-			byte [] sliceBytes = new byte[ zy_width * zy_height ];
-			
-			for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-				for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-					
-					int x_in_left = z_in_original;
-					int y_in_left = y_in_original;
-					
-					sliceBytes[ y_in_left * zy_width + x_in_left ] =
-						slices_data[ z_in_original ][ y_in_original * width + x_in_original ];
-				}
-			}
-			
-			ByteProcessor bp = new ByteProcessor( zy_width, zy_height );
-			bp.setPixels( sliceBytes );
-			zy_stack.addSlice( null, bp );			
-			IJ.showProgress( x_in_original / (double)width );
-		}
-		
-		IJ.showProgress( 1.0 );
+		/* The XZ and ZY planes are only extracted from the stack
+		 * when they are shown: */
 
-		IJ.showStatus("Generating ZY planes...");
-		IJ.showProgress(0);
-		
-		zy = new ImagePlus( "ZY planes of " + xy.getShortTitle(), zy_stack );        
-		
-		// Create the XZ slices:
-		
-		for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-			
-			byte [] sliceBytes = new byte[ xz_width * xz_height ];
-			
-			for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-				
-				// Now we can copy a complete row from
-				// the original image to the XZ slice:
-				
-				int y_in_top = z_in_original;
-				
-				System.arraycopy( slices_data[z_in_original],
-						  y_in_original * width,
-						  sliceBytes,
-						  y_in_top * xz_width,
-						  width );
-				
-			}
-			
-			ByteProcessor bp = new ByteProcessor( xz_width, xz_height );
-			bp.setPixels( sliceBytes );
-			xz_stack.addSlice( null, bp );
+		zy = new ImagePlus( "ZY planes of " + xy.getShortTitle(),
+				    new OrthogonalStack( xy, ThreePanes.ZY_PLANE ) );
+		xz = new ImagePlus( "XZ planes of " + xy.getShortTitle(),
+				    new OrthogonalStack( xy, ThreePanes.XZ_PLANE ) );
 
-			IJ.showProgress( y_in_original / (double)width );			
-		}
-		
-		xz = new ImagePlus( "XZ planes of " + xy.getShortTitle(), xz_stack );
-		
-		IJ.showProgress( 1.0 ); // Removes the progress indicator
-		
-		System.gc();
-			       		
 		xy_canvas = original_xy_canvas;
 		xz_canvas = createCanvas( xz, ThreePanes.XZ_PLANE );
 		zy_canvas = createCanvas( zy, ThreePanes.ZY_PLANE );
@@ -822,10 +822,10 @@ public class ThreePaneCrop extends ThreePanes {
 
 	public void initialize( ImagePlus imagePlus ) {
 
-		/* We might need up to three times the memory; the two
-		   panes and the cropped image. */
+		/* The two other panes are virtual, so we only need
+		   the memory for the cropped image. */
 
-		checkMemory( imagePlus, 3 );
+		checkMemory( imagePlus, 1 );
 
 		/* Pop up a dialog asking about:
 		   - how many panes to use
@@ -25,14 +25,8 @@
 package stacks;
 
 import ij.*;
-import ij.process.ByteProcessor;
-import ij.process.ShortProcessor;
-import ij.process.ColorProcessor;
-import ij.process.FloatProcessor;
 import ij.gui.*;
 
-import java.awt.image.ColorModel;
-
 import java.io.*;
 
 public class ThreePanes implements PaneOwner {
@@ -225,10 +219,9 @@ public class ThreePanes implements PaneOwner {
 		return result;
 	}
 
-	/* If memoryMultipleNeeded is 3, for example, that means that
-	 * you will need 3 times the memory used by the supplied
-	 * ImagePlus in order for the plugin not to warn you about
-	 * free memory. */
+	/* The XZ and ZY views are virtual stacks (see OrthogonalStack),
+	 * so apart from a few cached planes, no memory is needed on top
+	 * of the supplied ImagePlus. */
 
 	public void initialize( ImagePlus imagePlus ) {
 
@@ -240,312 +233,17 @@ public class ThreePanes implements PaneOwner {
 
 		original_xy_canvas = imagePlus.getWindow().getCanvas();
 
-		int width = xy.getWidth();
-		int height = xy.getHeight();
-		int depth = xy.getStackSize();
-
-		ImageStack xy_stack=xy.getStack();
-
-		ColorModel cm = null;
-
-		// FIXME: should we save the LUT for other image types?
-		if( type == ImagePlus.COLOR_256 )
-			cm = xy_stack.getColorModel();
-
 		if( ! single_pane ) {
 
-			int zy_width = depth;
-			int zy_height = height;
-			ImageStack zy_stack = new ImageStack( zy_width, zy_height );
-
-			int xz_width = width;
-			int xz_height = depth;
-			ImageStack xz_stack = new ImageStack( xz_width, xz_height );
-
-			/* Just load in the complete stack for simplicity's
-			 * sake... */
-
-			byte [][] slices_data_b = new byte[depth][];
-			int [][] slices_data_i = new int[depth][];
-			float [][] slices_data_f = new float[depth][];
-			short [][] slices_data_s = new short[depth][];
-
-			for( int z = 0; z < depth; ++z ) {
-				switch (type) {
-				case ImagePlus.GRAY8:
-				case ImagePlus.COLOR_256:
-					slices_data_b[z] = (byte []) xy_stack.getPixels( z + 1 );
-					break;
-				case ImagePlus.GRAY16:
-					slices_data_s[z] = (short []) xy_stack.getPixels( z + 1 );
-					break;
-				case ImagePlus.COLOR_RGB:
-					slices_data_i[z] = (int []) xy_stack.getPixels( z + 1 );
-					break;
-				case ImagePlus.GRAY32:
-					slices_data_f[z] = (float []) xy_stack.getPixels( z + 1 );
-					break;
-				}
-			}
-
-			IJ.showStatus("Generating XZ planes...");
-			IJ.showProgress(0);
-
-			// Create the ZY slices:
-
-			switch (type) {
-
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-
-				for( int x_in_original = 0; x_in_original < width; ++x_in_original ) {
-
-					byte [] sliceBytes = new byte[ zy_width * zy_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-						for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-							int x_in_left = z_in_original;
-							int y_in_left = y_in_original;
-
-							sliceBytes[ y_in_left * zy_width + x_in_left ] =
-								slices_data_b[ z_in_original ][ y_in_original * width + x_in_original ];
-						}
-					}
-
-					ByteProcessor bp = new ByteProcessor( zy_width, zy_height );
-					bp.setPixels( sliceBytes );
-					zy_stack.addSlice( null, bp );
-					IJ.showProgress( x_in_original / (double)width );
-				}
-				break;
-
-			case ImagePlus.GRAY16:
-
-				for( int x_in_original = 0; x_in_original < width; ++x_in_original ) {
-
-					short [] sliceShorts = new short[ zy_width * zy_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-						for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-							int x_in_left = z_in_original;
-							int y_in_left = y_in_original;
-
-							sliceShorts[ y_in_left * zy_width + x_in_left ] =
-								slices_data_s[ z_in_original ][ y_in_original * width + x_in_original ];
-						}
-					}
-
-					ShortProcessor sp = new ShortProcessor( zy_width, zy_height );
-					sp.setPixels( sliceShorts );
-					zy_stack.addSlice( null, sp );
-					IJ.showProgress( x_in_original / (double)width );
-				}
-				break;
-
-
-			case ImagePlus.COLOR_RGB:
-
-				for( int x_in_original = 0; x_in_original < width; ++x_in_original ) {
-
-					int [] sliceInts = new int[ zy_width * zy_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-						for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-							int x_in_left = z_in_original;
-							int y_in_left = y_in_original;
-
-							sliceInts[ y_in_left * zy_width + x_in_left ] =
-								slices_data_i[ z_in_original ][ y_in_original * width + x_in_original ];
-						}
-					}
-
-					ColorProcessor cp = new ColorProcessor( zy_width, zy_height );
-					cp.setPixels( sliceInts );
-					zy_stack.addSlice( null, cp );
-					IJ.showProgress( x_in_original / (double)width );
-				}
-				break;
-
-			case ImagePlus.GRAY32:
-
-				for( int x_in_original = 0; x_in_original < width; ++x_in_original ) {
-
-					float [] sliceFloats = new float[ zy_width * zy_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-						for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-							int x_in_left = z_in_original;
-							int y_in_left = y_in_original;
-
-							sliceFloats[ y_in_left * zy_width + x_in_left ] =
-								slices_data_f[ z_in_original ][ y_in_original * width + x_in_original ];
-						}
-					}
-
-					FloatProcessor fp = new FloatProcessor( zy_width, zy_height );
-					fp.setPixels( sliceFloats );
-					zy_stack.addSlice( null, fp );
-					IJ.showProgress( x_in_original / (double)width );
-				}
-				break;
-
-			}
-
-			if( type == ImagePlus.COLOR_256 ) {
-				if( cm != null ) {
-					zy_stack.setColorModel(cm);
-				}
-			}
-
-			IJ.showProgress( 1.0 );
-
-			IJ.showStatus("Generating ZY planes...");
-			IJ.showProgress(0);
-
-			zy = new ImagePlus( "ZY planes of " + xy.getShortTitle(), zy_stack );
-
-			// Create the XZ slices:
-
-			switch (type) {
-
-			case ImagePlus.GRAY8:
-			case ImagePlus.COLOR_256:
-
-				for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-					byte [] sliceBytes = new byte[ xz_width * xz_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-
-						// Now we can copy a complete row from
-						// the original image to the XZ slice:
-
-						int y_in_top = z_in_original;
-
-						System.arraycopy( slices_data_b[z_in_original],
-								  y_in_original * width,
-								  sliceBytes,
-								  y_in_top * xz_width,
-								  width );
-
-					}
-
-					ByteProcessor bp = new ByteProcessor( xz_width, xz_height );
-					bp.setPixels( sliceBytes );
-					xz_stack.addSlice( null, bp );
-
-					IJ.showProgress( y_in_original / (double)width );
-				}
-				break;
-
-			case ImagePlus.GRAY16:
-
-				for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-					short [] sliceShorts = new short[ xz_width * xz_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-
-						// Now we can copy a complete row from
-						// the original image to the XZ slice:
-
-						int y_in_top = z_in_original;
-
-						System.arraycopy( slices_data_s[z_in_original],
-								  y_in_original * width,
-								  sliceShorts,
-								  y_in_top * xz_width,
-								  width );
-
-					}
-
-					ShortProcessor sp = new ShortProcessor( xz_width, xz_height );
-					sp.setPixels( sliceShorts );
-					xz_stack.addSlice( null, sp );
-
-					IJ.showProgress( y_in_original / (double)width );
-				}
-				break;
-
-			case ImagePlus.COLOR_RGB:
-
-				for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-					int [] sliceInts = new int[ xz_width * xz_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-
-						// Now we can copy a complete row from
-						// the original image to the XZ slice:
-
-						int y_in_top = z_in_original;
-
-						System.arraycopy( slices_data_i[z_in_original],
-								  y_in_original * width,
-								  sliceInts,
-								  y_in_top * xz_width,
-								  width );
-
-					}
-
-					ColorProcessor cp = new ColorProcessor( xz_width, xz_height );
-					cp.setPixels( sliceInts );
-					xz_stack.addSlice( null, cp );
-
-					IJ.showProgress( y_in_original / (double)width );
-				}
-				break;
-
-			case ImagePlus.GRAY32:
-
-				for( int y_in_original = 0; y_in_original < height; ++y_in_original ) {
-
-					float [] sliceFloats = new float[ xz_width * xz_height ];
-
-					for( int z_in_original = 0; z_in_original < depth; ++z_in_original ) {
-
-						// Now we can copy a complete row from
-						// the original image to the XZ slice:
-
-						int y_in_top = z_in_original;
-
-						System.arraycopy( slices_data_f[z_in_original],
-								  y_in_original * width,
-								  sliceFloats,
-								  y_in_top * xz_width,
-								  width );
-
-					}
-
-					FloatProcessor fp = new FloatProcessor( xz_width, xz_height );
-					fp.setPixels( sliceFloats );
-					xz_stack.addSlice( null, fp );
-
-					IJ.showProgress( y_in_original / (double)width );
-				}
-				break;
-
-
-			}
-
-			xz = new ImagePlus( "XZ planes of " + xy.getShortTitle(), xz_stack );
-
-			if( type == ImagePlus.COLOR_256 ) {
-				if( cm != null ) {
-					xz_stack.setColorModel(cm);
-				}
-			}
-
-			IJ.showProgress( 1.0 ); // Removes the progress indicator
+			/* The XZ and ZY planes are only extracted from
+			 * the stack when they are shown: */
 
+			zy = new ImagePlus( "ZY planes of " + xy.getShortTitle(),
+					    new OrthogonalStack( xy, ZY_PLANE ) );
+			xz = new ImagePlus( "XZ planes of " + xy.getShortTitle(),
+					    new OrthogonalStack( xy, XZ_PLANE ) );
 		}
 
-		System.gc();
-
 		xy_canvas = createCanvas( xy, XY_PLANE );
 		if( ! single_pane ) {
 			xz_canvas = createCanvas( xz, XZ_PLANE );
@@ -59,7 +59,8 @@ public class SurfacePlotGroup extends ContentNode implements AdjustmentListener{
 		this.c = c;
 		int res = c.getResamplingFactor();
 		ImagePlus imp = res == 1 ? c.getImage() 
-			: NaiveResampler.resample(c.getImage(), res, res, 1);
+			: NaiveResampler.resampleCached(c.getImage(),
+				res, res, 1);
 		Volume volume = new Volume(imp);
 		volume.setAverage(true);
 		volume.setChannels(c.getChannels());
@@ -16,6 +16,7 @@ import java.awt.FontMetrics;
 import java.awt.image.ColorModel;
 import vib.TransformedImage;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* TODOs:
 
@@ -48,17 +49,16 @@ public class Histogram_2D implements PlugIn {
 	int typeA, typeB;
 	int bitDepthA, bitDepthB;
 
-	// These will remain null apart from the ones corresponding to
-	// the source image type:
+	/* The sums of the values in each bin of the 2D histogram (at
+	   index a * binsB + b), collected while binning.  Statistics
+	   for any thresholds are calculated from these, so that the
+	   images do not have to be scanned again. */
 
-	byte[] pixelsABytes = null;
-	byte[] pixelsBBytes = null;
+	double [] sumA, sumB, sumAA, sumAB, sumBB;
 
-	short[] pixelsAShorts = null;
-	short[] pixelsBShorts = null;
+	// The histogram images, calculated on the first request:
 
-	float[] pixelsAFloats = null;
-	float[] pixelsBFloats = null;
+	float [] probabilities, logProbabilities, selfInformation;
 
 	// This helper inner class is to return the results from getStatistics:
 
@@ -116,80 +116,46 @@ public class Histogram_2D implements PlugIn {
 		long n = 0;
 
 		IJ.showStatus("Calculating statistics");
-		IJ.showProgress(0);
 
-		double meanX = 0;
-		double meanY = 0;
-		double varX = 0;
-		double varY = 0;
-		double sdX = 0;
-		double sdY = 0;
-
-		double correlation = 0;
-
-		double numeratorSum = 0;
-		double denominatorSum = 0;
-
-		double covarianceSum = 0;
-		double covariance = 0;
-
-		/* You can almost certainly do this in one pass, but
-		   it's more obviously correct if you calculate the
-		   means after the first time through. */
-
-		for( int pass = 0; pass < 2; ++pass ) {
-			for (int z = 0; z < depth; ++z) {
-				for (int y = 0; y < height; ++y) {
-					for (int x = 0; x < width; ++x) {
-						float valueA = -1;
-						float valueB = -1;
-						if( bitDepthA == 8 ) {
-							valueA = pixelsABytes[y * width + x] & 0xFF;
-						} else if( bitDepthA == 16 ) {
-							valueA = pixelsAShorts[y * width + x];
-						} else if( bitDepthA == 32 ) {
-							valueA = pixelsAFloats[y * width + x];
-						}
-						if( bitDepthB == 8 ) {
-							valueB = pixelsBBytes[y * width + x] & 0xFF;
-						} else if( bitDepthB == 16 ) {
-							valueB = pixelsBShorts[y * width + x];
-						} else if( bitDepthB == 32 ) {
-							valueB = pixelsBFloats[y * width + x];
-						}
-						if( pass == 0 ) {
-							if( (valueA >= minimumXThreshold) &&
-							    (valueB >= minimumYThreshold) &&
-							    (valueA <= maximumXThreshold) &&
-							    (valueB <= maximumYThreshold) ) {
-								sumX += valueA;
-								sumY += valueB;
-								sumXX += valueA * valueA;
-								sumXY += valueA * valueB;
-								sumYY += valueB * valueB;
-								++ n;
-							}
-						} else {
-							double xResidual = valueA - meanX;
-							double yResidual = valueB - meanY;
-							numeratorSum += xResidual * yResidual;
-							denominatorSum +=  xResidual * xResidual;
-							covarianceSum += xResidual * yResidual;
-						}
-					}
+		/* Each bin is included or left out as a whole, depending
+		   on the mean of the values in it.  (That is exact unless
+		   a threshold lies within a bin which contains more than
+		   one distinct value pair.) */
+
+		for( int a = 0; a < binsA; ++a ) {
+			long [] countsA = counts[a];
+			for( int b = 0; b < binsB; ++b ) {
+				long count = countsA[b];
+				if( count == 0 )
+					continue;
+				int index = a * binsB + b;
+				double meanA = sumA[index] / count;
+				double meanB = sumB[index] / count;
+				if( (meanA >= minimumXThreshold) &&
+				    (meanB >= minimumYThreshold) &&
+				    (meanA <= maximumXThreshold) &&
+				    (meanB <= maximumYThreshold) ) {
+					sumX += sumA[index];
+					sumY += sumB[index];
+					sumXX += sumAA[index];
+					sumXY += sumAB[index];
+					sumYY += sumBB[index];
+					n += count;
 				}
-				IJ.showProgress(z/(double)depth);
-			}
-			if( pass == 0 ) {
-				meanX = sumX / (double)n;
-				meanY = sumY / (double)n;
-				varX = sumXX / (double)n - meanX * meanX;
-				varY = sumYY / (double)n - meanY * meanY;
-				sdX = Math.sqrt(varX);
-				sdY = Math.sqrt(varY);
 			}
 		}
-		IJ.showProgress(1);
+
+		double meanX = sumX / (double)n;
+		double meanY = sumY / (double)n;
+		double varX = sumXX / (double)n - meanX * meanX;
+		double varY = sumYY / (double)n - meanY * meanY;
+		double sdX = Math.sqrt(varX);
+		double sdY = Math.sqrt(varY);
+
+		// The sums of the products of the residuals:
+		double numeratorSum = sumXY - n * meanX * meanY;
+		double denominatorSum = sumXX - n * meanX * meanX;
+		double covarianceSum = numeratorSum;
 
 		result.sumX = sumX;
 		result.sumY = sumY;
@@ -255,6 +221,14 @@ public class Histogram_2D implements PlugIn {
 		this.binsB = binsB;
 		this.totalValues = 0;
 		this.counts = new long[binsA][binsB];
+		this.sumA = new double[binsA * binsB];
+		this.sumB = new double[binsA * binsB];
+		this.sumAA = new double[binsA * binsB];
+		this.sumAB = new double[binsA * binsB];
+		this.sumBB = new double[binsA * binsB];
+		this.probabilities = null;
+		this.logProbabilities = null;
+		this.selfInformation = null;
 		this.minValueA = minValueA;
 		this.maxValueA = maxValueA;
 		this.minValueB = minValueB;
@@ -348,15 +322,6 @@ public class Histogram_2D implements PlugIn {
 		bitDepthA=imageA.getBitDepth();
 		bitDepthB=imageB.getBitDepth();
 
-		pixelsABytes = null;
-		pixelsBBytes = null;
-
-		pixelsAShorts = null;
-		pixelsBShorts = null;
-
-		pixelsAFloats = null;
-		pixelsBFloats = null;
-
 		if( ! allowedBitDepth(bitDepthA) ) {
 			IJ.error(""+imageA.getTitle()+" has an unsupported bit depth: "+bitDepthA);
 			return false;
@@ -372,59 +337,58 @@ public class Histogram_2D implements PlugIn {
 		IJ.showStatus( "Binning image values..." );
 		IJ.showProgress(0);
 
-		float valueA = -1;
-		float valueB = -1;
-
-		for (int z = 0; z < depth; ++z) {
-
-			if( bitDepthA == 8 ) {
-				pixelsABytes = (byte[]) stackA.getPixels(z + 1);
-			} else if( bitDepthA == 16 ) {
-				pixelsAShorts = (short[]) stackA.getPixels(z + 1);
-			} else if( bitDepthA == 32 ) {
-				pixelsAFloats = (float[]) stackA.getPixels(z + 1);
-			}
-
-			if( bitDepthB == 8 ) {
-				pixelsBBytes = (byte[]) stackB.getPixels(z + 1);
-			} else if( bitDepthB == 16 ) {
-				pixelsBShorts = (short[]) stackB.getPixels(z + 1);
-			} else if( bitDepthB == 32 ) {
-				pixelsBFloats = (float[]) stackB.getPixels(z + 1);
-			}
-
-			for (int y = 0; y < height; ++y) {
-				for (int x = 0; x < width; ++x) {
-
-					if( bitDepthA == 8 ) {
-						valueA = pixelsABytes[y * width + x] & 0xFF;
-					} else if( bitDepthA == 16 ) {
-						valueA = pixelsAShorts[y * width + x];
-					} else if( bitDepthA == 32 ) {
-						valueA = pixelsAFloats[y * width + x];
-					}
-
-					if( bitDepthB == 8 ) {
-						valueB = pixelsBBytes[y * width + x] & 0xFF;
-					} else if( bitDepthB == 16 ) {
-						valueB = pixelsBShorts[y * width + x];
-					} else if( bitDepthB == 32 ) {
-						valueB = pixelsBFloats[y * width + x];
+		final Binner binnerA = new Binner( bitDepthA, minValueA, maxValueA, binsA );
+		final Binner binnerB = new Binner( bitDepthB, minValueB, maxValueB, binsB );
+		final ImageStack finalStackA = stackA;
+		final ImageStack finalStackB = stackB;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+
+		Thread [] threads = new Thread[Math.min(depth,
+			Runtime.getRuntime().availableProcessors())];
+		final Partial [] partials = new Partial[threads.length];
+		for( int t = 0; t < threads.length; ++t ) {
+			final Partial partial = partials[t] = new Partial( binsA * binsB );
+			threads[t] = new Thread() {
+				public void run() {
+					int pixels = width * height;
+					float [] valuesA = new float[pixels];
+					float [] valuesB = new float[pixels];
+					int [] indicesA = new int[pixels];
+					int [] indicesB = new int[pixels];
+					for( int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement() ) {
+						binnerA.bin( finalStackA.getPixels(z + 1), valuesA, indicesA );
+						binnerB.bin( finalStackB.getPixels(z + 1), valuesB, indicesB );
+						partial.add( valuesA, indicesA, valuesB, indicesB, Histogram_2D.this.binsB );
+						IJ.showProgress( done.incrementAndGet(), depth );
 					}
-
-					int i1 = (int)Math.floor((valueA - minValueA) * binsA / rangeWidthA);
-					int i2 = (int)Math.floor((valueB - minValueB) * binsB / rangeWidthB);
-					if( i1 >= binsA )
-						i1 = binsA - 1;
-					if( i2 >= binsB )
-						i2 = binsB - 1;
-
-					++counts[i1][i2];
-					++totalValues;
 				}
+			};
+			threads[t].start();
+		}
+		for( int t = 0; t < threads.length; ++t ) {
+			try {
+				threads[t].join();
+			} catch( InterruptedException e ) {
+				IJ.handleException(e);
 			}
-			IJ.showProgress(z/(double)depth);
 		}
+
+		for( int t = 0; t < partials.length; ++t ) {
+			Partial partial = partials[t];
+			for( int a = 0; a < binsA; ++a )
+				for( int b = 0; b < binsB; ++b ) {
+					int index = a * binsB + b;
+					counts[a][b] += partial.counts[index];
+					sumA[index] += partial.sumA[index];
+					sumB[index] += partial.sumB[index];
+					sumAA[index] += partial.sumAA[index];
+					sumAB[index] += partial.sumAB[index];
+					sumBB[index] += partial.sumBB[index];
+				}
+			totalValues += partial.totalValues;
+		}
+
 		IJ.showProgress(1);
 		for( int a = 0; a < binsA; ++a ) {
 			for( int b = 0; b < binsB; ++b ) {
@@ -438,68 +402,146 @@ public class Histogram_2D implements PlugIn {
 		return true;
 	}
 
-	public ImagePlus [] getHistogramImages( ) {
+	/* Maps the values of one image to their bins.  For 8 and 16
+	   bit images, the bins are looked up in a table. */
+
+	static class Binner {
+		int bitDepth;
+		double minimum, maximum, rangeWidth;
+		int bins;
+		int [] lookupTable;
+
+		Binner( int bitDepth, double minimum, double maximum, int bins ) {
+			this.bitDepth = bitDepth;
+			this.minimum = minimum;
+			this.maximum = maximum;
+			this.rangeWidth = maximum - minimum;
+			this.bins = bins;
+			if( bitDepth == 8 || bitDepth == 16 ) {
+				lookupTable = new int[1 << bitDepth];
+				for( int value = 0; value < lookupTable.length; ++value )
+					lookupTable[value] = getBin( value );
+			}
+		}
 
-		System.out.println("totalValues is: "+totalValues);
+		/* Returns -1 for values outside the range. */
+		final int getBin( float value ) {
+			if( ! (value >= minimum && value <= maximum) )
+				return -1;
+			int bin = (int)Math.floor((value - minimum) * bins / rangeWidth);
+			return bin >= bins ? bins - 1 : bin;
+		}
+
+		void bin( Object pixels, float [] values, int [] indices ) {
+			if( bitDepth == 8 ) {
+				byte [] p = (byte[])pixels;
+				for( int i = 0; i < p.length; ++i ) {
+					int value = p[i] & 0xFF;
+					values[i] = value;
+					indices[i] = lookupTable[value];
+				}
+			} else if( bitDepth == 16 ) {
+				short [] p = (short[])pixels;
+				for( int i = 0; i < p.length; ++i ) {
+					int value = p[i] & 0xFFFF;
+					values[i] = value;
+					indices[i] = lookupTable[value];
+				}
+			} else {
+				float [] p = (float[])pixels;
+				for( int i = 0; i < p.length; ++i ) {
+					values[i] = p[i];
+					indices[i] = getBin( p[i] );
+				}
+			}
+		}
+	}
 
-		double [][] p = new double[binsA][binsB];
-		double [][] selfInformation = new double[binsA][binsB];
+	/* The counts and sums collected by one thread. */
 
-		for( int avalue = 0; avalue < binsA; ++avalue )
-			for( int bvalue = 0; bvalue < binsB; ++bvalue ) {
+	static class Partial {
+		long [] counts;
+		double [] sumA, sumB, sumAA, sumAB, sumBB;
+		long totalValues;
+
+		Partial( int cells ) {
+			counts = new long[cells];
+			sumA = new double[cells];
+			sumB = new double[cells];
+			sumAA = new double[cells];
+			sumAB = new double[cells];
+			sumBB = new double[cells];
+		}
 
-				p[avalue][bvalue] = (double)counts[avalue][bvalue] / totalValues;
-				selfInformation[avalue][bvalue] = - Math.log(p[avalue][bvalue]) / Math.log(2);
+		void add( float [] valuesA, int [] indicesA,
+			  float [] valuesB, int [] indicesB, int binsB ) {
+			for( int i = 0; i < valuesA.length; ++i ) {
+				int a = indicesA[i], b = indicesB[i];
+				if( a < 0 || b < 0 )
+					continue;
+				int index = a * binsB + b;
+				double valueA = valuesA[i];
+				double valueB = valuesB[i];
+				++counts[index];
+				sumA[index] += valueA;
+				sumB[index] += valueB;
+				sumAA[index] += valueA * valueA;
+				sumAB[index] += valueA * valueB;
+				sumBB[index] += valueB * valueB;
+				++totalValues;
 			}
+		}
+	}
 
-		ImagePlus probImagePlus;
-		{
-			float floatValues [] = new float[binsA*binsB];
+	/* Calculate the three histogram images once; the logarithms
+	   of small counts come from a table. */
 
-			for( int avalue = 0; avalue < binsA; ++avalue )
-				for( int bvalue = 0; bvalue < binsB; ++bvalue ) {
-					floatValues[((binsB-1)-bvalue)*binsA+avalue] = (float)p[avalue][bvalue];
-				}
+	void calculateHistogramImages() {
+		if( probabilities != null )
+			return;
 
-			FloatProcessor fp = new FloatProcessor(binsA,binsB);
-			fp.setPixels(floatValues);
-			ImageStack newStack=new ImageStack(binsA,binsB);
-			newStack.addSlice("", fp);
-			probImagePlus=new ImagePlus("2D Histogram Log Probabilities",newStack);
-		}
+		System.out.println("totalValues is: "+totalValues);
 
-		ImagePlus logProbImagePlus;
-		{
-			float floatValues [] = new float[binsA*binsB];
+		probabilities = new float[binsA*binsB];
+		logProbabilities = new float[binsA*binsB];
+		selfInformation = new float[binsA*binsB];
 
-			for( int avalue = 0; avalue < binsA; ++avalue )
-				for( int bvalue = 0; bvalue < binsB; ++bvalue ) {
-					floatValues[((binsB-1)-bvalue)*binsA+avalue] = (float)Math.log( p[avalue][bvalue] );
-				}
+		double logTotal = Math.log(totalValues);
+		double log2 = Math.log(2);
+		double [] logCounts = new double[(int)Math.min(4096, countMax + 1)];
+		for( int count = 0; count < logCounts.length; ++count )
+			logCounts[count] = Math.log(count);
 
-			FloatProcessor fp = new FloatProcessor(binsA,binsB);
-			fp.setPixels(floatValues);
-			ImageStack newStack=new ImageStack(binsA,binsB);
-			newStack.addSlice("", fp);
-			logProbImagePlus=new ImagePlus("2D Histogram Probabilities",newStack);
-		}
+		for( int avalue = 0; avalue < binsA; ++avalue )
+			for( int bvalue = 0; bvalue < binsB; ++bvalue ) {
+				long count = counts[avalue][bvalue];
+				double logP = (count < logCounts.length ?
+					       logCounts[(int)count] : Math.log(count)) - logTotal;
+				int index = ((binsB-1)-bvalue)*binsA+avalue;
+				probabilities[index] = (float)((double)count / totalValues);
+				logProbabilities[index] = (float)logP;
+				selfInformation[index] = (float)(- logP / log2);
+			}
+	}
 
-		ImagePlus selfNewImagePlus;
-		{
-			float selfValues [] = new float[binsA*binsB];
+	static ImagePlus makeImage( String title, float [] values, int width, int height ) {
+		FloatProcessor fp = new FloatProcessor(width,height);
+		fp.setPixels(values.clone());
+		ImageStack newStack=new ImageStack(width,height);
+		newStack.addSlice("", fp);
+		return new ImagePlus(title,newStack);
+	}
 
-			for( int avalue = 0; avalue < binsA; ++avalue )
-				for( int bvalue = 0; bvalue < binsB; ++bvalue ) {
+	public ImagePlus [] getHistogramImages( ) {
 
-					selfValues[((binsB-1)-bvalue)*binsA+avalue] = (float)selfInformation[avalue][bvalue];
-				}
+		calculateHistogramImages();
 
-			FloatProcessor selfFP = new FloatProcessor(binsA,binsB);
-			selfFP.setPixels(selfValues);
-			ImageStack selfNewStack=new ImageStack(binsA,binsB);
-			selfNewStack.addSlice("", selfFP);
-			selfNewImagePlus=new ImagePlus("2D Histogram Self Information",selfNewStack);
-		}
+		ImagePlus probImagePlus = makeImage("2D Histogram Probabilities",
+						    probabilities, binsA, binsB);
+		ImagePlus logProbImagePlus = makeImage("2D Histogram Log Probabilities",
+						       logProbabilities, binsA, binsB);
+		ImagePlus selfNewImagePlus = makeImage("2D Histogram Self Information",
+						       selfInformation, binsA, binsB);
 
 		ImagePlus [] result = new ImagePlus[3];
 		result[PROBABILITIES] = probImagePlus;
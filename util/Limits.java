@@ -41,7 +41,7 @@ public class Limits {
 			} else if( type == ImagePlus.GRAY16 ) {
 				short [] pixels = (short[])stack.getPixels(z+1);
 				for( int i = 0; i < pixels.length; ++i ) {
-					short value = pixels[i];
+					int value = pixels[i] & 0xFFFF;
 					if( value > maxValue )
 						maxValue = value;
 					if( value < minValue )
@@ -5,6 +5,9 @@
    Call this plugin with something like:
  
       -eval "run('Meshes From Label File','source=[/home/mark/arnim-brain/CantonF41c.labels] output=[/home/mark/tmp/meshes]');"
+
+   The optional option 'smoothing' sets the number of smoothing
+   iterations (default: 0).
   
  */
 
@@ -14,12 +17,11 @@ import amira.AmiraMeshEncoder;
 import amira.AmiraParameters;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.Macro;
 import ij.plugin.PlugIn;
-import ij.process.ByteProcessor;
+import isosurface.LabelSurfaces;
 import java.io.File;
-import marchingcubes.ExportMesh_;
+import java.io.IOException;
 
 public class Meshes_From_Label_File implements PlugIn {
 
@@ -77,42 +79,26 @@ public class Meshes_From_Label_File implements PlugIn {
 			return;
 		}		
 
-		int width = imagePlus.getWidth();
-		int height = imagePlus.getHeight();
-		int depth = imagePlus.getStackSize();
-		
+		int iterations = Integer.parseInt(Macro.getValue(macroOptions, "smoothing", "0"));
+
+		// all materials in one pass; 0 is the exterior
+		LabelSurfaces surfaces = new LabelSurfaces(imagePlus, 0);
+		surfaces.extract();
+		surfaces.smooth(iterations);
+
 		for( int m = 1; m < materialList.length; ++m ) {
 			
 			double [] c = parameters.getMaterialColor(m);
 			String materialName = materialList[m];
 
-			ImageStack newStack = new ImageStack(width,height);
-			
-			ImageStack stack = imagePlus.getStack();
-			
-			for( int z = 0; z < depth; ++z ) {
-				byte [] newPixels=new byte[width*height];
-				byte [] pixels = (byte[]) stack.getPixels(z+1);
-				for( int p = 0; p < width * height; ++p ) {
-					int value = pixels[p] & 0xFF;
-					if( value == m )
-						newPixels[p] = (byte)255;
-				}
-				ByteProcessor bp=new ByteProcessor(width,height);
-				bp.setPixels(newPixels);
-				newStack.addSlice("",bp);
-			}
-
-			ImagePlus newImagePlus=new ImagePlus("",newStack);
-
-			ExportMesh_ exporter=new ExportMesh_();
-			boolean channels[] = { true, true, true };
-			
 			String outputFilename = outputDirectory + File.separator +
 				c[0] + "_" + c[1] + "_" + c[2] + "_" + materialName + ".obj";
-			exporter.exportToMesh( newImagePlus, 128, 2, channels, outputFilename );
-
-			newImagePlus.close();
+			try {
+				surfaces.getMesh(m).saveAsWavefront(outputFilename);
+			} catch (IOException e) {
+				IJ.error("Saving to '"+outputFilename+"' failed: "+e);
+				return;
+			}
 		}			
 	}
 }
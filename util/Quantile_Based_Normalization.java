@@ -31,7 +31,9 @@ import ij.plugin.*;
 import ij.io.*;
 import java.awt.event.ItemEvent;
 import java.io.File;
+import java.lang.ref.SoftReference;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import vib.app.FileGroup;
 import vib.app.gui.FileGroupDialog;
 import java.awt.event.ActionListener;
@@ -61,90 +63,209 @@ public class Quantile_Based_Normalization implements PlugIn, ActionListener, Ite
 	   values in a quatile with a mix of the two bytes around the
 	   mean in such a proportion that the mean will be a close to
 	   correct as we can get it. */
+
+	/* All the images are read once, in parallel, to build their
+	   histograms; then they are remapped (again in parallel) using
+	   a lookup table for the values that have only one possible
+	   replacement.  Both 8 bit and 16 bit images are supported, as
+	   long as all of them have the same bit depth. */
 	
-	public static final String PLUGIN_VERSION = "1.2";
+	public static final String PLUGIN_VERSION = "1.3";
 	
-	class Replacements {
-		
-		long [] replacements;
-		long totalReplacements;
-		int minReplacement = Integer.MAX_VALUE;
-		int maxReplacement = Integer.MIN_VALUE;
-		Random rng;
-		int quantile;
-		
-		public Replacements(int possibleValues) {
-			replacements = new long[possibleValues];
-			rng=new Random();
+	/* The frequencies of the values in one image.  Only the values
+	   that actually occur are stored (in ascending order), so
+	   that this stays small for 16 bit images, too. */
+
+	static class Histogram {
+
+		int [] values;
+		long [] counts;
+		long total;
+
+		/* Compresses a dense table of frequencies, and clears it
+		   so that it can be reused for the next image. */
+		public Histogram( long [] frequencies ) {
+			int distinct = 0;
+			for( int value = 0; value < frequencies.length; ++value )
+				if( frequencies[value] > 0 )
+					++distinct;
+			values = new int[distinct];
+			counts = new long[distinct];
+			int i = 0;
+			for( int value = 0; value < frequencies.length; ++value )
+				if( frequencies[value] > 0 ) {
+					values[i] = value;
+					counts[i] = frequencies[value];
+					total += counts[i];
+					++i;
+					frequencies[value] = 0;
+				}
 		}
-		
+
+		/* If you imagine all the values in the image in sorted
+		   order, split into numberOfQuantiles parts of (nearly)
+		   equal size, then this calls overlap() for every run of
+		   equal values in every quantile, in ascending order. */
+		public void walkQuantiles( int numberOfQuantiles, QuantileWalker walker ) {
+			int i = 0;
+			long before = 0;
+			for( int q = 0; q < numberOfQuantiles; ++q ) {
+				long indexStartThisQuantile = q * total / numberOfQuantiles;
+				// If this is the last quantile, make sure we
+				// actually include everything...
+				long indexStartNextQuantile = (q == numberOfQuantiles - 1) ?
+					total : ((q + 1) * total) / numberOfQuantiles;
+				while( i < values.length && before + counts[i] <= indexStartThisQuantile ) {
+					before += counts[i];
+					++i;
+				}
+				long cumulativeBefore = before;
+				for( int j = i; j < values.length && cumulativeBefore < indexStartNextQuantile; ++j ) {
+					long from = Math.max( indexStartThisQuantile, cumulativeBefore );
+					long to = Math.min( indexStartNextQuantile, cumulativeBefore + counts[j] );
+					if( to > from )
+						walker.overlap( q, indexStartNextQuantile - indexStartThisQuantile, j, to - from );
+					cumulativeBefore += counts[j];
+				}
+			}
+		}
+	}
+
+	static abstract class QuantileWalker {
+		/* pointsInOverlap of the values[index] fall into quantile q,
+		   which has pointsInQuantile points altogether. */
+		abstract void overlap( int q, long pointsInQuantile, int index, long pointsInOverlap );
+	}
+
+	/* The replacements for all the occurrences of one value: each
+	   replacement can be used up a certain number of times, and they
+	   are handed out in random order. */
+
+	static class Replacements {
+
+		int [] replacements = new int[2];
+		long [] counts = new long[2];
+		int size;
+		long totalReplacements;
+
 		public void addSomeReplacements( long howManyToReplace, int replacement ) {
-			if( replacement < minReplacement )
-				minReplacement = replacement;
-			if( replacement > maxReplacement )
-				maxReplacement = replacement;
-			replacements[replacement] += howManyToReplace;
+			if( howManyToReplace <= 0 )
+				return;
 			totalReplacements += howManyToReplace;
+			if( size > 0 && replacements[size - 1] == replacement ) {
+				counts[size - 1] += howManyToReplace;
+				return;
+			}
+			if( size == replacements.length ) {
+				int [] newReplacements = new int[2 * size];
+				System.arraycopy( replacements, 0, newReplacements, 0, size );
+				replacements = newReplacements;
+				long [] newCounts = new long[2 * size];
+				System.arraycopy( counts, 0, newCounts, 0, size );
+				counts = newCounts;
+			}
+			replacements[size] = replacement;
+			counts[size] = howManyToReplace;
+			++size;
 		}
-		
-		public int getRandomReplacement() {
-			if( totalReplacements == 0 ) {
+
+		public int getRandomReplacement( Random rng ) {
+			if( totalReplacements == 0 )
 				return -1;
-			}
-			
-			long index=Math.abs(rng.nextLong()) % totalReplacements;
-			
-			long replacementsSkipped = 0;
-			
-			for( int r = minReplacement; r <= maxReplacement; ++r ) {
-				
-				long indexInThisSlot = index - replacementsSkipped;
-				
-				if( indexInThisSlot < replacements[r] ) {
+
+			long index = (rng.nextLong() >>> 1) % totalReplacements;
+
+			for( int i = 0; i < size; ++i ) {
+				if( index < counts[i] ) {
 					// Then we remove one of these and return
-					// the value of r.
-					-- replacements[r];
+					// it.
+					-- counts[i];
 					-- totalReplacements;
-					return r;
-				} else {
-					replacementsSkipped += replacements[r];
+					return replacements[i];
 				}
+				index -= counts[i];
 			}
 			return -1;
 		}
-		
+
 		@Override
 		public String toString() {
 			if( totalReplacements == 0 )
 				return "No replacements left.";
-			else {
-				String result = "" + totalReplacements + " replacements left (in";
-				for( int i = minReplacement; i <= maxReplacement; ++i ) {
-					if( replacements[i] > 0 )
-						result += " " + i + " (" + replacements[i] + ")";
-				}
-				return result;
-			}
-			
+			String result = "" + totalReplacements + " replacements left (in";
+			for( int i = 0; i < size; ++i )
+				if( counts[i] > 0 )
+					result += " " + replacements[i] + " (" + counts[i] + ")";
+			return result + ")";
 		}
-		
 	}
-	
+
 	TextField outputDirectoryInput;
 	Button chooseOutputDirectory;
-	
+
 	Checkbox useMaskCheckbox;
 	TextField maskFileInput;
-	Button chooseMaskButton;	
-	
-	public void processToDirectory( FileGroup fg,
-					String outputDirectory,
+	Button chooseMaskButton;
+
+	/* The work that is done for each of the images, on several
+	   threads at once.  process() returns an error message if the
+	   normalization has to be aborted. */
+
+	static abstract class PerImage {
+		abstract String process( int b );
+	}
+
+	/* Returns the first error message, or null if all the images
+	   were processed successfully.  After an error, no more images
+	   are started. */
+
+	static String processInParallel( final int n, final PerImage perImage ) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		final String [] error = new String[1];
+		int numberOfThreads = Math.min( n, Runtime.getRuntime().availableProcessors() );
+		Thread [] threads = new Thread[numberOfThreads];
+		for( int t = 0; t < threads.length; ++t ) {
+			threads[t] = new Thread() {
+				public void run() {
+					for( int b = ai.getAndIncrement(); b < n; b = ai.getAndIncrement() ) {
+						synchronized( error ) {
+							if( error[0] != null )
+								return;
+						}
+						String message = perImage.process( b );
+						if( message != null ) {
+							synchronized( error ) {
+								if( error[0] == null )
+									error[0] = message;
+							}
+							return;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for( int t = 0; t < threads.length; ++t )
+			try {
+				threads[t].join();
+			} catch( InterruptedException e ) {
+				IJ.handleException(e);
+			}
+		return error[0];
+	}
+
+	static boolean isMasked( long [] maskSlice, int i ) {
+		return (maskSlice[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public void processToDirectory( final FileGroup fg,
+					final String outputDirectory,
 					String maskFileName,
-					int channelToUse,
-					int numberOfQuantiles,
-					boolean replaceWithRankInstead,
-					boolean rescaleRanks ) {
-				
+					final int channelToUse,
+					final int numberOfQuantiles,
+					final boolean replaceWithRankInstead,
+					final boolean rescaleRanks ) {
+
 		File o=new File(outputDirectory);
 		if( ! o.exists() ) {
 			IJ.error("The output directory ('"+outputDirectory+"') doesn't exist.");
@@ -154,17 +275,19 @@ public class Quantile_Based_Normalization implements PlugIn, ActionListener, Ite
 			IJ.error("'"+outputDirectory+"' is not a directory");
 			return;
 		}
-		
-                boolean [][] inMask = null;
-		
-                int maskWidth = -1;
-                int maskHeight = -1;
-                int maskDepth = -1;
-		
-                long pointsInMask=0;
+
+		/* The mask has one bit per voxel, 64 to a long. */
+
+		long [][] inMask = null;
+
+		int maskWidth = -1;
+		int maskHeight = -1;
+		int maskDepth = -1;
+
+		long pointsInMask=0;
 
 		if( maskFileName != null ) {
-		
+
 			IJ.showStatus("Loading mask file: "+maskFileName);
 			ImagePlus [] channels=BatchOpener.open(maskFileName);
 			if( channels == null ) {
@@ -180,160 +303,147 @@ public class Quantile_Based_Normalization implements PlugIn, ActionListener, Ite
 			maskWidth=maskImagePlus.getWidth();
 			maskHeight=maskImagePlus.getHeight();
 			maskDepth=maskImagePlus.getStackSize();
-			inMask=new boolean[maskDepth][maskWidth*maskHeight];
+			int pixelsPerSlice = maskWidth*maskHeight;
+			inMask=new long[maskDepth][(pixelsPerSlice + 63) >>> 6];
 			for( int z = 0; z < maskDepth; ++z ) {
-				byte [] pixels = (byte[])maskStack.getPixels(z+1);
-				for( int y = 0; y < maskHeight; ++y ) {
-					for( int x = 0; x < maskWidth; ++x ) {
-						if( (pixels[y*maskWidth+x]&0xFF) > 127 ) {
-							inMask[z][y*maskWidth+x] = true;
-							++pointsInMask;
-						}
+				ImageProcessor processor = maskStack.getProcessor(z+1);
+				for( int i = 0; i < pixelsPerSlice; ++i ) {
+					if( processor.get(i) > 127 ) {
+						inMask[z][i >>> 6] |= 1L << i;
+						++pointsInMask;
 					}
 				}
 			}
 			maskImagePlus.close();
 		}
-		
-		int n = fg.size();
+
+		final int n = fg.size();
 		if (n < 1) {
 			IJ.error("No image files selected");
 			return;
 		}
-		
-		
-                /* First go through each image building totalling the
-                   frequencies of each value. */
-		
-                long frequencies[][] = new long[n][256];
-                long pointsInImage[] = new long[n];
-		
-		long [][] sumValuesInQuantile = new long[n][numberOfQuantiles];
-		long [][] numberOfValuesInQuantile = new long[n][numberOfQuantiles];
-		
-		for (int b = 0; b < n; ++b) {
-			
-			File f = fg.get(b);
-			String path = f.getAbsolutePath();
-			
-			ImagePlus [] channels=BatchOpener.open(path);
-			
-			if( channelToUse >= channels.length ) {
-				IJ.error("There is no channel "+channelToUse+" in "+path);
-				return;
-			}
-			
-			ImagePlus imagePlus=channels[channelToUse];
-			
-			int type=imagePlus.getType();
-			if( ! ((type == ImagePlus.GRAY8) || (type == ImagePlus.COLOR_256)) ) {
-				IJ.error("Error processing '"+path+"': This plugin only works on 8bit (GRAY8 or COLOR_256) images.");
-				return;
-			}
-			
-			String freeMemory = IJ.freeMemory();
-			System.out.println("free memory is: "+freeMemory);
-			
-			int width=imagePlus.getWidth();
-			int height=imagePlus.getHeight();
-			int depth=imagePlus.getStackSize();
-			
-                        // If we're using a mask they all have to be the right
-                        // dimensions.			
-			
-                        if( (maskFileName != null) &&
-				! ((width == maskWidth ) &&
-                                   (height == maskHeight) &&
-                                   (depth == maskDepth)) ) {
-                                IJ.error("The image file "+path+" was not the same dimensions as the mask file");
-                                return;
-                        }
-			
-			ImageStack stack=imagePlus.getStack();
-			
-			IJ.showStatus("Calculating frequencies and quantiles for "+imagePlus.getShortTitle()+" ...");
-			
-			for( int z=0; z<depth; ++z ) {
-				byte [] pixels=(byte[])stack.getPixels(z+1);
-				for( int y=0; y<height; ++y )
-					for( int x=0; x<width; ++x ) {
-                                                if( (maskFileName == null) || inMask[z][y*width+x] ) {
-							int value=pixels[y*width+x]&0xFF;
-							++frequencies[b][value];
-                                                }
-					}
-			}
-			
-			pointsInImage[b]= (maskFileName == null) ? width*height*depth : pointsInMask;
 
-			System.out.println("Proportion of points to consider: "+((double)pointsInMask/(width*height*depth)));
-			
-			for (int q = 0; q < numberOfQuantiles; ++q) {
-				
-				long [] replacementsInThisQuantile=new long[256];
-				
-				long indexStartThisQuantile = (int) (q * pointsInImage[b] / numberOfQuantiles);
-				long indexStartNextQuantile = (int) (((q + 1) * pointsInImage[b]) / numberOfQuantiles);
-				
-				long pointsInQuantile = indexStartNextQuantile - indexStartThisQuantile;
-				
-				// If this is the last quantile, make sure we actually
-				// include everything...
-				if (q == numberOfQuantiles - 1) {
-					indexStartNextQuantile = pointsInImage[b];
+		final boolean useMask = maskFileName != null;
+		final long [][] mask = inMask;
+		final int [] maskDimensions = { maskWidth, maskHeight, maskDepth };
+
+		/* First go through all the images at once, counting the
+		   frequencies of each value, and summing the values in
+		   each quantile.  The images are kept around in case
+		   there is enough memory to avoid opening them again. */
+
+		final Histogram [] histograms = new Histogram[n];
+		final int [] bitDepths = new int[n];
+		final long [][] sumValuesInQuantile = new long[n][numberOfQuantiles];
+		final long [][] numberOfValuesInQuantile = new long[n][numberOfQuantiles];
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final SoftReference<ImagePlus> [] cache = new SoftReference[n];
+
+		final AtomicInteger done = new AtomicInteger(0);
+		IJ.showProgress(0);
+
+		String error = processInParallel( n, new PerImage() {
+			/* one dense table of frequencies per thread */
+			ThreadLocal<long[]> frequencies = new ThreadLocal<long[]>() {
+				protected long[] initialValue() {
+					return new long[1 << 16];
 				}
-				
-				// Keep track of the sum of the values
-				long cumulativeIncluding = 0;
-				long cumulativeBefore = 0;
-				
-				sumValuesInQuantile[b][q] = 0;
-				numberOfValuesInQuantile[b][q] = 0;
-				
-				for (int value = 0; value < frequencies[b].length; ++value) {
-					
-					cumulativeIncluding += frequencies[b][value];
-					
-					if ((cumulativeIncluding < indexStartThisQuantile) || (cumulativeBefore >= indexStartNextQuantile)) {
-						
-						// Then there's no overlap...
-						
+			};
+
+			String process( int b ) {
+				String path = fg.get(b).getAbsolutePath();
+
+				ImagePlus [] channels=BatchOpener.open(path);
+				if( channels == null )
+					return "Couldn't open the file "+path;
+
+				if( channelToUse >= channels.length )
+					return "There is no channel "+(channelToUse+1)+" in "+path;
+
+				ImagePlus imagePlus=channels[channelToUse];
+
+				int type=imagePlus.getType();
+				if( ! ((type == ImagePlus.GRAY8) || (type == ImagePlus.COLOR_256) || (type == ImagePlus.GRAY16)) )
+					return "Error processing '"+path+"': This plugin only works on 8 bit (GRAY8 or COLOR_256) or 16 bit images.";
+
+				int width=imagePlus.getWidth();
+				int height=imagePlus.getHeight();
+				int depth=imagePlus.getStackSize();
+
+				// If we're using a mask they all have to be the right
+				// dimensions.
+
+				if( useMask &&
+				    ! ((width == maskDimensions[0]) &&
+				       (height == maskDimensions[1]) &&
+				       (depth == maskDimensions[2])) )
+					return "The image file "+path+" was not the same dimensions as the mask file";
+
+				IJ.showStatus("Calculating frequencies and quantiles for "+imagePlus.getShortTitle()+" ...");
+
+				long [] f = frequencies.get();
+				ImageStack stack=imagePlus.getStack();
+				for( int z = 0; z < depth; ++z ) {
+					Object pixels = stack.getPixels(z+1);
+					if( pixels instanceof byte[] ) {
+						byte [] p = (byte[])pixels;
+						for( int i = 0; i < p.length; ++i )
+							if( ! useMask || isMasked(mask[z], i) )
+								++f[p[i] & 0xff];
 					} else {
-						
-						long startInValues = 0;
-						
-						if (indexStartThisQuantile > cumulativeBefore) {
-							startInValues = indexStartThisQuantile - cumulativeBefore;
-						}
-						
-						// This is the end inclusive...
-						long endInValues = frequencies[b][value] - 1;
-						
-						if (indexStartNextQuantile < cumulativeIncluding) {
-							endInValues = (indexStartNextQuantile - cumulativeBefore) - 1;
-						}
-						long pointsInOverlap = (endInValues - startInValues) + 1;
-						// System.out.println("points in overlap: "+pointsInOverlap);
-						numberOfValuesInQuantile[b][q] += pointsInOverlap;
-						sumValuesInQuantile[b][q] += value * pointsInOverlap;
-						// replacementsInThisQuantile[value] = pointsInOverlap;
+						short [] p = (short[])pixels;
+						for( int i = 0; i < p.length; ++i )
+							if( ! useMask || isMasked(mask[z], i) )
+								++f[p[i] & 0xffff];
 					}
-					
-					cumulativeBefore += frequencies[b][value];
 				}
-				
+
+				final Histogram histogram = new Histogram(f);
+				histograms[b] = histogram;
+				bitDepths[b] = imagePlus.getBitDepth();
+
+				final long [] sums = sumValuesInQuantile[b];
+				final long [] numbers = numberOfValuesInQuantile[b];
+				histogram.walkQuantiles( numberOfQuantiles, new QuantileWalker() {
+					void overlap( int q, long pointsInQuantile, int index, long pointsInOverlap ) {
+						numbers[q] += pointsInOverlap;
+						sums[q] += histogram.values[index] * pointsInOverlap;
+					}
+				} );
+
+				cache[b] = new SoftReference<ImagePlus>(imagePlus);
+
+				IJ.showProgress( done.incrementAndGet(), 2 * n );
+				return null;
 			}
-			
-			imagePlus.close();
+		} );
+
+		if( error != null ) {
+			IJ.showProgress(1.0);
+			IJ.error(error);
+			return;
 		}
-		
-		System.out.println("Now going on to calculate the mean in each quantile.");
-		
+
+		final int bitDepth = bitDepths[0];
+		for( int b = 1; b < n; ++b )
+			if( bitDepths[b] != bitDepth ) {
+				IJ.showProgress(1.0);
+				IJ.error("All the images must have the same bit depth, but "+fg.get(0).getName()+
+					 " is "+bitDepth+" bit and "+fg.get(b).getName()+" is "+bitDepths[b]+" bit.");
+				return;
+			}
+		final int maxValue = (1 << bitDepth) - 1;
+		if( numberOfQuantiles > maxValue + 1 ) {
+			IJ.showProgress(1.0);
+			IJ.error("There can be at most "+(maxValue + 1)+" quantiles for "+bitDepth+" bit images.");
+			return;
+		}
+
 		// Calculate the mean in each quantile (even if we're
 		// not going to use it)...
-		
-		double [] quantileMeans = new double[numberOfQuantiles];
-		
+
+		final double [] quantileMeans = new double[numberOfQuantiles];
+
 		for( int q = 0; q < numberOfQuantiles; ++q ) {
 			long sum = 0;
 			long values = 0;
@@ -343,216 +453,194 @@ public class Quantile_Based_Normalization implements PlugIn, ActionListener, Ite
 			}
 			quantileMeans[q] = sum / (double)values;
 		}
-		
-		// Now we go through each image again, remap the
-		// values according to the options chosen and write
-		// the new image out to the output directory....
-		
-		for (int b = 0; b < n; ++b) {
-			
-			File f = fg.get(b);
-			String path = f.getAbsolutePath();			
-			ImagePlus [] channels=BatchOpener.open(path);
-			ImagePlus imagePlus=channels[channelToUse];
-			
-			String newLeafName;		     
-			String leafName = f.getName();
+
+		// Ask about existing files now, so that the remapping
+		// can run without interruption...
+
+		final File [] outputFiles = new File[n];
+
+		for( int b = 0; b < n; ++b ) {
+
+			String newLeafName;
+			String leafName = fg.get(b).getName();
 			int dotIndex=leafName.lastIndexOf(".");
 			if(dotIndex >= 0) {
 				newLeafName = leafName.substring(0,dotIndex) + "-normalized.tif";
 			} else {
 				newLeafName = leafName + "-normalized";
 			}
-			
+
 			File outputFile=new File(outputDirectory,newLeafName);
-			
-			Replacements [] meanReplacements = new Replacements[256];
-			for( int value = 0; value < 256; ++value )
-				meanReplacements[value] = new Replacements(256);
-			
-			Replacements [] rankReplacements = new Replacements[256];
-			for( int value = 0; value < 256; ++value )
-				rankReplacements[value] = new Replacements(numberOfQuantiles);
-			
-			int width=imagePlus.getWidth();
-			int height=imagePlus.getHeight();
-			int depth=imagePlus.getStackSize();
-			
-			ImageStack stack=imagePlus.getStack();
-			
-			IJ.showStatus("Replacing values in: "+imagePlus.getShortTitle()+" ...");
-			
-			for (int q = 0; q < numberOfQuantiles; ++q) {
-				
-				long [] replacementsInThisQuantile=new long[256];
-				
-				long indexStartThisQuantile = (int) (q * pointsInImage[b] / numberOfQuantiles);
-				long indexStartNextQuantile = (int) (((q + 1) * pointsInImage[b]) / numberOfQuantiles);
-				
-				long pointsInQuantile = indexStartNextQuantile - indexStartThisQuantile;
-				
-				// If this is the last quantile, make sure we actually
-				// include everything...
-				if (q == numberOfQuantiles - 1) {
-					indexStartNextQuantile = pointsInImage[b];
+
+			if( outputFile.exists() ) {
+				YesNoCancelDialog yncd=new YesNoCancelDialog(
+					IJ.getInstance(),
+					"Confirm",
+					"The file "+outputFile.getAbsolutePath()+" already exists.  Overwrite it?");
+				if( ! yncd.yesPressed() ) {
+					if( yncd.cancelPressed() ) {
+						IJ.showProgress(1.0);
+						IJ.showStatus("Quantile based normalization cancelled.");
+						return;
+					}
+					// "No" was pressed, so skip writing this file.
+					IJ.showProgress( done.incrementAndGet(), 2 * n );
+					continue;
 				}
-				
-				// Keep track of the sum of the values
-				long cumulativeIncluding = 0;
-				long cumulativeBefore = 0;
-				
-				for (int value = 0; value < frequencies[b].length; ++value) {
-					
-					cumulativeIncluding += frequencies[b][value];
-					
-					if ((cumulativeIncluding < indexStartThisQuantile) || (cumulativeBefore >= indexStartNextQuantile)) {
-						
-						// Then there's no overlap...
-						
-					} else {
-						
-						long startInValues = 0;
-						
-						if (indexStartThisQuantile > cumulativeBefore) {
-							startInValues = indexStartThisQuantile - cumulativeBefore;
+			}
+
+			outputFiles[b] = outputFile;
+		}
+
+		// Now we go through the images again, remap the
+		// values according to the options chosen and write
+		// the new images out to the output directory....
+
+		error = processInParallel( n, new PerImage() {
+			String process( int b ) {
+
+				if( outputFiles[b] == null )
+					return null;
+
+				ImagePlus imagePlus = cache[b].get();
+				cache[b] = null;
+				if( imagePlus == null ) {
+					String path = fg.get(b).getAbsolutePath();
+					ImagePlus [] channels=BatchOpener.open(path);
+					if( channels == null )
+						return "Couldn't open the file "+path+" again";
+					imagePlus=channels[channelToUse];
+				}
+
+				IJ.showStatus("Replacing values in: "+imagePlus.getShortTitle()+" ...");
+
+				/* Work out, for each value, what it can be
+				   replaced with.  If there is only one
+				   possibility, that goes straight into the
+				   lookup table; -1 means that a replacement
+				   has to be picked at random. */
+
+				final Histogram histogram = histograms[b];
+				final Replacements [] replacements = new Replacements[histogram.values.length];
+				for( int i = 0; i < replacements.length; ++i )
+					replacements[i] = new Replacements();
+
+				histogram.walkQuantiles( numberOfQuantiles, new QuantileWalker() {
+					int lastQuantile = -1;
+					int lower, higher;
+					long lowerValues, replacementsAddedAlready;
+
+					void overlap( int q, long pointsInQuantile, int index, long r ) {
+						Replacements replacement = replacements[index];
+						if( replaceWithRankInstead ) {
+							int rank = q;
+							if( rescaleRanks )
+								rank = numberOfQuantiles > 1 ?
+									(int)((maxValue * (long)q) / (numberOfQuantiles - 1)) : 0;
+							replacement.addSomeReplacements( r, rank );
+							return;
 						}
-						
-						// This is the end inclusive...
-						long endInValues = frequencies[b][value] - 1;
-						
-						if (indexStartNextQuantile < cumulativeIncluding) {
-							endInValues = (indexStartNextQuantile - cumulativeBefore) - 1;
+
+						if( q != lastQuantile ) {
+							double mean = quantileMeans[q];
+							lower = (int) Math.floor(mean);
+							higher = (int) Math.ceil(mean);
+							double proportionLower = Math.ceil(mean) - mean;
+							lowerValues = Math.round(proportionLower*pointsInQuantile);
+							replacementsAddedAlready = 0;
+							lastQuantile = q;
 						}
-						long pointsInOverlap = (endInValues - startInValues) + 1;
-						numberOfValuesInQuantile[b][q] += pointsInOverlap;
-						sumValuesInQuantile[b][q] += value * pointsInOverlap;
-						replacementsInThisQuantile[value] = pointsInOverlap;
+
+						long howManyLowerToAdd = Math.min( r, Math.max( 0, lowerValues - replacementsAddedAlready ) );
+						replacement.addSomeReplacements( howManyLowerToAdd, lower );
+						replacement.addSomeReplacements( r - howManyLowerToAdd, higher );
+
+						replacementsAddedAlready += r;
 					}
-					
-					cumulativeBefore += frequencies[b][value];
-				}
-				
-				double mean = quantileMeans[q];
-				
-				int byteLowerThanMean = (int) Math.floor(mean);
-				int byteHigherThanMean = (int) Math.ceil(mean);
-				
-				double proportionLower = Math.ceil(mean) - mean;
-				int lowerBytes = (int) Math.round(proportionLower*(indexStartNextQuantile-indexStartThisQuantile));
-				int higherBytes = (int) (numberOfValuesInQuantile[b][q] - lowerBytes);
-				
-				long replacementsAddedAlready = 0;
-				
-				for( int i = 0; i < 256; ++i ) {
-					
-					long r = replacementsInThisQuantile[i];
-					
-					if( r == 0 )
-						continue;
-					
-					long howManyLowerToAdd = 0;
-					long howManyHigherToAdd = 0;
-					
-					if( replacementsAddedAlready >= lowerBytes ) {
-						howManyHigherToAdd = r;
-					} else if( replacementsAddedAlready + r >= lowerBytes ) {
-						howManyLowerToAdd = lowerBytes - replacementsAddedAlready;
-						howManyHigherToAdd = r - howManyLowerToAdd;
-					} else {
-						howManyLowerToAdd = r;
+				} );
+
+				int [] lookupTable = new int[maxValue + 1];
+				Replacements [] randomReplacements = new Replacements[maxValue + 1];
+				for( int i = 0; i < replacements.length; ++i ) {
+					int value = histogram.values[i];
+					if( replacements[i].size == 1 )
+						lookupTable[value] = replacements[i].replacements[0];
+					else {
+						lookupTable[value] = -1;
+						randomReplacements[value] = replacements[i];
 					}
-					
-					meanReplacements[i].addSomeReplacements(howManyLowerToAdd, byteLowerThanMean);
-					meanReplacements[i].addSomeReplacements(howManyHigherToAdd, byteHigherThanMean);
-					
-					rankReplacements[i].addSomeReplacements(r, q);
-					
-					replacementsAddedAlready += r;
 				}
-			}
-			
-			
-			IJ.showProgress(0);
-			
-			ImageStack newStack = new ImageStack(width,height);
-			for( int z = 0; z < depth; ++z ) {
-				byte [] oldPixels = (byte[])stack.getPixels(z+1);
-				byte [] newPixels = new byte[width*height];
-				for( int y = 0; y < height; ++y )
-					for( int x = 0; x < width; ++x ) {
-                                                if( (maskFileName != null) && ! inMask[z][y*width+x] )
+
+				Random rng = new Random();
+
+				int width=imagePlus.getWidth();
+				int height=imagePlus.getHeight();
+				int depth=imagePlus.getStackSize();
+
+				ImageStack stack=imagePlus.getStack();
+				ImageStack newStack = new ImageStack(width,height);
+				for( int z = 0; z < depth; ++z ) {
+					Object oldPixels = stack.getPixels(z+1);
+					byte [] oldBytes = bitDepth == 8 ? (byte[])oldPixels : null;
+					short [] oldShorts = bitDepth == 8 ? null : (short[])oldPixels;
+					byte [] newBytes = bitDepth == 8 ? new byte[width*height] : null;
+					short [] newShorts = bitDepth == 8 ? null : new short[width*height];
+					for( int i = 0; i < width*height; ++i ) {
+						if( useMask && ! isMasked(mask[z], i) )
 							continue;
-						int oldValue = oldPixels[y*width+x]&0xFF;
-						int replacement;
-						if( replaceWithRankInstead ) {
-							replacement = rankReplacements[oldValue].getRandomReplacement();
-							if(rescaleRanks)
-								replacement = (255*replacement) / (numberOfQuantiles - 1);
-						} else {                              
-							replacement = meanReplacements[oldValue].getRandomReplacement();
-						}
+						int oldValue = oldBytes != null ? oldBytes[i] & 0xff : oldShorts[i] & 0xffff;
+						int replacement = lookupTable[oldValue];
 						if( replacement < 0 ) {
-							System.out.println("BUG: ran out of replacements for "+oldValue);
-							newPixels[y*width+x] = (byte)oldValue;
-						} else {
-							newPixels[y*width+x] = (byte)replacement;
+							replacement = randomReplacements[oldValue].getRandomReplacement(rng);
+							if( replacement < 0 ) {
+								System.out.println("BUG: ran out of replacements for "+oldValue);
+								replacement = oldValue;
+							}
 						}
+						if( newBytes != null )
+							newBytes[i] = (byte)replacement;
+						else
+							newShorts[i] = (short)replacement;
 					}
-				ByteProcessor bp=new ByteProcessor(width,height);
-				bp.setPixels(newPixels);
-				newStack.addSlice("",bp);
-				
-				IJ.showProgress( z / (double)depth );
-				
-			}
-			
-			
-			IJ.showProgress(1.0);
+					if( newBytes != null )
+						newStack.addSlice("",new ByteProcessor(width,height,newBytes,null));
+					else
+						newStack.addSlice("",new ShortProcessor(width,height,newShorts,null));
+				}
 
-			if( ImagePlus.COLOR_256 == imagePlus.getType() ) {
-				ColorModel cm = null;
-				cm = stack.getColorModel();
-				if( cm != null ) {
-					newStack.setColorModel( cm );
+				if( ImagePlus.COLOR_256 == imagePlus.getType() ) {
+					ColorModel cm = stack.getColorModel();
+					if( cm != null ) {
+						newStack.setColorModel( cm );
+					}
 				}
+
+				ImagePlus newImage = new ImagePlus( "normalized "+imagePlus.getTitle(), newStack );
+				newImage.setCalibration(imagePlus.getCalibration());
+				imagePlus.close();
+
+				boolean saved=new FileSaver(newImage).saveAsTiffStack(outputFiles[b].getAbsolutePath());
+				newImage.close();
+				if( ! saved )
+					return "Failed to save "+outputFiles[b].getAbsolutePath();
+
+				IJ.showProgress( done.incrementAndGet(), 2 * n );
+				return null;
 			}
-						
-			ImagePlus newImage = new ImagePlus( "normalized "+imagePlus.getTitle(), newStack );
-			newImage.setCalibration(imagePlus.getCalibration());
-						
-			// newImage.show();
-			
-                        if( outputFile.exists() ) {
-                                YesNoCancelDialog yncd=new YesNoCancelDialog(
-					IJ.getInstance(),
-					"Confirm",
-					"The file "+outputFile.getAbsolutePath()+" already exists.  Overwrite it?");
-                                if( ! yncd.yesPressed() ) {
-					if( yncd.cancelPressed() ) {
-						IJ.showStatus("Quantile based normalization cancelled.");
-						newImage.close();
-						return;
-					} else {
-						newImage.close();
-						continue; // "No" was pressed, so skip writing this file and move on.
-					}
-                                }
-                        }
-			
-			boolean saved=new FileSaver(newImage).saveAsTiffStack(outputFile.getAbsolutePath());
-			if( ! saved )
-				return;
-			
-                        newImage.close();
-			imagePlus.close();
-			
+		} );
+
+		IJ.showProgress(1.0);
+
+		if( error != null ) {
+			IJ.error(error);
+			return;
 		}
-		
-		IJ.showStatus("Normalization complete: files written to: "+outputDirectory);		
-		
+
+		IJ.showStatus("Normalization complete: files written to: "+outputDirectory);
+
 	}
-		
-		
+
+
 	public void run(String ignored) {
 
 		Pattern macOSPattern = Pattern.compile("^Mac ?OS.*$",Pattern.CASE_INSENSITIVE);
@@ -656,8 +744,8 @@ public class Quantile_Based_Normalization implements PlugIn, ActionListener, Ite
 		-- channelToUse;
 				
                 int numberOfQuantiles = (int)gd.getNextNumber();
-                if( numberOfQuantiles < 1 || numberOfQuantiles > 256 ) {
-			IJ.error("Number of quantiles must be between 1 and 256 inclusive.");
+                if( numberOfQuantiles < 1 || numberOfQuantiles > 65536 ) {
+			IJ.error("Number of quantiles must be between 1 and 65536 inclusive (256 for 8 bit images).");
 			return;
                 }
 		
@@ -3,28 +3,41 @@
 package util;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
-import process3d.DistanceTransform3D;
-
 import ij.IJ;
 import ij.gui.GenericDialog;
-import ij.WindowManager;
 import ij.plugin.PlugIn;
 import ij.process.FloatProcessor;
 import ij.process.ByteProcessor;
-import ij.process.ShortProcessor;
-import ij.process.ImageProcessor;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.io.Opener;
 
 import vib.app.FileGroup;
 import vib.app.gui.FileGroupDialog;
 
 /**
  * Rohlfing, Maurer (2007): Shape-based averaging
+ *
+ * Every voxel gets the label whose signed distance map, averaged over
+ * all input images, is smallest there.  The distance maps are the
+ * chamfer distances of process3d.DistanceTransform3D (positive outside
+ * the label, negative inside).
+ *
+ * Each input is decoded only once, and kept in memory run-length coded
+ * (label images consist mostly of long runs); the labels which actually
+ * occur are processed in parallel, and their distance maps are only calculated
+ * within the bounding box of the label (over all inputs), grown by a
+ * margin.  Outside that box, the average distance is at least the
+ * chessboard distance to the box; if that lower bound does not rule
+ * out the label for some voxel outside the box, the box is enlarged
+ * and the label is processed again, so that the result is the same
+ * as with whole-volume distance maps.
  */
 public class RohlfingSBA implements PlugIn {
 
@@ -34,6 +47,19 @@ public class RohlfingSBA implements PlugIn {
 
 	private int w, h, d, L, K;
 
+	/* the margin (in voxels) added around the bounding boxes */
+	private int margin = 8;
+
+	/* labels[k][z] is slice z of input image k */
+	private Slice[][] labels;
+	/* presentIn[k][l] is true if label l occurs in image k */
+	private boolean[][] presentIn;
+	/* the bounding box of each label over all inputs (null if absent) */
+	private Box[] boxes;
+
+	/* the value DistanceTransform3D uses for "infinitely far" */
+	private float maxDistance;
+
 	public void run(String arg) {
 
 		Pattern macOSPattern = Pattern.compile("^Mac ?OS.*$",Pattern.CASE_INSENSITIVE);
@@ -48,126 +74,220 @@ public class RohlfingSBA implements PlugIn {
 		fg = new FileGroup("files");
 		FileGroupDialog fgd = new FileGroupDialog(fg, false);
 		gd.addPanel(fgd);
+		gd.addNumericField("Margin around labels (voxels)", margin, 0);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
-		init();
+		setMargin((int)gd.getNextNumber());
+		if(!init())
+			return;
 		doit();
 	}
 
-	ImagePlus calculate( ImagePlus a, String operation, ImagePlus b ) {
-		String parameter=operation+" 32 stack";
-		ImageCalculatorRevised calculator=new ImageCalculatorRevised();
-		return calculator.calculateResult(parameter,a,b);
-	}
-
 	public void setFileGroup( FileGroup fg ) {
 		this.fg = fg;
 	}
 
-	public ImagePlus doit() {
-		ImagePlus D = null;
-		IJ.showProgress(0.0);
-		for(int l = 0; l < L; l++) {
-			/*
-			if(l != 0 && l != 85 && l != 120
-				&& l != 132 && l != 153 && l != 170) {
-				continue;
-			}
-			*/
-			/*
-			if( ! (l == 255 || (l % 16) == 0) )
-				continue;
-			*/
-			System.out.println("At level "+l);
-			// Sum up the distance maps of all input images
-			for(int k = 0; k < K; k++) {
-				System.out.println("  Doing image "+k);
-				if(D == null) {
-					D = d_kl(l, k);
-				} else {
-					ImagePlus tmp=d_kl(l, k);
-					ImagePlus result=calculate(D,"add",tmp);
-					D.close();
-					tmp.close();
-					D = result;
-				}
-				IJ.showProgress((l*K+k)/(double)(L*K));
+	/**
+	 * The bounding boxes of the labels are grown by this margin; a
+	 * small margin means less work per label, but if it is too small,
+	 * labels have to be processed a second time.
+	 */
+	public void setMargin( int margin ) {
+		this.margin = Math.max(1, margin);
+	}
+
+	static class Box {
+		int x0, y0, z0, x1, y1, z1; // inclusive
+
+		Box(int x0, int y0, int z0, int x1, int y1, int z1) {
+			this.x0 = x0; this.y0 = y0; this.z0 = z0;
+			this.x1 = x1; this.y1 = y1; this.z1 = z1;
+		}
+
+		Box(Box other) {
+			this(other.x0, other.y0, other.z0,
+				other.x1, other.y1, other.z1);
+		}
+
+		void add(int x, int y, int z) {
+			if (x < x0) x0 = x;
+			if (x > x1) x1 = x;
+			if (y < y0) y0 = y;
+			if (y > y1) y1 = y;
+			if (z < z0) z0 = z;
+			if (z > z1) z1 = z;
+		}
+
+		Box grow(int by, int w, int h, int d) {
+			return new Box(Math.max(0, x0 - by),
+				Math.max(0, y0 - by), Math.max(0, z0 - by),
+				Math.min(w - 1, x1 + by),
+				Math.min(h - 1, y1 + by),
+				Math.min(d - 1, z1 + by));
+		}
+
+		boolean contains(Box other) {
+			return x0 <= other.x0 && other.x1 <= x1 &&
+				y0 <= other.y0 && other.y1 <= y1 &&
+				z0 <= other.z0 && other.z1 <= z1;
+		}
+
+		boolean contains(int x, int y, int z) {
+			return x0 <= x && x <= x1 && y0 <= y && y <= y1 &&
+				z0 <= z && z <= z1;
+		}
+
+		int width() { return x1 + 1 - x0; }
+		int height() { return y1 + 1 - y0; }
+		int depth() { return z1 + 1 - z0; }
+
+		long volume() {
+			return width() * (long)height() * depth();
+		}
+
+		/* the chessboard distance of (x, y, z) to this box */
+		int distance(int x, int y, int z) {
+			int dx = Math.max(0, Math.max(x0 - x, x - x1));
+			int dy = Math.max(0, Math.max(y0 - y, y - y1));
+			int dz = Math.max(0, Math.max(z0 - z, z - z1));
+			return Math.max(dx, Math.max(dy, dz));
+		}
+	}
+
+	/*
+	 * One slice of an input image, run-length coded row by row; if
+	 * that does not save memory, the pixels are kept as they are.
+	 */
+	static class Slice {
+		int w;
+		byte[] pixels;
+		/* the runs of row y are rowStart[y] <= r < rowStart[y + 1] */
+		int[] rowStart;
+		/* run r ends before x = end[r] and has the value value[r] */
+		int[] end;
+		byte[] value;
+
+		Slice(byte[] pixels, int w, int h) {
+			this.w = w;
+			int count = 0;
+			for(int y = 0; y < h; y++)
+				for(int x = 0, i = y * w; x < w; x++, i++)
+					if(x == 0 || pixels[i] != pixels[i - 1])
+						count++;
+			// every run takes an int and a byte
+			if(5L * count >= w * h) {
+				this.pixels = pixels;
+				return;
 			}
-			for(int z = 0; z < d; z++) {
-				// Devide it by the number of input images
-				D.getStack().getProcessor(z+1).multiply(1.0/K);
-				float[] D_p = (float[])D.getStack()
-						.getProcessor(z+1).getPixels();
-				float[] D_minp = (float[])D_min.getStack()
-						.getProcessor(z+1).getPixels();
-				byte[] output_p = (byte[])output.getStack()
-						.getProcessor(z+1).getPixels();
-				// if average distance is smaller than
-				// min distance, output is l
-				for(int i = 0; i < w*h; i++) {
-					if(D_p[i] < D_minp[i]) {
-						output_p[i] = (byte)l;
-						D_minp[i] = D_p[i];
+			rowStart = new int[h + 1];
+			end = new int[count];
+			value = new byte[count];
+			int r = 0;
+			for(int y = 0; y < h; y++) {
+				rowStart[y] = r;
+				for(int x = 0, i = y * w; x < w; x++, i++) {
+					if(x > 0 && pixels[i] == pixels[i - 1]) {
+						end[r - 1]++;
+						continue;
 					}
+					end[r] = x + 1;
+					value[r++] = pixels[i];
 				}
 			}
+			rowStart[h] = r;
 		}
-		IJ.showProgress(1);
-		output.show();
-		return output;
-	}
 
-	private ImagePlus d_kl(int l, int k) {
-		File file = fg.get(k);
-		ImagePlus image = BatchOpener.openFirstChannel( file.getAbsolutePath() );
-		// Remember: need signed dist transform
-		// Inside EDT
-		ImagePlus binary = createBinary(image, l);
-		image.close();
-		ImagePlus im1 = new DistanceTransform3D()
-			.getTransformed(binary, 0);
-		// Outside EDT
-		ImagePlus im2 = new DistanceTransform3D()
-			.getTransformed(binary, 255);
-		binary.close();
-		// Subtract Inside EDT from Outside EDT
-		ImagePlus result=calculate(im2,"sub",im1);
-		im1.close();
-		im2.close();
-		return result;
+		/* decode the count pixels of row y, starting at x0 */
+		void getRow(int y, int x0, int count, byte[] row) {
+			if(pixels != null) {
+				System.arraycopy(pixels, y * w + x0,
+						row, 0, count);
+				return;
+			}
+			// find the first run ending after x0
+			int lo = rowStart[y], hi = rowStart[y + 1] - 1;
+			while(lo < hi) {
+				int mid = (lo + hi) / 2;
+				if(end[mid] > x0)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			for(int x = 0, r = lo; x < count; r++) {
+				int stop = Math.min(end[r] - x0, count);
+				byte v = value[r];
+				while(x < stop)
+					row[x++] = v;
+			}
+		}
 	}
 
-	private ImagePlus createBinary(ImagePlus image, int value) {
-		int w = image.getWidth(), h = image.getWidth();
-		int d = image.getStackSize();
-		ImageStack stack = new ImageStack(w, h);
-		for(int z = 0; z < d; z++) {
-			byte[] f = new byte[w*h];
-			byte[] p = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-			for(int i = 0; i < w*h; i++)
-				f[i] = (int)(p[i]&0xff) == value ? (byte)255 : 0;
-			stack.addSlice("", new ByteProcessor(w, h, f, null));
-		}
-		return new ImagePlus("Label_" + (int)(value&0xff), stack);
-	}
+	/* a label, and the box its distance map is calculated in */
+	static class Label {
+		int value;
+		Box crop;
 
-	public void init() {
-		// Open the first image just to get the dimensions:
-		File file = fg.get(0);
-		ImagePlus image = BatchOpener.openFirstChannel( file.getAbsolutePath() );
-		w = image.getWidth();
-		h = image.getHeight();
-		d = image.getStackSize();
-		image.close();
+		Label(int value, Box crop) {
+			this.value = value;
+			this.crop = crop;
+		}
+	}
 
+	/**
+	 * Reads all input images (each exactly once) and finds out which
+	 * labels occur where.
+	 */
+	public boolean init() {
 		// The number of labels:
 		L = 256;
 		// The number of images:
 		K = fg.size();
+		if(K == 0) {
+			IJ.error("No input images");
+			return false;
+		}
+
+		labels = new Slice[K][];
+		presentIn = new boolean[K][L];
+		boxes = new Box[L];
+		for(int k = 0; k < K; k++) {
+			File file = fg.get(k);
+			IJ.showStatus("Reading " + file.getName() + " ("
+					+ (k + 1) + "/" + K + ")");
+			IJ.showProgress(k, K);
+			ImagePlus image = BatchOpener.openFirstChannel(
+					file.getAbsolutePath());
+			if(image == null) {
+				IJ.error("Could not open " + file);
+				return false;
+			}
+			if(k == 0) {
+				w = image.getWidth();
+				h = image.getHeight();
+				d = image.getStackSize();
+			} else if(image.getWidth() != w ||
+					image.getHeight() != h ||
+					image.getStackSize() != d) {
+				IJ.error(file.getName() + " has different "
+						+ "dimensions than "
+						+ fg.get(0).getName());
+				return false;
+			}
+			if(image.getBitDepth() != 8) {
+				IJ.error(file.getName() + " is not 8-bit");
+				return false;
+			}
+			ImageStack stack = image.getStack();
+			labels[k] = new Slice[d];
+			for(int z = 0; z < d; z++) {
+				byte[] pixels = (byte[])stack.getPixels(z + 1);
+				findBoxes(k, z, pixels);
+				labels[k][z] = new Slice(pixels, w, h);
+			}
+		}
 
-		// Initialize the output values to L:
+		// Initialize the output values to 0:
 		ImageStack stack = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
 			stack.addSlice("", new ByteProcessor(w, h));
@@ -182,5 +302,347 @@ public class RohlfingSBA implements PlugIn {
 			stack.addSlice("", new FloatProcessor(w, h, f, null));
 		}
 		D_min = new ImagePlus("D_min", stack);
+
+		maxDistance = (float)Math.sqrt(w*w + h*h + d*d);
+		IJ.showProgress(1);
+		return true;
+	}
+
+	private void findBoxes(int k, int z, byte[] p) {
+		boolean[] present = presentIn[k];
+		for(int y = 0; y < h; y++)
+			for(int x = 0, i = y * w; x < w; x++, i++) {
+				int l = p[i] & 0xff;
+				present[l] = true;
+				if(boxes[l] == null)
+					boxes[l] = new Box(x, y, z, x, y, z);
+				else
+					boxes[l].add(x, y, z);
+			}
+	}
+
+	public ImagePlus doit() {
+		IJ.showProgress(0.0);
+		ArrayList<Label> todo = new ArrayList<Label>();
+		for(int l = 0; l < L; l++)
+			if(boxes[l] != null)
+				todo.add(new Label(l,
+					boxes[l].grow(margin, w, h, d)));
+		process(todo);
+
+		/*
+		 * Outside its crop, the average distance to a label is at
+		 * least the chessboard distance to the label's bounding box.
+		 * Wherever that does not rule out the label, grow the crop
+		 * and do the label again.  As D_min only decreases, one
+		 * round is enough.
+		 */
+		IJ.showStatus("Checking label margins");
+		float maxMin = maximum(D_min);
+		ArrayList<Label> again = new ArrayList<Label>();
+		for(Label label : todo) {
+			Box crop = enlargedCrop(label, maxMin);
+			if(crop != null) {
+				label.crop = crop;
+				again.add(label);
+			}
+		}
+		if(again.size() > 0)
+			process(again);
+
+		IJ.showProgress(1);
+		IJ.showStatus("");
+		output.show();
+		return output;
+	}
+
+	private float maximum(ImagePlus image) {
+		float max = -Float.MAX_VALUE;
+		for(int z = 0; z < d; z++) {
+			float[] p = (float[])image.getStack().getPixels(z + 1);
+			for(int i = 0; i < p.length; i++)
+				if(max < p[i])
+					max = p[i];
+		}
+		return max;
+	}
+
+	/*
+	 * Rounding in the averaged distances is compensated for by this
+	 * slack (it only makes the check more conservative).
+	 */
+	private final static float SLACK = 1e-3f;
+
+	/*
+	 * Returns the crop needed for the label, or null if the current
+	 * one is sufficient.
+	 */
+	private Box enlargedCrop(Label label, float maxMin) {
+		Box box = boxes[label.value];
+		if(maxMin + SLACK < 1)
+			return null;
+		Box candidates = box.grow((int)(maxMin + SLACK), w, h, d);
+		if(label.crop.contains(candidates))
+			return null;
+
+		Box result = null;
+		Box crop = label.crop;
+		for(int z = candidates.z0; z <= candidates.z1; z++) {
+			float[] dmin = (float[])D_min.getStack()
+				.getPixels(z + 1);
+			for(int y = candidates.y0; y <= candidates.y1; y++)
+				for(int x = candidates.x0;
+						x <= candidates.x1; x++) {
+					if(crop.contains(x, y, z))
+						continue;
+					int lowerBound = box.distance(x, y, z);
+					if(lowerBound - SLACK > dmin[y * w + x])
+						continue;
+					if(result == null)
+						result = new Box(crop);
+					result.add(x, y, z);
+				}
+		}
+		return result;
+	}
+
+	/*
+	 * Calculate the average distance maps of the given labels in
+	 * parallel, and merge them into D_min and output.
+	 *
+	 * Every thread needs three float arrays of the size of the
+	 * largest crop, so there are not more threads than fit into
+	 * the memory left over by the (coded) inputs, D_min and output.
+	 */
+	private void process(final ArrayList<Label> list) {
+		Collections.sort(list, new Comparator<Label>() {
+			public int compare(Label a, Label b) {
+				long va = a.crop.volume(), vb = b.crop.volume();
+				return va > vb ? -1 : va < vb ? 1 : 0;
+			}
+		});
+		final int size = (int)list.get(0).crop.volume();
+
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory()
+			- (runtime.totalMemory() - runtime.freeMemory());
+		int threadCount = (int)Math.max(1, Math.min(
+				free / (3L * 4 * size),
+				runtime.availableProcessors()));
+
+		final Object[] locks = new Object[d];
+		for(int z = 0; z < d; z++)
+			locks[z] = new Object();
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread[] threads =
+			new Thread[Math.min(threadCount, list.size())];
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					float[] sum = new float[size];
+					float[] outside = new float[size];
+					float[] inside = new float[size];
+					byte[] row = new byte[w];
+					for(int i = ai.getAndIncrement();
+							i < list.size();
+							i = ai.getAndIncrement()) {
+						Label label = list.get(i);
+						average(label, sum,
+							outside, inside, row);
+						merge(label, sum, locks);
+						IJ.showProgress(
+							done.incrementAndGet(),
+							list.size());
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch(InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+
+	/*
+	 * sum = average over all images of (outside EDT - inside EDT),
+	 * within the label's crop.
+	 */
+	private void average(Label label, float[] sum, float[] outside,
+			float[] inside, byte[] row) {
+		Box crop = label.crop;
+		int cw = crop.width(), ch = crop.height(), cd = crop.depth();
+		int n = cw * ch * cd;
+		Chamfer chamfer = new Chamfer(cw, ch, cd, maxDistance);
+		byte value = (byte)label.value;
+
+		Arrays.fill(sum, 0, n, 0);
+		for(int k = 0; k < K; k++) {
+			if(!presentIn[k][label.value]) {
+				// no label: the outside EDT is "infinity"
+				for(int i = 0; i < n; i++)
+					sum[i] += maxDistance;
+				continue;
+			}
+			for(int z = 0, i = 0; z < cd; z++) {
+				Slice slice = labels[k][z + crop.z0];
+				for(int y = 0; y < ch; y++) {
+					slice.getRow(y + crop.y0, crop.x0,
+							cw, row);
+					for(int x = 0; x < cw; x++, i++)
+						if(row[x] == value) {
+							outside[i] = 0;
+							inside[i] = maxDistance;
+						} else {
+							outside[i] = maxDistance;
+							inside[i] = 0;
+						}
+				}
+			}
+			chamfer.transform(outside);
+			chamfer.transform(inside);
+			for(int i = 0; i < n; i++)
+				sum[i] += outside[i] - inside[i];
+		}
+	}
+
+	/*
+	 * If the average distance is smaller than the min distance, the
+	 * output is the label; ties go to the smaller label.
+	 */
+	private void merge(Label label, float[] sum, Object[] locks) {
+		Box crop = label.crop;
+		int cw = crop.width(), ch = crop.height(), cd = crop.depth();
+		double factor = 1.0 / K;
+		int l = label.value;
+		for(int z = 0, i = 0; z < cd; z++) {
+			float[] dmin = (float[])D_min.getStack()
+				.getPixels(z + crop.z0 + 1);
+			byte[] out = (byte[])output.getStack()
+				.getPixels(z + crop.z0 + 1);
+			synchronized(locks[z + crop.z0]) {
+				for(int y = 0; y < ch; y++) {
+					int j = (y + crop.y0) * w + crop.x0;
+					for(int x = 0; x < cw; x++, i++, j++) {
+						float v = (float)(sum[i] * factor);
+						if(v < dmin[j] || (v == dmin[j] &&
+								l < (out[j] & 0xff))) {
+							dmin[j] = v;
+							out[j] = (byte)l;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The two-pass chamfer distance transform of DistanceTransform3D
+	 * (distance to the nearest voxel with value 0), on a flat array.
+	 */
+	static class Chamfer {
+		final static float SQ1 = 1f;
+		final static float SQ2 = (float)Math.sqrt(2);
+		final static float SQ3 = (float)Math.sqrt(3);
+
+		final static int[][] FORWARD = {
+			{-1, -1, -1}, {0, -1, -1}, {1, -1, -1},
+			{-1, 0, -1}, {0, 0, -1}, {1, 0, -1},
+			{-1, 1, -1}, {0, 1, -1}, {1, 1, -1},
+			{-1, -1, 0}, {0, -1, 0}, {1, -1, 0}, {-1, 0, 0}
+		};
+		final static int[][] BACKWARD = {
+			{1, 0, 0}, {-1, 1, 0}, {0, 1, 0}, {1, 1, 0},
+			{-1, -1, 1}, {0, -1, 1}, {1, -1, 1},
+			{-1, 0, 1}, {0, 0, 1}, {1, 0, 1},
+			{-1, 1, 1}, {0, 1, 1}, {1, 1, 1}
+		};
+		final static float[] WEIGHT = { 0, SQ1, SQ2, SQ3 };
+
+		int w, h, d;
+		float maxValue;
+		int[] forwardOffset = new int[13], backwardOffset = new int[13];
+		float[] forwardWeight = new float[13];
+		float[] backwardWeight = new float[13];
+
+		Chamfer(int w, int h, int d, float maxValue) {
+			this.w = w; this.h = h; this.d = d;
+			this.maxValue = maxValue;
+			for(int i = 0; i < 13; i++) {
+				forwardOffset[i] = offset(FORWARD[i]);
+				forwardWeight[i] = weight(FORWARD[i]);
+				backwardOffset[i] = offset(BACKWARD[i]);
+				backwardWeight[i] = weight(BACKWARD[i]);
+			}
+		}
+
+		int offset(int[] delta) {
+			return delta[0] + w * (delta[1] + h * delta[2]);
+		}
+
+		float weight(int[] delta) {
+			return WEIGHT[Math.abs(delta[0]) + Math.abs(delta[1])
+				+ Math.abs(delta[2])];
+		}
+
+		void transform(float[] dist) {
+			pass(dist, FORWARD, forwardOffset, forwardWeight,
+					0, 1, maxValue);
+			pass(dist, BACKWARD, backwardOffset, backwardWeight,
+					w * h * d - 1, -1, maxValue);
+		}
+
+		/*
+		 * Neighbours outside the box are ignored; for voxels
+		 * away from the border, the offsets are used directly.
+		 */
+		private void pass(float[] dist, int[][] deltas, int[] offsets,
+				float[] weights, int start, int step,
+				float maxValue) {
+			int i = start;
+			boolean forward = step > 0;
+			for(int zz = 0; zz < d; zz++) {
+				int z = forward ? zz : d - 1 - zz;
+				for(int yy = 0; yy < h; yy++) {
+					int y = forward ? yy : h - 1 - yy;
+					boolean inner = z > 0 && z < d - 1
+						&& y > 0 && y < h - 1;
+					for(int xx = 0; xx < w; xx++, i += step) {
+						int x = forward ? xx : w - 1 - xx;
+						float current = dist[i];
+						if(current == 0)
+							continue;
+						float min = forward ? maxValue :
+							Math.min(maxValue, current);
+						if(inner && x > 0 && x < w - 1) {
+							for(int n = 0; n < 13; n++) {
+								float v = weights[n]
+									+ dist[i + offsets[n]];
+								if(v < min)
+									min = v;
+							}
+						} else for(int n = 0; n < 13; n++) {
+							int[] delta = deltas[n];
+							int x2 = x + delta[0];
+							int y2 = y + delta[1];
+							int z2 = z + delta[2];
+							if(x2 < 0 || x2 >= w ||
+									y2 < 0 || y2 >= h ||
+									z2 < 0 || z2 >= d)
+								continue;
+							float v = weights[n]
+								+ dist[i + offsets[n]];
+							if(v < min)
+								min = v;
+						}
+						dist[i] = min;
+					}
+				}
+			}
+		}
 	}
 }
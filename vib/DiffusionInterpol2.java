@@ -14,6 +14,11 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class DiffusionInterpol2 {
 	ImagePlus image;
 	FloatMatrix[] labelTransformations;
@@ -88,84 +93,425 @@ public class DiffusionInterpol2 {
 
 	float[][] displace;
 
-	int level;
-	float accumX, accumY, accumZ;
-	float curX, curY, curZ;
+	/*
+	 * The displacement of the unlabeled voxels is the solution of the
+	 * Laplace equation, with the labeled voxels as (Dirichlet) boundary
+	 * conditions and mirrored values at the image boundaries.  It is
+	 * solved with full multigrid and V-cycles: every level has half the
+	 * resolution of the previous one, and the Gauss-Seidel sweeps use
+	 * red-black ordering, so that the slices of one color can be
+	 * relaxed in parallel.
+	 */
+	static class Level {
+		int w, h, d;
+		// the displacements (or corrections), 3 floats per voxel
+		float[][] u;
+		// the right hand side; null means 0
+		float[][] f;
+		// bitmap of the voxels with fixed values
+		long[][] fixed;
+
+		Level(int w, int h, int d) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			fixed = new long[d][(w * h + 63) / 64];
+		}
+
+		final boolean isFixed(int k, int index) {
+			return (fixed[k][index >> 6] & (1l << index)) != 0;
+		}
+
+		final void setFixed(int k, int index) {
+			fixed[k][index >> 6] |= 1l << index;
+		}
+
+		Level coarser() {
+			Level c = new Level((w - 1) / 2 + 1, (h - 1) / 2 + 1,
+					(d - 1) / 2 + 1);
+			c.u = new float[c.d][3 * c.w * c.h];
+			c.f = new float[c.d][3 * c.w * c.h];
+			for (int k = 0; k < c.d; k++)
+				for (int j = 0; j < c.h; j++)
+					for (int i = 0; i < c.w; i++)
+						if (isFixedNear(2 * i, 2 * j,
+								2 * k))
+							c.setFixed(k, j * c.w + i);
+			return c;
+		}
+
+		/*
+		 * A coarse voxel is fixed if the fine voxel at the same
+		 * position, or one of its 6 neighbours is fixed; otherwise
+		 * the coarse correction would not see the fixed values next
+		 * to it, and overshoot.
+		 */
+		boolean isFixedNear(int i, int j, int k) {
+			return isFixed(k, j * w + i) ||
+				isFixed(lower(k, d), j * w + i) ||
+				isFixed(upper(k, d), j * w + i) ||
+				isFixed(k, lower(j, h) * w + i) ||
+				isFixed(k, upper(j, h) * w + i) ||
+				isFixed(k, j * w + lower(i, w)) ||
+				isFixed(k, j * w + upper(i, w));
+		}
 
-	final private void accumAdd(int i, int j, int k) {
-		accumX += displace[k][3 * (j * template.w + i) + 0];
-		accumY += displace[k][3 * (j * template.w + i) + 1];
-		accumZ += displace[k][3 * (j * template.w + i) + 2];
+		/*
+		 * Initialize the coarser level with the solution of this
+		 * one, so that it can be solved first (full multigrid).
+		 * Coarse voxels which are only fixed because of a fixed
+		 * neighbour get the mean of the fixed neighbours.
+		 */
+		void injectInto(Level c) {
+			for (int k = 0; k < c.d; k++)
+				for (int j = 0; j < c.h; j++)
+					for (int i = 0; i < c.w; i++) {
+						float[] v = c.u[k];
+						int index = 3 * (j * c.w + i);
+						int x = 2 * i, y = 2 * j, z = 2 * k;
+						if (!c.isFixed(k, j * c.w + i) ||
+								isFixed(z, y * w + x)) {
+							System.arraycopy(u[z],
+								3 * (y * w + x),
+								v, index, 3);
+							continue;
+						}
+						v[index] = v[index + 1] =
+							v[index + 2] = 0;
+						int count = 0;
+						count += addIfFixed(lower(z, d), y, x, v, index);
+						count += addIfFixed(upper(z, d), y, x, v, index);
+						count += addIfFixed(z, lower(y, h), x, v, index);
+						count += addIfFixed(z, upper(y, h), x, v, index);
+						count += addIfFixed(z, y, lower(x, w), v, index);
+						count += addIfFixed(z, y, upper(x, w), v, index);
+						for (int n = 0; n < 3; n++)
+							v[index + n] /= count;
+					}
+		}
+
+		private int addIfFixed(int k, int j, int i, float[] v,
+				int index) {
+			if (!isFixed(k, j * w + i))
+				return 0;
+			for (int n = 0; n < 3; n++)
+				v[index + n] += u[k][3 * (j * w + i) + n];
+			return 1;
+		}
 	}
 
-	final void iterateInnerPart(int i, int j, int k) {
-		if (templateLabels.getNoInterpol(i, j, k) != 0)
-			return;
+	/* mirror at the boundaries */
+	static final int lower(int i, int n) {
+		return i > 0 ? i - 1 : n > 1 ? 1 : 0;
+	}
 
-		accumX = accumY = accumZ = 0;
+	static final int upper(int i, int n) {
+		return i < n - 1 ? i + 1 : n > 1 ? n - 2 : 0;
+	}
 
-		curX = displace[k][3 * (j * template.w + i) + 0];
-		curY = displace[k][3 * (j * template.w + i) + 1];
-		curZ = displace[k][3 * (j * template.w + i) + 2];
+	/* runs slice() for all slices, in parallel if it is worth it */
+	abstract static class SliceLoop {
+		abstract void slice(int k);
 
-		if (k - level >= 0) accumAdd(i, j, k - level); else accumAdd(i, j, k + level);
-		if (j - level >= 0) accumAdd(i, j - level, k); else accumAdd(i, j + level, k);
-		if (i - level >= 0) accumAdd(i - level, j, k); else accumAdd(i + level, j, k);
-		if (k + level < template.d) accumAdd(i, j, k + level); else accumAdd(i, j, k - level);
-		if (j + level < template.h) accumAdd(i, j + level, k); else accumAdd(i, j - level, k);
-		if (i + level < template.w) accumAdd(i + level, j, k); else accumAdd(i - level, j, k);
+		void run(final int n, int voxelsPerSlice) {
+			int count = Runtime.getRuntime().availableProcessors();
+			if (count < 2 || (long)n * voxelsPerSlice < 32768) {
+				for (int k = 0; k < n; k++)
+					slice(k);
+				return;
+			}
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = new Thread[Math.min(n, count)];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int k = ai.getAndIncrement();
+								k < n;
+								k = ai.getAndIncrement())
+							slice(k);
+					}
+				};
+				threads[t].start();
+			}
+			for (int t = 0; t < threads.length; t++)
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					IJ.handleException(e);
+				}
+		}
+	}
 
-		accumX /= 6;
-		accumY /= 6;
-		accumZ /= 6;
+	/* one red-black Gauss-Seidel sweep */
+	void smooth(final Level l) {
+		for (int c = 0; c < 2; c++) {
+			final int color = c;
+			new SliceLoop() {
+				void slice(int k) {
+					smoothSlice(l, k, color);
+				}
+			}.run(l.d, l.w * l.h);
+		}
+	}
 
-		float delta = Math.abs(curX - accumX) +
-			Math.abs(curY - accumY) +
-			Math.abs(curZ - accumZ);
+	static void smoothSlice(Level l, int k, int color) {
+		int w = l.w, h = l.h;
+		float[] u = l.u[k];
+		float[] below = l.u[lower(k, l.d)];
+		float[] above = l.u[upper(k, l.d)];
+		float[] f = l.f == null ? null : l.f[k];
+		for (int j = 0; j < h; j++) {
+			int jl = lower(j, h) * w, ju = upper(j, h) * w;
+			for (int i = (color + j + k) & 1; i < w; i += 2) {
+				int index = j * w + i;
+				if (l.isFixed(k, index))
+					continue;
+				int il = lower(i, w), iu = upper(i, w);
+				for (int c = 0; c < 3; c++) {
+					float sum = below[3 * index + c]
+						+ above[3 * index + c]
+						+ u[3 * (jl + i) + c]
+						+ u[3 * (ju + i) + c]
+						+ u[3 * (j * w + il) + c]
+						+ u[3 * (j * w + iu) + c];
+					if (f != null)
+						sum -= f[3 * index + c];
+					u[3 * index + c] = sum / 6;
+				}
+			}
+		}
+	}
 
-		if (delta > 0) {
-			displace[k][3 * (j * template.w + i) + 0] = accumX;
-			displace[k][3 * (j * template.w + i) + 1] = accumY;
-			displace[k][3 * (j * template.w + i) + 2] = accumZ;
+	/* the residual (sum of the neighbours - 6 u - f) of one slice */
+	static void residual(Level l, int k, float[] r) {
+		int w = l.w, h = l.h;
+		float[] u = l.u[k];
+		float[] below = l.u[lower(k, l.d)];
+		float[] above = l.u[upper(k, l.d)];
+		float[] f = l.f == null ? null : l.f[k];
+		for (int j = 0; j < h; j++) {
+			int jl = lower(j, h) * w, ju = upper(j, h) * w;
+			for (int i = 0; i < w; i++) {
+				int index = j * w + i;
+				if (l.isFixed(k, index)) {
+					r[3 * index] = r[3 * index + 1] =
+						r[3 * index + 2] = 0;
+					continue;
+				}
+				int il = lower(i, w), iu = upper(i, w);
+				for (int c = 0; c < 3; c++) {
+					float sum = below[3 * index + c]
+						+ above[3 * index + c]
+						+ u[3 * (jl + i) + c]
+						+ u[3 * (ju + i) + c]
+						+ u[3 * (j * w + il) + c]
+						+ u[3 * (j * w + iu) + c]
+						- 6 * u[3 * index + c];
+					if (f != null)
+						sum -= f[3 * index + c];
+					r[3 * index + c] = sum;
+				}
+			}
+		}
+	}
 
-			if (delta > 0.1) changed++;
-			if (delta > 3) changed++;
-			if (delta > mdelta)
-				mdelta=delta;
+	double sumSquares;
+	long residualCount;
+	float maxDelta;
+
+	/*
+	 * Measure the residual of one slice: the sum of squares, and the
+	 * largest change a Jacobi step would make (the sum of the absolute
+	 * values of the three components, divided by 6).
+	 */
+	void addResidual(Level l, int k, float[] r) {
+		double squares = 0;
+		long count = 0;
+		float delta = 0;
+		for (int index = 0; index < l.w * l.h; index++) {
+			if (l.isFixed(k, index))
+				continue;
+			float x = r[3 * index];
+			float y = r[3 * index + 1];
+			float z = r[3 * index + 2];
+			squares += x * x + y * y + z * z;
+			count++;
+			float d = (Math.abs(x) + Math.abs(y) + Math.abs(z)) / 6;
+			if (d > delta)
+				delta = d;
+		}
+		synchronized (this) {
+			sumSquares += squares;
+			residualCount += count;
+			if (delta > maxDelta)
+				maxDelta = delta;
 		}
+	}
 
+	void resetResidual() {
+		sumSquares = 0;
+		residualCount = 0;
+		maxDelta = 0;
 	}
 
-	int changed, bchanged;
-	float mdelta;
+	/* the root mean square of the measured residual */
+	float getResidualNorm() {
+		return residualCount == 0 ? 0 :
+			(float)Math.sqrt(sumSquares / residualCount);
+	}
 
-	float iterateNormal() {
-		changed = bchanged = 0;
-		mdelta = 0;
+	void measure(final Level l) {
+		resetResidual();
+		new SliceLoop() {
+			void slice(int k) {
+				float[] r = new float[3 * l.w * l.h];
+				residual(l, k, r);
+				addResidual(l, k, r);
+			}
+		}.run(l.d, l.w * l.h);
+	}
 
-		int maxW = template.w - 1 - ((template.w - 1) % level);
-		int maxH = template.h - 1 - ((template.h - 1) % level);
-		int maxD = template.d - 1 - ((template.d - 1) % level);
+	/*
+	 * Restrict the residual of the fine level to the right hand side
+	 * of the coarse one (full weighting), and start the coarse
+	 * correction at 0.  On the way, the fine residual is measured.
+	 */
+	void restrict(final Level fine, final Level coarse) {
+		resetResidual();
+		new SliceLoop() {
+			void slice(int k) {
+				restrictSlice(fine, coarse, k);
+			}
+		}.run(coarse.d, fine.w * fine.h * 3);
+	}
 
-		for (int k = maxD; k >= 0; k -= level) {
-			for (int j = maxH; j >= 0; j -= level)
-				for (int i = maxW; i >= 0; i -= level)
-					iterateInnerPart(i, j, k);
-			IJ.showProgress(1 * template.d - k, 2 * template.d);
+	static final float[] WEIGHTS = { 0.25f, 0.5f, 0.25f };
+
+	void restrictSlice(Level fine, Level coarse, int k) {
+		int w = fine.w, h = fine.h;
+		float[][] r = new float[3][3 * w * h];
+		for (int dz = -1; dz <= 1; dz++) {
+			int z = 2 * k + dz;
+			z = z < 0 ? lower(0, fine.d) :
+				z >= fine.d ? upper(fine.d - 1, fine.d) : z;
+			residual(fine, z, r[dz + 1]);
+			// every fine slice is measured once
+			if (dz >= 0 && z == 2 * k + dz)
+				addResidual(fine, z, r[dz + 1]);
 		}
 
-		for (int k = 0; k < template.d; k += level) {
-			for (int j = 0; j < template.h; j += level)
-				for (int i = 0; i < template.w; i += level)
-					iterateInnerPart(i, j, k);
-			IJ.showProgress(template.d + k + 1, template.d * 2);
-		}
+		float[] f = coarse.f[k];
+		float[] u = coarse.u[k];
+		for (int j = 0; j < coarse.h; j++)
+			for (int i = 0; i < coarse.w; i++) {
+				int index = j * coarse.w + i;
+				for (int c = 0; c < 3; c++)
+					u[3 * index + c] = f[3 * index + c] = 0;
+				if (coarse.isFixed(k, index))
+					continue;
+				for (int dz = 0; dz < 3; dz++)
+					for (int dy = -1; dy <= 1; dy++) {
+						int y = 2 * j + dy;
+						y = y < 0 ? lower(0, h) : y >= h ?
+							upper(h - 1, h) : y;
+						for (int dx = -1; dx <= 1; dx++) {
+							int x = 2 * i + dx;
+							x = x < 0 ? lower(0, w) :
+								x >= w ?
+								upper(w - 1, w) : x;
+							float weight = WEIGHTS[dz]
+								* WEIGHTS[dy + 1]
+								* WEIGHTS[dx + 1];
+							/*
+							 * the coarse level solves
+							 * L e = -r, with
+							 * twice the grid spacing
+							 */
+							weight *= -4;
+							int i2 = 3 * (y * w + x);
+							for (int c = 0; c < 3; c++)
+								f[3 * index + c] +=
+									weight *
+									r[dz][i2 + c];
+						}
+					}
+			}
+	}
 
-		IJ.showProgress(1, 1);
+	/*
+	 * Interpolate the coarse level trilinearly, and add it to the
+	 * free voxels of the fine level (or replace them).
+	 */
+	void prolong(final Level coarse, final Level fine,
+			final boolean add) {
+		new SliceLoop() {
+			void slice(int k) {
+				prolongSlice(coarse, fine, k, add);
+			}
+		}.run(fine.d, fine.w * fine.h);
+	}
+
+	static void prolongSlice(Level coarse, Level fine, int k,
+			boolean add) {
+		int k0 = k / 2, k1 = Math.min(k0 + (k & 1), coarse.d - 1);
+		float[] u = fine.u[k];
+		float[] c0 = coarse.u[k0], c1 = coarse.u[k1];
+		int cw = coarse.w;
+		for (int j = 0; j < fine.h; j++) {
+			int j0 = j / 2;
+			int j1 = Math.min(j0 + (j & 1), coarse.h - 1);
+			for (int i = 0; i < fine.w; i++) {
+				int index = j * fine.w + i;
+				if (fine.isFixed(k, index))
+					continue;
+				int i0 = i / 2;
+				int i1 = Math.min(i0 + (i & 1), cw - 1);
+				int a = 3 * (j0 * cw + i0), b = 3 * (j0 * cw + i1);
+				int c = 3 * (j1 * cw + i0), d = 3 * (j1 * cw + i1);
+				for (int n = 0; n < 3; n++) {
+					float v = 0.125f *
+						(c0[a + n] + c0[b + n]
+						 + c0[c + n] + c0[d + n]
+						 + c1[a + n] + c1[b + n]
+						 + c1[c + n] + c1[d + n]);
+					u[3 * index + n] = add ?
+						u[3 * index + n] + v : v;
+				}
+			}
+		}
+	}
 
-		return mdelta;
+	final static int PRE_SMOOTH = 2, POST_SMOOTH = 2, COARSEST_SMOOTH = 50;
+
+	Level[] levels;
+	// the root mean square of the residual per level, last V-cycle
+	float[] residualNorms;
+
+	/*
+	 * Returns the largest change (see restrict()) of the finest level
+	 * as it was before the coarse correction.
+	 */
+	float vCycle(int n) {
+		Level l = levels[n];
+		if (n == levels.length - 1) {
+			for (int i = 0; i < COARSEST_SMOOTH; i++)
+				smooth(l);
+			return 0;
+		}
+		for (int i = 0; i < PRE_SMOOTH; i++)
+			smooth(l);
+		restrict(l, levels[n + 1]);
+		float delta = maxDelta;
+		residualNorms[n] = getResidualNorm();
+		vCycle(n + 1);
+		prolong(levels[n + 1], l, true);
+		for (int i = 0; i < POST_SMOOTH; i++)
+			smooth(l);
+		return delta;
 	}
 
+	final static int MAX_CYCLES = 100;
+
 	final float MAGIC = (float)40711.22;
 
 	void propagateInitial() {
@@ -237,37 +583,69 @@ public class DiffusionInterpol2 {
 	void iterate(float tolerance, boolean fine) {
 		VIB.showStatus("diffusion in progress");
 
-		level = fine ? 1 : 16;
-
-		for ( ; level>=1 ; level /= 2) {
-			for (int i = 1; true; i++) {
-				float tol = tolerance / level;
-
-				VIB.showStatus("Level " + level + ", Iteration " + i + " (delta was "+mdelta+")");
-
-				if (iterateNormal() < tol)
+		Level l = new Level(template.w, template.h, template.d);
+		l.u = displace;
+		for (int k = 0; k < l.d; k++)
+			for (int j = 0; j < l.h; j++)
+				for (int i = 0; i < l.w; i++)
+					if (templateLabels.getNoInterpol(i, j, k)
+							!= 0)
+						l.setFixed(k, j * l.w + i);
+
+		List<Level> list = new ArrayList<Level>();
+		list.add(l);
+		// the coarsest level needs at least 3 voxels in each dimension
+		while (!fine && list.size() < 8 &&
+				Math.min(l.w, Math.min(l.h, l.d)) >= 5) {
+			l = l.coarser();
+			list.add(l);
+		}
+		levels = list.toArray(new Level[list.size()]);
+		residualNorms = new float[levels.length];
+
+		if (levels.length == 1) {
+			// no coarser level: plain Gauss-Seidel
+			for (int i = 1; ; i++) {
+				smooth(levels[0]);
+				measure(levels[0]);
+				residualNorms[0] = getResidualNorm();
+				VIB.showStatus("Iteration " + i + " (residual "
+					+ residualNorms[0] + ")");
+				if (maxDelta < tolerance)
 					break;
-
 			}
+			return;
+		}
 
-			if (level>1) {
-				VIB.showStatus("Level jump " + level + " -> " + (level/2));
-				for (int k = 0 ; k < template.d; k += level) {
-					for (int j = 0; j < template.h ; j += level)
-						for (int i = 0; i < template.w; i += level) {
-							int kMax = (k + level >= template.d ? template.d : k + level);
-							int jMax = (j + level >= template.h ? template.h : j + level);
-							int iMax = (i + level >= template.w ? template.w : i + level);
-							for (int dk = k; dk < kMax; dk++)
-								for (int dj = j; dj < jMax; dj++)
-									for (int di = i; di < iMax; di++) {
-										if (templateLabels.getNoInterpol(di, dj, dk) == 0)
-											copyDisplace(di, dj, dk, i, j, k);
-									}
-						}
-				}
-			}
+		/*
+		 * Full multigrid: solve the coarsest level first, and use
+		 * the interpolated solution of each level as starting point
+		 * for the next finer one.
+		 */
+		int last = levels.length - 1;
+		for (int n = 0; n < last; n++)
+			levels[n].injectInto(levels[n + 1]);
+		for (int i = 0; i < COARSEST_SMOOTH; i++)
+			smooth(levels[last]);
+		for (int n = last - 1; n >= 0; n--) {
+			VIB.showStatus("Initializing level " + n);
+			prolong(levels[n + 1], levels[n], false);
+			if (n > 0)
+				vCycle(n);
+		}
+
+		for (int i = 1; i <= MAX_CYCLES; i++) {
+			float delta = vCycle(0);
+			String status = "V-cycle " + i + ", residual per level:";
+			for (int n = 0; n < levels.length - 1; n++)
+				status += " " + residualNorms[n];
+			VIB.showStatus(status);
+			IJ.showProgress(i, MAX_CYCLES);
+			if (delta < tolerance)
+				break;
 		}
+		IJ.showProgress(1, 1);
+		levels = null;
 	}
 
 	void apply() {
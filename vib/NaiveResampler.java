@@ -11,6 +11,17 @@ import ij.plugin.*;
 import ij.process.*;
 import ij.plugin.filter.*;
 
+import java.lang.ref.SoftReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
 /* This plugin takes a binned image as input. It then reassigns equally spaced
    gray values to the pixels. */
 public class NaiveResampler {
@@ -18,10 +29,14 @@ public class NaiveResampler {
 		return b[index] & 0xff;
 	}
 
+	/*
+	 * Accumulators are stateful; every thread works on its own copy.
+	 */
 	private static interface Accumulator {
 		void reset();
 		void add(int value);
 		int get();
+		Accumulator copy();
 	}
 
 	public static class Averager implements Accumulator {
@@ -29,6 +44,7 @@ public class NaiveResampler {
 		public void reset() { cumul = count = 0; }
 		public void add(int value) { cumul += value; count++; }
 		public int get() { return (int)(cumul/count); }
+		public Accumulator copy() { return new Averager(); }
 	}
 
 	public static class IntAverager implements Accumulator {
@@ -46,10 +62,14 @@ public class NaiveResampler {
 		}
 
 		public int get() {
-			return (int)(((cumulR / count) << 16) 
+			return (int)(((cumulR / count) << 16)
 				+ ((cumulG / count) << 8)
 				+ cumulB / count);
 		}
+
+		public Accumulator copy() {
+			return new IntAverager();
+		}
 	}
 
 	public static class MaxLikelihood implements Accumulator {
@@ -81,6 +101,9 @@ public class NaiveResampler {
 		public int get() {
 			return indexOfHighest;
 		}
+		public Accumulator copy() {
+			return new MaxLikelihood(max);
+		}
 		public String toString() {
 			String result = "";
 			for (int i = 0; i <= max; i++) {
@@ -123,8 +146,13 @@ public class NaiveResampler {
 					histogram[ii.getNoInterpolShort(iter.i, iter.j, iter.k)]++;
 		}
 
+		/* the histogram is only read, so the copies can share it */
+		private MinEntropy(int[] histogram) {
+			this.histogram = histogram;
+		}
+
 		int currentValue = -1;
-		
+
 		public void reset() {
 			currentValue = -1;
 		}
@@ -139,9 +167,13 @@ public class NaiveResampler {
 		public int get() {
 			return currentValue;
 		}
+
+		public Accumulator copy() {
+			return new MinEntropy(histogram);
+		}
 	}
 
-	public static ImagePlus resample(ImagePlus image, int factorX, 
+	public static ImagePlus resample(ImagePlus image, int factorX,
 					int factorY, int factorZ) {
 		Accumulator accu = null;
 		int type = image.getType();
@@ -161,8 +193,8 @@ public class NaiveResampler {
 	public static ImagePlus resample(ImagePlus image, int factor){
 		return resample(image, factor, factor, factor);
 	}
-	
-	public static ImagePlus resampleMinEnt(ImagePlus image, int factorX, 
+
+	public static ImagePlus resampleMinEnt(ImagePlus image, int factorX,
 					int factorY, int factorZ) {
 		return resample(image, factorX, factorY, factorZ,new MinEntropy(image));
 	}
@@ -171,93 +203,204 @@ public class NaiveResampler {
 		return resampleMinEnt(image, factor, factor, factor);
 	}
 
-	public static ImagePlus resample(ImagePlus image, int factorX, int factorY,
-			int factorZ, Accumulator accu) {
-		int type = image.getType();
-		ImageStack stack=image.getStack();
-		int w=image.getWidth(),h=image.getHeight(),d=stack.getSize();
+	/*
+	 * Cache of resampled images, so that e.g. the 3D viewer does not
+	 * compute the same downsampled copy again when switching the
+	 * display mode.  The originals are referenced weakly, the copies
+	 * softly, so that neither is kept alive by the cache.
+	 */
+	private static final Map<ImagePlus, List<CacheEntry>> cache =
+		new WeakHashMap<ImagePlus, List<CacheEntry>>();
 
-		ImageStack result = new ImageStack(w/factorX,h/factorY,
-				stack.getColorModel());
+	private static class CacheEntry {
+		int factorX, factorY, factorZ;
+		int[] stamp;
+		SoftReference<ImagePlus> result;
+
+		boolean matches(int fx, int fy, int fz) {
+			return fx == factorX && fy == factorY && fz == factorZ;
+		}
+	}
+
+	/*
+	 * ImageJ keeps no modification count, and most plugins change the
+	 * pixels in place, so an image is considered unchanged as long as
+	 * its type, dimensions and the hash codes of the contents of all
+	 * slices are the same.  Hashing is a single pass over the pixels,
+	 * which is much cheaper than resampling them again.
+	 */
+	private static int[] getStamp(ImagePlus image) {
+		ImageStack stack = image.getStack();
+		int d = stack.getSize();
+		int[] stamp = new int[d + 4];
+		stamp[0] = d;
+		stamp[1] = image.getType();
+		stamp[2] = stack.getWidth();
+		stamp[3] = stack.getHeight();
+		// virtual stacks read their pixels anew every time
+		if (stack.isVirtual()) {
+			stamp[0] = System.identityHashCode(stack);
+			return stamp;
+		}
+		for (int z = 0; z < d; z++)
+			stamp[z + 4] = hashCode(stack.getPixels(z + 1));
+		return stamp;
+	}
+
+	private static int hashCode(Object pixels) {
+		if (pixels instanceof byte[])
+			return Arrays.hashCode((byte[])pixels);
+		if (pixels instanceof short[])
+			return Arrays.hashCode((short[])pixels);
+		if (pixels instanceof float[])
+			return Arrays.hashCode((float[])pixels);
+		if (pixels instanceof int[])
+			return Arrays.hashCode((int[])pixels);
+		return System.identityHashCode(pixels);
+	}
+
+	/**
+	 * Like resample(), but returns the same (shared!) copy as long as
+	 * the image is unchanged.  The result must not be modified; callers
+	 * which write to it need their own copy from resample().
+	 */
+	public static ImagePlus resampleCached(ImagePlus image, int factor) {
+		return resampleCached(image, factor, factor, factor);
+	}
+
+	public static ImagePlus resampleCached(ImagePlus image,
+			int factorX, int factorY, int factorZ) {
+		int[] stamp = getStamp(image);
+		synchronized (cache) {
+			List<CacheEntry> list = cache.get(image);
+			if (list != null)
+				for (Iterator<CacheEntry> it = list.iterator();
+						it.hasNext(); ) {
+					CacheEntry e = it.next();
+					ImagePlus res = e.result.get();
+					if (res == null ||
+							!Arrays.equals(stamp, e.stamp))
+						it.remove();
+					else if (e.matches(factorX, factorY,
+								factorZ))
+						return res;
+				}
+		}
 
-		for(int z=0;z<d;z+=factorZ) {
-			int kfactor=(z+factorZ<d?factorZ:d-z);
-
-			byte[][] slices = null;
-			short[][] slicesShort = null;
-			int[][] slicesInt = null;
-
-			if(type==ImagePlus.GRAY8||type==ImagePlus.COLOR_256) {
-				slices = new byte[kfactor][];
-				for(int k=0;k<kfactor;k++)
-					slices[k]=(byte[])stack.getProcessor(z+k+1).getPixels();
-			} else if (type==ImagePlus.GRAY16) {
-				slicesShort = new short[kfactor][];
-				for(int k=0;k<kfactor;k++)
-					slicesShort[k]=(short[])stack.getProcessor(z+k+1).getPixels();
-			} else if (type==ImagePlus.COLOR_RGB) {
-				slicesInt = new int[kfactor][];
-				for(int k=0;k<kfactor;k++)
-					slicesInt[k]=(int[])stack.getProcessor(z+k+1).getPixels();
-			} else {
-				IJ.error("Resample only currently works on 8 bit and 16 bit images.");
-				return null;
+		ImagePlus res = resample(image, factorX, factorY, factorZ);
+		if (res == null)
+			return null;
+
+		CacheEntry e = new CacheEntry();
+		e.factorX = factorX;
+		e.factorY = factorY;
+		e.factorZ = factorZ;
+		e.stamp = stamp;
+		e.result = new SoftReference<ImagePlus>(res);
+		synchronized (cache) {
+			List<CacheEntry> list = cache.get(image);
+			if (list == null) {
+				list = new ArrayList<CacheEntry>();
+				cache.put(image, list);
 			}
+			list.add(e);
+		}
+		return res;
+	}
 
-			byte[] newSlice = null;
-			short[] newSliceShort = null;
-			int[] newSliceInt = null;
+	/**
+	 * Forget the cached copies of an image right away; changed pixels
+	 * are detected by resampleCached() anyway.
+	 */
+	public static void invalidate(ImagePlus image) {
+		synchronized (cache) {
+			cache.remove(image);
+		}
+	}
 
-			int pointsInNewSlice = (1+(w-1)/factorX)*(1+(h-1)/factorY);
+	/*
+	 * The output slices are independent, so they are distributed over
+	 * the threads; each thread uses its own copy of the accumulator.
+	 * Only complete blocks are kept in x and y, while the last slice
+	 * may average fewer than factorZ input slices.
+	 */
+	public static ImagePlus resample(ImagePlus image, int factorX, int factorY,
+			int factorZ, Accumulator accu) {
+		final int type = image.getType();
+		if (type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256 &&
+				type != ImagePlus.GRAY16 &&
+				type != ImagePlus.COLOR_RGB) {
+			IJ.error("Resample only currently works on 8 bit and 16 bit images.");
+			return null;
+		}
 
-			if(type==ImagePlus.GRAY8||type==ImagePlus.COLOR_256)
-				newSlice = new byte[pointsInNewSlice];
-			else if(type==ImagePlus.GRAY16)
-				newSliceShort = new short[pointsInNewSlice];
-			else if(type==ImagePlus.COLOR_RGB)
-				newSliceInt = new int[pointsInNewSlice];
-
-			for(int y=0;y<h;y+=factorY) {
-				for(int x=0;x<w;x+=factorX) {
-					int ifactor=(x+factorX<w?factorX:w-x);
-					int jfactor=(y+factorY<h?factorY:h-y);
-					accu.reset();
-					if(type==ImagePlus.GRAY8||type==ImagePlus.COLOR_256) {
-						for(int i=0;i<ifactor;i++)
-							for(int j=0;j<jfactor;j++)
-								for(int k=0;k<kfactor;k++)
-									accu.add(getPixel(slices[k],x+i+w*(y+j)));
-						newSlice[(x/factorX)+(w/factorX)*(y/factorY)]=
-							(byte)accu.get();
-					} else if (type==ImagePlus.GRAY16) {
-						for(int i=0;i<ifactor;i++)
-							for(int j=0;j<jfactor;j++)
-								for(int k=0;k<kfactor;k++)
-									accu.add(slicesShort[k][x+i+w*(y+j)]);
-						newSliceShort[(x/factorX)+(w/factorX)*(y/factorY)]=
-							(short)accu.get();
-					} else if (type==ImagePlus.COLOR_RGB) {
-						for(int i=0;i<ifactor;i++)
-							for(int j=0;j<jfactor;j++)
-								for(int k=0;k<kfactor;k++)
-									accu.add(slicesInt[k][x+i+w*(y+j)]);
-						newSliceInt[(x/factorX)+(w/factorX)*(y/factorY)]=
-							(int)accu.get();
+		final ImageStack stack = image.getStack();
+		final int w = image.getWidth(), h = image.getHeight();
+		final int d = stack.getSize();
+		final int fx = factorX, fy = factorY, fz = factorZ;
+		final int newW = w / fx, newH = h / fy;
+		final int newD = (d + fz - 1) / fz;
+
+		final Object[] slices = new Object[d];
+		for (int z = 0; z < d; z++)
+			slices[z] = stack.getPixels(z + 1);
+		final Object[] result = new Object[newD];
+		for (int z = 0; z < newD; z++)
+			result[z] = type == ImagePlus.GRAY16 ?
+				(Object)new short[newW * newH] :
+				type == ImagePlus.COLOR_RGB ?
+				(Object)new int[newW * newH] :
+				(Object)new byte[newW * newH];
+
+		final boolean average = accu.getClass() == Averager.class
+			&& type != ImagePlus.COLOR_RGB;
+		final Accumulator prototype = accu;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.min(newD,
+			Runtime.getRuntime().availableProcessors())];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					Accumulator a = prototype.copy();
+					long[] sums = average ?
+						new long[newW] : null;
+					for (int z = ai.getAndIncrement();
+							z < newD;
+							z = ai.getAndIncrement()) {
+						int kfactor = Math.min(fz,
+							d - z * fz);
+						Object[] in = new Object[kfactor];
+						System.arraycopy(slices, z * fz,
+							in, 0, kfactor);
+						if (average)
+							average(in, result[z], w,
+								newW, newH, fx, fy,
+								sums);
+						else
+							resample(in, result[z], w,
+								newW, newH, fx, fy, a);
+						IJ.showProgress(done.incrementAndGet(),
+							newD);
 					}
 				}
-				IJ.showProgress(z*h+y+1, h*d);
-			}
-			if(type==ImagePlus.GRAY8||type==ImagePlus.COLOR_256)
-				result.addSlice(null,newSlice);
-			else if(type==ImagePlus.GRAY16)
-				result.addSlice(null,newSliceShort);				
-			else if(type==ImagePlus.COLOR_RGB)
-				result.addSlice(null,newSliceInt);
-			
+			};
+			threads[t].start();
 		}
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+
+		ImageStack resultStack = new ImageStack(newW, newH,
+				stack.getColorModel());
+		for (int z = 0; z < newD; z++)
+			resultStack.addSlice(null, result[z]);
 
 		ImagePlus res = new ImagePlus(image.getTitle()+" resampled",
-				result);
+				resultStack);
 		if (AmiraParameters.isAmiraMesh(image)) {
 			AmiraParameters p = new AmiraParameters(image);
 			p.setParameters(res);
@@ -272,4 +415,81 @@ public class NaiveResampler {
 
 		return res;
 	}
+
+	/*
+	 * Plain averaging of gray values, without going through an
+	 * Accumulator: the input rows are summed up block row by block row.
+	 */
+	private static void average(Object[] in, Object out, int w,
+			int newW, int newH, int fx, int fy, long[] sums) {
+		int count = in.length * fx * fy;
+		for (int y = 0; y < newH; y++) {
+			for (int x = 0; x < newW; x++)
+				sums[x] = 0;
+			for (int k = 0; k < in.length; k++)
+				for (int j = 0; j < fy; j++) {
+					int offset = w * (y * fy + j);
+					if (in[k] instanceof byte[]) {
+						byte[] p = (byte[])in[k];
+						for (int x = 0; x < newW; x++) {
+							int i = offset + x * fx;
+							long sum = 0;
+							for (int e = i + fx; i < e; i++)
+								sum += p[i] & 0xff;
+							sums[x] += sum;
+						}
+					} else {
+						short[] p = (short[])in[k];
+						for (int x = 0; x < newW; x++) {
+							int i = offset + x * fx;
+							long sum = 0;
+							for (int e = i + fx; i < e; i++)
+								sum += p[i] & 0xffff;
+							sums[x] += sum;
+						}
+					}
+				}
+			int index = y * newW;
+			if (out instanceof byte[])
+				for (int x = 0; x < newW; x++)
+					((byte[])out)[index + x] =
+						(byte)(sums[x] / count);
+			else
+				for (int x = 0; x < newW; x++)
+					((short[])out)[index + x] =
+						(short)(sums[x] / count);
+		}
+	}
+
+	private static void resample(Object[] in, Object out, int w,
+			int newW, int newH, int fx, int fy, Accumulator accu) {
+		for (int y = 0; y < newH; y++)
+			for (int x = 0; x < newW; x++) {
+				accu.reset();
+				// MaxLikelihood and MinEntropy resolve ties by order
+				for (int i = 0; i < fx; i++)
+					for (int j = 0; j < fy; j++) {
+						int offset = x * fx + i
+							+ w * (y * fy + j);
+						for (int k = 0; k < in.length; k++)
+							accu.add(getValue(in[k],
+								offset));
+					}
+				int index = x + newW * y;
+				if (out instanceof byte[])
+					((byte[])out)[index] = (byte)accu.get();
+				else if (out instanceof short[])
+					((short[])out)[index] = (short)accu.get();
+				else
+					((int[])out)[index] = accu.get();
+			}
+	}
+
+	private static int getValue(Object pixels, int index) {
+		if (pixels instanceof byte[])
+			return getPixel((byte[])pixels, index);
+		if (pixels instanceof short[])
+			return ((short[])pixels)[index] & 0xffff;
+		return ((int[])pixels)[index];
+	}
 }
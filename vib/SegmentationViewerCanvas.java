@@ -11,14 +11,12 @@ import ij.gui.ImageCanvas;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Polygon;
 import java.awt.Shape;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
-import java.util.ArrayList;
 import java.util.Vector;
-import java.util.HashMap;
 
 public class SegmentationViewerCanvas extends ImageCanvas {
 	final static int OUTLINE=1, FILL=2;
@@ -29,9 +27,8 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 	int w,h,d;
 	Color[] label_colors; // these are the up to 256 material colors
 
-	Vector[] contours; // each element is a vector of polygons
-	Vector[] colors; // these are the corresponding colors
-	Vector[] indices; // these are the corresponding material IDs
+	final static int BAND = 32; // rows per separately traced band
+	SliceContours[] slices;
 
 	private final boolean debug = false;
 
@@ -41,9 +38,7 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 		w=imp.getWidth();
 		h=imp.getHeight();
 		d=imp.getStack().getSize();
-		contours=new Vector[d];
-		colors=new Vector[d];
-		indices=new Vector[d];
+		slices=new SliceContours[d];
 
 		ImagePlus.addImageListener(new ImageListener() {
 			public void imageOpened(ImagePlus imp) { }
@@ -65,24 +60,24 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 	}
 
 	public void setLabels(ImagePlus labels) {
-		this.labels=labels;
-		contours=new Vector[d];
-		colors=new Vector[d];
-		indices=new Vector[d];
-		if (labels == null)
-			return;
-		AmiraParameters parameters=new AmiraParameters(labels);
-		int count = parameters.getMaterialCount();
-		for(int i=0;i<label_colors.length;i++) {
-			if (i >= count) {
-				label_colors[i] = Color.RED;
-				continue;
+		synchronized(this) {
+			this.labels=labels;
+			slices=new SliceContours[d];
+			if (labels == null)
+				return;
+			AmiraParameters parameters=new AmiraParameters(labels);
+			int count = parameters.getMaterialCount();
+			for(int i=0;i<label_colors.length;i++) {
+				if (i >= count) {
+					label_colors[i] = Color.RED;
+					continue;
+				}
+				double[] c=parameters.getMaterialColor(i);
+				int red=(int)(255*c[0]);
+				int green=(int)(255*c[1]);
+				int blue=(int)(255*c[2]);
+				label_colors[i]=new Color(red,green,blue);
 			}
-			double[] c=parameters.getMaterialColor(i);
-			int red=(int)(255*c[0]);
-			int green=(int)(255*c[1]);
-			int blue=(int)(255*c[2]);
-			label_colors[i]=new Color(red,green,blue);
 		}
 		if (backBufferGraphics != null)
 			repaint();
@@ -90,9 +85,25 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 
 	public void updateSlice(int slice){
 		synchronized(this) {
-			colors[slice-1] = null;
-			contours[slice-1] = null;
-			indices[slice-1] = null;
+			SliceContours contours = getSliceContours(slice);
+			contours.invalidate(0, contours.bands.length - 1);
+			createContoursIfNotExist(slice);
+		}
+	}
+
+	/*
+	 * Only the bands of rows touched by the changed region are
+	 * traced again (plus the neighbouring rows, whose outlines
+	 * depend on it).
+	 */
+	public void updateSlice(int slice, Rectangle changed){
+		synchronized(this) {
+			SliceContours contours = getSliceContours(slice);
+			int first = Math.max(0, (changed.y - 1) / BAND);
+			int last = Math.min(contours.bands.length - 1,
+				(changed.y + changed.height) / BAND);
+			if (first <= last)
+				contours.invalidate(first, last);
 			createContoursIfNotExist(slice);
 		}
 	}
@@ -100,11 +111,14 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 	public GeneralPath getOutline(int slice, int materialId){
 		synchronized(this) {
 			createContoursIfNotExist(slice);
+			SliceContours contours = slices[slice-1];
+			if (contours == null || contours.indices == null)
+				return null;
 			
-			for (int i = 0; i < indices[slice-1].size(); i++)
-				if (((Integer)indices[slice-1].get(i)).intValue()
+			for (int i = 0; i < contours.indices.size(); i++)
+				if (((Integer)contours.indices.get(i)).intValue()
 				    == materialId)
-					return (GeneralPath)contours[slice-1].get(i);
+					return (GeneralPath)contours.contours.get(i);
 			return null;
 		}
 	}
@@ -180,16 +194,6 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 			return this;
 		}
 
-		public Polygon getPolygon() {
-			// TODO: optimize out long straight lines
-			int count = last - first;
-			int[] x1 = new int[count];
-			int[] y1 = new int[count];
-			System.arraycopy(x, first, x1, 0, count);
-			System.arraycopy(y, first, y1, 0, count);
-			return new Polygon(x1, y1, count);
-		}
-
 		public String toString() {
 			String res = "(first:" + first
 				+ ",last:" + last + ",reserved:" + reserved + ":";
@@ -200,24 +204,108 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 		}
 	}
 
+	/*
+	 * The outlines of one band of rows, for each material occurring
+	 * in it.  The fills are closed polygons (cut at the band's upper
+	 * and lower border), the outlines contain only the real edges,
+	 * i.e. not those cuts.
+	 */
+	static class Band {
+		int[] materials;
+		GeneralPath[] fills, outlines;
+	}
+
+	/*
+	 * The contours of one slice.  The bands are traced independently,
+	 * so that an edit only needs the bands it touches to be traced
+	 * again; the per-material paths merged from the bands are cached
+	 * until one of the bands changes.
+	 */
+	class SliceContours {
+		int version;
+		Band[] bands = new Band[(h + BAND - 1) / BAND];
+
+		// merged over the bands; null if a band changed
+		Vector contours; // fill paths
+		Vector outlines; // outline paths
+		Vector colors; // these are the corresponding colors
+		Vector indices; // these are the corresponding material IDs
+
+		// the merged paths, transformed for the last paint
+		Shape[] transformedFills, transformedOutlines;
+		double transformedMagnification;
+		int transformedX, transformedY;
+
+		boolean isComplete() {
+			for (int i = 0; i < bands.length; i++)
+				if (bands[i] == null)
+					return false;
+			return true;
+		}
+
+		void invalidate(int firstBand, int lastBand) {
+			for (int i = firstBand; i <= lastBand; i++)
+				bands[i] = null;
+			version++;
+			contours = outlines = colors = indices = null;
+			transformedFills = transformedOutlines = null;
+		}
+
+		void merge() {
+			GeneralPath[] fills = new GeneralPath[256];
+			GeneralPath[] lines = new GeneralPath[256];
+			for (int i = 0; i < bands.length; i++) {
+				Band band = bands[i];
+				for (int k = 0; k < band.materials.length; k++) {
+					int m = band.materials[k];
+					if (fills[m] == null) {
+						fills[m] = new GeneralPath(
+							GeneralPath.WIND_EVEN_ODD);
+						lines[m] = new GeneralPath();
+					}
+					fills[m].append(band.fills[k], false);
+					lines[m].append(band.outlines[k], false);
+				}
+			}
+
+			contours = new Vector();
+			outlines = new Vector();
+			colors = new Vector();
+			indices = new Vector();
+			for (int m = 1; m < fills.length; m++) {
+				if (fills[m] != null) {
+					contours.add(fills[m]);
+					outlines.add(lines[m]);
+					colors.add(label_colors[m]);
+					indices.add(Integer.valueOf(m));
+				}
+			}
+		}
+	}
+
+	SliceContours getSliceContours(int slice) {
+		if (slices[slice - 1] == null)
+			slices[slice - 1] = new SliceContours();
+		return slices[slice - 1];
+	}
+
 	class ContourFinder {
-		int slice;
 		byte[] pixels;
-		GeneralPath[] paths;
+		int y0, y1;
+		GeneralPath[] paths, outlines;
 		Outline[] outline;
 
-		public ContourFinder(int slice) {
-			this.slice=slice;
-			pixels=(byte[])labels.getStack().getProcessor(slice+1).getPixels();
-			paths = new GeneralPath[255];
+		public ContourFinder(byte[] pixels) {
+			this.pixels = pixels;
 		}
 
 		// no check!
 		final byte get(int x,int y) { return pixels[y * w + x]; }
 
 		/*
-		 * Construct all outlines simultaneously by traversing the rows
-		 * from top to bottom.
+		 * Construct all outlines of a band simultaneously by
+		 * traversing the rows from top to bottom.  The rows outside
+		 * the band are treated as background.
 		 *
 		 * The open ends of the polygons are stored in outline[]:
 		 * if the polygon ends at the left of the pixel at x in the
@@ -226,26 +314,37 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 		 * if the polygon contains the pixel, outline[2 * x + 1] holds
 		 * the partial outline.
 		 */
-		public void initContours() {
-			contours[slice]=new Vector();
-			colors[slice]=new Vector();
-			indices[slice]=new Vector();
-
-			// actually find the outlines
-			ArrayList polygons = new ArrayList();
-			outline = new Outline[2 * w + 2];
-
-			for (int y = 0; y <= h; y++)
-				for (int x = 0; x < w; x++)
+		public Band traceBand(int index) {
+			y0 = index * BAND;
+			y1 = Math.min(y0 + BAND, h);
+			paths = new GeneralPath[256];
+			outlines = new GeneralPath[256];
+
+			// actually find the outlines; the extra column closes
+			// the outlines touching the right border
+			outline = new Outline[2 * w + 4];
+
+			for (int y = y0; y <= y1; y++)
+				for (int x = 0; x <= w; x++)
 					handle(x, y);
 
-			for (int i = 1; i < paths.length; i++) {
+			int count = 0;
+			for (int i = 1; i < paths.length; i++)
+				if (paths[i] != null)
+					count++;
+			Band band = new Band();
+			band.materials = new int[count];
+			band.fills = new GeneralPath[count];
+			band.outlines = new GeneralPath[count];
+			for (int i = 1, k = 0; i < paths.length; i++) {
 				if (paths[i] != null) {
-					contours[slice].add(paths[i]);
-					colors[slice].add(label_colors[i]);
-					indices[slice].add(new Integer(i));
+					band.materials[k] = i;
+					band.fills[k] = paths[i];
+					band.outlines[k] = outlines[i];
+					k++;
 				}
 			}
+			return band;
 		}
 
 		final private Outline newOutline(int left, int right,
@@ -276,18 +375,80 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 			int m = material & 0xff;
 
 			if(material == -1) m = 0;//????? Tom
-			if (paths[m] == null)
+			if (m == 0)
+				return;
+			if (paths[m] == null) {
 				paths[m] = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
-			paths[m].append(outline.getPolygon(), false);
+				outlines[m] = new GeneralPath();
+			}
+			appendPolygon(paths[m], outline);
+			appendEdges(outlines[m], outline, material);
+		}
+
+		/*
+		 * Append the polygon, leaving out the points in the middle
+		 * of straight lines.
+		 */
+		private void appendPolygon(GeneralPath path, Outline o) {
+			int first = o.first, last = o.last, count = last - first;
+			boolean started = false;
+			for (int i = first; i < last; i++) {
+				int prev = i > first ? i - 1 : last - 1;
+				int next = i + 1 < last ? i + 1 : first;
+				int dx1 = sign(o.x[i] - o.x[prev]);
+				int dy1 = sign(o.y[i] - o.y[prev]);
+				int dx2 = sign(o.x[next] - o.x[i]);
+				int dy2 = sign(o.y[next] - o.y[i]);
+				if (count > 2 && dx1 == dx2 && dy1 == dy2)
+					continue;
+				if (started)
+					path.lineTo(o.x[i], o.y[i]);
+				else
+					path.moveTo(o.x[i], o.y[i]);
+				started = true;
+			}
+			if (started)
+				path.closePath();
+		}
+
+		/*
+		 * Append the edges of the polygon, except those on the
+		 * border of the band where the material continues in the
+		 * next band.
+		 */
+		private void appendEdges(GeneralPath path, Outline o,
+				byte material) {
+			EdgeWriter writer = new EdgeWriter(path);
+			for (int i = o.first; i < o.last; i++) {
+				int next = i + 1 < o.last ? i + 1 : o.first;
+				int xa = o.x[i], ya = o.y[i];
+				int xb = o.x[next], yb = o.y[next];
+				int row = -1;
+				if (ya == yb && ya == y0 && y0 > 0)
+					row = y0 - 1;
+				else if (ya == yb && ya == y1 && y1 < h)
+					row = y1;
+				if (row < 0) {
+					writer.add(xa, ya, xb, yb);
+					continue;
+				}
+				int step = xb > xa ? 1 : -1;
+				for (int x = xa; x != xb; x += step) {
+					int px = step > 0 ? x : x - 1;
+					if (get(px, row) != material)
+						writer.add(x, ya, x + step, ya);
+				}
+			}
+			writer.flush();
 		}
 
 		private void handle(int x, int y) {
-			byte m = (y < h ? get(x, y) : 0);
-			byte mPrev = (y > 0 ? get(x, y - 1) : 0);
-			byte mLeft = (x > 0 && y < h ? get(x - 1, y) : 0);
-			byte mRight = (x < w - 1 && y < h ? get(x + 1, y) : 0);
-			byte mPrevLeft = (x > 0 && y > 0 ? get(x - 1, y - 1) : 0);
-			byte mPrevRight = (x < w - 1 && y > 0 ? get(x + 1, y - 1) : 0);
+			byte m = (x < w && y < y1 ? get(x, y) : 0);
+			byte mPrev = (x < w && y > y0 ? get(x, y - 1) : 0);
+			byte mLeft = (x > 0 && y < y1 ? get(x - 1, y) : 0);
+			byte mRight = (x < w - 1 && y < y1 ? get(x + 1, y) : 0);
+			byte mPrevLeft = (x > 0 && y > y0 ? get(x - 1, y - 1) : 0);
+			byte mPrevRight = (x < w - 1 && y > y0 ? get(x + 1, y - 1) : 0);
 
 			Outline left1 = outline[2 * x];
 			Outline left2 = outline[2 * x + 1];
@@ -369,11 +530,151 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 		}
 	}
 
+	/*
+	 * Writes axis-parallel unit edges into a path, joining
+	 * consecutive edges in the same direction into one line.
+	 */
+	static class EdgeWriter {
+		GeneralPath path;
+		boolean pending;
+		int startX, startY, endX, endY, dx, dy;
+		int penX = Integer.MIN_VALUE, penY;
+
+		EdgeWriter(GeneralPath path) {
+			this.path = path;
+		}
+
+		void add(int x1, int y1, int x2, int y2) {
+			int dx = sign(x2 - x1), dy = sign(y2 - y1);
+			if (pending && x1 == endX && y1 == endY &&
+					dx == this.dx && dy == this.dy) {
+				endX = x2;
+				endY = y2;
+				return;
+			}
+			flush();
+			pending = true;
+			startX = x1;
+			startY = y1;
+			endX = x2;
+			endY = y2;
+			this.dx = dx;
+			this.dy = dy;
+		}
+
+		void flush() {
+			if (!pending)
+				return;
+			if (startX != penX || startY != penY)
+				path.moveTo(startX, startY);
+			path.lineTo(endX, endY);
+			penX = endX;
+			penY = endY;
+			pending = false;
+		}
+	}
+
+	static int sign(int value) {
+		return value > 0 ? 1 : value < 0 ? -1 : 0;
+	}
+
+	/*
+	 * Trace the bands which are missing in the given slice.  This
+	 * does not need the lock: the results are only used if the
+	 * slice was not changed in the meantime.
+	 */
+	Band[] traceMissingBands(Band[] bands, byte[] pixels) {
+		Band[] result = new Band[bands.length];
+		ContourFinder finder = new ContourFinder(pixels);
+		for (int i = 0; i < bands.length; i++)
+			if (bands[i] == null)
+				result[i] = finder.traceBand(i);
+		return result;
+	}
+
+	void storeBands(SliceContours contours, Band[] bands) {
+		for (int i = 0; i < bands.length; i++)
+			if (bands[i] != null)
+				contours.bands[i] = bands[i];
+	}
+
+	byte[] getLabelPixels(int slice) {
+		return (byte[])labels.getStack().getProcessor(slice)
+			.getPixels();
+	}
+
 	public void createContoursIfNotExist(int slice) {
-		if (labels == null || contours[slice-1]!=null)
-			return;
-		ContourFinder finder=new ContourFinder(slice-1);
-		finder.initContours();
+		synchronized(this) {
+			if (labels == null)
+				return;
+			SliceContours contours = getSliceContours(slice);
+			if (contours.contours != null)
+				return;
+			if (!contours.isComplete())
+				storeBands(contours, traceMissingBands(
+						contours.bands,
+						getLabelPixels(slice)));
+			contours.merge();
+		}
+	}
+
+	/*
+	 * Trace the contours of the slices next to the given one in a
+	 * background thread, so that they are ready when the user
+	 * scrolls there.
+	 */
+	final static int PREFETCH = 2;
+	private Thread prefetcher;
+	private int prefetchSlice;
+
+	void prefetch(int slice) {
+		synchronized(this) {
+			prefetchSlice = slice;
+			if (prefetcher != null || labels == null)
+				return;
+			prefetcher = new Thread("Trace contours") {
+				public void run() {
+					prefetchNeighbours();
+				}
+			};
+			prefetcher.setDaemon(true);
+			prefetcher.setPriority(Thread.MIN_PRIORITY);
+			prefetcher.start();
+		}
+	}
+
+	private void prefetchNeighbours() {
+		for (;;) {
+			SliceContours contours = null;
+			Band[] bands = null;
+			byte[] pixels = null;
+			int version = 0;
+			synchronized(this) {
+				for (int i = 1; i <= PREFETCH && contours == null; i++)
+					for (int sign = 1; sign >= -1; sign -= 2) {
+						int slice = prefetchSlice + sign * i;
+						if (labels == null || slice < 1 || slice > d)
+							continue;
+						SliceContours c = getSliceContours(slice);
+						if (c.isComplete())
+							continue;
+						contours = c;
+						bands = c.bands.clone();
+						pixels = getLabelPixels(slice);
+						version = c.version;
+						break;
+					}
+				if (contours == null) {
+					prefetcher = null;
+					return;
+				}
+			}
+			bands = traceMissingBands(bands, pixels);
+			synchronized(this) {
+				if (contours.version == version)
+					storeBands(contours, bands);
+			}
+		}
 	}
 
 	private int backBufferWidth;
@@ -417,33 +718,51 @@ public class SegmentationViewerCanvas extends ImageCanvas {
 			drawOverlay(backBufferGraphics,slice);
 		}
 		g.drawImage(backBufferImage,0,0,this);
+		prefetch(slice);
 	}
 
 	void drawOverlay(Graphics g,int slice) {
 		if (labels == null)
 			return;
+		SliceContours contours = slices[slice-1];
 		double magnification=getMagnification();
 
-		for(int i=0;i<contours[slice-1].size();i++) {
-			g.setColor((Color)colors[slice-1].get(i));
-			Shape poly = (Shape)contours[slice-1].get(i);
-
-			// take offset into account (magnification very high)
-			if(magnification!=1.0) {
-				AffineTransform trans = (((Graphics2D)g).getDeviceConfiguration()).getDefaultTransform();
-				trans.setTransform(magnification, 0,
-						   0, magnification,
-						   -srcRect.x * magnification,
-						   -srcRect.y * magnification);
-				poly = trans.createTransformedShape(poly);
+		// take offset into account (magnification very high)
+		if (contours.transformedFills == null ||
+				contours.transformedMagnification != magnification ||
+				contours.transformedX != srcRect.x ||
+				contours.transformedY != srcRect.y) {
+			AffineTransform trans = new AffineTransform(
+					magnification, 0,
+					0, magnification,
+					-srcRect.x * magnification,
+					-srcRect.y * magnification);
+			int count = contours.contours.size();
+			contours.transformedFills = new Shape[count];
+			contours.transformedOutlines = new Shape[count];
+			for (int i = 0; i < count; i++) {
+				Shape fill = (Shape)contours.contours.get(i);
+				Shape outline = (Shape)contours.outlines.get(i);
+				if (!trans.isIdentity()) {
+					fill = trans.createTransformedShape(fill);
+					outline = trans.createTransformedShape(outline);
+				}
+				contours.transformedFills[i] = fill;
+				contours.transformedOutlines[i] = outline;
 			}
+			contours.transformedMagnification = magnification;
+			contours.transformedX = srcRect.x;
+			contours.transformedY = srcRect.y;
+		}
 
-			((Graphics2D)g).draw(poly);
+		for(int i=0;i<contours.transformedFills.length;i++) {
+			Color c=(Color)contours.colors.get(i);
+			g.setColor(c);
+			((Graphics2D)g).draw(contours.transformedOutlines[i]);
 			if(mode==FILL) {
-				Color c=(Color)colors[slice-1].get(i);
 				Color c1=new Color(c.getRed(),c.getGreen(),c.getBlue(),alpha);
 				g.setColor(c1);
-				((Graphics2D)g).fill(poly);
+				((Graphics2D)g).fill(contours.transformedFills[i]);
 			}
 		}
 	}
@@ -0,0 +1,32 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+
+import org.junit.Test;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertEquals;
+
+public class TestNaiveResampler {
+
+	@Test
+	public void testCacheNoticesInPlaceChanges() {
+		ImagePlus image = NewImage.createByteImage("ramp", 16, 16, 8,
+				NewImage.FILL_RAMP);
+		ImagePlus first = NaiveResampler.resampleCached(image, 2);
+		assertSame(first, NaiveResampler.resampleCached(image, 2));
+
+		// change a single voxel, keeping all the pixel arrays
+		byte[] pixels = (byte[])image.getStack().getPixels(3);
+		pixels[5 + 16 * 7] = (byte)200;
+		ImagePlus second = NaiveResampler.resampleCached(image, 2);
+		assertNotSame(first, second);
+		assertEquals(NaiveResampler.resample(image, 2).getStack()
+				.getProcessor(2).getPixel(2, 3),
+			second.getStack().getProcessor(2).getPixel(2, 3));
+		assertSame(second, NaiveResampler.resampleCached(image, 2));
+	}
+}
@@ -5,9 +5,13 @@ import amira.AmiraTable;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
+import java.util.ArrayList;
+
 import vib.app.module.TissueStatistics;
 import vib.app.module.TissueStatistics.Statistics;
 
@@ -15,23 +19,54 @@ public class TissueStatistics_ implements PlugInFilter {
 	ImagePlus image;
 
 	public void run(ImageProcessor ip) {
-		AmiraTable table = calculateStatistics(image);
-		table.show();
+		ArrayList<ImagePlus> greyImages = new ArrayList<ImagePlus>();
+		ArrayList<String> titles = new ArrayList<String>();
+		titles.add("<none>");
+		int[] ids = WindowManager.getIDList();
+		for (int i = 0; ids != null && i < ids.length; i++) {
+			ImagePlus imp = WindowManager.getImage(ids[i]);
+			if (imp == null || imp == image ||
+					imp.getWidth() != image.getWidth() ||
+					imp.getHeight() != image.getHeight() ||
+					imp.getStackSize() != image.getStackSize())
+				continue;
+			greyImages.add(imp);
+			titles.add(imp.getTitle());
+		}
+
+		GenericDialog gd = new GenericDialog("Tissue Statistics");
+		String[] choices = titles.toArray(new String[0]);
+		gd.addChoice("Grey values from", choices, choices[0]);
+		gd.addCheckbox("Moments and inertia tensors", false);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		int index = gd.getNextChoiceIndex();
+		ImagePlus grey = index == 0 ? null :
+			greyImages.get(index - 1);
+		boolean moments = gd.getNextBoolean();
+
+		AmiraTable table = calculateStatistics(image, grey, moments);
+		if (table != null)
+			table.show();
 	}
 
 	public static AmiraTable calculateStatistics(ImagePlus labelfield) {
+		return calculateStatistics(labelfield, null, false);
+	}
+
+	public static AmiraTable calculateStatistics(ImagePlus labelfield,
+			ImagePlus grey, boolean moments) {
 		if (!AmiraParameters.isAmiraLabelfield(labelfield)) {
 			IJ.error("Need a labelfield!");
 			return null;
 		}
 		String title = "Statistics for " + labelfield.getTitle();
-		String headings = "Nr\tMaterial\tCount\tVolume\t" + 
-							"CenterX\tCenterY\tCenterZ\t" + 
-							"MinX\tMaxX\tMinY\tMaxY\tMinZ\tMaxZ";
 
-		Statistics stat = TissueStatistics.getStatistics(labelfield);
+		Statistics stat = TissueStatistics.getStatistics(labelfield,
+				grey, moments);
 
-		AmiraTable table = new AmiraTable(title, headings,
+		AmiraTable table = new AmiraTable(title, stat.getHeadings(),
 				stat.getResult(), true);
 		return table;
 	}
@@ -41,4 +76,3 @@ public class TissueStatistics_ implements PlugInFilter {
 		return DOES_8G | DOES_8C;
 	}
 }
-
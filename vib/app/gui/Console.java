@@ -28,7 +28,7 @@ public class Console {
 		newWindow();
 	}
 
-	public void append(String text) {
+	public synchronized void append(String text) {
 		if(window == null)
 			newWindow();
 		window.append(text + '\n');
@@ -10,7 +10,9 @@ import java.awt.image.*;
 
 import java.io.File;
 
-import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import math3d.Point3d;
 
 import vib.FastMatrix;
 import vib.InterpolatedImage;
@@ -18,7 +20,6 @@ import vib.TransformedImage;
 import vib.VIB;
 
 public class AverageBrain extends Module {
-	int[][] cumul;
 	int w, h, d, count;
 
 	public String getName() { return "AverageBrain"; }
@@ -85,6 +86,13 @@ public class AverageBrain extends Module {
 		return result;
 	}
 
+	/*
+	 * The inputs are streamed: only the image being warped and the
+	 * next one (which is loaded in the background) are held in
+	 * memory.  Each input is warped slice by slice, in parallel, and
+	 * accumulated into primitive per-slice arrays; the result is then
+	 * written slice by slice, releasing the accumulators as it goes.
+	 */
 	public void doit(ImagePlus image, String[] fileNames, FastMatrix[] matrices) {
 		count = ("".equals(fileNames[0]) ? 0 : fileNames.length);
 		if (count != matrices.length) {
@@ -99,229 +107,253 @@ public class AverageBrain extends Module {
 		w = ii.w;
 		h = ii.h;
 		d = ii.d;
-		cumul = new int[ii.d][ii.w * ii.h];
 		boolean isGray = !image.getProcessor().isColorLut();
 		Method method = isGray ?
-			(Method)new AverageGray() : (Method)new AverageLabels();
-		method.cumul = cumul;
+			(Method)new AverageGray(w, h, d) :
+			(Method)new AverageLabels(w, h, d);
 		if (!isGray) {
+			if (count > AverageLabels.MAX_COUNT) {
+				IJ.error("Cannot average more than "
+					+ AverageLabels.MAX_COUNT
+					+ " label fields!");
+				return;
+			}
 			AmiraParameters p = new AmiraParameters(image);
 			p.changeLabelfieldToGray();
 			p.setParameters(image);
 		}
+
+		Loader loader = count > 0 ? new Loader(fileNames[0]) : null;
 		for (int m = 0; m < count; m++) {
 			VIB.showStatus("Brain (" + (m + 1) + "/" + count + ")");
-			ImagePlus img = IJ.openImage(fileNames[m]);
+			ImagePlus img = loader.get();
+			loader = m + 1 < count ?
+				new Loader(fileNames[m + 1]) : null;
 			if (img == null) {
 				realCount--;
 				continue;
 			}
-			method.t = new TransformedImage(image, img);
-			method.t.setTransformation(matrices[m]);
-			method.isIdentity = method.t.matrix.isIdentity();
-			TransformedImage.Iterator iter = method.t.iterator();
-			while (iter.next() != null) {
-				method.accumulate(iter.i, iter.j, iter.k,
-						iter.x, iter.y, iter.z);
-			}
-			method.t = null;
+			TransformedImage t = new TransformedImage(image, img);
+			t.setTransformation(matrices[m]);
+			warp(t, method);
 			img.close();
 		}
 		method.count = (realCount < 1 ? 1 : realCount);
-		InterpolatedImage.Iterator iter = ii.iterator();
-		while (iter.next() != null) {
-			ii.set(iter.i, iter.j, iter.k,
-					method.get(iter.i, iter.j, iter.k));
+		for (int k = 0; k < d; k++) {
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++)
+					ii.set(i, j, k, method.get(i, j, k));
+			method.release(k);
 		}
 	}
 
-	abstract class Method {
-		boolean isIdentity = false;
-		TransformedImage t;
-		int[][] cumul;
+	/* opens an image in the background */
+	static class Loader extends Thread {
+		String path;
+		ImagePlus image;
+
+		Loader(String path) {
+			this.path = path;
+			start();
+		}
+
+		public void run() {
+			image = IJ.openImage(path);
+		}
+
+		ImagePlus get() {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+			return image;
+		}
+	}
+
+	/*
+	 * Maps every voxel of the template back into the model and hands
+	 * the coordinates to the method.  As in TransformedImage.Iterator,
+	 * each row of the template maps to a line in the model, so only
+	 * its end points are transformed.  The slices are distributed over
+	 * the cores; the methods keep their data per slice, so no locking
+	 * is needed.
+	 */
+	private void warp(final TransformedImage t, final Method method) {
+		final boolean isIdentity = t.matrix.isIdentity();
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[Runtime.getRuntime()
+			.availableProcessors()];
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread() {
+				public void run() {
+					FastMatrix matrix = new FastMatrix(t.matrix);
+					for (int k = ai.getAndIncrement(); k < d;
+							k = ai.getAndIncrement())
+						warp(t.transform, matrix, isIdentity,
+								method, k);
+				}
+			};
+			threads[thread].start();
+		}
+		for (int thread = 0; thread < threads.length; thread++)
+			try {
+				threads[thread].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+
+	private void warp(InterpolatedImage model, FastMatrix matrix,
+			boolean isIdentity, Method method, int k) {
+		for (int j = 0; j < h; j++) {
+			if (isIdentity) {
+				for (int i = 0; i < w; i++)
+					method.accumulate(model, true,
+							i, j, k, i, j, k);
+				continue;
+			}
+			matrix.apply(0, j, k);
+			Point3d start = matrix.getResult();
+			matrix.apply(w, j, k);
+			Point3d stop = matrix.getResult().minus(start);
+			for (int i = 0; i < w; i++)
+				method.accumulate(model, false, i, j, k,
+						start.x + stop.x * i / w,
+						start.y + stop.y * i / w,
+						start.z + stop.z * i / w);
+		}
+	}
+
+	static abstract class Method {
 		int count;
 
-		public abstract void accumulate(int i, int j, int k,
+		public abstract void accumulate(InterpolatedImage model,
+				boolean isIdentity, int i, int j, int k,
 				double x, double y, double z);
 
 		public abstract int get(int i, int j, int k);
+
+		/* slice k is not needed anymore */
+		public abstract void release(int k);
 	}
 
-	class AverageGray extends Method {
-		public void accumulate(int i, int j, int k,
+	static class AverageGray extends Method {
+		int w;
+		int[][] cumul;
+
+		AverageGray(int w, int h, int d) {
+			this.w = w;
+			cumul = new int[d][w * h];
+		}
+
+		public void accumulate(InterpolatedImage model,
+				boolean isIdentity, int i, int j, int k,
 				double x, double y, double z) {
 			if (isIdentity) {
-				cumul[k][i + j * w] += t.transform.getNoInterpol(i, j, k);
+				cumul[k][i + j * w] += model.getNoInterpol(i, j, k);
 				return;
 			}
-			double v = t.transform.interpol.get(x, y, z);
+			double v = model.interpol.get(x, y, z);
 			cumul[k][i + j * w] += (int)v;
 		}
 
 		public int get(int i, int j, int k) {
 			return cumul[k][i + j * w] / count;
 		}
+
+		public void release(int k) {
+			cumul[k] = null;
+		}
 	}
 
-	class AverageLabels extends Method {
-		byte[][] labels;
-		Vector[] tuples;
+	/*
+	 * For each voxel, the labels are counted, and the result is the
+	 * (scaled) count of the most frequent label.  Exterior is not
+	 * counted.
+	 *
+	 * Usually, a voxel sees only one label (besides Exterior), so the
+	 * label and its count are packed into one int: (label << 16) |
+	 * count, or 0 if no label was seen yet.  Only where the labels
+	 * disagree, the int holds -(index + 1) into a per-slice pool of
+	 * such packed pairs, one small array per voxel.
+	 */
+	static class AverageLabels extends Method {
 		final static int maxProb = 100;
+		final static int MAX_COUNT = 0xffff;
 
-		public AverageLabels() {
-			super();
-			labels = new byte[d][w * h];
-			tuples = new Vector[256];
-			for (int i = 0; i < 256; i++)
-				tuples[i] = new Vector();
+		int w;
+		int[][] cumul;
+		int[][][] pool;
+		int[] poolSize;
+
+		AverageLabels(int w, int h, int d) {
+			this.w = w;
+			cumul = new int[d][w * h];
+			pool = new int[d][][];
+			poolSize = new int[d];
 		}
 
-		public void accumulate(int i, int j, int k,
+		public void accumulate(InterpolatedImage model,
+				boolean isIdentity, int i, int j, int k,
 				double x, double y, double z) {
-			byte v = t.transform.getNearestByte(x, y, z);
-			if (v == 0)
-				return;
-			int l = (v < 0 ? 256 + v : v);
-			int l1 = labels[k][i + j * w];
-			if (l1 < 0)
-				l1 += 256;
-			int c1 = cumul[k][i + j * w];
-			if (l1 == 0) {
-				labels[k][i + j * w] = v;
-				cumul[k][i + j * w] = 1;
-			} else if (l1 == l && c1 > 0)
-				cumul[k][i + j * w]++;
+			int l = model.getNearestByte(x, y, z) & 0xff;
+			if (l != 0)
+				add(k, i + j * w, l);
+		}
+
+		void add(int k, int index, int label) {
+			int c = cumul[k][index];
+			if (c == 0)
+				cumul[k][index] = (label << 16) | 1;
+			else if (c > 0 && (c >>> 16) == label)
+				cumul[k][index]++;
 			else {
-				Tuple newTuple;
-				if (c1 > 0)
-					newTuple = new Tuple(l1, c1, l);
-				else {
-					Tuple old = (Tuple)tuples[l1].get(-c1);
-					newTuple = new Tuple(old, l);
+				int[] pairs = c < 0 ? pool[k][-c - 1] : null;
+				if (pairs == null) {
+					pairs = new int[] { c };
+					cumul[k][index] = -1 - addToPool(k, pairs);
 				}
-				if (newTuple.labels[0] != (byte)l1) {
-					l1 = newTuple.labels[0];
-					labels[k][i + j * w] = (byte)l1;
-					if (l1 < 0)
-						l1 += 256;
-				}
-				cumul[k][i + j * w] = 
-					-newTuple.getIndex(tuples[l1]);
+				for (int p = 0; p < pairs.length; p++)
+					if ((pairs[p] >>> 16) == label) {
+						pairs[p]++;
+						return;
+					}
+				int[] grown = new int[pairs.length + 1];
+				System.arraycopy(pairs, 0, grown, 0, pairs.length);
+				grown[pairs.length] = (label << 16) | 1;
+				pool[k][-cumul[k][index] - 1] = grown;
 			}
 		}
 
-		public int get(int i, int j, int k) {
-			int label = labels[k][i + j * w];
-			if (label == 0)
-				return 0;
-			else if (label < 0)
-				label += 256;
-			int c = cumul[k][i + j * w];
-			if (c <= 0) {
-				Tuple t = (Tuple)tuples[label].get(-c);
-				c = t.counts[0];
+		int addToPool(int k, int[] pairs) {
+			if (pool[k] == null)
+				pool[k] = new int[16][];
+			else if (poolSize[k] == pool[k].length) {
+				int[][] grown = new int[2 * poolSize[k]][];
+				System.arraycopy(pool[k], 0, grown, 0, poolSize[k]);
+				pool[k] = grown;
 			}
-			return c * maxProb / count;
+			pool[k][poolSize[k]] = pairs;
+			return poolSize[k]++;
 		}
-	}
 
-	/*
-	 * The tuple class holds a tuple of labels along with the
-	 * respective counts.
-	 *
-	 * The idea: at a given voxel, usually there is only one
-	 * label, or at most one label and Exterior. In this case,
-	 * store the label in the labels array, and the count of this
-	 * label in the counts array.
-	 *
-	 * The less common case is handled by tuples. A tuple contains
-	 * a list of the labels together with their respective counts.
-	 *
-	 * To make this space efficient, tuples are stored in arrays,
-	 * and just the array index is stored as a negative count.
-	 *
-	 * In a tuple, the labels are sorted by count (higher counts
-	 * come first) and label number (if the count is equal, the
-	 * lower label comes first).
-	 *
-	 * As a consequence, ((Tuple)tuples[label].get(i)).labels[0]
-	 * is always label.
-	 */
-	static class Tuple {
-		/*
-		 * the labels are sorted by count: higher counts
-		 * come first. If the counts are equal, the order of the
-		 * label numbers are undefined.
-		 */
-		byte[] labels = new byte[256];
-		int[] counts = new int[256];
-
-		public Tuple(int label1, int count1, int label2) {
-			if (count1 == 1 && label2 < label1) {
-				int l = label2;
-				label2 = label1;
-				label1 = l;
-			}
-			labels[0] = (byte)label1;
-			counts[0] = count1;
-			labels[1] = (byte)label2;
-			counts[1] = 1;
-		}
-
-		public Tuple(Tuple tuple, int label) {
-			int i;
-			System.arraycopy(tuple.labels, 0, labels, 0,
-					labels.length);
-			System.arraycopy(tuple.counts, 0, counts, 0,
-					counts.length);
-			for (i = 0; i < labels.length &&
-					labels[i] != label &&
-					labels[i] != 0; i++);
-			if (labels[i] == 0)
-				labels[i] = (byte)label;
-
-			int j;
-			for (j = i - 1; j >= 0 &&
-					counts[j] == counts[i]; j--);
-			j++;
-			if (j < i) {
-				int c = counts[i];
-				System.arraycopy(labels, j,
-						labels, j + 1, i - j);
-				System.arraycopy(counts, j,
-						counts, j + 1, i - j);
-				labels[j] = (byte)label;
-				counts[j] = c;
-				i = j;
+		public int get(int i, int j, int k) {
+			int c = cumul[k][i + j * w];
+			int max = 0;
+			if (c > 0)
+				max = c & 0xffff;
+			else if (c < 0) {
+				int[] pairs = pool[k][-c - 1];
+				for (int p = 0; p < pairs.length; p++)
+					max = Math.max(max, pairs[p] & 0xffff);
 			}
-			counts[i]++;
-		}
-
-		public boolean equals(Tuple tuple) {
-			for (int i = 0; i == 0 || labels[i - 1] != 0;
-					i++)
-				if (labels[i] != tuple.labels[i] ||
-						counts[i] !=
-						tuple.counts[i])
-					return false;
-			return true;
+			return max * maxProb / count;
 		}
 
-		public int getIndex(Vector tuples) {
-			int count = tuples.size();
-			for (int i = 0; i < count; i++)
-				if (equals((Tuple)tuples.get(i)))
-					return i;
-			tuples.add(this);
-			return count;
-		}
-
-		public String toString() {
-			String result = "";
-			for (int i = 0; i < 256 && labels[i] != 0; i++)
-				result += "" + labels[i] + "(" + counts[i]
-					+ ") ";
-			return result;
+		public void release(int k) {
+			cumul[k] = null;
+			pool[k] = null;
 		}
 	}
 
@@ -349,19 +381,4 @@ public class AverageBrain extends Module {
                         ip.getStack().setColorModel(c);
 
 	}
-
-	public static void main(String[] args) {
-		Tuple t = new Tuple(5, 1, 3);
-		Tuple t1 = new Tuple(t, 5);
-		Tuple t2 = new Tuple(t, 3);
-		Tuple t3 = new Tuple(t, 2);
-		Tuple t4 = new Tuple(t1, 5);
-		Tuple t5 = new Tuple(t1, 3);
-		System.err.println("3(1) 5(1) : " + t);
-		System.err.println("5(2) 3(1) : " + t1);
-		System.err.println("3(2) 5(1) : " + t2);
-		System.err.println("3(1) 5(1) 2(1) : " + t3);
-		System.err.println("5(3) 3(1) : " + t4);
-		System.err.println("5(2) 3(2) : " + t5);
-	}
 }
@@ -13,6 +13,7 @@ import ij.ImagePlus;
 public class Label extends Module {
 	public String getName() { return "Label"; }
 	protected String getMessage() { return "Labelling"; }
+	protected boolean runsInParallel() { return false; }
 
 	protected void run(State state, int index) {
 		new SplitChannels().runOnOneImage(state, index);
@@ -15,15 +15,27 @@ public abstract class Module {
 
 	protected boolean runsOnce() { return false; }
 
-	// at a later stage, these functions will schedule multi-threaded jobs
+	/* modules which need the user's attention should not run in parallel */
+	protected boolean runsInParallel() { return true; }
+
+	/*
+	 * The jobs are handed to the state's Scheduler, which runs each
+	 * (module, image) pair only once, and the images in parallel.
+	 */
 	public void runOnOneImage(State state, int index) {
+		state.getScheduler().run(this, index);
+	}
+
+	void execute(State state, int index) {
 		console = Console.instance();
 		try {
 			run(state, index);
 		} catch(Exception e) {
-			if(!exception) {
-				exception = true;
-				exceptionOccurred(index);
+			synchronized (listeners) {
+				if(!exception) {
+					exception = true;
+					exceptionOccurred(index);
+				}
 			}
 			// throw again to stop the execution
 			throw new RuntimeException("Exception in " + getName(), e);
@@ -32,13 +44,11 @@ public abstract class Module {
 	}
 
 	public void runOnAllImages(State state) {
-		for (int i = 0; i < state.getImageCount(); i++)
-			runOnOneImage(state, i);
+		state.getScheduler().runAll(this, 0, state.getImageCount());
 	}
 
 	public void runOnAllImagesAndTemplate(State state) {
-		for (int i = -1; i < state.getImageCount(); i++)
-			runOnOneImage(state, i);
+		state.getScheduler().runAll(this, -1, state.getImageCount());
 	}
 
 	public void prereqsDone(State state, int index) {
@@ -50,16 +60,22 @@ public abstract class Module {
 		console.append(message);
 	}
 
+	/* the listeners are called from one thread at a time */
 	public void finished(int index) {
-		for(Iterator it = listeners(); it.hasNext();) {
-			((ModuleListener)it.next()).moduleFinished(this, index);
+		synchronized (listeners) {
+			for(Iterator it = listeners(); it.hasNext();) {
+				((ModuleListener)it.next()).
+					moduleFinished(this, index);
+			}
 		}
 	}
 
 	public void exceptionOccurred(int index) {
-		for(Iterator it = listeners(); it.hasNext();) {
-			((ModuleListener)it.next()).
+		synchronized (listeners) {
+			for(Iterator it = listeners(); it.hasNext();) {
+				((ModuleListener)it.next()).
 					exceptionOccurred(this, index);
+			}
 		}
 	}
 
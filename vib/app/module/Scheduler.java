@@ -0,0 +1,213 @@
+package vib.app.module;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs the modules of the protocol.
+ *
+ * Every (module, image) pair is a job, and the jobs a module's run()
+ * method requests via runOnOneImage() are its prerequisites; together
+ * they form the dependency graph.  Each job is executed only once per
+ * State: if another thread is already running it, the caller waits for
+ * it, and if it finished already, the call returns immediately.  That
+ * a job has nothing to do when its outputs are newer than its inputs
+ * is still decided by the modules themselves (see State.upToDate()).
+ *
+ * runOnAllImages() executes the per-image jobs concurrently, on the
+ * calling thread and on up to getMaxThreads() - 1 helper threads
+ * (shared by all nested calls).  Prerequisites are run inline on the
+ * thread that needs them, so all the jobs of one image run on one
+ * thread, in dependency order, and so do its ModuleListener events.
+ */
+public class Scheduler {
+	/*
+	 * A job holds the image it works on, the resampled version
+	 * and some scratch images, plus whatever the registration
+	 * needs: budget this many times the size of an input file.
+	 */
+	final static int MEMORY_FACTOR = 6;
+
+	private State state;
+	private int maxThreads;
+	private Semaphore helpers;
+	private Map<String, Job> jobs = new HashMap<String, Job>();
+
+	private static class Job {
+		Thread thread;
+		boolean done;
+		RuntimeException exception;
+	}
+
+	public Scheduler(State state) {
+		this.state = state;
+		setMaxThreads(estimateMaxThreads());
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = Math.max(1, maxThreads);
+		helpers = new Semaphore(this.maxThreads - 1);
+	}
+
+	/*
+	 * As many threads as there are cores, but only as many as fit
+	 * into the memory, judging by the size of the input files.
+	 */
+	private int estimateMaxThreads() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		long fileSize = new File(state.options.templatePath).length();
+		for (int i = 0; i < state.options.fileGroup.size(); i++) {
+			File file = state.options.fileGroup.get(i);
+			fileSize = Math.max(fileSize, file.length());
+		}
+		if (fileSize <= 0)
+			return cores;
+		Runtime runtime = Runtime.getRuntime();
+		long available = runtime.maxMemory() - runtime.totalMemory()
+			+ runtime.freeMemory();
+		long jobs = available / (MEMORY_FACTOR * fileSize);
+		return (int)Math.max(1, Math.min(cores, jobs));
+	}
+
+	private static String getKey(Module module, int index) {
+		return module.getName() + ":" + index;
+	}
+
+	/*
+	 * Runs the job (module, index), unless it was run already or is
+	 * running in another thread, in which case this method waits for
+	 * it to finish.
+	 */
+	public void run(Module module, int index) {
+		String key = getKey(module, index);
+		Job job;
+		boolean owner = false;
+		synchronized (jobs) {
+			job = jobs.get(key);
+			if (job != null) {
+				// a job cannot wait for itself
+				if (job.thread == Thread.currentThread() &&
+						!job.done)
+					return;
+			} else {
+				job = new Job();
+				job.thread = Thread.currentThread();
+				jobs.put(key, job);
+				owner = true;
+			}
+		}
+
+		if (!owner) {
+			waitFor(job, key);
+			return;
+		}
+
+		try {
+			module.execute(state, index);
+		} catch (RuntimeException e) {
+			job.exception = e;
+			throw e;
+		} finally {
+			synchronized (jobs) {
+				job.done = true;
+				jobs.notifyAll();
+			}
+		}
+	}
+
+	private void waitFor(Job job, String key) {
+		synchronized (jobs) {
+			while (!job.done)
+				try {
+					jobs.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while "
+						+ "waiting for " + key, e);
+				}
+		}
+		if (job.exception != null)
+			throw job.exception;
+	}
+
+	/*
+	 * Runs the jobs (module, from) ... (module, to - 1), in parallel
+	 * if the module allows it.  When a job fails, no new jobs are
+	 * started, and the first exception is thrown again once the
+	 * running ones finished.
+	 */
+	public void runAll(final Module module, int from, final int to) {
+		if (!module.runsInParallel() || module.runsOnce() ||
+				maxThreads < 2) {
+			for (int i = from; i < to; i++)
+				run(module, i);
+			return;
+		}
+
+		final AtomicInteger ai = new AtomicInteger(from);
+		final RuntimeException[] failure = new RuntimeException[1];
+		final Runnable worker = new Runnable() {
+			public void run() {
+				for (int i = ai.getAndIncrement(); i < to;
+						i = ai.getAndIncrement()) {
+					synchronized (failure) {
+						if (failure[0] != null)
+							return;
+					}
+					try {
+						Scheduler.this.run(module, i);
+					} catch (RuntimeException e) {
+						synchronized (failure) {
+							if (failure[0] == null)
+								failure[0] = e;
+						}
+						return;
+					}
+				}
+			}
+		};
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 1; t < to - from && helpers.tryAcquire(); t++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						worker.run();
+					} finally {
+						helpers.release();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		worker.run();
+		for (Thread thread : threads)
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				// the helpers stop after their current job
+				synchronized (failure) {
+					if (failure[0] == null)
+						failure[0] = new RuntimeException(
+							"Interrupted while running "
+							+ module.getName(), e);
+				}
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+		if (failure[0] != null)
+			throw failure[0];
+	}
+}
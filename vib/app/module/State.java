@@ -55,6 +55,8 @@ public class State {
 				// TODO: how to determine 2nd channel's path?
 				channels[j][i] = file.getAbsolutePath();
 		}
+
+		scheduler = new Scheduler(this);
 	}
 
 	private String[][] channels;
@@ -64,11 +66,17 @@ public class State {
 	private String warpedPath;
 	private String outputPath;
 	private String statisticsPath;
-        private String currentImagePath;
-        private ImagePlus currentImage;
+	private Scheduler scheduler;
+	// each thread caches the image it worked on last
+	private ThreadLocal<String> currentImagePath = new ThreadLocal<String>();
+	private ThreadLocal<ImagePlus> currentImage = new ThreadLocal<ImagePlus>();
         private ImagePlus templateLabels;
         private ImagePlus templ;
 
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+
 	public String getBaseName(int index) {
 		if (index < 0)
 			return getTemplateBaseName();
@@ -211,27 +219,27 @@ public class State {
 	}
 
 	public boolean save(ImagePlus image, String path) {
-		currentImagePath = path;
-		currentImage = image;
+		currentImagePath.set(path);
+		currentImage.set(image);
 		return new FileSaver(image).saveAsTiffStack(path);
 	}
 
 	// caching the latest image
         public ImagePlus getImage(String path) {
-                if (!path.equals(currentImagePath)) {
+                if (!path.equals(currentImagePath.get())) {
 			File f = new File(path);
 			if (!f.exists())
 				return null;
 			// give the garbage collector a chance
-			currentImage = null;
+			currentImage.set(null);
 
-			currentImagePath = path;
-			currentImage = IJ.openImage(currentImagePath);
+			currentImagePath.set(path);
+			currentImage.set(IJ.openImage(path));
 		}
-                return currentImage;
+                return currentImage.get();
         }
 
-        public ImagePlus getTemplateLabels() {
+        public synchronized ImagePlus getTemplateLabels() {
                 if (templateLabels == null)
 			templateLabels =
 				IJ.openImage(getResampledPath(-1, -1));
@@ -239,7 +247,7 @@ public class State {
                 return templateLabels;
         }
 
-        public ImagePlus getTemplate() {
+        public synchronized ImagePlus getTemplate() {
                 if (templ == null) {
 			String path =
 				getResampledPath(options.refChannel - 1, -1);
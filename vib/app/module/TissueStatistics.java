@@ -4,10 +4,14 @@ import amira.AmiraParameters;
 import amira.AmiraTable;
 import amira.AmiraTableEncoder;
 
+import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 
 import ij.measure.Calibration;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import vib.InterpolatedImage;
 
 import vib.app.ImageMetaData;
@@ -40,58 +44,292 @@ public class TissueStatistics extends Module {
 				statisticsPath);
 	}
 
+	/*
+	 * Per-material statistics of a labelfield: voxel count, centre and
+	 * bounding box, optionally the second moments and the inertia
+	 * tensor, and the mean and standard deviation of a grey image.
+	 *
+	 * The volume is cut into slabs of SLAB slices, which are processed
+	 * in parallel; within a row, runs of the same material are
+	 * accumulated at once.  The sums are kept per slab and added up
+	 * in slab order, so the result does not depend on the number of
+	 * threads.
+	 */
 	public static class Statistics {
+		final static int SLAB = 8;
+
 		Calibration cal;
 		AmiraParameters parameters;
 		public String[] materials;
 		public long[] count, cX, cY, cZ;
 		public int[] minX, maxX, minY, maxY, minZ, maxZ;
+		// only if the moments were requested
+		public long[] cXX, cYY, cZZ, cXY, cXZ, cYZ;
+		// only if a grey image was given
+		public double[] sumValue, sumValue2;
+		// holds the arrays above
+		Slab total;
 
 		public Statistics(InterpolatedImage ii) {
-			cal = ii.image.getCalibration();
-			parameters = new AmiraParameters(ii.image);
+			this(ii.image, null, false);
+		}
+
+		public Statistics(ImagePlus labels, ImagePlus grey,
+				boolean moments) {
+			cal = labels.getCalibration();
+			parameters = new AmiraParameters(labels);
 			materials = parameters.getMaterialList();
-			count = new long[materials.length];
-			cX = new long[materials.length];
-			cY = new long[materials.length];
-			cZ = new long[materials.length];
-			minX = new int[materials.length];
-			maxX = new int[materials.length];
-			minY = new int[materials.length];
-			maxY = new int[materials.length];
-			minZ = new int[materials.length];
-			maxZ = new int[materials.length];
 
-			for (int i = 0; i < materials.length; i++)
-				minX[i] = minY[i] = minZ[i] = Integer.MAX_VALUE;
+			if (grey != null && (grey.getWidth() != labels.getWidth()
+					|| grey.getHeight() != labels.getHeight()
+					|| grey.getStackSize() !=
+					labels.getStackSize()))
+				throw new IllegalArgumentException("The grey "
+					+ "image must have the same dimensions "
+					+ "as the labels");
 
-			doit(ii);
+			total = new Slab(materials.length, moments,
+					grey != null);
+			count = total.count;
+			cX = total.cX;
+			cY = total.cY;
+			cZ = total.cZ;
+			minX = total.minX;
+			maxX = total.maxX;
+			minY = total.minY;
+			maxY = total.maxY;
+			minZ = total.minZ;
+			maxZ = total.maxZ;
+			cXX = total.cXX;
+			cYY = total.cYY;
+			cZZ = total.cZZ;
+			cXY = total.cXY;
+			cXZ = total.cXZ;
+			cYZ = total.cYZ;
+			sumValue = total.sumValue;
+			sumValue2 = total.sumValue2;
+
+			doit(labels, grey);
 		}
 
 		public void doit(InterpolatedImage ii) {
-			InterpolatedImage.Iterator iter = ii.iterator(true);
-			while (iter.next() != null) {
-				int v = ii.getNoInterpol(iter.i,
-						iter.j, iter.k);
-				count[v]++;
-				cX[v] += iter.i;
-				cY[v] += iter.j;
-				cZ[v] += iter.k;
-				if (minX[v] > iter.i)
-					minX[v] = iter.i;
-				else if (maxX[v] < iter.i)
-					maxX[v] = iter.i;
-				if (minY[v] > iter.j)
-					minY[v] = iter.j;
-				else if (maxY[v] < iter.j)
-					maxY[v] = iter.j;
-				if (minZ[v] > iter.k)
-					minZ[v] = iter.k;
-				else if (maxZ[v] < iter.k)
-					maxZ[v] = iter.k;
+			doit(ii.image, null);
+		}
+
+		/*
+		 * The partial sums of a slab (or of the whole image).
+		 */
+		static class Slab {
+			int n;
+			long[] count, cX, cY, cZ;
+			int[] minX, maxX, minY, maxY, minZ, maxZ;
+			long[] cXX, cYY, cZZ, cXY, cXZ, cYZ;
+			double[] sumValue, sumValue2;
+
+			Slab(int n, boolean moments, boolean grey) {
+				this.n = n;
+				count = new long[n];
+				cX = new long[n];
+				cY = new long[n];
+				cZ = new long[n];
+				minX = new int[n];
+				maxX = new int[n];
+				minY = new int[n];
+				maxY = new int[n];
+				minZ = new int[n];
+				maxZ = new int[n];
+				for (int i = 0; i < n; i++) {
+					minX[i] = minY[i] = minZ[i] =
+						Integer.MAX_VALUE;
+					maxX[i] = maxY[i] = maxZ[i] = -1;
+				}
+				if (moments) {
+					cXX = new long[n];
+					cYY = new long[n];
+					cZZ = new long[n];
+					cXY = new long[n];
+					cXZ = new long[n];
+					cYZ = new long[n];
+				}
+				if (grey) {
+					sumValue = new double[n];
+					sumValue2 = new double[n];
+				}
+			}
+
+			/*
+			 * Accumulate the voxels x0 <= x < x1 of row y in
+			 * slice z, all of which are of material v.
+			 */
+			final void addRun(int v, int x0, int x1, int y, int z) {
+				long len = x1 - x0;
+				long sumX = (x0 + (long)x1 - 1) * len / 2;
+				count[v] += len;
+				cX[v] += sumX;
+				cY[v] += y * len;
+				cZ[v] += z * len;
+				if (minX[v] > x0)
+					minX[v] = x0;
+				if (maxX[v] < x1 - 1)
+					maxX[v] = x1 - 1;
+				if (minY[v] > y)
+					minY[v] = y;
+				if (maxY[v] < y)
+					maxY[v] = y;
+				if (minZ[v] > z)
+					minZ[v] = z;
+				if (maxZ[v] < z)
+					maxZ[v] = z;
+				if (cXX == null)
+					return;
+				cXX[v] += sumOfSquares(x1) - sumOfSquares(x0);
+				cYY[v] += (long)y * y * len;
+				cZZ[v] += (long)z * z * len;
+				cXY[v] += y * sumX;
+				cXZ[v] += z * sumX;
+				cYZ[v] += (long)y * z * len;
+			}
+
+			// 0^2 + 1^2 + ... + (n - 1)^2
+			final static long sumOfSquares(long n) {
+				return (n - 1) * n * (2 * n - 1) / 6;
+			}
+
+			void add(Slab other) {
+				for (int v = 0; v < n; v++) {
+					if (other.count[v] == 0)
+						continue;
+					count[v] += other.count[v];
+					cX[v] += other.cX[v];
+					cY[v] += other.cY[v];
+					cZ[v] += other.cZ[v];
+					minX[v] = Math.min(minX[v], other.minX[v]);
+					maxX[v] = Math.max(maxX[v], other.maxX[v]);
+					minY[v] = Math.min(minY[v], other.minY[v]);
+					maxY[v] = Math.max(maxY[v], other.maxY[v]);
+					minZ[v] = Math.min(minZ[v], other.minZ[v]);
+					maxZ[v] = Math.max(maxZ[v], other.maxZ[v]);
+					if (cXX != null) {
+						cXX[v] += other.cXX[v];
+						cYY[v] += other.cYY[v];
+						cZZ[v] += other.cZZ[v];
+						cXY[v] += other.cXY[v];
+						cXZ[v] += other.cXZ[v];
+						cYZ[v] += other.cYZ[v];
+					}
+					if (sumValue != null) {
+						sumValue[v] += other.sumValue[v];
+						sumValue2[v] += other.sumValue2[v];
+					}
+				}
 			}
 		}
 
+		void doit(ImagePlus labels, ImagePlus grey) {
+			final ImageStack labelStack = labels.getStack();
+			final ImageStack greyStack = grey == null ? null :
+				grey.getStack();
+			final int w = labels.getWidth(), h = labels.getHeight();
+			final int d = labels.getStackSize();
+			final boolean moments = cXX != null;
+			final Slab[] slabs = new Slab[(d + SLAB - 1) / SLAB];
+			final AtomicInteger ai = new AtomicInteger(0);
+			final AtomicInteger done = new AtomicInteger(0);
+
+			Thread[] threads = new Thread[Math.min(slabs.length,
+				Runtime.getRuntime().availableProcessors())];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						for (int s = ai.getAndIncrement();
+								s < slabs.length;
+								s = ai.getAndIncrement()) {
+							slabs[s] = doSlab(s, labelStack,
+								greyStack, w, h, d,
+								moments);
+							IJ.showProgress(done
+								.incrementAndGet(),
+								slabs.length);
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (int t = 0; t < threads.length; t++)
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					IJ.handleException(e);
+				}
+
+			for (int s = 0; s < slabs.length; s++)
+				total.add(slabs[s]);
+		}
+
+		Slab doSlab(int s, ImageStack labelStack,
+				ImageStack greyStack, int w, int h, int d,
+				boolean moments) {
+			int n = materials.length;
+			Slab slab = new Slab(n, moments, greyStack != null);
+			int z1 = Math.min(d, (s + 1) * SLAB);
+			for (int z = s * SLAB; z < z1; z++) {
+				byte[] pixels = (byte[])labelStack.getPixels(z + 1);
+				Object greyPixels = greyStack == null ? null :
+					greyStack.getPixels(z + 1);
+				for (int y = 0; y < h; y++) {
+					int index = y * w;
+					for (int x0 = 0; x0 < w; ) {
+						int v = pixels[index + x0] & 0xff;
+						int x1 = x0 + 1;
+						while (x1 < w && (pixels[index + x1]
+								& 0xff) == v)
+							x1++;
+						if (v < n) {
+							slab.addRun(v, x0, x1, y, z);
+							if (greyPixels != null)
+								addValues(slab, v,
+									greyPixels,
+									index + x0,
+									index + x1);
+						}
+						x0 = x1;
+					}
+				}
+			}
+			return slab;
+		}
+
+		static void addValues(Slab slab, int v, Object pixels,
+				int from, int to) {
+			double sum = 0, sum2 = 0;
+			if (pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for (int i = from; i < to; i++) {
+					int value = p[i] & 0xff;
+					sum += value;
+					sum2 += value * value;
+				}
+			} else if (pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for (int i = from; i < to; i++) {
+					double value = p[i] & 0xffff;
+					sum += value;
+					sum2 += value * value;
+				}
+			} else if (pixels instanceof float[]) {
+				float[] p = (float[])pixels;
+				for (int i = from; i < to; i++) {
+					double value = p[i];
+					sum += value;
+					sum2 += value * value;
+				}
+			} else
+				throw new IllegalArgumentException("The grey "
+					+ "image must be 8-bit, 16-bit or 32-bit");
+			slab.sumValue[v] += sum;
+			slab.sumValue2[v] += sum2;
+		}
+
 		public double x(double i) {
 			return cal.xOrigin + (i + 0.5) * cal.pixelWidth;
 		}
@@ -101,7 +339,7 @@ public class TissueStatistics extends Module {
 		}
 
 		public double z(double k) {
-			return cal.yOrigin + (k + 0.5) * cal.pixelDepth;
+			return cal.zOrigin + (k + 0.5) * cal.pixelDepth;
 		}
 
 		public double voxelVolume() {
@@ -121,37 +359,128 @@ public class TissueStatistics extends Module {
 			return z(cZ[index] / (double)count[index]);
 		}
 
+		public boolean hasMoments() {
+			return cXX != null;
+		}
+
+		public boolean hasValues() {
+			return sumValue != null;
+		}
+
+		/*
+		 * The central second moments (variances and covariances of
+		 * the voxel centres, in calibrated units), in the order
+		 * xx, yy, zz, xy, xz, yz.
+		 */
+		public double[] getMoments(int index) {
+			double n = count[index];
+			double mX = cX[index] / n;
+			double mY = cY[index] / n;
+			double mZ = cZ[index] / n;
+			double pw = cal.pixelWidth, ph = cal.pixelHeight;
+			double pd = cal.pixelDepth;
+			return new double[] {
+				(cXX[index] / n - mX * mX) * pw * pw,
+				(cYY[index] / n - mY * mY) * ph * ph,
+				(cZZ[index] / n - mZ * mZ) * pd * pd,
+				(cXY[index] / n - mX * mY) * pw * ph,
+				(cXZ[index] / n - mX * mZ) * pw * pd,
+				(cYZ[index] / n - mY * mZ) * ph * pd
+			};
+		}
+
+		/*
+		 * The inertia tensor with respect to the centre, assuming
+		 * unit density, in the order xx, yy, zz, xy, xz, yz.
+		 */
+		public double[] getInertiaTensor(int index) {
+			double[] m = getMoments(index);
+			double mass = count[index] * voxelVolume();
+			return new double[] {
+				(m[1] + m[2]) * mass,
+				(m[0] + m[2]) * mass,
+				(m[0] + m[1]) * mass,
+				-m[3] * mass,
+				-m[4] * mass,
+				-m[5] * mass
+			};
+		}
+
+		public double mean(int index) {
+			return sumValue[index] / count[index];
+		}
+
+		public double standardDeviation(int index) {
+			double mean = mean(index);
+			double variance = sumValue2[index] / count[index]
+				- mean * mean;
+			return variance > 0 ? Math.sqrt(variance) : 0;
+		}
+
+		public String getHeadings() {
+			String headings = "Nr\tMaterial\tCount\tVolume\t" +
+				"CenterX\tCenterY\tCenterZ\t" +
+				"MinX\tMaxX\tMinY\tMaxY\tMinZ\tMaxZ";
+			if (hasValues())
+				headings += "\tMean\tStdDev";
+			if (hasMoments())
+				headings += "\tVarX\tVarY\tVarZ" +
+					"\tCovXY\tCovXZ\tCovYZ" +
+					"\tIxx\tIyy\tIzz\tIxy\tIxz\tIyz";
+			return headings;
+		}
+
 		public String getResult() {
 			double voxelVolume = voxelVolume();
-			String result = "";
+			int columns = 10 + (hasValues() ? 2 : 0)
+				+ (hasMoments() ? 12 : 0);
+			StringBuffer result = new StringBuffer();
 			for (int i = 0; i < materials.length; i++) {
-				result += (i + 1) + "\t";
-				result += materials[i] + "\t";
-				result += count[i] + "\t";
+				result.append((i + 1) + "\t");
+				result.append(materials[i] + "\t");
+				result.append(count[i]);
 				if (count[i] == 0) {
-					result += "0\t0\t0\t0\t"
-						+ "0\t0\t0\t0\t0\t0\n";
+					for (int c = 0; c < columns; c++)
+						result.append("\t0");
+					result.append("\n");
 					continue;
 				}
-				result += (count[i] * voxelVolume) + "\t";
-				result += centerX(i) + "\t";
-				result += centerY(i) + "\t";
-				result += centerZ(i) + "\t";
-				result += x(minX[i]) + "\t";
-				result += x(maxX[i]) + "\t";
-				result += y(minY[i]) + "\t";
-				result += y(maxY[i]) + "\t";
-				result += z(minZ[i]) + "\t";
-				result += z(maxZ[i]) + "\n";
+				result.append("\t" + (count[i] * voxelVolume));
+				result.append("\t" + centerX(i));
+				result.append("\t" + centerY(i));
+				result.append("\t" + centerZ(i));
+				result.append("\t" + x(minX[i]));
+				result.append("\t" + x(maxX[i]));
+				result.append("\t" + y(minY[i]));
+				result.append("\t" + y(maxY[i]));
+				result.append("\t" + z(minZ[i]));
+				result.append("\t" + z(maxZ[i]));
+				if (hasValues()) {
+					result.append("\t" + mean(i));
+					result.append("\t" + standardDeviation(i));
+				}
+				if (hasMoments()) {
+					double[] m = getMoments(i);
+					double[] inertia = getInertiaTensor(i);
+					for (int c = 0; c < 6; c++)
+						result.append("\t" + m[c]);
+					for (int c = 0; c < 6; c++)
+						result.append("\t" + inertia[c]);
+				}
+				result.append("\n");
 			}
 
-			return result;
+			return result.toString();
 		}
 	}
 
 	public static Statistics getStatistics(ImagePlus labelfield) {
-		InterpolatedImage ii = new InterpolatedImage(labelfield);
-		return new Statistics(ii);
+		return new Statistics(labelfield, null, false);
+	}
+
+	public static Statistics getStatistics(ImagePlus labelfield,
+			ImagePlus grey, boolean moments) {
+		return new Statistics(labelfield, grey, moments);
 	}
 
 }
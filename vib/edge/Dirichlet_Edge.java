@@ -10,6 +10,12 @@ import inference.LogFuncs;
 
 import java.awt.Polygon;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import vib.InterpolatedImage;
 import vib.MaxEntHistogram;
 import vib.VIB;
@@ -249,6 +255,170 @@ public class Dirichlet_Edge implements PlugInFilter {
 		}
 	}
 
+	/*
+	 * Tabulates a measure (and its null model, if any) for all pairs of
+	 * counts up to maxCount, so that the inner loops do not have to go
+	 * through the harmonic numbers or log factorials for every bin.
+	 * Counts outside of the table are passed on to the measure itself.
+	 */
+	static class MeasureTable {
+		final static int MAX_ENTRIES = 1 << 22;
+
+		final Measure measure;
+		final MeasureWithNullModel nullMeasure;
+		final int stride;
+		double[] values, nullValues;
+
+		MeasureTable(Measure measure, int maxCount) {
+			this.measure = measure;
+			nullMeasure = measure instanceof MeasureWithNullModel ?
+				(MeasureWithNullModel)measure : null;
+			stride = maxCount + 1;
+			if ((long)stride * stride > MAX_ENTRIES)
+				return;
+			values = new double[stride * stride];
+			if (nullMeasure != null)
+				nullValues = new double[stride * stride];
+			for (int i = 0; i < stride; i++)
+				for (int j = 0; j < stride; j++) {
+					values[i * stride + j] = measure.doit(i, j);
+					if (nullMeasure != null)
+						nullValues[i * stride + j] =
+							nullMeasure.doitNull(i, j);
+				}
+		}
+
+		final double get(int count1, int count2) {
+			if (values != null && count1 >= 0 && count2 >= 0 &&
+					count1 < stride && count2 < stride)
+				return values[count1 * stride + count2];
+			return measure.doit(count1, count2);
+		}
+
+		final double getNull(int count1, int count2) {
+			if (nullValues != null && count1 >= 0 && count2 >= 0 &&
+					count1 < stride && count2 < stride)
+				return nullValues[count1 * stride + count2];
+			return nullMeasure.doitNull(count1, count2);
+		}
+	}
+
+	/*
+	 * The histograms of two complementary neighbourhoods (two half
+	 * circles, or two half spheres) of a pixel, together with the sum
+	 * of the measure over all bins.
+	 *
+	 * When the center moves one pixel to the right, only the offsets
+	 * at the trailing and at the leading edge of each half change, so
+	 * the histograms (and the sum) are updated in O(r) (2D) or O(r^2)
+	 * (3D) instead of being recalculated in O(r^2) or O(r^3).
+	 */
+	static class SlidingHistograms {
+		final InterpolatedImage ii;
+		final MeasureTable measure;
+		final int[][][] halves, trailing, leading;
+		final int[][] histograms;
+		double value, nullValue;
+		int x, y, z;
+
+		/* halves[0] and halves[1] are (x, y[, z]) offsets */
+		SlidingHistograms(InterpolatedImage ii, MeasureTable measure,
+				int[][][] halves, int binCount) {
+			this.ii = ii;
+			this.measure = measure;
+			this.halves = new int[2][][];
+			trailing = new int[2][][];
+			leading = new int[2][][];
+			for (int s = 0; s < 2; s++) {
+				this.halves[s] = to3d(halves[s]);
+				trailing[s] = edge(this.halves[s], -1);
+				leading[s] = edge(this.halves[s], +1);
+			}
+			histograms = new int[2][binCount];
+		}
+
+		static int[][] to3d(int[][] offsets) {
+			int[][] result = new int[offsets.length][3];
+			for (int i = 0; i < offsets.length; i++)
+				for (int j = 0; j < offsets[i].length; j++)
+					result[i][j] = offsets[i][j];
+			return result;
+		}
+
+		static long key(int x, int y, int z) {
+			return ((long)z << 40) + ((long)y << 20) + x;
+		}
+
+		/* the offsets whose neighbour in direction dx is not a member */
+		static int[][] edge(int[][] offsets, int dx) {
+			Set<Long> set = new HashSet<Long>();
+			for (int i = 0; i < offsets.length; i++)
+				set.add(Long.valueOf(key(offsets[i][0],
+						offsets[i][1], offsets[i][2])));
+			List<int[]> result = new ArrayList<int[]>();
+			for (int i = 0; i < offsets.length; i++) {
+				int[] p = offsets[i];
+				if (!set.contains(Long.valueOf(key(p[0] + dx,
+								p[1], p[2]))))
+					result.add(p);
+			}
+			return result.toArray(new int[result.size()][]);
+		}
+
+		void reset(int x, int y, int z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			for (int s = 0; s < 2; s++) {
+				int[] histogram = histograms[s];
+				for (int i = 0; i < histogram.length; i++)
+					histogram[i] = 0;
+				int[][] half = halves[s];
+				for (int i = 0; i < half.length; i++)
+					histogram[ii.getNoInterpol(x + half[i][0],
+							y + half[i][1],
+							z + half[i][2])]++;
+			}
+			int[] h0 = histograms[0], h1 = histograms[1];
+			value = nullValue = 0;
+			for (int i = 0; i < h0.length; i++) {
+				value += measure.get(h0[i], h1[i]);
+				if (measure.nullMeasure != null)
+					nullValue += measure.getNull(h0[i], h1[i]);
+			}
+		}
+
+		/* move the center to (x + 1, y, z) */
+		void next() {
+			for (int s = 0; s < 2; s++) {
+				int[][] edge = trailing[s];
+				for (int i = 0; i < edge.length; i++)
+					update(ii.getNoInterpol(x + edge[i][0],
+							y + edge[i][1],
+							z + edge[i][2]), s, -1);
+			}
+			x++;
+			for (int s = 0; s < 2; s++) {
+				int[][] edge = leading[s];
+				for (int i = 0; i < edge.length; i++)
+					update(ii.getNoInterpol(x + edge[i][0],
+							y + edge[i][1],
+							z + edge[i][2]), s, +1);
+			}
+		}
+
+		private void update(int bin, int half, int delta) {
+			int[] h0 = histograms[0], h1 = histograms[1];
+			value -= measure.get(h0[bin], h1[bin]);
+			if (measure.nullMeasure != null)
+				nullValue -= measure.getNull(h0[bin], h1[bin]);
+			histograms[half][bin] += delta;
+			value += measure.get(h0[bin], h1[bin]);
+			if (measure.nullMeasure != null)
+				nullValue += measure.getNull(h0[bin], h1[bin]);
+		}
+	}
+
 	//int w,h;
 
 	public static class PostProcessHistogram {
@@ -409,7 +579,10 @@ System.err.println("index: " + index);
 
 		int slice;
 		int[][] fullCircle,halfCircle;
+		int[][][] halves;
 		int[][] histograms;
+		MeasureTable table;
+		SlidingHistograms sliding;
 
 		public EdgeInformation(ImagePlus image, Measure measure,
 				double radius, int maxBin, int numberOfBins) {
@@ -432,6 +605,44 @@ System.err.println("index: " + index);
 			fullCircle = CircleIterators.FullCircle(radius,false);
 			halfCircle = CircleIterators.SortedHalfCircle(radius);
 			int[][] sickle = CircleIterators.RightSickle(radius);
+
+			/* the upper half is what calculateHistograms() puts into histograms[0] */
+			List<int[]> upper = new ArrayList<int[]>();
+			List<int[]> lower = new ArrayList<int[]>();
+			for (int k = 0; k < fullCircle.length; k++) {
+				int[] p = fullCircle[k];
+				if (p[1] > 0 || (p[1] == 0 && p[0] > 0))
+					upper.add(p);
+				else
+					lower.add(p);
+			}
+			halves = new int[][][] {
+				upper.toArray(new int[upper.size()][]),
+				lower.toArray(new int[lower.size()][])
+			};
+			table = new MeasureTable(measure, halfCircle.length + 1);
+		}
+
+		/* a copy for another thread, sharing everything read-only */
+		public EdgeInformation(EdgeInformation other) {
+			ii = other.ii;
+			measure = other.measure;
+			nullMeasure = other.nullMeasure;
+			radius = other.radius;
+			maxBin = other.maxBin;
+			numberOfBins = other.numberOfBins;
+			slice = other.slice;
+			fullCircle = other.fullCircle;
+			halfCircle = other.halfCircle;
+			halves = other.halves;
+			table = other.table;
+			angles = other.angles;
+			histograms = new int[2][maxBin + 1];
+		}
+
+		/* the sliding histograms cannot be post processed */
+		boolean canSlide() {
+			return postProc == null && var == null;
 		}
 
 		void setPostProc(int index) {
@@ -521,9 +732,51 @@ System.err.println("index: " + index);
 
 		double getEdgeInformation(int i, int j, int z) {
 			calculateHistograms(i, j, z);
-			double value = 0;
+			double value = 0, nullValue = 0;
 			for(int k=0;k<histograms[0].length;k++)
-				value+=measure.doit(histograms[0][k],histograms[1][k]);
+				value+=table.get(histograms[0][k],histograms[1][k]);
+			if (nullMeasure != null)
+				for(int k=0;k<histograms[0].length;k++)
+					nullValue+=table.getNull(histograms[0][k],histograms[1][k]);
+			return getMaximum(i, j, z, value, nullValue);
+		}
+
+		/*
+		 * The same as getEdgeInformation(i, j, z) for all pixels in
+		 * row j, but the histograms are slid along the row instead of
+		 * being recalculated for every pixel.
+		 */
+		void getEdgeInformationRow(int j, int z, double[] result) {
+			if (sliding == null)
+				sliding = new SlidingHistograms(ii, table, halves,
+						maxBin + 1);
+			int w = ii.getWidth();
+			for (int i = 0; i < w; i++) {
+				if (i == 0)
+					sliding.reset(i, j, z);
+				else
+					sliding.next();
+				histograms = sliding.histograms;
+				result[i + j * w] = getMaximum(i, j, z,
+						sliding.value, sliding.nullValue);
+				/*
+				 * Turning the boundary by 180 degrees swapped
+				 * the two halves; swap them back.
+				 */
+				int[] swap = histograms[0];
+				histograms[0] = histograms[1];
+				histograms[1] = swap;
+			}
+		}
+
+		/*
+		 * Turn the boundary (starting with the horizontal one) through
+		 * all angles, updating the value incrementally, and return the
+		 * maximum. The null model is symmetric, so nullValue does not
+		 * change while turning.
+		 */
+		double getMaximum(int i, int j, int z, double value,
+				double nullValue) {
 			if (nullMeasure != null)
 				value+=nullMeasure.getNormalize(fullCircle.length,numberOfBins);
 
@@ -531,6 +784,7 @@ System.err.println("index: " + index);
 			double edgeEvidenceSum=-1e300;
 			angleIndex=0;
 
+			int[] h0 = histograms[0], h1 = histograms[1];
 			for(int k=0;k<halfCircle.length;k++) {
 				int value1 = ii.getNoInterpol(
 						i + halfCircle[k][0],
@@ -547,29 +801,28 @@ System.err.println("index: " + index);
 						if (value2 < 0)
 							value2 += 256;
 					}
-					double old=measure.doit(histograms[0][value1],histograms[1][value1])
-						+measure.doit(histograms[0][value2],histograms[1][value2]);
-					histograms[0][value1]--;
-					histograms[1][value1]++;
-					histograms[0][value2]++;
-					histograms[1][value2]--;
-					double diff=measure.doit(histograms[0][value1],histograms[1][value1])
-						+measure.doit(histograms[0][value2],histograms[1][value2])-old;
+					double old=table.get(h0[value1],h1[value1])
+						+table.get(h0[value2],h1[value2]);
+					h0[value1]--;
+					h1[value1]++;
+					h0[value2]++;
+					h1[value2]--;
+					double diff=table.get(h0[value1],h1[value1])
+						+table.get(h0[value2],h1[value2])-old;
 					tempValue+=diff;
 					if(tempValue>maxValue) {
 						maxValue=tempValue;
 						angleIndex=k;
 					}
 				}
-				edgeEvidenceSum=LogFuncs.LogAddLogLog(edgeEvidenceSum,tempValue);
+				if (nullMeasure != null)
+					edgeEvidenceSum=LogFuncs.LogAddLogLog(edgeEvidenceSum,tempValue);
 			}
 
 
 			if(nullMeasure != null) {
-				double nullEv=0.0;
+				double nullEv=nullValue;
 				double edgePrior=0.001;
-				for(int k=0;k<histograms[0].length;k++)
-					nullEv+=nullMeasure.doitNull(histograms[0][k],histograms[1][k]);
 				nullEv+=nullMeasure.getNormalizeNull(fullCircle.length,numberOfBins);
 				nullEv+=Math.log(1.0-edgePrior);
 				edgeEvidenceSum+=Math.log(edgePrior);
@@ -659,13 +912,13 @@ System.err.println("index: " + index);
 		int w=ii.getWidth();
 		int h=ii.getHeight();
 
-		double[] res2=new double[w*h];
+		final double[] res2=new double[w*h];
 
 		// number of bins
 		int nbins=0;
 		boolean isfull[]=new boolean[256];
 		for(int i=0;i<w;i++)
-		 for(int j=0;j<w;j++)
+		 for(int j=0;j<h;j++)
 			isfull[ii.getNoInterpol(i, j, slice)]=true;
 		maxBin=0;
 		for(int i=0;i<256;i++)
@@ -675,7 +928,7 @@ System.err.println("index: " + index);
 			}
 		VIB.println("Number of values in image is "+nbins);
 
-		EdgeInformation edgeInfo = new EdgeInformation(ii, measure, radius, maxBin, nbins);
+		final EdgeInformation edgeInfo = new EdgeInformation(ii, measure, radius, maxBin, nbins);
 		edgeInfo.slice = slice;
 		edgeInfo.setPostProc(postProcessHistogram);
 
@@ -688,7 +941,9 @@ System.err.println("index: " + index);
 		if(showEdgelets)
 			edgeInfo.initEdgelets();
 
-		for(int j=0;j<h;j++) {
+		if (edgeInfo.canSlide() && edgeInfo.edgelets == null)
+			doRows(edgeInfo, slice, h, res2);
+		else for(int j=0;j<h;j++) {
 			for(int i=0;i<w;i++) {
 				/* TODO:
 				if(postProcessHistogram>0)
@@ -710,6 +965,64 @@ System.err.println("index: " + index);
 		return ip2;
 	}
 
+	/* the rows are independent, so they are distributed over the cores */
+	private void doRows(final EdgeInformation edgeInfo, final int slice,
+			final int h, final double[] result) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread[] threads = new Thread[Runtime.getRuntime()
+			.availableProcessors()];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					EdgeInformation info =
+						new EdgeInformation(edgeInfo);
+					for (int j = ai.getAndIncrement(); j < h;
+							j = ai.getAndIncrement()) {
+						info.getEdgeInformationRow(j,
+								slice, result);
+						IJ.showProgress(done
+							.incrementAndGet(), h);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		join(threads);
+	}
+
+	static void join(Thread[] threads) {
+		for (int t = 0; t < threads.length; t++)
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				IJ.handleException(e);
+			}
+	}
+
+	/* 0 for the upper half, 1 for the lower half, -1 for neither */
+	static int half(int[] p, double[] normal) {
+		double d = p[0] * normal[0] + p[1] * normal[1]
+			+ p[2] * normal[2];
+		return d > 0 ? 0 : d < 0 ? 1 : -1;
+	}
+
+	static int[][][] split(int[][] sphere, double[] normal) {
+		List<int[]> upper = new ArrayList<int[]>();
+		List<int[]> lower = new ArrayList<int[]>();
+		for (int i = 0; i < sphere.length; i++) {
+			int h = half(sphere[i], normal);
+			if (h == 0)
+				upper.add(sphere[i]);
+			else if (h == 1)
+				lower.add(sphere[i]);
+		}
+		return new int[][][] {
+			upper.toArray(new int[upper.size()][]),
+			lower.toArray(new int[lower.size()][])
+		};
+	}
+
 	public void do3d(ImagePlus stack,ImageStack result,Measure measure,double radius) {
 		InterpolatedImage input=new InterpolatedImage(stack);
 
@@ -727,34 +1040,8 @@ System.err.println("index: " + index);
 			normal[2]=gd.getNextNumber();
 		}
 
-		// for(x,y,z)
-		int w=input.getWidth(),h=input.getHeight(),d=input.getDepth();
-		IJ.showProgress(0);
-		for(int z=0;z<d;z++) {
-		//for(int z=d/2;z<d/2+1;z++) {
-			double[] slice=new double[w*h];
-			for(int y=0;y<h;y++) {
-				for(int x=0;x<w;x++) {
-					double value=0;
-					// getHistograms
-					int[][] histograms=new int[3][maxBin+1];
-					for(int i=0;i<sphereIterator.length;i++)
-						try {
-							int v = input.getNoInterpol(x+sphereIterator[i][0],y+sphereIterator[i][1],z+sphereIterator[i][2]);
-							histograms[SphereIterators.isUpperHalf(sphereIterator[i],normal)?0:1][v]++;
-						} catch(Exception e) { /* do not count */ }
-					for(int k=0;k<histograms[0].length;k++)
-						value+=measure.doit(histograms[0][k],histograms[1][k]);
-
-					// set maximum
-					slice[x+w*y]=value;
-				}
-				IJ.showProgress((y+1.0)/h);
-			}
-			result.addSlice("", new FloatProcessor(w, h, slice));
-			IJ.showProgress((z+1.0)/d);
-		}
-		IJ.showProgress(1.0);
+		slide3d(input, result, measure, split(sphereIterator, normal),
+				null);
 	}
 
 	public void do3d_complete(ImagePlus stack,ImageStack result,Measure measure,double radius) {
@@ -763,57 +1050,117 @@ System.err.println("index: " + index);
 		// get FullSphereIterator, SphereIteratorsIterator
 		int[][] sphereIterator=SphereIterators.SphereIterator(radius);
 		double[][] normals=SphereIterators.SampleSphereSurface(radius,10);
-		int[][][] iterIterator=SphereIterators.HalfSphereIteratorsIterator(radius,normals);
 
-		// for(x,y,z)
-		int w=input.getWidth(),h=input.getHeight(),d=input.getDepth();
+		/*
+		 * For each pair of consecutive normals, the offsets changing
+		 * the half, as {x, y, z, old half, new half}.
+		 */
+		int[][][] turns = new int[Math.max(0, normals.length - 1)][][];
+		for (int i = 0; i < turns.length; i++) {
+			List<int[]> list = new ArrayList<int[]>();
+			for (int j = 0; j < sphereIterator.length; j++) {
+				int[] p = sphereIterator[j];
+				int from = half(p, normals[i]);
+				int to = half(p, normals[i + 1]);
+				if (from != to)
+					list.add(new int[] {
+						p[0], p[1], p[2], from, to
+					});
+			}
+			turns[i] = list.toArray(new int[list.size()][]);
+		}
+
+		slide3d(input, result, measure,
+				split(sphereIterator, normals[0]), turns);
+	}
+
+	/*
+	 * Calculates the measure for the given halves at every voxel, or,
+	 * if turns is not null, the maximum over all orientations reached
+	 * by applying the turns one after another.
+	 *
+	 * The histograms are slid along the rows, and the rows are
+	 * distributed over the cores.
+	 */
+	void slide3d(final InterpolatedImage input, ImageStack result,
+			Measure measure, final int[][][] halves,
+			final int[][][] turns) {
+		final int w = input.getWidth(), h = input.getHeight();
+		final int d = input.getDepth();
+		final int binCount = maxBin + 1;
+		final MeasureTable table = new MeasureTable(measure,
+				Math.max(halves[0].length, halves[1].length) + 1);
+		final double[][] slices = new double[d][w * h];
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread[] threads = new Thread[Runtime.getRuntime()
+			.availableProcessors()];
 		IJ.showProgress(0);
-		//for(int z=0;z<d;z++) {
-		for(int z=d/2;z<d/2+1;z++) {
-			double[] slice=new double[w*h];
-			for(int y=0;y<h;y++) {
-				for(int x=0;x<w;x++) {
-					double value=0;
-					// getHistograms
-					int[][] histograms=new int[2][maxBin+1];
-					for(int i=0;i<sphereIterator.length;i++)
-						try {
-							int v = input.getNoInterpol(x+sphereIterator[i][0],y+sphereIterator[i][1],z+sphereIterator[i][2]);
-							histograms[SphereIterators.isUpperHalf(sphereIterator[i],normals[0])?0:1][v]++;
-						} catch(Exception e) { /* do not count */ }
-					for(int k=0;k<histograms[0].length;k++)
-						value+=measure.doit(histograms[0][k],histograms[1][k]);
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					SlidingHistograms sliding =
+						new SlidingHistograms(input,
+							table, halves,
+							binCount);
+					int[][] histograms =
+						new int[2][binCount];
+					for (int row = ai.getAndIncrement();
+							row < d * h;
+							row = ai.getAndIncrement()) {
+						int z = row / h, y = row % h;
+						double[] slice = slices[z];
+						for (int x = 0; x < w; x++) {
+							if (x == 0)
+								sliding.reset(x, y, z);
+							else
+								sliding.next();
+							slice[x + w * y] = turns == null ?
+								sliding.value :
+								turn(sliding, histograms);
+						}
+						IJ.showProgress(done.incrementAndGet(),
+								d * h);
+					}
+				}
 
-					double maxValue=value;
-					// iterate via iteratorsIterator
-					for(int i=0;i<iterIterator.length;i++) {
-						for(int k=0;k<iterIterator[i].length;k++) {
-							int value1=input.getNoInterpol(x+iterIterator[i][k][0],y+iterIterator[i][k][1],z+iterIterator[i][k][2]);
-							int value2=input.getNoInterpol(x-iterIterator[i][k][0],y-iterIterator[i][k][1],z-iterIterator[i][k][2]);
-							if(value1!=value2) {
-								double old=measure.doit(histograms[0][value1],histograms[1][value1])+measure.doit(histograms[0][value2],histograms[1][value2]);
-								histograms[0][value1]--;
-								histograms[1][value1]++;
-								histograms[0][value2]++;
-								histograms[1][value2]--;
-								double diff=measure.doit(histograms[0][value1],histograms[1][value1])+measure.doit(histograms[0][value2],histograms[1][value2])-old;
-								value+=diff;
-							}
+				double turn(SlidingHistograms sliding,
+						int[][] histograms) {
+					for (int s = 0; s < 2; s++)
+						System.arraycopy(sliding.histograms[s],
+							0, histograms[s], 0, binCount);
+					int[] h0 = histograms[0], h1 = histograms[1];
+					int x = sliding.x, y = sliding.y;
+					int z = sliding.z;
+					double value = sliding.value;
+					double maxValue = value;
+					for (int i = 0; i < turns.length; i++) {
+						int[][] turn = turns[i];
+						for (int k = 0; k < turn.length; k++) {
+							int[] p = turn[k];
+							int v = input.getNoInterpol(x + p[0],
+									y + p[1], z + p[2]);
+							value -= table.get(h0[v], h1[v]);
+							if (p[3] >= 0)
+								histograms[p[3]][v]--;
+							if (p[4] >= 0)
+								histograms[p[4]][v]++;
+							value += table.get(h0[v], h1[v]);
 						}
 						// record maximum
-						if(value>maxValue) {
-							maxValue=value;
-						}
+						if (value > maxValue)
+							maxValue = value;
 					}
-						
-					// set maximum
-					slice[x+w*y]=maxValue;
+					return maxValue;
 				}
-				IJ.showProgress((y+1.0)/h);
-			}
-			result.addSlice("", new FloatProcessor(w, h, slice));
-			IJ.showProgress((z+1.0)/d);
+			};
+			threads[t].start();
 		}
+		join(threads);
+
+		for (int z = 0; z < d; z++)
+			result.addSlice("", new FloatProcessor(w, h, slices[z]));
 		IJ.showProgress(1.0);
 	}
 
@@ -270,7 +270,7 @@ public class CustomStackWindow extends StackWindow
 				}
 			}
 		}
-		cc.updateSlice(slice);
+		cc.updateSlice(slice, new Rectangle(x1, y1, x2 - x1, y2 - y1));
 	}
 	
 	public void releaseSliceFrom(int slice, Roi roi, int materialID){
@@ -299,7 +299,7 @@ public class CustomStackWindow extends StackWindow
 				}
 			}
 		}
-		cc.updateSlice(slice);
+		cc.updateSlice(slice, new Rectangle(x1, y1, x2 - x1, y2 - y1));
 	}
 
 	public boolean areAllRoisEmpty() {
@@ -41,19 +41,6 @@ public class BooksteinTransform extends Bookstein implements Transform {
 		transformedPoints=trans;
 	}
 	
-	public void apply(double x,double y,double z,double[] result) {
-		Point3d p=new Point3d(x,y,z);
-		result[0] = bx.evalInit(p);
-		result[1] = by.evalInit(p);
-		result[2] = bz.evalInit(p);
-		for (int i = 0; i < points.length; i++) {
-			double u = U(p.distanceTo(points[i]));
-			result[0] += bx.w[i] * u;
-			result[1] += by.w[i] * u;
-			result[2] += bz.w[i] * u;
-		}
-	}
-	
 	public void apply(double x,double y,double z) {
 		apply(new Point3d(x,y,z));
 	}
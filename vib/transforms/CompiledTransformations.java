@@ -0,0 +1,311 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+ * A chain of transformations prepared for transforming all the voxels
+ * of a box, typically the inverse of an OrderedTransformations when
+ * resampling an image:
+ *
+ * - runs of consecutive matrices (including identities and calibration
+ *   matrices sandwiched between other matrices) are folded into one
+ *   affine matrix each,
+ *
+ * - Bookstein transforms are replaced by a BooksteinLattice over the
+ *   region their input comes from, so that the sum over all landmarks
+ *   is only evaluated at the lattice nodes,
+ *
+ * - any other transformation is applied point by point as before.
+ *
+ * The points are transformed a row at a time, in place, into the
+ * buffers of a Row; once a thread has its Row, nothing needs to be
+ * allocated anymore.
+ */
+
+package vib.transforms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import math3d.Bookstein;
+import math3d.BooksteinLattice;
+
+public class CompiledTransformations {
+	/* the samples per dimension used to find the input of a lattice */
+	final static int SAMPLES = 17;
+
+	protected Stage[] stages;
+	protected int x0, y0, z0, x1, y1, z1;
+	protected double latticeSpacing;
+
+	/*
+	 * Compile the chain (the first transform is applied first) for
+	 * the points (x0, y0, z0) - (x1, y1, z1), inclusive.  With a
+	 * latticeSpacing <= 0, Bookstein transforms are evaluated exactly.
+	 */
+	public CompiledTransformations(List<Transform> transforms,
+			int x0, int y0, int z0, int x1, int y1, int z1,
+			double latticeSpacing) {
+		this.x0 = x0;
+		this.y0 = y0;
+		this.z0 = z0;
+		this.x1 = x1;
+		this.y1 = y1;
+		this.z1 = z1;
+		this.latticeSpacing = latticeSpacing;
+
+		double[] samples = getSamples();
+		ArrayList<Stage> list = new ArrayList<Stage>();
+		FastMatrixTransform matrix = null;
+		for (Transform t : transforms) {
+			if (t.getTransformType() == Transform.FASTMATRIX) {
+				FastMatrixTransform m = (FastMatrixTransform)t;
+				matrix = matrix == null ? m :
+					matrix.composeWithFastMatrix(m);
+				continue;
+			}
+			if (matrix != null) {
+				addStage(list, new MatrixStage(matrix), samples);
+				matrix = null;
+			}
+			if (t instanceof Bookstein && latticeSpacing > 0)
+				addStage(list, new LatticeStage((Bookstein)t,
+						samples, latticeSpacing),
+					samples);
+			else
+				addStage(list, new GenericStage(t), samples);
+		}
+		if (matrix != null)
+			addStage(list, new MatrixStage(matrix), samples);
+		stages = list.toArray(new Stage[list.size()]);
+	}
+
+	/*
+	 * Whether this was compiled for (a superset of) the given box and
+	 * the same lattice spacing.
+	 */
+	public boolean covers(int x0, int y0, int z0, int x1, int y1, int z1,
+			double latticeSpacing) {
+		return this.latticeSpacing == latticeSpacing &&
+			x0 >= this.x0 && y0 >= this.y0 && z0 >= this.z0 &&
+			x1 <= this.x1 && y1 <= this.y1 && z1 <= this.z1;
+	}
+
+	/*
+	 * A grid of points covering the box; the stages transform it as
+	 * they are added, so that a lattice knows where its input lies.
+	 */
+	protected double[] getSamples() {
+		int nx = Math.min(SAMPLES, x1 - x0 + 1);
+		int ny = Math.min(SAMPLES, y1 - y0 + 1);
+		int nz = Math.min(SAMPLES, z1 - z0 + 1);
+		double[] result = new double[3 * nx * ny * nz];
+		int index = 0;
+		for (int k = 0; k < nz; k++)
+			for (int j = 0; j < ny; j++)
+				for (int i = 0; i < nx; i++) {
+					result[index++] = sample(x0, x1, i, nx);
+					result[index++] = sample(y0, y1, j, ny);
+					result[index++] = sample(z0, z1, k, nz);
+				}
+		return result;
+	}
+
+	protected static double sample(int from, int to, int i, int n) {
+		return n < 2 ? from : from + (to - from) * i / (double)(n - 1);
+	}
+
+	protected static void addStage(List<Stage> list, Stage stage,
+			double[] samples) {
+		if (stage.isIdentity())
+			return;
+		list.add(stage);
+		stage.apply(samples, samples.length / 3, new double[3]);
+	}
+
+	/*
+	 * The per-thread buffers.  After applyToRow(), the transformed
+	 * point i is (points[3 * i], points[3 * i + 1], points[3 * i + 2]).
+	 */
+	public class Row {
+		public double[] points;
+		protected double[] buffer;
+
+		protected Row() {
+			points = new double[3 * (x1 - x0 + 1)];
+			int size = 3;
+			for (int i = 0; i < stages.length; i++)
+				size = Math.max(size, stages[i].getBufferSize());
+			buffer = new double[size];
+		}
+	}
+
+	public Row createRow() {
+		return new Row();
+	}
+
+	/*
+	 * Transform the points (x, y, z) for x0 <= x < x0 + count.
+	 */
+	public void applyToRow(int x0, int y, int z, int count, Row row) {
+		if (stages.length == 0) {
+			for (int i = 0; i < count; i++) {
+				row.points[3 * i] = x0 + i;
+				row.points[3 * i + 1] = y;
+				row.points[3 * i + 2] = z;
+			}
+			return;
+		}
+		stages[0].applyToRow(x0, y, z, count, row.points, row.buffer);
+		for (int i = 1; i < stages.length; i++)
+			stages[i].apply(row.points, count, row.buffer);
+	}
+
+	public int getStageCount() {
+		return stages.length;
+	}
+
+	/*
+	 * The largest error of the lattices' interpolation (measured at
+	 * the centres of the lattice cells).
+	 */
+	public double getMaximumLatticeError() {
+		double result = 0;
+		for (int i = 0; i < stages.length; i++)
+			if (stages[i] instanceof LatticeStage)
+				result = Math.max(result, ((LatticeStage)stages[i])
+					.lattice.getMaximumError());
+		return result;
+	}
+
+	protected static abstract class Stage {
+		/* transform the first count points in place */
+		abstract void apply(double[] points, int count,
+				double[] buffer);
+
+		/* transform the points (x0 + i, y, z) into points */
+		void applyToRow(double x0, double y, double z, int count,
+				double[] points, double[] buffer) {
+			for (int i = 0; i < count; i++) {
+				points[3 * i] = x0 + i;
+				points[3 * i + 1] = y;
+				points[3 * i + 2] = z;
+			}
+			apply(points, count, buffer);
+		}
+
+		int getBufferSize() {
+			return 3;
+		}
+
+		boolean isIdentity() {
+			return false;
+		}
+	}
+
+	protected static class MatrixStage extends Stage {
+		double a00, a01, a02, a03, a10, a11, a12, a13;
+		double a20, a21, a22, a23;
+		boolean identity;
+
+		MatrixStage(FastMatrixTransform matrix) {
+			double[] m = matrix.rowwise16();
+			a00 = m[0]; a01 = m[1]; a02 = m[2]; a03 = m[3];
+			a10 = m[4]; a11 = m[5]; a12 = m[6]; a13 = m[7];
+			a20 = m[8]; a21 = m[9]; a22 = m[10]; a23 = m[11];
+			identity = matrix.isIdentity();
+		}
+
+		void apply(double[] points, int count, double[] buffer) {
+			for (int i = 0; i < 3 * count; i += 3) {
+				double x = points[i], y = points[i + 1];
+				double z = points[i + 2];
+				points[i] = a00 * x + a01 * y + a02 * z + a03;
+				points[i + 1] = a10 * x + a11 * y + a12 * z + a13;
+				points[i + 2] = a20 * x + a21 * y + a22 * z + a23;
+			}
+		}
+
+		/* along a row, the result changes by the first column */
+		void applyToRow(double x0, double y, double z, int count,
+				double[] points, double[] buffer) {
+			double x = a00 * x0 + a01 * y + a02 * z + a03;
+			double yy = a10 * x0 + a11 * y + a12 * z + a13;
+			double zz = a20 * x0 + a21 * y + a22 * z + a23;
+			for (int i = 0; i < count; i++) {
+				points[3 * i] = x + i * a00;
+				points[3 * i + 1] = yy + i * a10;
+				points[3 * i + 2] = zz + i * a20;
+			}
+		}
+
+		boolean isIdentity() {
+			return identity;
+		}
+	}
+
+	protected static class LatticeStage extends Stage {
+		BooksteinLattice lattice;
+
+		/*
+		 * The lattice covers the bounding box of the samples, plus
+		 * one spacing on each side; should a point still fall
+		 * outside, it is transformed exactly.
+		 */
+		LatticeStage(Bookstein bookstein, double[] samples,
+				double spacing) {
+			double[] min = { Double.MAX_VALUE, Double.MAX_VALUE,
+				Double.MAX_VALUE };
+			double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE,
+				-Double.MAX_VALUE };
+			for (int i = 0; i < samples.length; i++) {
+				min[i % 3] = Math.min(min[i % 3], samples[i]);
+				max[i % 3] = Math.max(max[i % 3], samples[i]);
+			}
+			lattice = new BooksteinLattice(bookstein,
+				min[0] - spacing, min[1] - spacing,
+				min[2] - spacing, max[0] + spacing,
+				max[1] + spacing, max[2] + spacing,
+				spacing, spacing, spacing);
+		}
+
+		void apply(double[] points, int count, double[] buffer) {
+			for (int i = 0; i < 3 * count; i += 3) {
+				lattice.apply(points[i], points[i + 1],
+					points[i + 2], buffer);
+				points[i] = buffer[0];
+				points[i + 1] = buffer[1];
+				points[i + 2] = buffer[2];
+			}
+		}
+
+		void applyToRow(double x0, double y, double z, int count,
+				double[] points, double[] buffer) {
+			lattice.applyToRow(x0, 1, count, y, z, points, buffer);
+		}
+
+		int getBufferSize() {
+			return lattice.getColumnSize();
+		}
+	}
+
+	protected static class GenericStage extends Stage {
+		Transform transform;
+
+		GenericStage(Transform transform) {
+			this.transform = transform;
+		}
+
+		void apply(double[] points, int count, double[] buffer) {
+			for (int i = 0; i < 3 * count; i += 3) {
+				transform.apply(points[i], points[i + 1],
+					points[i + 2], buffer);
+				points[i] = buffer[0];
+				points[i + 1] = buffer[1];
+				points[i + 2] = buffer[2];
+			}
+		}
+
+		boolean isIdentity() {
+			return transform.isIdentity();
+		}
+	}
+}
@@ -12,7 +12,6 @@ import ij.IJ;
 import ij.ImageJ;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
-import ij.process.ByteProcessor;
 import ij.ImagePlus;
 import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.PlugInFilter;
@@ -23,8 +22,10 @@ import math3d.Point3d;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import vib.FastMatrix;
+import vib.InterpolatedImage;
 
 /* This class contains a sequence of transformations... */
 
@@ -32,6 +33,13 @@ public class OrderedTransformations {
 	
 	private ArrayList<Transform> listOfTransforms;
 	
+	/* the spacing of the lattices replacing Bookstein transforms
+	   when creating images; 0 means that they are evaluated exactly */
+	private double latticeSpacing = 4;
+	
+	/* the inverse, compiled for the last image that was created */
+	private CompiledTransformations compiledInverse;
+	
 	public Object clone() {
 		OrderedTransformations result=new OrderedTransformations();
 		
@@ -59,10 +67,12 @@ public class OrderedTransformations {
 	
 	public void addFirst( Transform t ) {
 		listOfTransforms.add(0,t);
+		compiledInverse = null;
 	}
 	
 	public void addLast( Transform t ) {
 		listOfTransforms.add(t);
+		compiledInverse = null;
 	}
 	
 	public void addFirst( OrderedTransformations o ) {
@@ -74,6 +84,7 @@ public class OrderedTransformations {
 			listOfTransforms.add(j,f);
 			++j;
 		}
+		compiledInverse = null;
 		
 	}
 	
@@ -184,9 +195,34 @@ public class OrderedTransformations {
 		}
 		
 		listOfTransforms = newList;
+		compiledInverse = null;
 		
 	}
 	
+	public void setLatticeSpacing( double spacing ) {
+		latticeSpacing = spacing;
+	}
+	
+	/*
+	 * The inverse, compiled for transforming all the points of the
+	 * given box (inclusive) in the template.  It is kept until the
+	 * transformations change, so that e.g. the slices of a stack can
+	 * be created one by one without recompiling.
+	 */
+	public CompiledTransformations compileInverse( int xmin, int ymin, int zmin,
+						       int xmax, int ymax, int zmax ) {
+		CompiledTransformations result = compiledInverse;
+		if( result == null ||
+		    ! result.covers( xmin, ymin, zmin, xmax, ymax, zmax, latticeSpacing ) ) {
+			result = new CompiledTransformations( inverse().listOfTransforms,
+							      xmin, ymin, zmin,
+							      xmax, ymax, zmax,
+							      latticeSpacing );
+			compiledInverse = result;
+		}
+		return result;
+	}
+	
 	public OrderedTransformations inverse( ) {
 		
 		ArrayList newList = new ArrayList<Transform>();
@@ -516,6 +552,9 @@ public class OrderedTransformations {
 	}
 	
 	// When we want to create a new image, this transformation maps the
+	// domain (image1) into the template (image0); every voxel of the
+	// new image is found by mapping it back with the inverse, and
+	// interpolating image1 there.
 	
 	public ImagePlus createNewImageReal( ImagePlus image0, // the "template", may be null
 					     ImagePlus image1, // the "domain", must be supplied
@@ -529,19 +568,9 @@ public class OrderedTransformations {
 					     int zmax,
 					     boolean overlay ) {
 		
-		System.out.println("      createNewImageReal called with overlay: "+overlay);
-		System.out.println("                                      image0: "+image0);
-		System.out.println("                                      image1: "+image1);
-		System.out.println("                                        xmin: "+xmin);
-		System.out.println("                                        xmax: "+xmax);
-		System.out.println("                                        ymin: "+ymin);
-		System.out.println("                                        ymax: "+ymax);
-		System.out.println("                                        zmin: "+zmin);
-		System.out.println("                                        zmax: "+zmax);
-		
-		int widthNew = (xmax - xmin) + 1;
-		int heightNew = (ymax - ymin) + 1;
-		int depthNew = (zmax - zmin) + 1;
+		final int widthNew = (xmax - xmin) + 1;
+		final int heightNew = (ymax - ymin) + 1;
+		final int depthNew = (zmax - zmin) + 1;
 		
 		assert( xmax >= xmin );
 		assert( ymax >= ymin );
@@ -549,138 +578,78 @@ public class OrderedTransformations {
 		
 		assert( image1 != null );
 		
-		int width0 = -1;
-		int height0 = -1;
-		int depth0 = -1;
-		
-		ImageStack stack0=null;
-		if( image0 != null ) {
-			width0 = image0.getWidth();
-			height0 = image0.getHeight();
-			stack0=image0.getStack();
-			depth0 = stack0.getSize();
-		}
-		ImageStack stack1=image1.getStack();
-		
-		int width1=stack1.getWidth();
-		int height1=stack1.getHeight();
-		int depth1=stack1.getSize();
-		
 		assert( (image0 != null) || (!overlay) );
 		
-		if( (image0 != null) && (image0.getType() != ImagePlus.GRAY8) ) {
-			IJ.error("OrderedTransformations.createNewImageReal() can only"+
-				 "be used on 8 bit image, at the moment.");
+		if( overlay && (image0.getType() != ImagePlus.GRAY8 ||
+				image1.getType() != ImagePlus.GRAY8) ) {
+			IJ.error("OrderedTransformations.createNewImageReal() can only "+
+				 "overlay 8 bit images, at the moment.");
 			return null;
 		}
 		
-		if( image1.getType() != ImagePlus.GRAY8 ) {
-			IJ.error("OrderedTransformations.createNewImageReal() can only"+
-				 "be used on 8 bit image, at the moment.");
+		final int type = image1.getType();
+		final InterpolatedImage source;
+		try {
+			source = new InterpolatedImage( image1 );
+		} catch( RuntimeException e ) {
+			IJ.error("OrderedTransformations.createNewImageReal(): "+
+				 "the type of "+image1.getTitle()+" is not supported.");
 			return null;
 		}
 		
-		ImageStack newStack=new ImageStack(widthNew,heightNew);
-		
-		int x, y, z;
-		
-		int x_in_domain;
-		int y_in_domain;
-		int z_in_domain;
-		
-		int x_in_template;
-		int y_in_template;
-		int z_in_template;
-		
-		boolean cacheImage=true;
-		
-		byte [][] image1_data=null;
-		if (cacheImage) {
-			image1_data=new byte[depth1][];
-			for( z = 0; z < depth1; ++z )
-				image1_data[z] = (byte[])stack1.getPixels( z + 1 );
-			// System.out.println("      Finished caching source data...");
-		}
-		
-		OrderedTransformations invertedTransform = inverse();
-		
-		for( z = 0; z < depthNew; ++z ) {
-			
-			// System.out.println("      Creating slice: "+z);
-			
-			z_in_template = z + zmin;
-			
-			byte [] greenPixels = new byte[ widthNew * heightNew ];
-			byte [] magentaPixels = null;
-			byte [] magentaPixelsExpanded = null;
-			if( overlay ) {
-				magentaPixelsExpanded = new byte[ widthNew * heightNew ];
-				if( (z_in_template >= 0) && (z_in_template < stack0.getSize()) )
-					magentaPixels=(byte [])stack0.getPixels( z_in_template + 1 );
-				else
-					magentaPixels=new byte[image0.getWidth()*image0.getHeight()];
-			}
-			
-			double [] transformedPoint = new double[3];
-			
-			for( y = 0; y < heightNew; ++y )
-				for( x = 0; x < widthNew; ++x ) {
-					
-					y_in_template = y + ymin;
-					x_in_template = x + xmin;
-					
-					invertedTransform.apply( x_in_template,
-								 y_in_template,
-								 z_in_template,
-								 transformedPoint );
-					
-					x_in_domain = ((int)transformedPoint[0]);
-					y_in_domain = ((int)transformedPoint[1]);
-					z_in_domain = ((int)transformedPoint[2]);
-					
-					if( ( x_in_domain >= 0 ) && ( x_in_domain < width1 ) &&
-					    ( y_in_domain >= 0 ) && ( y_in_domain < height1 ) &&
-					    ( z_in_domain >= 0 ) && ( z_in_domain < depth1 ) ) {
-						
-						
-						if (cacheImage) {
-							greenPixels[ x + y * widthNew ]=
-								image1_data[z_in_domain][ x_in_domain + y_in_domain * width1 ];
-						} else {
-							byte[] pixels=(byte[])stack1.getPixels( z_in_domain + 1 );
-							greenPixels[ x + y * widthNew ] =
-								pixels[ x_in_domain + y_in_domain * width1 ];
+		final CompiledTransformations inverse =
+			compileInverse( xmin, ymin, zmin, xmax, ymax, zmax );
+		
+		final Object [] slices = new Object[ depthNew ];
+		final ImageStack stack0 = overlay ? image0.getStack() : null;
+		
+		final int x0 = xmin, y0 = ymin, z0 = zmin;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread [] threads = new Thread[ Math.min( depthNew,
+				Runtime.getRuntime().availableProcessors() ) ];
+		for( int t = 0; t < threads.length; ++t ) {
+			threads[t] = new Thread() {
+				public void run() {
+					CompiledTransformations.Row row =
+						inverse.createRow();
+					for( int z = ai.getAndIncrement(); z < depthNew;
+					     z = ai.getAndIncrement() ) {
+						Object pixels = createPixels( type,
+							widthNew * heightNew );
+						for( int y = 0; y < heightNew; ++y ) {
+							inverse.applyToRow( x0, y + y0,
+								z + z0, widthNew, row );
+							resampleRow( source, type,
+								row.points, widthNew,
+								pixels, y * widthNew );
 						}
-						
-					}
-					
-					if( ( z_in_template >= 0 ) && ( z_in_template < depth0 ) &&
-					    ( x_in_template >= 0 ) && ( x_in_template < width0 ) &&
-					    ( y_in_template >= 0 ) && ( y_in_template < height0 ) ) {
-						
-						magentaPixelsExpanded[ x + y * widthNew ] =
-							magentaPixels[ x_in_template + y_in_template * width0 ];
-						
+						slices[z] = overlay ?
+							overlaySlice( stack0,
+								(byte [])pixels,
+								x0, y0, z + z0,
+								widthNew, heightNew ) :
+							pixels;
+						IJ.showProgress( done.incrementAndGet(),
+							depthNew );
 					}
-					
-					
-					IJ.showProgress( (double) (z + 1) / depthNew );
 				}
-			
-			if( overlay ) {
-				ColorProcessor cp = new ColorProcessor( widthNew, heightNew );
-				cp.setRGB( magentaPixelsExpanded, greenPixels, magentaPixelsExpanded );
-				newStack.addSlice( null, cp );
-			} else {
-				ByteProcessor bp = new ByteProcessor( widthNew, heightNew );
-				bp.setPixels( greenPixels );
-				newStack.addSlice( null, bp );
-			}
-			
+			};
+			threads[t].start();
 		}
+		for( int t = 0; t < threads.length; ++t )
+			try {
+				threads[t].join();
+			} catch( InterruptedException e ) {
+				IJ.handleException( e );
+			}
 		
 		IJ.showProgress( 1.0 );
 		
+		ImageStack newStack = new ImageStack( widthNew, heightNew );
+		for( int z = 0; z < depthNew; ++z )
+			newStack.addSlice( null, slices[z] );
+		
 		ImagePlus impNew;
 		
 		if( overlay ) {
@@ -688,6 +657,8 @@ public class OrderedTransformations {
 					     " and transformed "+image1.getShortTitle(),newStack);
 		} else {
 			impNew=new ImagePlus("transformation of "+image1.getShortTitle(),newStack);
+			if( type == ImagePlus.COLOR_256 || type == ImagePlus.GRAY8 )
+				newStack.setColorModel( image1.getProcessor().getColorModel() );
 		}
 		
 		// FIXME: more generally, should transform the calibration from image1
@@ -699,6 +670,88 @@ public class OrderedTransformations {
 		
 	}
 	
+	static Object createPixels( int type, int size ) {
+		switch( type ) {
+		case ImagePlus.GRAY16:
+			return new short[ size ];
+		case ImagePlus.GRAY32:
+			return new float[ size ];
+		case ImagePlus.COLOR_RGB:
+			return new int[ size ];
+		default:
+			return new byte[ size ];
+		}
+	}
+	
+	/*
+	 * Interpolate the source at the count points (stored as x, y, z
+	 * triplets), and store the values in pixels, starting at offset.
+	 * Points up to half a voxel outside the source are moved onto its
+	 * border; points further away get the value 0.
+	 */
+	static void resampleRow( InterpolatedImage source, int type,
+				 double [] points, int count,
+				 Object pixels, int offset ) {
+		double xMax = source.w - 1, yMax = source.h - 1;
+		double zMax = source.d - 1;
+		for( int i = 0; i < count; ++i ) {
+			double x = points[ 3 * i ];
+			double y = points[ 3 * i + 1 ];
+			double z = points[ 3 * i + 2 ];
+			double value = 0;
+			if( x > -0.5 && x < xMax + 0.5 &&
+			    y > -0.5 && y < yMax + 0.5 &&
+			    z > -0.5 && z < zMax + 0.5 )
+				value = source.interpol.get(
+					Math.min( xMax, Math.max( 0, x ) ),
+					Math.min( yMax, Math.max( 0, y ) ),
+					Math.min( zMax, Math.max( 0, z ) ) );
+			switch( type ) {
+			case ImagePlus.GRAY16:
+				((short [])pixels)[ offset + i ] =
+					(short)(int)( value + 0.5 );
+				break;
+			case ImagePlus.GRAY32:
+				((float [])pixels)[ offset + i ] = (float)value;
+				break;
+			case ImagePlus.COLOR_RGB:
+				((int [])pixels)[ offset + i ] = (int)value;
+				break;
+			default:
+				((byte [])pixels)[ offset + i ] =
+					(byte)(int)( value + 0.5 );
+			}
+		}
+	}
+	
+	/*
+	 * The slice of the overlay: the template in magenta, the
+	 * transformed image in green.
+	 */
+	static int [] overlaySlice( ImageStack stack0, byte [] greenPixels,
+				    int x0, int y0, int z,
+				    int widthNew, int heightNew ) {
+		byte [] magentaPixelsExpanded = new byte[ widthNew * heightNew ];
+		int width0 = stack0.getWidth();
+		int height0 = stack0.getHeight();
+		if( z >= 0 && z < stack0.getSize() ) {
+			byte [] magentaPixels = (byte [])stack0.getPixels( z + 1 );
+			int xStart = Math.max( 0, -x0 );
+			int xEnd = Math.min( widthNew, width0 - x0 );
+			for( int y = Math.max( 0, -y0 );
+			     y < heightNew && y + y0 < height0; ++y )
+				if( xEnd > xStart )
+					System.arraycopy( magentaPixels,
+						xStart + x0 + (y + y0) * width0,
+						magentaPixelsExpanded,
+						xStart + y * widthNew,
+						xEnd - xStart );
+		}
+		ColorProcessor cp = new ColorProcessor( widthNew, heightNew );
+		cp.setRGB( magentaPixelsExpanded, greenPixels, magentaPixelsExpanded );
+		return (int [])cp.getPixels();
+	}
+	
 	public ImagePlus createNewImage( ImagePlus image0, ImagePlus image1, boolean cropToTemplate ) {
 		
 		int width0 = image0.getWidth();
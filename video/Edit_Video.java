@@ -41,6 +41,8 @@ import java.awt.geom.Area;
 
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 public class Edit_Video implements PlugIn, ActionListener {
 
@@ -164,6 +166,12 @@ public class Edit_Video implements PlugIn, ActionListener {
 
 		gd.addPanel(all);
 		gd.setModal(false);
+		// write the pending frames when the editor is closed
+		gd.addWindowListener(new WindowAdapter() {
+			public void windowClosed(WindowEvent e) {
+				close();
+			}
+		});
 		gd.showDialog();
 		bl.layoutContainer(all);
 		all.repaint();
@@ -203,7 +211,14 @@ public class Edit_Video implements PlugIn, ActionListener {
 		System.out.println("done");
 	}
 
+	public void close() {
+		if(stack != null)
+			stack.close();
+	}
+
 	public void open() {
+			if(stack != null)
+				stack.close();
 			stack = new VideoStack();
 			String dir = 
 			"/home/bene/Desktop/video";
@@ -559,6 +574,8 @@ public class Edit_Video implements PlugIn, ActionListener {
 		// clean temporary files that can interfere with the 
 		// compression phase
 		File cwd = new File(stack.getDir());
+		// mencoder reads the files, so they must all be written
+		stack.flush();
 		new File(cwd, "divx2pass.log").delete();
 		new File(cwd, "frameno.avi").delete();
 		// compress
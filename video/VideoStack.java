@@ -3,8 +3,16 @@ package video;
 import java.io.File;
 import java.util.Vector;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.text.DecimalFormat;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -12,10 +20,23 @@ import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ij.io.FileSaver;
 
+/*
+ * The frames of a video, as PNG files in one directory, plus a stack
+ * of small previews (whose slice labels are the file names).
+ *
+ * Decoded frames are kept in a small LRU cache, and when the frames are
+ * accessed in order, the next ones are decoded in the background.  New
+ * and changed frames are encoded in the background, too (call flush()
+ * before reading the files from elsewhere); until they are written,
+ * they are served from memory.
+ */
 public class VideoStack {
 
 	static final int DIGITS = 8;
 	static final String LAST = "99999999";
+	/* the maximal number of decoded frames in memory, and to read ahead */
+	static final int CACHE_SIZE = 32;
+	static final int PREFETCH = 4;
 
 	private String dir;
 	private String basename;
@@ -23,7 +44,50 @@ public class VideoStack {
 	private int w_org, h_org, w_prev, h_prev, d;
 	private ImageStack preview;
 
-	
+	/* decoded frames by file name; all the maps are guarded by cache */
+	private int cacheSize = 2;
+	private LinkedHashMap<String, ImageProcessor> cache =
+		new LinkedHashMap<String, ImageProcessor>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, ImageProcessor> e) {
+				return size() > cacheSize;
+			}
+		};
+	/* frames which are not yet written */
+	private HashMap<String, ImageProcessor> pending =
+		new HashMap<String, ImageProcessor>();
+	/* incremented whenever a file name gets a new content */
+	private int modifications;
+
+	/*
+	 * The background threads must not keep the JVM alive; the frames
+	 * which are not written yet are flushed by close(), or when the
+	 * JVM shuts down.
+	 */
+	private static final ThreadFactory daemons = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "VideoStack");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private ExecutorService writer =
+		Executors.newSingleThreadExecutor(daemons);
+	private ExecutorService reader =
+		Executors.newSingleThreadExecutor(daemons);
+	private Thread shutdownHook = new Thread() {
+		public void run() {
+			flush();
+		}
+	};
+	/* only the most recent read-ahead request is worked on */
+	private AtomicInteger prefetchRequests = new AtomicInteger();
+	private int lastIndex = -1;
+
+	public VideoStack() {
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
 	public void open(String dir, String basename, String ending) {
 		this.basename = basename;
 		this.ending = ending;
@@ -40,6 +104,7 @@ System.out.println("Loading existing preview stack");
 			w_org = tmp.getWidth();
 			h_org = tmp.getHeight();
 			d = preview.getSize();
+			initCacheSize();
 			return;
 		}
 
@@ -72,17 +137,153 @@ System.out.println("opening " + files[i]);
 			preview.addSlice(files[i], ip);
 		}
 		d = preview.getSize();
+		initCacheSize();
+	}
+
+	private void initCacheSize() {
+		long frameBytes = Math.max(1, 4L * w_org * h_org);
+		long budget = Runtime.getRuntime().maxMemory() / 8;
+		cacheSize = (int)Math.max(2,
+			Math.min(CACHE_SIZE, budget / frameBytes));
 	}
 
+	/*
+	 * The frame index (1-based); the returned processor is a copy,
+	 * and can be modified freely.
+	 */
 	public ImageProcessor getProcessor(int index) {
-		return IJ.openImage(dir + "/" + preview.getSliceLabel(index)).
-			getProcessor();
+		String name = preview.getSliceLabel(index);
+		ImageProcessor ip;
+		int modified;
+		synchronized(cache) {
+			ip = cache.get(name);
+			if(ip == null)
+				ip = pending.get(name);
+			modified = modifications;
+		}
+		if(ip == null) {
+			ip = IJ.openImage(dir + "/" + name).getProcessor();
+			synchronized(cache) {
+				if(modified == modifications)
+					cache.put(name, ip);
+			}
+		}
+		prefetch(index);
+		return ip.duplicate();
+	}
+
+	/*
+	 * Decode the next few frames in the direction the frames are
+	 * being looked at, in the background.
+	 */
+	private void prefetch(int index) {
+		int step = index < lastIndex ? -1 : 1;
+		boolean sequential = lastIndex > 0 &&
+			Math.abs(index - lastIndex) <= PREFETCH;
+		lastIndex = index;
+		if(!sequential)
+			return;
+		final Vector<String> names = new Vector<String>();
+		int n = Math.min(PREFETCH, cacheSize - 1);
+		for(int i = 1; i <= n; i++) {
+			int z = index + i * step;
+			if(z < 1 || z > preview.getSize())
+				break;
+			names.add(preview.getSliceLabel(z));
+		}
+		if(names.size() == 0)
+			return;
+		final int request = prefetchRequests.incrementAndGet();
+		reader.execute(new Runnable() {
+			public void run() {
+				for(String name : names) {
+					if(request != prefetchRequests.get())
+						return;
+					int modified;
+					synchronized(cache) {
+						if(cache.containsKey(name) ||
+							pending.containsKey(name))
+							continue;
+						modified = modifications;
+					}
+					ImagePlus imp;
+					try {
+						imp = IJ.openImage(dir + "/" + name);
+					} catch(Exception e) {
+						// the frame is read when needed
+						return;
+					}
+					if(imp == null)
+						return;
+					synchronized(cache) {
+						if(modified == modifications)
+							cache.put(name,
+								imp.getProcessor());
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Remember a snapshot of the frame, and write it to disk in the
+	 * background; the caller may go on modifying ip.
+	 */
+	private void store(final String name, ImageProcessor ip) {
+		final ImageProcessor copy = ip.duplicate();
+		synchronized(cache) {
+			modifications++;
+			cache.put(name, copy);
+			pending.put(name, copy);
+		}
+		writer.execute(new Runnable() {
+			public void run() {
+				ImagePlus imp = new ImagePlus(name, copy);
+				new FileSaver(imp).saveAsPng(dir + "/" + name);
+				synchronized(cache) {
+					if(pending.get(name) == copy)
+						pending.remove(name);
+				}
+			}
+		});
+	}
+
+	/* Wait until all frames are written to disk. */
+	public void flush() {
+		waitFor(writer);
+	}
+
+	/* Wait until the tasks submitted so far are done. */
+	private static void waitFor(ExecutorService executor) {
+		try {
+			executor.submit(new Runnable() {
+				public void run() {}
+			}).get();
+		} catch(Exception e) {
+			IJ.handleException(e);
+		}
+	}
+
+	/* Write all frames, and stop the background threads. */
+	public void close() {
+		if(writer.isShutdown())
+			return;
+		flush();
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch(IllegalStateException e) {
+			// already shutting down
+		}
+		reader.shutdownNow();
+		writer.shutdown();
+		synchronized(cache) {
+			cache.clear();
+		}
 	}
 
 	public void setSlice(int index, ImageProcessor ip) {
 		String name = preview.getSliceLabel(index);
-		ImagePlus imp = new ImagePlus(name, ip);
-		new FileSaver(imp).saveAsPng(dir + "/" + name);
+		store(name, ip);
 
 		ip = ip.resize(w_prev).convertToByte(true);
 		preview.setPixels(ip.getPixels(), index);
@@ -124,35 +325,27 @@ System.out.println("opening " + files[i]);
 		while(name.length() < DIGITS)
 			name += '0';
 		name = basename + name + "." + ending;
-		ImagePlus imp = new ImagePlus(name, ip);
-		new FileSaver(imp).saveAsPng(dir + "/" + name);
+		store(name, ip);
 
 		ip = ip.resize(w_prev).convertToByte(true);
 		preview.addSlice(name, ip, index);
 		return true;
 	}
 
+	/*
+	 * Renumber the frames evenly, so that there is room for new frames
+	 * between any two; the files are only renamed, first to temporary
+	 * names (the old and new names may overlap), then to the new ones.
+	 */
 	public boolean rebaseImages() {
-System.out.println("rebase images");
 		int N = preview.getSize();
-		// create tmp directory
-		File tmpdir = new File(dir, "tmp");
-		if(tmpdir.exists()) {
-			IJ.error("Cannot rebase images, since temporary\n" +
-				"directory already exists");
-			return false;
-		}
-		if(!tmpdir.mkdir()) {
-			IJ.error("Cannot create temporary");
-			return false;
-		}
-		for(int z = 0; z < N; z++) {
-			String name = preview.getSliceLabel(z+1);
-			new FileSaver(IJ.openImage(dir + "/" + name)).
-				saveAsPng(
-					tmpdir.getAbsolutePath() + "/" + name);
-			new File(dir, name).delete();
+		// the names must not change under the background threads
+		synchronized(cache) {
+			modifications++;
 		}
+		prefetchRequests.incrementAndGet();
+		waitFor(reader);
+		flush();
 
 		// find out how many digits are needed
 		int num = 1, digitsNeeded = 1;
@@ -169,30 +362,72 @@ System.out.println("rebase images");
 		for(int i = 0; i < DIGITS - digitsNeeded; i++)
 			app += '0';
 
-		// finally save the files
+		String[] oldnames = new String[N];
+		String[] newnames = new String[N];
 		for(int z = 0; z < N; z++) {
-			String oldname = preview.getSliceLabel(z+1);
-			String newname = basename + df.format(z+1)
+			oldnames[z] = preview.getSliceLabel(z+1);
+			newnames[z] = basename + df.format(z+1)
 				+ app + "." + ending;
-			ImagePlus imp = IJ.openImage(
-				tmpdir.getAbsolutePath() + "/" + oldname);
-			// save under new name
-			new FileSaver(imp).saveAsPng(dir + "/" + newname);
-			preview.setSliceLabel(newname, z+1);
-		}
-		
-		// eventually, we should now delete the tmp folder
-		File[] tmpfiles = tmpdir.listFiles();
-		for(int i = 0; i < tmpfiles.length; i++)
-			tmpfiles[i].delete();
-		tmpdir.delete();
-System.out.println("rebased");
+			File tmp = new File(dir, oldnames[z] + ".rebase");
+			if(tmp.exists() || !new File(dir, oldnames[z])
+					.renameTo(tmp)) {
+				IJ.error("Cannot rebase images, since "
+					+ oldnames[z] + " could not be renamed");
+				// undo
+				for(int i = 0; i < z; i++)
+					new File(dir, oldnames[i] + ".rebase")
+						.renameTo(new File(dir,
+							oldnames[i]));
+				return false;
+			}
+		}
+		for(int z = 0; z < N; z++) {
+			File tmp = new File(dir, oldnames[z] + ".rebase");
+			if(tmp.renameTo(new File(dir, newnames[z])))
+				continue;
+			IJ.error("Cannot rebase images, since "
+				+ oldnames[z] + " could not be renamed to "
+				+ newnames[z]);
+			// undo, via the temporary names again
+			for(int i = 0; i < z; i++)
+				new File(dir, newnames[i]).renameTo(new File(dir,
+					oldnames[i] + ".rebase"));
+			for(int i = 0; i < N; i++)
+				new File(dir, oldnames[i] + ".rebase")
+					.renameTo(new File(dir, oldnames[i]));
+			return false;
+		}
+		for(int z = 0; z < N; z++)
+			preview.setSliceLabel(newnames[z], z+1);
+
+		// the decoded frames stay valid under their new names
+		synchronized(cache) {
+			HashMap<String, ImageProcessor> decoded =
+				new HashMap<String, ImageProcessor>();
+			for(int z = 0; z < N; z++) {
+				ImageProcessor ip = cache.get(oldnames[z]);
+				if(ip != null)
+					decoded.put(newnames[z], ip);
+			}
+			cache.clear();
+			cache.putAll(decoded);
+		}
 		return true;
 	}
 
 	public void deleteSlice(int index) {
-		File f = new File(dir + "/" + preview.getSliceLabel(index));
-		f.delete();
+		final String name = preview.getSliceLabel(index);
+		synchronized(cache) {
+			modifications++;
+			cache.remove(name);
+			pending.remove(name);
+		}
+		// after any pending write of the same file
+		writer.execute(new Runnable() {
+			public void run() {
+				new File(dir + "/" + name).delete();
+			}
+		});
 		preview.deleteSlice(index);
 
 	}
@@ -77,9 +77,12 @@ public class VoltexGroup extends ContentNode {
 			throw new IllegalArgumentException("VoltexGroup can only" +
 				"be initialized from a ContentInstant that holds an image.");
 		this.c = c;
+		// fillRoi() writes to the volume, so it cannot share the
+		// cached copy (see NaiveResampler.resampleCached())
 		ImagePlus imp = c.getResamplingFactor() == 1
 			? c.getImage()
-			: NaiveResampler.resample(c.getImage(), c.getResamplingFactor());
+			: NaiveResampler.resample(c.getImage(),
+				c.getResamplingFactor());
 		renderer = new VolumeRenderer(imp, c.getColor(),
 				c.getTransparency(), c.getChannels());
 		renderer.fullReload();
@@ -228,7 +231,11 @@ public class VoltexGroup extends ContentNode {
 		// also fill the original image
 		ImagePlus image = c.getImage();
 		int factor = c.getResamplingFactor();
-		if(image == null || factor == 1)
+		if(image == null)
+			return;
+		// its pixels change in place, so the cached copies are stale
+		NaiveResampler.invalidate(image);
+		if(factor == 1)
 			return;
 
 		ij3d.Volume volu = new ij3d.Volume(image);